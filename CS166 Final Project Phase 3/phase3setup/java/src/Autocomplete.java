@@ -0,0 +1,397 @@
+/*
+ * Prefix autocomplete for Ticketmaster
+ * ====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class completes a typed prefix to the most popular movie titles or
+ * cinema names that have a word starting with it.
+ *
+ * Text is folded before it is matched: lower case, accents taken off, and
+ * anything but letters and digits dropped, so "amelie" finds "Amélie" and
+ * "spiderman" finds "Spider-Man".  Each word start of an entry's folded
+ * text is a key of a trie kept in parallel arrays (label, first child,
+ * next sibling), and every node holds the K most popular entries below
+ * it, so a completion is a walk of the typed characters plus a copy of K
+ * ints into the caller's array.  complete() allocates nothing.
+ *
+ * put() adds an entry, or changes its text or popularity, and recomputes
+ * the top K of the nodes on its keys' paths from their children's, so
+ * the trie stays exact without a rebuild.
+ *
+ */
+
+public class Autocomplete{
+	/** Completions kept per node; -Dticketmaster.autocomplete.k overrides. */
+	public static final int K = Integer.getInteger("ticketmaster.autocomplete.k", 10);
+
+	static final int MAX_WORDS = 8;
+
+	// folded form of the Latin characters, 0 for those dropped
+	private static final char[] FOLD = new char[0x250];
+	static {
+		for(char c = 0; c < FOLD.length; ++c){
+			String d = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+			char f = Character.toLowerCase(d.charAt(0));
+			FOLD[c] = Character.isLetterOrDigit(f) ? f : 0;
+		}
+	}
+
+	// nodes; node 0 is the root
+	private char[] label = new char[1024];
+	private int[] child = new int[1024];
+	private int[] sibling = new int[1024];
+	private int[] ends = new int[1024];      // first key ending at the node
+	private int[] top = new int[1024 * K];   // entries by popularity, -1 after the last
+	private int nodes;
+
+	// keys, one per word start of an entry
+	private int[] keyEntry = new int[1024];
+	private int[] keyNext = new int[1024];  // next key ending at the same node
+	private int keys;
+
+	// entries
+	private long[] ids = new long[256];
+	private String[] texts = new String[256];
+	private long[] weights = new long[256];
+	private boolean[] dead = new boolean[256];
+	private int entries;
+	private final Map<Long, Integer> byId = new HashMap<Long, Integer>();
+
+	private final int[] path = new int[256];
+
+	public Autocomplete(){
+		nodes = 1;
+		child[0] = sibling[0] = ends[0] = -1;
+		Arrays.fill(top, -1);
+	}
+
+	/**
+	 * Loads the movie titles, weighted by seats booked for their shows.
+	 *
+	 * @param esql the client
+	 * @return the completions
+	 * @throws java.sql.SQLException when the movies cannot be read
+	 */
+	public static Autocomplete titles(Ticketmaster esql) throws SQLException {
+		return load(esql,
+			"SELECT M.mvid, M.title, coalesce(sum(B.seats), 0) FROM Movies M " +
+			"LEFT JOIN Shows S ON S.mvid = M.mvid LEFT JOIN Bookings B ON B.sid = S.sid " +
+			"GROUP BY M.mvid, M.title");
+	}
+
+	/**
+	 * Loads the cinema names with their city, weighted by seats booked at
+	 * the cinema.
+	 *
+	 * @param esql the client
+	 * @return the completions
+	 * @throws java.sql.SQLException when the cinemas cannot be read
+	 */
+	public static Autocomplete cinemas(Ticketmaster esql) throws SQLException {
+		return load(esql,
+			"SELECT C.cid, C.cname || ', ' || Ci.city_name, coalesce(sum(B.seats), 0) " +
+			"FROM Cinemas C JOIN Cities Ci ON Ci.city_id = C.city_id " +
+			"LEFT JOIN Theaters T ON T.cid = C.cid LEFT JOIN Plays P ON P.tid = T.tid " +
+			"LEFT JOIN Bookings B ON B.sid = P.sid GROUP BY C.cid, C.cname, Ci.city_name");
+	}
+
+	private static Autocomplete load(Ticketmaster esql, String query) throws SQLException {
+		Autocomplete a = new Autocomplete();
+		for(List<String> r : esql.executeQueryAndReturnResult(query)){
+			a.put(Long.parseLong(r.get(0).trim()), r.get(1).trim(), Long.parseLong(r.get(2).trim()));
+		}
+		return a;
+	}
+
+	/** @return c folded, or 0 when it is not matched */
+	static char fold(char c){
+		if(c < FOLD.length) return FOLD[c];
+		return Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+	}
+
+	/**
+	 * Completes a prefix.  The entries are valid until the next put().
+	 *
+	 * @param prefix what was typed
+	 * @param out receives entry numbers, most popular first; up to K are used
+	 * @return how many entries were written
+	 */
+	public synchronized int complete(CharSequence prefix, int[] out){
+		int n = 0;
+		for(int i = 0; i < prefix.length(); ++i){
+			char f = fold(prefix.charAt(i));
+			if(f == 0) continue;
+			int c = child[n];
+			while(c >= 0 && label[c] != f) c = sibling[c];
+			if(c < 0) return 0;
+			n = c;
+		}
+		int found = 0;
+		for(int i = n * K; found < out.length && i < n * K + K && top[i] >= 0; ++i) out[found++] = top[i];
+		return found;
+	}
+
+	/** @return the id of an entry returned by complete() */
+	public synchronized long id(int entry){
+		return ids[entry];
+	}
+
+	/** @return the text of an entry returned by complete() */
+	public synchronized String text(int entry){
+		return texts[entry];
+	}
+
+	/** @return the popularity of an entry returned by complete() */
+	public synchronized long weight(int entry){
+		return weights[entry];
+	}
+
+	/** @return how many entries there are */
+	public synchronized int size(){
+		return byId.size();
+	}
+
+	/**
+	 * Adds an entry, or changes one.
+	 *
+	 * @param id the movie or cinema id
+	 * @param text what is matched and shown
+	 * @param weight its popularity; higher comes first
+	 */
+	public synchronized void put(long id, String text, long weight){
+		Integer old = byId.get(id);
+		if(old != null && texts[old].equals(text)){
+			boolean raised = weight >= weights[old];
+			weights[old] = weight;
+			reorder(old, raised);
+			return;
+		}
+		if(old != null){
+			dead[old] = true;
+			reorder(old, false);
+		}
+		int e = entries++;
+		if(e == ids.length){
+			ids = Arrays.copyOf(ids, 2 * e);
+			texts = Arrays.copyOf(texts, 2 * e);
+			weights = Arrays.copyOf(weights, 2 * e);
+			dead = Arrays.copyOf(dead, 2 * e);
+		}
+		ids[e] = id;
+		texts[e] = text;
+		weights[e] = weight;
+		byId.put(id, e);
+		for(int start : wordStarts(text)){
+			int n = 0, depth = 0;
+			for(int i = start; i < text.length(); ++i){
+				char f = fold(text.charAt(i));
+				if(f == 0) continue;
+				n = childOf(n, f);
+				if(depth < path.length) path[depth++] = n;
+			}
+			if(keys == keyEntry.length){
+				keyEntry = Arrays.copyOf(keyEntry, 2 * keys);
+				keyNext = Arrays.copyOf(keyNext, 2 * keys);
+			}
+			keyEntry[keys] = e;
+			keyNext[keys] = ends[n];
+			ends[n] = keys++;
+			raise(depth, e);
+		}
+	}
+
+	/**
+	 * Adds to the popularity of an entry.
+	 *
+	 * @param id the movie or cinema id
+	 * @param delta what to add
+	 */
+	public synchronized void addWeight(long id, long delta){
+		Integer e = byId.get(id);
+		if(e == null) return;
+		weights[e] += delta;
+		reorder(e, delta >= 0);
+	}
+
+	/*
+	 * Updates the nodes on the paths of an entry's keys after its weight
+	 * or liveness changed.  A raised entry can only move up, so it is
+	 * placed again; otherwise the nodes are recomputed.
+	 */
+	private void reorder(int e, boolean raised){
+		String text = texts[e];
+		for(int start : wordStarts(text)){
+			int n = 0, depth = 0;
+			for(int i = start; i < text.length() && n >= 0; ++i){
+				char f = fold(text.charAt(i));
+				if(f == 0) continue;
+				int c = child[n];
+				while(c >= 0 && label[c] != f) c = sibling[c];
+				n = c;
+				if(n >= 0 && depth < path.length) path[depth++] = n;
+			}
+			if(raised) raise(depth, e);
+			else recompute(depth);
+		}
+		if(dead[e]) byId.remove(ids[e]);
+	}
+
+	/* Offsets in the text where a word starts, at most MAX_WORDS. */
+	private static int[] wordStarts(String text){
+		int[] starts = new int[MAX_WORDS];
+		int n = 0;
+		boolean inWord = false;
+		for(int i = 0; i < text.length() && n < MAX_WORDS; ++i){
+			boolean letter = fold(text.charAt(i)) != 0;
+			if(letter && !inWord) starts[n++] = i;
+			inWord = letter;
+		}
+		return Arrays.copyOf(starts, n);
+	}
+
+	private int childOf(int n, char f){
+		for(int c = child[n]; c >= 0; c = sibling[c]){
+			if(label[c] == f) return c;
+		}
+		int c = nodes++;
+		if(c == label.length){
+			label = Arrays.copyOf(label, 2 * c);
+			child = Arrays.copyOf(child, 2 * c);
+			sibling = Arrays.copyOf(sibling, 2 * c);
+			ends = Arrays.copyOf(ends, 2 * c);
+			top = Arrays.copyOf(top, 2 * c * K);
+			Arrays.fill(top, c * K, top.length, -1);
+		}
+		label[c] = f;
+		child[c] = ends[c] = -1;
+		sibling[c] = child[n];
+		child[n] = c;
+		return c;
+	}
+
+	/* Recomputes path[depth - 1] up to path[0], then the root. */
+	private void recompute(int depth){
+		for(int d = depth - 1; d >= 0; --d) recomputeNode(path[d]);
+		recomputeNode(0);
+	}
+
+	/* Places an entry that was added or raised in path[0..depth) and the root. */
+	private void raise(int depth, int e){
+		for(int d = 0; d < depth; ++d) raiseNode(path[d], e);
+		raiseNode(0, e);
+	}
+
+	private void raiseNode(int n, int e){
+		int base = n * K, size = 0;
+		for(int i = base; i < base + K && top[i] >= 0; ++i){
+			if(top[i] != e) top[base + size++] = top[i];
+		}
+		if(size < K) top[base + size] = -1;
+		offer(base, size, e);
+	}
+
+	private void recomputeNode(int n){
+		int base = n * K, size = 0;
+		Arrays.fill(top, base, base + K, -1);
+		for(int k = ends[n]; k >= 0; k = keyNext[k]) size = offer(base, size, keyEntry[k]);
+		for(int c = child[n]; c >= 0; c = sibling[c]){
+			for(int i = c * K; i < c * K + K && top[i] >= 0; ++i) size = offer(base, size, top[i]);
+		}
+	}
+
+	/* Inserts an entry into a node's sorted top K, once. */
+	private int offer(int base, int size, int e){
+		if(dead[e]) return size;
+		for(int i = base; i < base + size; ++i){
+			if(top[i] == e) return size;
+		}
+		int at = base + size;
+		while(at > base && before(e, top[at - 1])) --at;
+		if(at == base + K) return size;
+		int last = Math.min(base + size, base + K - 1);
+		System.arraycopy(top, at, top, at + 1, last - at);
+		top[at] = e;
+		return Math.min(size + 1, K);
+	}
+
+	private boolean before(int a, int b){
+		return weights[a] != weights[b] ? weights[a] > weights[b] : a < b;
+	}
+
+	/**
+	 * Times completions of every prefix of generated titles, and measures
+	 * what they allocate.
+	 *
+	 * Usage: java Autocomplete [titles]
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		String[] words = { "love", "night", "return", "dark", "star", "am\u00e9lie", "spider-man", "king", "lost", "city",
+			"river", "ghost", "summer", "war", "dream", "zo\u00eb", "island", "fire", "the", "of" };
+		Random random = new Random(7);
+		long start = System.nanoTime();
+		Autocomplete titles = new Autocomplete();
+		String[] typed = new String[n];
+		for(int i = 0; i < n; ++i){
+			StringBuilder t = new StringBuilder();
+			for(int w = 1 + random.nextInt(4); w > 0; --w) t.append(words[random.nextInt(words.length)]).append(' ');
+			typed[i] = t.append(i).toString();
+			titles.put(i, typed[i], random.nextInt(100000));
+		}
+		System.out.println("Built " + n + " titles in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		int[] out = new int[K];
+		Prefix prefix = new Prefix();
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long tid = Thread.currentThread().getId();
+		// the first round warms up, the second is measured
+		for(int round = 0; round < 2; ++round){
+			long keystrokes = 0, found = 0;
+			long allocated = threads.getThreadAllocatedBytes(tid);
+			start = System.nanoTime();
+			for(int i = 0; i < n; ++i){
+				prefix.s = typed[i];
+				for(prefix.length = 1; prefix.length <= Math.min(typed[i].length(), 12); ++prefix.length, ++keystrokes){
+					found += titles.complete(prefix, out);
+				}
+			}
+			long took = System.nanoTime() - start;
+			allocated = threads.getThreadAllocatedBytes(tid) - allocated;
+			if(round == 0) continue;
+			System.out.printf("%d keystrokes: %.2f us each, %.1f completions each, %d bytes allocated%n",
+				keystrokes, took / 1000.0 / keystrokes, (double)found / keystrokes, allocated);
+		}
+	}
+
+	/* The typed part of a string, reused for every keystroke. */
+	private static final class Prefix implements CharSequence{
+		String s;
+		int length;
+
+		public int length(){ return length; }
+		public char charAt(int i){ return s.charAt(i); }
+		public CharSequence subSequence(int from, int to){ return s.subSequence(from, to); }
+		@Override
+		public String toString(){ return s.subSequence(0, length).toString(); }
+	}//end Prefix
+}//end Autocomplete
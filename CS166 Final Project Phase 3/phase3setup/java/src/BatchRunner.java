@@ -0,0 +1,585 @@
+/*
+ * Batch execution for Ticketmaster
+ * ================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class runs menu operations from a script instead of the keyboard.
+ *
+ * Each line of the script is one operation: its menu number or method name
+ * followed by the answers to its prompts, in order, either as CSV
+ *
+ *   2,alice@example.com,52,7,2,,y,Pending,2024-05-01 18:00:00
+ *   RemovePayment,1003
+ *
+ * (AddBooking's answers are email, show id, movie id, seat count, seat
+ * type or empty for any, y to take the offered seats, status and booking
+ * time) or as a JSON object per line
+ *
+ *   {"op": "AddBooking", "input": ["alice@example.com", "52", "7", "2", "", "y", ...]}
+ *
+ * Blank lines and lines starting with # are skipped.  The operations run
+ * unchanged: the prompt loops read Ticketmaster.in, which hands each worker
+ * thread the answers of its current operation.  An operation fails when it
+ * reports an error on System.err, throws, asks for more answers than it was
+ * given, or leaves answers unread; its other output is discarded.
+ *
+ * Operations are cut into groups of consecutive lines and each group runs
+ * on one of the worker clients, in one transaction: operations with a
+ * transaction of their own, such as BulkImportUsers or ScheduleMovieSeason, run
+ * under a savepoint of it, and ArchiveOldBookings, whose files are only kept
+ * after a commit of its own, is refused inside a group.  The first failure
+ * rolls the group back and the rest of the group is skipped.  Groups run in
+ * parallel, so with more than one worker the order between groups is not
+ * kept.
+ *
+ */
+
+public class BatchRunner{
+	private static final String[] NAMES = Ticketmaster.OPERATIONS;
+	private static final int MAX_ERROR_SAMPLES = 10;
+
+	/**
+	 * Thrown to an operation that prompts for more answers than its script
+	 * line has.  An Error, so the prompt loops, which catch Exception and
+	 * ask again, let it through.
+	 */
+	static final class OutOfInput extends Error{
+		private static final long serialVersionUID = 1L;
+
+		OutOfInput(){
+			super("ran out of input", null, false, false);
+		}
+	}//end OutOfInput
+
+	/**
+	 * The reader behind Ticketmaster.in: the keyboard, except on a thread
+	 * running a script line, which reads that line's answers.
+	 */
+	public static final class Input extends BufferedReader{
+		private final ThreadLocal<Iterator<String>> script = new ThreadLocal<Iterator<String>>();
+
+		public Input(Reader console){
+			super(console);
+		}
+
+		@Override
+		public String readLine() throws IOException {
+			Iterator<String> answers = script.get();
+			if(answers == null) return super.readLine();
+			if(!answers.hasNext()) throw new OutOfInput();
+			return answers.next();
+		}
+	}//end Input
+
+	/* Routes a stream per thread: captured on threads that set a target. */
+	private static final class Tap extends OutputStream{
+		final OutputStream console;
+		final ThreadLocal<OutputStream> target = new ThreadLocal<OutputStream>();
+
+		Tap(OutputStream console){
+			this.console = console;
+		}
+
+		private OutputStream out(){
+			OutputStream t = target.get();
+			return t == null ? console : t;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out().flush();
+		}
+	}//end Tap
+
+	private static final OutputStream DISCARD = new OutputStream(){
+		@Override
+		public void write(int b){}
+
+		@Override
+		public void write(byte[] b, int off, int len){}
+	};
+
+	/**
+	 * Runs operations on the calling thread with scripted answers and
+	 * catches what they print.  While open, System.out and System.err go
+	 * through taps that send a running operation's output to it and
+	 * everything else to the console.
+	 */
+	static final class Capture implements AutoCloseable{
+		private final PrintStream out = System.out, err = System.err;
+		private final Tap outTap = new Tap(out), errTap = new Tap(err);
+
+		Capture(){
+			if(!(Ticketmaster.in instanceof Input)){
+				throw new IllegalStateException("Ticketmaster.in does not read scripts");
+			}
+			System.setOut(new PrintStream(outTap, true));
+			System.setErr(new PrintStream(errTap, true));
+		}
+
+		/**
+		 * Runs one operation.
+		 *
+		 * @param client the client to run it on
+		 * @param choice its menu number
+		 * @param answers the answers to its prompts
+		 * @param output where its standard output goes, or null to drop it
+		 * @return the first line it wrote to System.err, why it threw, or
+		 *         null when it did neither; "input left unread" when it
+		 *         asked for fewer answers than it was given
+		 */
+		String run(Ticketmaster client, int choice, List<String> answers, OutputStream output){
+			Input input = (Input)Ticketmaster.in;
+			ByteArrayOutputStream errors = new ByteArrayOutputStream();
+			outTap.target.set(output == null ? DISCARD : output);
+			errTap.target.set(errors);
+			Iterator<String> it = answers.iterator();
+			input.script.set(it);
+			String error = null;
+			try{
+				Ticketmaster.dispatch(client, choice);
+				if(it.hasNext()) error = "input left unread";
+			}catch(OutOfInput e){
+				error = e.getMessage();
+			}catch(Exception e){
+				error = String.valueOf(e.getMessage());
+			}finally{
+				input.script.remove();
+				outTap.target.remove();
+				errTap.target.remove();
+			}
+			if(error == null && errors.size() > 0){
+				String text = new String(errors.toByteArray(), StandardCharsets.UTF_8).trim();
+				int nl = text.indexOf('\n');
+				error = nl < 0 ? text : text.substring(0, nl).trim();
+			}
+			return error;
+		}
+
+		@Override
+		public void close(){
+			System.setOut(out);
+			System.setErr(err);
+		}
+	}//end Capture
+
+	/** One script line. */
+	static final class Operation{
+		final long line;
+		final int choice;
+		final List<String> input;
+
+		Operation(long line, int choice, List<String> input){
+			this.line = line;
+			this.choice = choice;
+			this.input = input;
+		}
+	}//end Operation
+
+	/** Counts and timings of a run. */
+	public static final class Report{
+		long ok, failed, skipped, rejected, rolledBack, millis;
+		int workers, group;
+		final long[][] byChoice = new long[NAMES.length][4];   // count, failed, total ns, max ns
+		final Map<String, Long> errors = new HashMap<String, Long>();
+		final List<String> samples = new ArrayList<String>();
+
+		synchronized void record(Operation op, long nanos, String error){
+			long[] s = byChoice[op.choice];
+			s[0]++;
+			s[2] += nanos;
+			s[3] = Math.max(s[3], nanos);
+			if(error == null){
+				++ok;
+				return;
+			}
+			++failed;
+			s[1]++;
+			errors.merge(error, 1L, Long::sum);
+			if(samples.size() < MAX_ERROR_SAMPLES) samples.add("line " + op.line + ": " + error);
+		}
+
+		synchronized void skip(int n){
+			skipped += n;
+			++rolledBack;
+		}
+
+		synchronized void reject(long line, String reason){
+			++rejected;
+			errors.merge(reason, 1L, Long::sum);
+			if(samples.size() < MAX_ERROR_SAMPLES) samples.add("line " + line + ": " + reason);
+		}
+
+		/** @return the number of operations that completed without error */
+		public synchronized long getOk(){
+			return ok;
+		}
+
+		/** @return the number of operations that failed */
+		public synchronized long getFailed(){
+			return failed;
+		}
+
+		@Override
+		public synchronized String toString(){
+			long ran = ok + failed;
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("Ran %d operations in %d ms with %d workers, groups of %d: %.1f ops/s%n",
+				ran, millis, workers, group, ran * 1000.0 / Math.max(1, millis)));
+			sb.append(String.format("  ok %d, failed %d, skipped %d in %d rolled back groups, %d unreadable lines%n",
+				ok, failed, skipped, rolledBack, rejected));
+			sb.append("operation\tcount\tfailed\tavg_ms\tmax_ms\n");
+			for(int c = 0; c < NAMES.length; ++c){
+				long[] s = byChoice[c];
+				if(s[0] == 0) continue;
+				sb.append(String.format("%s\t%d\t%d\t%.2f\t%.2f%n", NAMES[c], s[0], s[1], s[2] / 1e6 / s[0], s[3] / 1e6));
+			}
+			if(!errors.isEmpty()){
+				List<Map.Entry<String, Long>> top = new ArrayList<Map.Entry<String, Long>>(errors.entrySet());
+				Collections.sort(top, (a, b) -> Long.compare(b.getValue(), a.getValue()));
+				sb.append("errors:\n");
+				for(Map.Entry<String, Long> e : top.subList(0, Math.min(MAX_ERROR_SAMPLES, top.size()))){
+					sb.append("  ").append(e.getValue()).append('\t').append(e.getKey()).append('\n');
+				}
+				sb.append("first failures:\n");
+				for(String s : samples) sb.append("  ").append(s).append('\n');
+			}
+			return sb.toString();
+		}
+	}//end Report
+
+	private final Ticketmaster esql;
+	private final int workers;
+	private final int group;
+
+	/**
+	 * @param esql the client whose caches, ids and expiry the workers share
+	 * @param workers the number of parallel clients
+	 * @param group the most operations per transaction
+	 */
+	public BatchRunner(Ticketmaster esql, int workers, int group){
+		this.esql = esql;
+		this.workers = workers;
+		this.group = group;
+	}
+
+	/**
+	 * Runs a script.
+	 *
+	 * @param script the script, one operation per line
+	 * @return the report
+	 * @throws java.sql.SQLException when the worker clients cannot connect
+	 * @throws java.io.IOException when the script cannot be read
+	 */
+	public Report run(Reader script) throws SQLException, IOException {
+		if(esql.getShards() != null){
+			throw new SQLException("Batch mode does not route operations to shards");
+		}
+		if(!(Ticketmaster.in instanceof Input)){
+			throw new IllegalStateException("Ticketmaster.in does not read scripts");
+		}
+		final Report report = new Report();
+		report.workers = workers;
+		report.group = group;
+		final BlockingQueue<Ticketmaster> idle = new ArrayBlockingQueue<Ticketmaster>(workers);
+		for(int w = 0; w < workers; ++w) idle.add(esql.fork());
+
+		final Capture capture = new Capture();
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		// bounded look-ahead so a long script never sits in memory at once
+		final Semaphore inFlight = new Semaphore(workers * 2);
+		long start = System.currentTimeMillis();
+		try{
+			BufferedReader br = script instanceof BufferedReader ? (BufferedReader)script : new BufferedReader(script, 1 << 16);
+			List<Operation> batch = new ArrayList<Operation>(group);
+			long line = 0;
+			String text;
+			while(true){
+				text = br.readLine();
+				if(text != null){
+					++line;
+					Operation op;
+					try{
+						op = parse(line, text);
+					}catch(IllegalArgumentException e){
+						report.reject(line, e.getMessage());
+						continue;
+					}
+					if(op == null) continue;
+					batch.add(op);
+					if(batch.size() < group) continue;
+				}
+				if(!batch.isEmpty()){
+					final List<Operation> ops = batch;
+					batch = new ArrayList<Operation>(group);
+					inFlight.acquireUninterruptibly();
+					pool.submit(() -> {
+						Ticketmaster client = idle.poll();
+						try{
+							runGroup(client, ops, report, capture);
+						}finally{
+							idle.add(client);
+							inFlight.release();
+						}
+					});
+				}
+				if(text == null) break;
+			}
+		}finally{
+			pool.shutdown();
+			try{
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			capture.close();
+			for(Ticketmaster client : idle) client.cleanup();
+		}
+		report.millis = System.currentTimeMillis() - start;
+		return report;
+	}
+
+	private void runGroup(Ticketmaster client, List<Operation> ops, Report report, Capture capture){
+		Connection conn = client.getConnection();
+		try{
+			if(group > 1) client.beginGroup();
+			boolean wrote = false;
+			for(int i = 0; i < ops.size(); ++i){
+				Operation op = ops.get(i);
+				long start = System.nanoTime();
+				String error = capture.run(client, op.choice, op.input, null);
+				report.record(op, System.nanoTime() - start, error);
+				if(error != null && group > 1){
+					client.rollbackGroup();
+					report.skip(ops.size() - i - 1);
+					return;
+				}
+				// a group's writes are only visible once it commits
+				if(Ticketmaster.writes(op.choice)){
+					if(group > 1) wrote = true;
+					else client.wrote();
+				}
+			}
+			if(group > 1){
+				client.commitGroup();
+				if(wrote) client.wrote();
+			}
+		}catch(SQLException e){
+			report.reject(ops.get(0).line, "group transaction: " + e.getMessage());
+		}finally{
+			try{
+				conn.setAutoCommit(true);
+			}catch(SQLException e){
+				// the next group starts over
+			}
+		}
+	}
+
+	/*
+	 * Parses one script line; null for blank lines and comments.
+	 */
+	static Operation parse(long line, String text){
+		String t = text.trim();
+		if(t.isEmpty() || t.startsWith("#")) return null;
+		List<String> fields;
+		String op;
+		if(t.startsWith("{")){
+			Object parsed = new Json(t).value();
+			if(!(parsed instanceof Map)) throw new IllegalArgumentException("not a JSON object");
+			Map<?, ?> m = (Map<?, ?>)parsed;
+			op = m.get("op") == null ? null : String.valueOf(m.get("op"));
+			fields = new ArrayList<String>();
+			Object in = m.get("input");
+			if(in instanceof List){
+				for(Object v : (List<?>)in) fields.add(v == null ? "" : String.valueOf(v));
+			}else if(in != null){
+				throw new IllegalArgumentException("\"input\" is not an array");
+			}
+		}else{
+			fields = csv(t);
+			op = fields.remove(0);
+		}
+		if(op == null) throw new IllegalArgumentException("no operation");
+		return new Operation(line, choice(op.trim()), fields);
+	}
+
+	private static int choice(String op){
+		for(int c = 0; c < NAMES.length; ++c){
+			// 0 and 15 (EXIT) are not operations
+			if(NAMES[c] != null && (op.equalsIgnoreCase(NAMES[c]) || op.equals(Integer.toString(c)))) return c;
+		}
+		throw new IllegalArgumentException("unknown operation " + op);
+	}
+
+	/* Splits one CSV line, with RFC 4180 quoting. */
+	static List<String> csv(String line){
+		List<String> fields = new ArrayList<String>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); ++i){
+			char ch = line.charAt(i);
+			if(quoted){
+				if(ch != '"'){
+					field.append(ch);
+				}else if(i + 1 < line.length() && line.charAt(i + 1) == '"'){
+					field.append('"');
+					++i;
+				}else{
+					quoted = false;
+				}
+			}else if(ch == '"'){
+				quoted = true;
+			}else if(ch == ','){
+				fields.add(field.toString());
+				field.setLength(0);
+			}else{
+				field.append(ch);
+			}
+		}
+		if(quoted) throw new IllegalArgumentException("unterminated quote");
+		fields.add(field.toString());
+		return fields;
+	}
+
+	/* Just enough JSON for script lines. */
+	private static final class Json{
+		final String s;
+		int pos;
+
+		Json(String s){
+			this.s = s;
+		}
+
+		Object value(){
+			skip();
+			if(pos >= s.length()) throw new IllegalArgumentException("unexpected end of JSON");
+			char ch = s.charAt(pos);
+			if(ch == '{'){
+				Map<String, Object> m = new LinkedHashMap<String, Object>();
+				++pos;
+				skip();
+				if(peek('}')) return m;
+				do{
+					skip();
+					Object key = value();
+					if(!(key instanceof String)) throw new IllegalArgumentException("JSON key is not a string");
+					expect(':');
+					m.put((String)key, value());
+					skip();
+				}while(peek(','));
+				expect('}');
+				return m;
+			}
+			if(ch == '['){
+				List<Object> l = new ArrayList<Object>();
+				++pos;
+				skip();
+				if(peek(']')) return l;
+				do{
+					l.add(value());
+					skip();
+				}while(peek(','));
+				expect(']');
+				return l;
+			}
+			if(ch == '"'){
+				StringBuilder sb = new StringBuilder();
+				++pos;
+				while(pos < s.length() && s.charAt(pos) != '"'){
+					char c = s.charAt(pos++);
+					if(c != '\\'){
+						sb.append(c);
+						continue;
+					}
+					if(pos >= s.length()) break;
+					char e = s.charAt(pos++);
+					switch(e){
+						case 'n': sb.append('\n'); break;
+						case 't': sb.append('\t'); break;
+						case 'r': sb.append('\r'); break;
+						case 'b': sb.append('\b'); break;
+						case 'f': sb.append('\f'); break;
+						case 'u':
+							if(pos + 4 > s.length()) throw new IllegalArgumentException("bad JSON escape");
+							sb.append((char)Integer.parseInt(s.substring(pos, pos + 4), 16));
+							pos += 4;
+							break;
+						default: sb.append(e);
+					}
+				}
+				expect('"');
+				return sb.toString();
+			}
+			int start = pos;
+			while(pos < s.length() && ",:]} \t".indexOf(s.charAt(pos)) < 0) ++pos;
+			String word = s.substring(start, pos);
+			if(word.equals("null")) return null;
+			if(word.equals("true") || word.equals("false")) return word;
+			try{
+				// whole numbers keep no fraction, so "52" is read as 52
+				return word.matches("-?\\d+") ? (Object)Long.valueOf(word) : (Object)Double.valueOf(word);
+			}catch(NumberFormatException e){
+				throw new IllegalArgumentException("bad JSON value " + word);
+			}
+		}
+
+		private void skip(){
+			while(pos < s.length() && Character.isWhitespace(s.charAt(pos))) ++pos;
+		}
+
+		private boolean peek(char ch){
+			if(pos < s.length() && s.charAt(pos) == ch){
+				++pos;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char ch){
+			skip();
+			if(!peek(ch)) throw new IllegalArgumentException("expected " + ch + " in JSON at " + pos);
+		}
+	}//end Json
+}//end BatchRunner
@@ -0,0 +1,188 @@
+/*
+ * Pending-booking expiry for Ticketmaster
+ * =======================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class cancels Pending bookings that were not paid in time.
+ *
+ * Every Pending booking has a deadline of bdatetime plus the time to live
+ * in a TimingWheel, rebuilt from Bookings at startup and kept current by
+ * AddBooking and the state transitions.  Once a second a background thread
+ * advances the wheel and cancels whatever expired, in batches of their own
+ * transactions, through BookingStates, so seats are released and payments
+ * reversed exactly as a manual cancel would.  The work done is proportional
+ * to the bookings that expire, not to the size of Bookings.
+ *
+ * The thread runs on its own connection so it never joins a transaction
+ * the interactive client has open.
+ *
+ * Expiry is off unless the client is started with
+ * -Dticketmaster.pending.expire=true.  Once on, it also cancels the
+ * Pending bookings already in Bookings whose deadline has passed, which
+ * in loaded or historical data may be all of them, so it is meant for a
+ * deployment where Pending really means awaiting payment.
+ *
+ */
+
+public class BookingExpiry{
+	/** Whether the client runs expiry at all; -Dticketmaster.pending.expire=true turns it on. */
+	public static final boolean ENABLED = Boolean.getBoolean("ticketmaster.pending.expire");
+	/** How long a booking may stay Pending, in minutes; -Dticketmaster.pending.ttl overrides. */
+	public static final Duration DEFAULT_TTL =
+		Duration.ofMinutes(Long.getLong("ticketmaster.pending.ttl", 15));
+
+	private static final long TICK_MILLIS = 1000;
+	// a batch that fails is retried this much later
+	private static final long RETRY_MILLIS = 30 * 1000;
+
+	private final Connection conn;
+	private final BookingStates states;
+	private final long ttlMillis;
+	private final int batchSize;
+	private final TimingWheel wheel = new TimingWheel(TICK_MILLIS, System.currentTimeMillis());
+	private final AtomicLong expired = new AtomicLong();
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param esql the client whose seat maps and analytics are kept current
+	 * @param conn a connection for the expiry thread alone; closed by stop()
+	 * @param ttl how long a booking may stay Pending
+	 * @param batchSize bookings cancelled per transaction
+	 */
+	public BookingExpiry(Ticketmaster esql, Connection conn, Duration ttl, int batchSize){
+		this.conn = conn;
+		this.states = new BookingStates(esql, conn);
+		this.ttlMillis = ttl.toMillis();
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Registers every Pending booking in Bookings.
+	 *
+	 * @return the number of Pending bookings
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public int rebuild() throws SQLException {
+		int n = 0;
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(
+				"SELECT bid, bdatetime FROM Bookings WHERE status = '" + BookingStates.Status.PENDING.label + "'");
+			synchronized(wheel){
+				while(rs.next()){
+					wheel.schedule(rs.getLong(1), rs.getTimestamp(2).getTime() + ttlMillis);
+					++n;
+				}
+			}
+		}finally{
+			stmt.close();
+		}
+		return n;
+	}
+
+	/**
+	 * @param bid a booking that just became Pending
+	 * @param bookedMillis when it was made
+	 */
+	public void register(long bid, long bookedMillis){
+		synchronized(wheel){
+			wheel.schedule(bid, bookedMillis + ttlMillis);
+		}
+	}
+
+	/** @param bid a booking that is no longer Pending */
+	public void forget(long bid){
+		synchronized(wheel){
+			wheel.cancel(bid);
+		}
+	}
+
+	/** @return the number of bookings waiting to expire */
+	public int pending(){
+		synchronized(wheel){
+			return wheel.size();
+		}
+	}
+
+	/** @return the number of bookings cancelled so far */
+	public long expired(){
+		return expired.get();
+	}
+
+	/** Starts the background thread. */
+	public synchronized void start(){
+		if(timer != null) return;
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "booking-expiry");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the background thread and closes its connection. */
+	public synchronized void stop(){
+		if(timer != null){
+			timer.shutdown();
+			try{
+				timer.awaitTermination(10, TimeUnit.SECONDS);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			timer = null;
+		}
+		try{
+			conn.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Cancels the bookings whose deadline has passed.
+	 *
+	 * @return the number of bookings cancelled
+	 */
+	public long tick(){
+		long now = System.currentTimeMillis();
+		List<Long> due;
+		synchronized(wheel){
+			due = wheel.advance(now);
+		}
+		long cancelled = 0;
+		for(int i = 0; i < due.size(); i += batchSize){
+			List<Long> batch = due.subList(i, Math.min(due.size(), i + batchSize));
+			try{
+				cancelled += states.cancelPending(batch).bookings();
+			}catch(SQLException e){
+				System.err.println("Booking expiry: " + e.getMessage());
+				synchronized(wheel){
+					for(long bid : new ArrayList<Long>(batch)) wheel.schedule(bid, now + RETRY_MILLIS);
+				}
+			}
+		}
+		expired.addAndGet(cancelled);
+		return cancelled;
+	}
+}//end BookingExpiry
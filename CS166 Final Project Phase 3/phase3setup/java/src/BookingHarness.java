@@ -0,0 +1,563 @@
+/*
+ * Concurrent booking harness for Ticketmaster
+ * ===========================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * This class runs random concurrent bookings, seat swaps and cancels on
+ * one show, records what every client saw, and checks the history.
+ *
+ * Each client is a separate Ticketmaster, with its own connection, seat
+ * map and waiting room, as separate sessions would be.  Bookings and
+ * swaps run the menu operations themselves, AddBooking and
+ * ChangeSeatsForBooking, with scripted answers; cancels go through
+ * BookingStates as the other cancel paths do.  A client only swaps and
+ * cancels bookings it made, and after each operation reads the seats its
+ * booking holds, so the history says which seats each booking held from
+ * when to when.
+ *
+ * Every entry has the operation's start and end time.  A seat is surely
+ * held by a booking from the end of the operation that gave it the seat
+ * until the start of the one that took it away, so the check reports:
+ *
+ *   - a seat surely held by two bookings at once (sold twice)
+ *   - a booking that does not hold as many seats as it was confirmed
+ *     for, or whose Bookings.seats differs from the seats it holds
+ *   - a booking that lost or gained seats no operation of its own moved
+ *   - a cancel that succeeded but whose booking is not Cancelled, or
+ *     still holds seats (lost cancellation)
+ *
+ * The history is written as a TSV file, one entry per line, and can be
+ * checked again later against the database.
+ *
+ */
+
+public class BookingHarness{
+	private static final int MAX_REPORTED = 20;
+
+	/** What an entry did. */
+	public enum Kind{ BOOK, SWAP, CANCEL }
+
+	/** How an operation ended. */
+	public enum Outcome{ OK, REJECTED, FAILED }
+
+	/** One operation as a client saw it; times in ns since the run started. */
+	public static final class Entry{
+		long start, end;
+		int client, seats;
+		Kind kind;
+		Outcome outcome;
+		long bid;
+		long[] before = new long[0], after = new long[0];
+		String detail = "";
+
+		String line(){
+			return start + "\t" + end + "\t" + client + "\t" + kind + "\t" + outcome + "\t" + bid + "\t" + seats +
+				"\t" + join(before) + "\t" + join(after) + "\t" + detail.replace('\t', ' ').replace('\n', ' ');
+		}
+
+		static Entry parse(String line){
+			String[] f = line.split("\t", -1);
+			Entry e = new Entry();
+			e.start = Long.parseLong(f[0]);
+			e.end = Long.parseLong(f[1]);
+			e.client = Integer.parseInt(f[2]);
+			e.kind = Kind.valueOf(f[3]);
+			e.outcome = Outcome.valueOf(f[4]);
+			e.bid = Long.parseLong(f[5]);
+			e.seats = Integer.parseInt(f[6]);
+			e.before = split(f[7]);
+			e.after = split(f[8]);
+			e.detail = f[9];
+			return e;
+		}
+
+		private static String join(long[] ssids){
+			StringBuilder sb = new StringBuilder();
+			for(long s : ssids) sb.append(sb.length() == 0 ? "" : ",").append(s);
+			return sb.toString();
+		}
+
+		private static long[] split(String s){
+			if(s.isEmpty()) return new long[0];
+			String[] parts = s.split(",");
+			long[] v = new long[parts.length];
+			for(int i = 0; i < v.length; ++i) v[i] = Long.parseLong(parts[i]);
+			return v;
+		}
+	}//end Entry
+
+	/** Throughput of a run and what the check found. */
+	public static final class Report{
+		final Map<Kind, long[]> counts = new EnumMap<Kind, long[]>(Kind.class);   // ok, rejected, failed
+		final Map<Kind, long[]> latencies = new EnumMap<Kind, long[]>(Kind.class);
+		final List<String> violations = new ArrayList<String>();
+		long millis;
+		int clients;
+
+		/** @return the invariant violations found */
+		public List<String> violations(){
+			return violations;
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			long total = 0;
+			for(long[] c : counts.values()) total += c[0] + c[1] + c[2];
+			if(millis > 0){
+				sb.append(String.format("Ran %d operations in %d ms with %d clients: %.1f ops/s%n",
+					total, millis, clients, total * 1000.0 / millis));
+			}
+			sb.append("operation\tok\trejected\tfailed\tp50_ms\tp99_ms\n");
+			for(Map.Entry<Kind, long[]> e : counts.entrySet()){
+				long[] c = e.getValue(), l = latencies.get(e.getKey());
+				sb.append(String.format("%s\t%d\t%d\t%d\t%.1f\t%.1f%n", e.getKey().name().toLowerCase(), c[0], c[1], c[2],
+					percentile(l, 0.5) / 1e6, percentile(l, 0.99) / 1e6));
+			}
+			sb.append(violations.isEmpty() ? "No violations\n" : violations.size() + " violations:\n");
+			for(String v : violations.subList(0, Math.min(MAX_REPORTED, violations.size()))) sb.append("  ").append(v).append('\n');
+			return sb.toString();
+		}
+
+		private static long percentile(long[] sorted, double p){
+			return sorted == null || sorted.length == 0 ? 0 : sorted[(int)Math.ceil(sorted.length * p) - 1];
+		}
+	}//end Report
+
+	private static final Pattern BOOKING_ID = Pattern.compile("Booking id: (\\d+)");
+
+	private final String url, user, passwd;
+	private final long sid, mvid;
+	private final String sdate;
+	private final List<String> emails;
+
+	/**
+	 * @param url the database's JDBC URL
+	 * @param user the database user
+	 * @param passwd the password
+	 * @param sid the show to book
+	 * @param mvid the show's movie
+	 * @param sdate the show's date
+	 * @param emails users to book as
+	 */
+	public BookingHarness(String url, String user, String passwd, long sid, long mvid, String sdate, List<String> emails){
+		this.url = url;
+		this.user = user;
+		this.passwd = passwd;
+		this.sid = sid;
+		this.mvid = mvid;
+		this.sdate = sdate;
+		this.emails = emails;
+	}
+
+	/**
+	 * Runs the workload.
+	 *
+	 * @param clients the number of concurrent clients
+	 * @param millis how long to run
+	 * @param seed the random seed; client i uses seed + i
+	 * @return every operation, in no particular order
+	 * @throws java.sql.SQLException when a client cannot connect
+	 * @throws java.lang.InterruptedException when interrupted
+	 */
+	public List<Entry> run(int clients, long millis, long seed) throws SQLException, InterruptedException {
+		List<Entry> history = Collections.synchronizedList(new ArrayList<Entry>());
+		List<Ticketmaster> sessions = new ArrayList<Ticketmaster>();
+		for(int c = 0; c < clients; ++c) sessions.add(new Ticketmaster(url, user, passwd));
+		long t0 = System.nanoTime();
+		long deadline = t0 + millis * 1000000;
+		Thread[] threads = new Thread[clients];
+		try(BatchRunner.Capture capture = new BatchRunner.Capture()){
+			for(int c = 0; c < clients; ++c){
+				final int client = c;
+				threads[c] = new Thread(() -> new Session(client, sessions.get(client), capture, new Random(seed + client),
+					t0, history).run(deadline), "harness-" + c);
+				threads[c].start();
+			}
+			for(Thread t : threads) t.join();
+		}finally{
+			for(Ticketmaster s : sessions) s.cleanup();
+		}
+		return history;
+	}
+
+	/* One client's loop. */
+	private final class Session{
+		final int client;
+		final Ticketmaster esql;
+		final BatchRunner.Capture capture;
+		final Random random;
+		final long t0;
+		final List<Entry> history;
+		// the bookings this client made and has not cancelled, and their seats
+		final Map<Long, long[]> mine = new HashMap<Long, long[]>();
+
+		Session(int client, Ticketmaster esql, BatchRunner.Capture capture, Random random, long t0, List<Entry> history){
+			this.client = client;
+			this.esql = esql;
+			this.capture = capture;
+			this.random = random;
+			this.t0 = t0;
+			this.history = history;
+		}
+
+		void run(long deadline){
+			while(System.nanoTime() < deadline){
+				int r = random.nextInt(10);
+				Kind kind = r < 5 || mine.isEmpty() ? Kind.BOOK : r < 8 ? Kind.SWAP : Kind.CANCEL;
+				long start = System.nanoTime();
+				Entry e;
+				try{
+					e = kind == Kind.BOOK ? book() : kind == Kind.SWAP ? swap() : cancel();
+				}catch(SQLException ex){
+					e = entry(kind, start);
+					e.end = System.nanoTime() - t0;
+					e.outcome = Outcome.FAILED;
+					e.detail = ex.getMessage();
+				}
+				if(e != null) history.add(e);
+			}
+		}
+
+		private Entry entry(Kind kind, long start){
+			Entry e = new Entry();
+			e.client = client;
+			e.kind = kind;
+			e.start = start - t0;
+			return e;
+		}
+
+		Entry book() throws SQLException {
+			int n = 1 + random.nextInt(3);
+			String status = random.nextBoolean() ? BookingStates.Status.PENDING.label : BookingStates.Status.PAID.label;
+			List<String> answers = Arrays.asList(emails.get(random.nextInt(emails.size())), String.valueOf(sid),
+				String.valueOf(mvid), String.valueOf(n), "", "y", status, new Timestamp(System.currentTimeMillis()).toString());
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Entry e = entry(Kind.BOOK, System.nanoTime());
+			e.seats = n;
+			String error = capture.run(esql, 2, answers, out);
+			e.end = System.nanoTime() - t0;
+			String text = new String(out.toByteArray(), StandardCharsets.UTF_8);
+			Matcher m = BOOKING_ID.matcher(text);
+			if(m.find()){
+				e.bid = Long.parseLong(m.group(1));
+				e.after = seats(e.bid);
+				e.outcome = Outcome.OK;
+				mine.put(e.bid, e.after);
+			}else if(text.contains("adjacent seats") || text.contains("just taken") || text.contains("too busy")){
+				e.outcome = Outcome.REJECTED;
+				e.detail = lastLine(text);
+			}else{
+				e.outcome = Outcome.FAILED;
+				e.detail = error == null ? lastLine(text) : error;
+			}
+			return e;
+		}
+
+		Entry swap() throws SQLException {
+			long bid = pick();
+			// read again: a seat that went since the last read shows in the check
+			long[] held = seats(bid);
+			if(held.length == 0) return null;
+			long curr = held[random.nextInt(held.length)];
+			List<List<String>> free = esql.executeQueryAndReturnResult(
+				"SELECT ssid FROM ShowSeats WHERE sdate = '" + sdate + "' AND sid = " + sid + " AND bid IS NULL AND price = " +
+				"(SELECT price FROM ShowSeats WHERE sdate = '" + sdate + "' AND ssid = " + curr + ") ORDER BY random() LIMIT 1");
+			if(free.isEmpty()) return null;
+			long next = Long.parseLong(free.get(0).get(0));
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			Entry e = entry(Kind.SWAP, System.nanoTime());
+			e.bid = bid;
+			e.before = held;
+			String error = capture.run(esql, 5, Arrays.asList(String.valueOf(bid), String.valueOf(curr), String.valueOf(next)), out);
+			e.end = System.nanoTime() - t0;
+			e.after = seats(bid);
+			e.seats = e.after.length;
+			mine.put(bid, e.after);
+			boolean moved = contains(e.after, next) && !contains(e.after, curr);
+			e.outcome = moved ? Outcome.OK : error == null ? Outcome.REJECTED : Outcome.FAILED;
+			e.detail = curr + "->" + next + (moved ? "" : ": " + (error == null ? lastLine(new String(out.toByteArray(), StandardCharsets.UTF_8)) : error));
+			return e;
+		}
+
+		Entry cancel() throws SQLException {
+			long bid = pick();
+			Entry e = entry(Kind.CANCEL, System.nanoTime());
+			e.bid = bid;
+			e.before = seats(bid);
+			try{
+				e.outcome = new BookingStates(esql).cancel(bid, BookingStates.Status.PENDING, BookingStates.Status.PAID) != null ?
+					Outcome.OK : Outcome.REJECTED;
+			}catch(SQLException ex){
+				e.outcome = Outcome.FAILED;
+				e.detail = ex.getMessage();
+			}
+			e.end = System.nanoTime() - t0;
+			e.after = seats(bid);
+			if(e.outcome == Outcome.OK){
+				mine.remove(bid);
+			}else{
+				mine.put(bid, e.after);
+			}
+			return e;
+		}
+
+		private long pick(){
+			List<Long> bids = new ArrayList<Long>(mine.keySet());
+			return bids.get(random.nextInt(bids.size()));
+		}
+
+		private long[] seats(long bid) throws SQLException {
+			List<List<String>> rows = esql.executeQueryAndReturnResult(
+				"SELECT ssid FROM ShowSeats WHERE sdate = '" + sdate + "' AND bid = " + bid + " ORDER BY ssid");
+			long[] v = new long[rows.size()];
+			for(int i = 0; i < v.length; ++i) v[i] = Long.parseLong(rows.get(i).get(0));
+			return v;
+		}
+	}//end Session
+
+	private static boolean contains(long[] v, long x){
+		for(long y : v) if(y == x) return true;
+		return false;
+	}
+
+	private static String lastLine(String text){
+		String t = text.trim();
+		return t.substring(t.lastIndexOf('\n') + 1).trim();
+	}
+
+	/* A time a booking surely held a seat. */
+	private static final class Interval{
+		final long bid, from;
+		long to = Long.MAX_VALUE;
+
+		Interval(long bid, long from){
+			this.bid = bid;
+			this.from = from;
+		}
+	}//end Interval
+
+	/**
+	 * Checks a history, and the database as it is now, for violations.
+	 *
+	 * @param history the operations of a run
+	 * @param conn a connection to the database the run used
+	 * @return the report, without throughput
+	 * @throws java.sql.SQLException when the database cannot be read
+	 */
+	public static Report check(List<Entry> history, Connection conn) throws SQLException {
+		Report report = new Report();
+		Map<Kind, List<Long>> latencies = new EnumMap<Kind, List<Long>>(Kind.class);
+		for(Kind k : Kind.values()){
+			report.counts.put(k, new long[3]);
+			latencies.put(k, new ArrayList<Long>());
+		}
+		// each booking's entries, in the order its client ran them
+		Map<Long, List<Entry>> byBooking = new HashMap<Long, List<Entry>>();
+		for(Entry e : history){
+			report.counts.get(e.kind)[e.outcome.ordinal()]++;
+			latencies.get(e.kind).add(e.end - e.start);
+			if(e.bid == 0) continue;
+			List<Entry> l = byBooking.get(e.bid);
+			if(l == null) byBooking.put(e.bid, l = new ArrayList<Entry>());
+			l.add(e);
+		}
+		for(Kind k : Kind.values()){
+			long[] sorted = new long[latencies.get(k).size()];
+			for(int i = 0; i < sorted.length; ++i) sorted[i] = latencies.get(k).get(i);
+			Arrays.sort(sorted);
+			report.latencies.put(k, sorted);
+		}
+
+		Map<Long, List<Interval>> bySeat = new HashMap<Long, List<Interval>>();
+		Map<Long, Set<Long>> believed = new HashMap<Long, Set<Long>>();
+		Set<Long> cancelled = new TreeSet<Long>();
+		for(Map.Entry<Long, List<Entry>> b : byBooking.entrySet()){
+			long bid = b.getKey();
+			List<Entry> entries = b.getValue();
+			Collections.sort(entries, (x, y) -> Long.compare(x.start, y.start));
+			Map<Long, Interval> open = new HashMap<Long, Interval>();
+			Set<Long> holds = new TreeSet<Long>();
+			for(Entry e : entries){
+				if(e.kind == Kind.BOOK && e.outcome == Outcome.OK && e.after.length != e.seats){
+					report.violations.add("booking " + bid + " was confirmed for " + e.seats + " seats but holds " + e.after.length);
+				}
+				Set<Long> before = new TreeSet<Long>();
+				for(long s : e.before) before.add(s);
+				if(e.kind != Kind.BOOK && !before.equals(holds)){
+					report.violations.add("booking " + bid + " held " + holds + " but " + before + " by its " +
+						e.kind.name().toLowerCase() + " at " + e.start / 1000000 + " ms, with no operation of its own between");
+				}
+				Set<Long> after = new TreeSet<Long>();
+				for(long s : e.after) after.add(s);
+				for(long s : holds){
+					if(after.contains(s)) continue;
+					Interval i = open.remove(s);
+					if(i != null) i.to = e.start;
+				}
+				for(long s : after){
+					if(holds.contains(s)) continue;
+					Interval i = new Interval(bid, e.end);
+					open.put(s, i);
+					List<Interval> l = bySeat.get(s);
+					if(l == null) bySeat.put(s, l = new ArrayList<Interval>());
+					l.add(i);
+				}
+				holds = after;
+				if(e.kind == Kind.CANCEL && e.outcome == Outcome.OK) cancelled.add(bid);
+			}
+			believed.put(bid, holds);
+		}
+		for(Map.Entry<Long, List<Interval>> s : bySeat.entrySet()){
+			List<Interval> l = s.getValue();
+			Collections.sort(l, (x, y) -> Long.compare(x.from, y.from));
+			Interval widest = null;
+			for(Interval i : l){
+				if(widest != null && i.from < widest.to && i.bid != widest.bid){
+					report.violations.add("seat " + s.getKey() + " sold twice: booking " + widest.bid + " held it until " +
+						(widest.to == Long.MAX_VALUE ? "the end" : widest.to / 1000000 + " ms") +
+						", booking " + i.bid + " from " + i.from / 1000000 + " ms");
+				}
+				if(widest == null || i.to > widest.to) widest = i;
+			}
+		}
+
+		if(byBooking.isEmpty()) return report;
+		StringBuilder bids = new StringBuilder();
+		for(long bid : byBooking.keySet()) bids.append(bids.length() == 0 ? "" : ", ").append(bid);
+		Map<Long, Set<Long>> held = new HashMap<Long, Set<Long>>();
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT bid, ssid FROM ShowSeats WHERE bid IN (" + bids + ")");
+			while(rs.next()){
+				Set<Long> h = held.get(rs.getLong(1));
+				if(h == null) held.put(rs.getLong(1), h = new TreeSet<Long>());
+				h.add(rs.getLong(2));
+			}
+			Set<Long> missing = new TreeSet<Long>(byBooking.keySet());
+			rs = stmt.executeQuery("SELECT bid, status, seats FROM Bookings WHERE bid IN (" + bids + ")");
+			while(rs.next()){
+				long bid = rs.getLong(1);
+				missing.remove(bid);
+				String status = rs.getString(2).trim();
+				Set<Long> h = held.containsKey(bid) ? held.get(bid) : Collections.<Long>emptySet();
+				boolean isCancelled = status.equalsIgnoreCase(BookingStates.Status.CANCELLED.label);
+				if(cancelled.contains(bid) && (!isCancelled || !h.isEmpty())){
+					report.violations.add("lost cancellation: booking " + bid + " is " + status + " holding " + h);
+				}else if(isCancelled && !h.isEmpty()){
+					report.violations.add("cancelled booking " + bid + " still holds " + h);
+				}else if(!isCancelled && rs.getInt(3) != h.size()){
+					report.violations.add("booking " + bid + " has seats " + rs.getInt(3) + " but holds " + h.size());
+				}
+				if(!isCancelled && !h.equals(believed.get(bid))){
+					report.violations.add("booking " + bid + " holds " + h + " but its client last read " + believed.get(bid));
+				}
+			}
+			for(long bid : missing) report.violations.add("confirmed booking " + bid + " is not in Bookings");
+		}finally{
+			stmt.close();
+		}
+		return report;
+	}
+
+	/**
+	 * Runs and checks, or checks a saved history again:
+	 *   java BookingHarness dbname port user run history.tsv [clients [seconds [sid]]]
+	 *   java BookingHarness dbname port user check history.tsv
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if(args.length < 5 || !(args[3].equals("run") || args[3].equals("check"))){
+			System.err.println("Usage: java [-classpath <classpath>] " + BookingHarness.class.getName() +
+				" <dbname> <port> <user> run|check <history file> [clients [seconds [show id]]]");
+			return;
+		}
+		// one user books many times a second here
+		if(System.getProperty("ticketmaster.admission.user") == null){
+			System.setProperty("ticketmaster.admission.user", String.valueOf(Integer.MAX_VALUE));
+		}
+		Ticketmaster esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			String url = "jdbc:postgresql://localhost:" + args[1] + "/" + args[0];
+			esql = new Ticketmaster(url, args[2], "");
+			Path file = Paths.get(args[4]);
+			List<Entry> history = new ArrayList<Entry>();
+			long millis = 0;
+			int clients = 0;
+			if(args[3].equals("check")){
+				try(BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+					String line;
+					while((line = r.readLine()) != null){
+						if(!line.isEmpty()) history.add(Entry.parse(line));
+					}
+				}
+			}else{
+				clients = args.length > 5 ? Integer.parseInt(args[5]) : 8;
+				millis = (args.length > 6 ? Long.parseLong(args[6]) : 30) * 1000;
+				List<List<String>> show = esql.executeQueryAndReturnResult(args.length > 7 ?
+					"SELECT sid, mvid, sdate FROM Shows WHERE sid = " + args[7] :
+					"SELECT S.sid, S.mvid, S.sdate FROM Shows S, ShowSeats A WHERE A.sid = S.sid AND A.sdate = S.sdate " +
+					"AND S.sdate >= current_date AND A.bid IS NULL GROUP BY S.sid ORDER BY count(*) DESC LIMIT 1");
+				if(show.isEmpty()){
+					System.err.println("No show to book");
+					return;
+				}
+				List<String> emails = new ArrayList<String>();
+				for(List<String> row : esql.executeQueryAndReturnResult("SELECT email FROM Users LIMIT 100")) emails.add(row.get(0).trim());
+				BookingHarness harness = new BookingHarness(url, args[2], "", Long.parseLong(show.get(0).get(0)),
+					Long.parseLong(show.get(0).get(1)), show.get(0).get(2), emails);
+				history = harness.run(clients, millis, System.nanoTime());
+				try(Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+					for(Entry e : history){
+						w.write(e.line());
+						w.write('\n');
+					}
+				}
+			}
+			Report report = check(history, esql.getConnection());
+			report.millis = millis;
+			report.clients = clients;
+			System.out.print(report);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+	}
+}//end BookingHarness
@@ -0,0 +1,315 @@
+/*
+ * Booking state machine for Ticketmaster
+ * ======================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * This class moves bookings between states with optimistic concurrency.
+ *
+ *   Pending --> Paid --> Cancelled
+ *      \____________________^
+ *
+ * Every Bookings row carries a version that each transition increments.  A
+ * transition is a compare-and-set: it only applies while the row still has
+ * the status and version the caller read, so two clients acting on the same
+ * booking cannot both win, and no row is locked while the user is deciding.
+ *
+ * Cancelling is one statement that also frees the booking's ShowSeats and
+ * marks its payment reversed, so the three tables never disagree.  Sweeps
+ * over many bookings cancel them in chunks of their own transactions,
+ * skipping rows other clients hold locked; a sweep that is interrupted is
+ * resumed by running it again, since finished rows no longer match.
+ *
+ */
+
+public class BookingStates{
+
+	/** Booking status as stored in Bookings.status. */
+	public enum Status{
+		PENDING("Pending"), PAID("Paid"), CANCELLED("Cancelled");
+
+		public final String label;
+
+		Status(String label){
+			this.label = label;
+		}
+
+		/** @return whether a booking in this state may move to next */
+		public boolean canBecome(Status next){
+			switch(this){
+				case PENDING: return next == PAID || next == CANCELLED;
+				case PAID: return next == CANCELLED;
+				default: return false;
+			}
+		}
+
+		/** @return the status with this label, ignoring case, or null for any other text */
+		public static Status of(String label){
+			if(label == null) return null;
+			for(Status s : values()){
+				if(s.label.equalsIgnoreCase(label.trim())) return s;
+			}
+			return null;
+		}
+	}//end Status
+
+	/** A booking as read before a transition. */
+	public static class Booking{
+		public final long bid, sid;
+		public final String sdate;
+		public final Status status;
+		public final int version;
+
+		Booking(long bid, long sid, String sdate, Status status, int version){
+			this.bid = bid;
+			this.sid = sid;
+			this.sdate = sdate;
+			this.status = status;
+			this.version = version;
+		}
+	}//end Booking
+
+	/** What a cancel or sweep changed. */
+	public static class Result{
+		long bookings, seats, payments, chunks;
+
+		public long bookings(){
+			return bookings;
+		}
+
+		@Override
+		public String toString(){
+			return "Cancelled " + bookings + " bookings, released " + seats + " seats and reversed " +
+				payments + " payments" + (chunks > 1 ? " in " + chunks + " batches" : "");
+		}
+	}//end Result
+
+	private static final int RETRIES = 3;
+
+	private final Ticketmaster esql;
+	private final Connection conn;
+
+	public BookingStates(Ticketmaster esql){
+		this(esql, esql.getConnection());
+	}
+
+	/**
+	 * @param esql the client whose seat maps and analytics are kept current
+	 * @param conn the connection to run the transitions on, e.g. a
+	 *        background job's own
+	 */
+	public BookingStates(Ticketmaster esql, Connection conn){
+		this.esql = esql;
+		this.conn = conn;
+	}
+
+	/**
+	 * @param bid the booking
+	 * @return the booking's current state, or null when there is no such booking
+	 * @throws java.sql.SQLException when the query fails, or the booking's
+	 *         status is none of Status, as older rows may hold; such a booking
+	 *         cannot change state
+	 */
+	public Booking read(long bid) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(
+				"SELECT bid, sid, sdate, status, version FROM Bookings WHERE bid = " + bid);
+			if(!rs.next()) return null;
+			Status status = Status.of(rs.getString(4));
+			if(status == null){
+				throw new SQLException("Booking " + bid + " has unknown status '" + rs.getString(4).trim() +
+					"' and cannot change state");
+			}
+			return new Booking(rs.getLong(1), rs.getLong(2), rs.getString(3), status, rs.getInt(5));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Moves a booking from the state it was read in to the next one.  Moving
+	 * to Cancelled also releases its seats and reverses its payment.
+	 *
+	 * @param b the booking as read
+	 * @param next the new status
+	 * @return false when the booking changed since it was read
+	 * @throws java.sql.SQLException when the statement fails
+	 * @throws IllegalStateException when b's status may not move to next
+	 */
+	public boolean transition(Booking b, Status next) throws SQLException {
+		if(!b.status.canBecome(next)){
+			throw new IllegalStateException("A " + b.status.label + " booking cannot become " + next.label);
+		}
+		String match = "bid = " + b.bid + " AND sdate = '" + b.sdate + "' AND status = '" + b.status.label +
+			"' AND version = " + b.version;
+		boolean applied;
+		if(next == Status.CANCELLED){
+			// locked, so a concurrent change makes the row fail the match rather than be overwritten
+			applied = cancel("SELECT bid, sdate FROM Bookings WHERE " + match + " FOR UPDATE").bookings == 1;
+		}else{
+			Statement stmt = conn.createStatement();
+			try{
+				applied = stmt.executeUpdate("UPDATE Bookings SET status = '" + next.label +
+					"', version = version + 1 WHERE " + match) == 1;
+			}finally{
+				stmt.close();
+			}
+		}
+		if(applied && b.status == Status.PENDING && esql.getExpiry() != null){
+			esql.getExpiry().forget(b.bid);
+		}
+		return applied;
+	}
+
+	/**
+	 * Cancels one booking, rereading it when another client got there
+	 * first.
+	 *
+	 * @param bid the booking
+	 * @param from the states it may be cancelled from
+	 * @return the booking as it was before cancelling, or null when it is
+	 *         missing or in none of the given states
+	 * @throws java.sql.SQLException when the statement fails or the booking
+	 *         keeps changing
+	 */
+	public Booking cancel(long bid, Status... from) throws SQLException {
+		for(int attempt = 0; attempt < RETRIES; ++attempt){
+			Booking b = read(bid);
+			if(b == null) return null;
+			boolean allowed = false;
+			for(Status s : from) allowed |= s == b.status;
+			if(!allowed) return null;
+			if(transition(b, Status.CANCELLED)) return b;
+		}
+		throw new SQLException("Booking " + bid + " kept changing; try again");
+	}
+
+	/**
+	 * Cancels every booking in a state, oldest first, a chunk per
+	 * transaction.  Rows locked by other clients are skipped and picked up
+	 * by the next run.
+	 *
+	 * @param from the state to cancel from
+	 * @param before only bookings made before this time, or null for all
+	 * @param chunkSize bookings per transaction
+	 * @return the totals over all chunks
+	 * @throws java.sql.SQLException when a chunk fails; earlier chunks stay committed
+	 */
+	public Result sweep(Status from, Timestamp before, int chunkSize) throws SQLException {
+		if(!from.canBecome(Status.CANCELLED)){
+			throw new IllegalStateException("A " + from.label + " booking cannot be cancelled");
+		}
+		Result total = new Result();
+		long last = Long.MIN_VALUE;
+		while(true){
+			Chunk chunk = cancel(
+				"SELECT bid, sdate FROM Bookings WHERE status = '" + from.label + "' AND bid > " + last +
+				(before == null ? "" : " AND bdatetime < '" + before + "'") +
+				" ORDER BY bid LIMIT " + chunkSize + " FOR UPDATE SKIP LOCKED");
+			total.bookings += chunk.bookings;
+			total.seats += chunk.seats;
+			total.payments += chunk.payments;
+			if(chunk.bookings == 0) break;
+			total.chunks++;
+			last = chunk.lastBid;
+		}
+		return total;
+	}
+
+	/**
+	 * Cancels those of the given bookings that are still Pending, in one
+	 * transaction.  Rows another client holds are waited for and then
+	 * rechecked, so a booking paid meanwhile is left alone.
+	 *
+	 * @param bids the bookings
+	 * @return what was cancelled
+	 * @throws java.sql.SQLException when the statement fails
+	 */
+	public Result cancelPending(Collection<Long> bids) throws SQLException {
+		if(bids.isEmpty()) return new Result();
+		StringBuilder in = new StringBuilder();
+		for(long bid : bids) in.append(in.length() == 0 ? "" : ", ").append(bid);
+		Result r = cancel("SELECT bid, sdate FROM Bookings WHERE bid IN (" + in + ") AND status = '" +
+			Status.PENDING.label + "' FOR UPDATE");
+		r.chunks = 1;
+		return r;
+	}
+
+	/* The outcome of one cancel statement. */
+	private static final class Chunk extends Result{
+		long lastBid = Long.MIN_VALUE;
+	}//end Chunk
+
+	/*
+	 * Cancels the bookings selected by candidates (bid, sdate), frees their
+	 * seats and reverses their payments in one statement, then publishes
+	 * the released seats and removed payments.  candidates must lock its
+	 * rows FOR UPDATE: the UPDATE only rechecks the join on bid and sdate,
+	 * so it is the lock that rechecks the status of a row changed
+	 * concurrently.
+	 */
+	private Chunk cancel(String candidates) throws SQLException {
+		Chunk result = new Chunk();
+		List<Object[]> events = new ArrayList<Object[]>();   // published once the statement is done
+		Statement stmt = conn.createStatement();
+		Lock publishing = esql.publishing();
+		try{
+			ResultSet rs = stmt.executeQuery(
+				"WITH candidates AS (" + candidates + "),\n" +
+				"cancelled AS (UPDATE Bookings B SET status = 'Cancelled', version = B.version + 1\n" +
+				"              FROM candidates C WHERE B.bid = C.bid AND B.sdate = C.sdate\n" +
+				"              RETURNING B.bid, B.sid, B.sdate),\n" +
+				"released AS (UPDATE ShowSeats A SET bid = NULL\n" +
+				"             FROM cancelled B WHERE A.sdate = B.sdate AND A.bid = B.bid\n" +
+				"             RETURNING A.sid, A.ssid, A.price, B.bid),\n" +
+				"reversed AS (UPDATE Payments P SET reversed = now()\n" +
+				"             FROM cancelled B WHERE P.bid = B.bid AND P.reversed IS NULL\n" +
+				"             RETURNING B.sid, B.bid, P.amount)\n" +
+				"SELECT 'B', sid, bid, 0, 0::REAL FROM cancelled\n" +
+				"UNION ALL SELECT 'S', sid, bid, ssid, price FROM released\n" +
+				"UNION ALL SELECT 'P', sid, bid, 0, amount FROM reversed");
+			while(rs.next()){
+				switch(rs.getString(1)){
+					case "B":
+						result.bookings++;
+						result.lastBid = Math.max(result.lastBid, rs.getLong(3));
+						break;
+					case "S":
+						result.seats++;
+						events.add(new Object[]{ EventLog.Type.SEAT_RELEASED, rs.getLong(2), rs.getLong(3), rs.getLong(4), rs.getDouble(5) });
+						break;
+					default:
+						result.payments++;
+						events.add(new Object[]{ EventLog.Type.PAYMENT_REMOVED, rs.getLong(2), rs.getLong(3), 0L, rs.getDouble(5) });
+				}
+			}
+			rs.close();
+			for(Object[] e : events){
+				esql.publish((EventLog.Type)e[0], (Long)e[1], (Long)e[2], (Long)e[3], (Double)e[4]);
+			}
+		}finally{
+			stmt.close();
+			publishing.unlock();
+		}
+		return result;
+	}
+}//end BookingStates
@@ -0,0 +1,331 @@
+/*
+ * Nearest-cinema search for Ticketmaster
+ * ======================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * This class finds the cinemas within a distance of a ZIP code.
+ *
+ * Cinemas are placed at the coordinates of their city's ZIP code and kept
+ * in a k-d tree over points on the unit sphere, so a search is a walk of
+ * the few subtrees that can hold a point within range, and distances are
+ * great-circle miles rather than degrees.  The tree is built once from
+ * Cinemas and Cities, which only the setup scripts change.
+ *
+ * ZIP coordinates come from -Dticketmaster.zips, a CSV or tab-separated
+ * file whose rows start with the ZIP code and end with its latitude and
+ * longitude, such as the Census ZCTA gazetteer.  A ZIP not in it, or every
+ * ZIP when no file is given, is placed from its digits: the first digit
+ * is the national area, the next two the sectional center around that
+ * area's centroid, and the last two the delivery area around the center.
+ * That keeps ZIPs that share a prefix near each other, which is all the
+ * project data's ZIP codes carry.
+ *
+ */
+
+public class CinemaLocator{
+	/** File of zip,lat,lon rows, or null; -Dticketmaster.zips. */
+	public static final String ZIPS = System.getProperty("ticketmaster.zips");
+
+	static final double EARTH_MILES = 3958.8;
+
+	/** Centroids of the ten national ZIP areas, by first digit, as lat, lon. */
+	private static final double[][] AREAS = {
+		{42.4, -71.8},    // 0 New England, New Jersey
+		{41.6, -76.2},    // 1 New York, Pennsylvania, Delaware
+		{37.6, -78.6},    // 2 Virginia, Carolinas, Maryland, DC, West Virginia
+		{32.4, -85.2},    // 3 Florida, Georgia, Alabama, Tennessee, Mississippi
+		{40.6, -84.4},    // 4 Ohio, Indiana, Michigan, Kentucky
+		{45.2, -95.4},    // 5 Minnesota, Wisconsin, Iowa, Dakotas, Montana
+		{39.4, -93.6},    // 6 Illinois, Missouri, Kansas, Nebraska
+		{32.2, -95.8},    // 7 Texas, Oklahoma, Arkansas, Louisiana
+		{39.2, -110.2},   // 8 Mountain states
+		{40.2, -120.6}    // 9 Pacific states
+	};
+	private static final double GOLDEN_ANGLE = Math.PI * (3 - Math.sqrt(5));
+
+	/** One cinema and where it is. */
+	public static final class Cinema{
+		public final long cid;
+		public final String name, city;
+		public final double lat, lon;
+
+		Cinema(long cid, String name, String city, double lat, double lon){
+			this.cid = cid;
+			this.name = name;
+			this.city = city;
+			this.lat = lat;
+			this.lon = lon;
+		}
+	}//end Cinema
+
+	/** A cinema found by a search, with its distance. */
+	public static final class Match implements Comparable<Match>{
+		public final Cinema cinema;
+		public final double miles;
+
+		Match(Cinema cinema, double miles){
+			this.cinema = cinema;
+			this.miles = miles;
+		}
+
+		public int compareTo(Match o){
+			return Double.compare(miles, o.miles);
+		}
+	}//end Match
+
+	private final Map<Integer, double[]> zips;
+	// tree order: the node of [lo, hi) is at (lo + hi) / 2, split on depth % 3
+	private final Cinema[] cinemas;
+	private final double[] xyz;
+
+	/**
+	 * Builds the tree.
+	 *
+	 * @param cinemas the cinemas
+	 * @param zips ZIP code to lat, lon from a table, may be empty
+	 */
+	public CinemaLocator(List<Cinema> cinemas, Map<Integer, double[]> zips){
+		this.zips = zips;
+		this.cinemas = cinemas.toArray(new Cinema[0]);
+		this.xyz = new double[3 * this.cinemas.length];
+		for(int i = 0; i < this.cinemas.length; ++i) point(this.cinemas[i].lat, this.cinemas[i].lon, xyz, 3 * i);
+		build(0, this.cinemas.length, 0);
+	}
+
+	/**
+	 * Loads every cinema at its city's ZIP code.
+	 *
+	 * @param esql the client
+	 * @return the locator
+	 * @throws java.sql.SQLException when the cinemas cannot be read
+	 * @throws java.io.IOException when -Dticketmaster.zips cannot be read
+	 */
+	public static CinemaLocator load(Ticketmaster esql) throws SQLException, IOException {
+		Map<Integer, double[]> zips = readZips(ZIPS);
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT C.cid, C.cname, Ci.city_name || ', ' || Ci.city_state, Ci.zip_code " +
+			"FROM Cinemas C, Cities Ci WHERE Ci.city_id = C.city_id");
+		List<Cinema> cinemas = new ArrayList<Cinema>(rows.size());
+		for(List<String> r : rows){
+			double[] at = locate(zips, Integer.parseInt(r.get(3).trim()));
+			cinemas.add(new Cinema(Long.parseLong(r.get(0).trim()), r.get(1).trim(), r.get(2).trim(), at[0], at[1]));
+		}
+		return new CinemaLocator(cinemas, zips);
+	}
+
+	/**
+	 * Reads a ZIP coordinate table; rows that do not parse, such as a
+	 * header, are skipped.
+	 *
+	 * @param file the file, or null for none
+	 * @return ZIP code to lat, lon
+	 * @throws java.io.IOException when the file cannot be read
+	 */
+	static Map<Integer, double[]> readZips(String file) throws IOException {
+		Map<Integer, double[]> zips = new HashMap<Integer, double[]>();
+		if(file == null || file.isEmpty()) return zips;
+		try(BufferedReader r = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)){
+			String line;
+			while((line = r.readLine()) != null){
+				String[] f = line.trim().split("\\s*[,\\t]\\s*");
+				if(f.length < 3) continue;
+				try{
+					zips.put(Integer.parseInt(f[0]), new double[]{
+						Double.parseDouble(f[f.length - 2]), Double.parseDouble(f[f.length - 1])});
+				}catch(NumberFormatException e){
+					// header or a malformed row
+				}
+			}
+		}
+		return zips;
+	}
+
+	/** @return lat, lon of a ZIP code, from the table or else from its digits */
+	static double[] locate(Map<Integer, double[]> zips, int zip){
+		double[] at = zips.get(zip);
+		if(at != null) return at;
+		double[] area = AREAS[zip / 10000 % 10];
+		double[] center = spiral(area[0], area[1], zip / 100 % 100, 4.0);
+		return spiral(center[0], center[1], zip % 100, 0.4);
+	}
+
+	/*
+	 * Places the i-th of 100 points evenly over a disc of the given radius
+	 * in degrees of latitude, by a sunflower spiral.
+	 */
+	private static double[] spiral(double lat, double lon, int i, double radius){
+		double r = radius * Math.sqrt((i + 0.5) / 100);
+		double a = i * GOLDEN_ANGLE;
+		return new double[]{lat + r * Math.sin(a), lon + r * Math.cos(a) / Math.cos(Math.toRadians(lat))};
+	}
+
+	/** @return lat, lon of a ZIP code */
+	public double[] locate(int zip){
+		return locate(zips, zip);
+	}
+
+	/** @return how many cinemas the tree holds */
+	public int size(){
+		return cinemas.length;
+	}
+
+	/**
+	 * Finds the cinemas within a distance of a ZIP code.
+	 *
+	 * @param zip the ZIP code
+	 * @param miles the distance
+	 * @return the cinemas, nearest first
+	 */
+	public List<Match> near(int zip, double miles){
+		double[] at = locate(zip);
+		return near(at[0], at[1], miles);
+	}
+
+	/**
+	 * Finds the cinemas within a distance of a point.
+	 *
+	 * @param lat latitude
+	 * @param lon longitude
+	 * @param miles the distance
+	 * @return the cinemas, nearest first
+	 */
+	public List<Match> near(double lat, double lon, double miles){
+		double[] q = new double[3];
+		point(lat, lon, q, 0);
+		// chord of the arc, so the search compares straight-line distances
+		double chord = 2 * Math.sin(Math.min(miles / EARTH_MILES, Math.PI) / 2);
+		List<Match> found = new ArrayList<Match>();
+		search(0, cinemas.length, 0, q, chord * chord, found);
+		Collections.sort(found);
+		return found;
+	}
+
+	private void search(int lo, int hi, int axis, double[] q, double r2, List<Match> found){
+		while(lo < hi){
+			int mid = (lo + hi) >>> 1;
+			int p = 3 * mid;
+			double dx = xyz[p] - q[0], dy = xyz[p + 1] - q[1], dz = xyz[p + 2] - q[2];
+			double d2 = dx * dx + dy * dy + dz * dz;
+			if(d2 <= r2) found.add(new Match(cinemas[mid], 2 * EARTH_MILES * Math.asin(Math.min(1, Math.sqrt(d2) / 2))));
+			double d = q[axis] - xyz[p + axis];
+			int next = axis == 2 ? 0 : axis + 1;
+			// the side the query is on always, the other only if the range crosses the split
+			if(d < 0){
+				if(d * d <= r2) search(mid + 1, hi, next, q, r2, found);
+				hi = mid;
+			}else{
+				if(d * d <= r2) search(lo, mid, next, q, r2, found);
+				lo = mid + 1;
+			}
+			axis = next;
+		}
+	}
+
+	private void build(int lo, int hi, int axis){
+		while(hi - lo > 1){
+			int mid = (lo + hi) >>> 1;
+			select(lo, hi - 1, mid, axis);
+			int next = axis == 2 ? 0 : axis + 1;
+			build(lo, mid, next);
+			lo = mid + 1;
+			axis = next;
+		}
+	}
+
+	/*
+	 * Quickselect: moves the k-th point on an axis to k, with the points
+	 * before it no greater and those after it no less.
+	 */
+	private void select(int lo, int hi, int k, int axis){
+		while(hi > lo){
+			double pivot = xyz[3 * ((lo + hi) >>> 1) + axis];
+			int i = lo, j = hi;
+			while(i <= j){
+				while(xyz[3 * i + axis] < pivot) ++i;
+				while(xyz[3 * j + axis] > pivot) --j;
+				if(i <= j) swap(i++, j--);
+			}
+			if(k <= j) hi = j;
+			else if(k >= i) lo = i;
+			else return;
+		}
+	}
+
+	private void swap(int a, int b){
+		Cinema c = cinemas[a];
+		cinemas[a] = cinemas[b];
+		cinemas[b] = c;
+		for(int i = 0; i < 3; ++i){
+			double t = xyz[3 * a + i];
+			xyz[3 * a + i] = xyz[3 * b + i];
+			xyz[3 * b + i] = t;
+		}
+	}
+
+	private static void point(double lat, double lon, double[] out, int at){
+		double phi = Math.toRadians(lat), lambda = Math.toRadians(lon);
+		out[at] = Math.cos(phi) * Math.cos(lambda);
+		out[at + 1] = Math.cos(phi) * Math.sin(lambda);
+		out[at + 2] = Math.sin(phi);
+	}
+
+	/**
+	 * Times searches over generated cinemas, without a database.
+	 *
+	 * Usage: java CinemaLocator [cinemas] [searches] [miles]
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int searches = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		double miles = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+		Random random = new Random(42);
+		Map<Integer, double[]> zips = new HashMap<Integer, double[]>();
+		List<Cinema> cinemas = new ArrayList<Cinema>(n);
+		for(int i = 0; i < n; ++i){
+			double[] at = locate(zips, random.nextInt(100000));
+			cinemas.add(new Cinema(i + 1, "Cinema " + (i + 1), "", at[0], at[1]));
+		}
+		long start = System.nanoTime();
+		CinemaLocator locator = new CinemaLocator(cinemas, zips);
+		System.out.println("Built " + n + " cinemas in " + (System.nanoTime() - start) / 1000000 + " ms");
+
+		int[] queries = new int[searches];
+		for(int i = 0; i < searches; ++i) queries[i] = random.nextInt(100000);
+		long found = 0, worst = 0;
+		for(int i = 0; i < Math.min(searches, 20000); ++i) found += locator.near(queries[i], miles).size();   // warm up
+		found = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < searches; ++i){
+			long t = System.nanoTime();
+			found += locator.near(queries[i], miles).size();
+			worst = Math.max(worst, System.nanoTime() - t);
+		}
+		long took = System.nanoTime() - start;
+		System.out.printf("%d searches within %.1f miles: %.1f us each, worst %d us, %.1f cinemas found each%n",
+			searches, miles, took / 1000.0 / searches, worst / 1000, (double)found / searches);
+	}
+}//end CinemaLocator
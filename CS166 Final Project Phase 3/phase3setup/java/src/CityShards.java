@@ -0,0 +1,299 @@
+/*
+ * City-based sharding for Ticketmaster
+ * ====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class spreads the data over several databases by city.
+ *
+ * Shard k holds the Cinemas of the cities with city_id mod n = k, and with
+ * them their Theaters, CinemaSeats, Plays, Shows, ShowSeats, Bookings and
+ * Payments.  Cities, Movies and Users are small and read everywhere, so
+ * every shard has all of them and writes to them go to every shard.  New
+ * ids all come from shard 0's sequences, so they are unique across shards.
+ *
+ * A write is routed to one shard by its city, or by a cinema, theater,
+ * show or booking it names; those lookups ask every shard once and are
+ * cached.  Read-only operations fan out: the same query runs on every
+ * shard in parallel and the rows are concatenated, so a user's bookings
+ * in several cities come back together.
+ *
+ * Shard 0 is the database given on the command line; the others are
+ * listed as host:port pairs in -Dticketmaster.shards and use the same
+ * database name and user.  To set up n shards, load create.sql into each
+ * of them and run "java CityShards dbname port user" once, which deletes
+ * from every shard the rows that belong to other shards.
+ *
+ */
+
+public class CityShards{
+	/** Comma-separated host:port of shards 1 .. n-1. */
+	public static final String SHARDS = System.getProperty("ticketmaster.shards", "");
+
+	/** Rows of a fanned-out query. */
+	public static final class Rows{
+		public final List<String> names = new ArrayList<String>();
+		public final List<List<String>> rows = new ArrayList<List<String>>();
+	}//end Rows
+
+	private final List<Ticketmaster> shards = new ArrayList<Ticketmaster>();
+	private final Map<String, Integer> located = new ConcurrentHashMap<String, Integer>();
+	private final ExecutorService pool;
+
+	/**
+	 * @param first shard 0
+	 * @param others the other shards, in order
+	 */
+	public CityShards(Ticketmaster first, List<Ticketmaster> others){
+		shards.add(first);
+		shards.addAll(others);
+		pool = Executors.newFixedThreadPool(shards.size(), r -> {
+			Thread t = new Thread(r, "shard-query");
+			t.setDaemon(true);
+			return t;
+		});
+		for(Ticketmaster t : shards) t.setShards(this);
+	}
+
+	/**
+	 * Connects to the shards listed in SHARDS.
+	 *
+	 * @param first shard 0
+	 * @param dbname the database name every shard uses
+	 * @param user the database user
+	 * @param passwd the password
+	 * @return the shards, or null when none are listed
+	 * @throws java.sql.SQLException when a shard cannot be reached
+	 */
+	public static CityShards connect(Ticketmaster first, String dbname, String user, String passwd) throws SQLException {
+		List<Ticketmaster> others = new ArrayList<Ticketmaster>();
+		for(String url : ReplicaRouter.urls(SHARDS, dbname)){
+			others.add(new Ticketmaster(url, user, passwd));
+		}
+		return others.isEmpty() ? null : new CityShards(first, others);
+	}
+
+	/** @return the number of shards */
+	public int size(){
+		return shards.size();
+	}
+
+	/** @return shard k */
+	public Ticketmaster get(int k){
+		return shards.get(k);
+	}
+
+	/** @return every shard, shard 0 first */
+	public List<Ticketmaster> all(){
+		return Collections.unmodifiableList(shards);
+	}
+
+	/** @return the shard of a city */
+	public int shardOfCity(long cityId){
+		return (int)Math.floorMod(cityId, (long)shards.size());
+	}
+
+	/**
+	 * Finds the shard holding a cinema, theater, show or booking.
+	 *
+	 * @param kind 'c'inema, 't'heater, 's'how or 'b'ooking
+	 * @param id its id
+	 * @return the shard index, or -1 when no shard has it
+	 * @throws java.sql.SQLException when a shard cannot be queried
+	 */
+	public int locate(char kind, long id) throws SQLException {
+		String key = kind + ":" + id;
+		Flight.Cache event = new Flight.Cache();
+		event.begin();
+		Integer k = located.get(key);
+		if(k != null){
+			Flight.lookup(event, "shard-location", key, true);
+			return k;
+		}
+		String query;
+		switch(kind){
+			case 'c': query = "SELECT 1 FROM Cinemas WHERE cid = " + id; break;
+			case 't': query = "SELECT 1 FROM Theaters WHERE tid = " + id; break;
+			case 's': query = "SELECT 1 FROM Shows WHERE sid = " + id; break;
+			case 'b': query = "SELECT 1 FROM Bookings WHERE bid = " + id; break;
+			default: throw new IllegalArgumentException("Unknown kind " + kind);
+		}
+		List<Rows> found = each(query);
+		int shard = -1;
+		for(int i = 0; i < found.size() && shard < 0; ++i){
+			if(!found.get(i).rows.isEmpty()){
+				located.put(key, i);
+				shard = i;
+			}
+		}
+		Flight.lookup(event, "shard-location", key, false);
+		return shard;
+	}
+
+	/**
+	 * Runs a query on every shard in parallel and concatenates the rows,
+	 * shard 0's first.
+	 *
+	 * @param query the query
+	 * @return the column names and rows
+	 * @throws java.sql.SQLException when a shard fails
+	 */
+	public Rows query(String query) throws SQLException {
+		Rows merged = new Rows();
+		for(Rows r : each(query)){
+			if(merged.names.isEmpty()) merged.names.addAll(r.names);
+			merged.rows.addAll(r.rows);
+		}
+		return merged;
+	}
+
+	/**
+	 * Runs a statement on every shard, for the tables every shard holds.
+	 *
+	 * @param sql the statement
+	 * @throws java.sql.SQLException when a shard fails; shards before it keep the change
+	 */
+	public void broadcast(String sql) throws SQLException {
+		for(Ticketmaster t : shards) t.executeUpdate(sql);
+	}
+
+	private List<Rows> each(final String query) throws SQLException {
+		List<Future<Rows>> futures = new ArrayList<Future<Rows>>();
+		for(final Ticketmaster t : shards){
+			futures.add(pool.submit(() -> {
+				Rows r = new Rows();
+				Statement stmt = t.getConnection().createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(query);
+					ResultSetMetaData md = rs.getMetaData();
+					int n = md.getColumnCount();
+					for(int c = 1; c <= n; ++c) r.names.add(md.getColumnName(c));
+					while(rs.next()){
+						List<String> row = new ArrayList<String>(n);
+						for(int c = 1; c <= n; ++c) row.add(rs.getString(c));
+						r.rows.add(row);
+					}
+				}finally{
+					stmt.close();
+				}
+				return r;
+			}));
+		}
+		List<Rows> results = new ArrayList<Rows>();
+		for(Future<Rows> f : futures){
+			try{
+				results.add(f.get());
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted");
+			}catch(java.util.concurrent.ExecutionException e){
+				if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+				throw new SQLException(e.getCause());
+			}
+		}
+		return results;
+	}
+
+	/** Closes the connections to shards 1 .. n-1. */
+	public void close(){
+		pool.shutdown();
+		for(int k = 1; k < shards.size(); ++k) shards.get(k).cleanup();
+	}
+
+	/**
+	 * Deletes from shard k the city-scoped rows that belong to other
+	 * shards.  Shows that no theater plays stay on shard 0.
+	 *
+	 * @param k the shard
+	 * @return the number of rows deleted per table
+	 * @throws java.sql.SQLException when a statement fails; nothing is deleted then
+	 */
+	public String prune(int k) throws SQLException {
+		int n = shards.size();
+		Ticketmaster t = shards.get(k);
+		String[] setup = {
+			"CREATE TEMP TABLE local_cinemas AS SELECT cid FROM Cinemas WHERE ((city_id % " + n + ") + " + n + ") % " + n + " = " + k,
+			"CREATE TEMP TABLE local_theaters AS SELECT tid FROM Theaters WHERE cid IN (SELECT cid FROM local_cinemas)",
+			"CREATE TEMP TABLE local_shows AS SELECT sid FROM Plays WHERE tid IN (SELECT tid FROM local_theaters)" +
+				(k == 0 ? " UNION SELECT sid FROM Shows WHERE sid NOT IN (SELECT sid FROM Plays)" : "")
+		};
+		String[][] deletes = {
+			{ "Payments", "DELETE FROM Payments WHERE bid IN (SELECT bid FROM Bookings WHERE sid NOT IN (SELECT sid FROM local_shows))" },
+			{ "ShowSeats", "DELETE FROM ShowSeats WHERE sid NOT IN (SELECT sid FROM local_shows) OR csid NOT IN " +
+				"(SELECT csid FROM CinemaSeats WHERE tid IN (SELECT tid FROM local_theaters))" },
+			{ "Bookings", "DELETE FROM Bookings WHERE sid NOT IN (SELECT sid FROM local_shows)" },
+			{ "Plays", "DELETE FROM Plays WHERE tid NOT IN (SELECT tid FROM local_theaters)" },
+			{ "Shows", "DELETE FROM Shows WHERE sid NOT IN (SELECT sid FROM local_shows)" },
+			{ "CinemaSeats", "DELETE FROM CinemaSeats WHERE tid NOT IN (SELECT tid FROM local_theaters)" },
+			{ "Theaters", "DELETE FROM Theaters WHERE tid NOT IN (SELECT tid FROM local_theaters)" },
+			{ "Cinemas", "DELETE FROM Cinemas WHERE cid NOT IN (SELECT cid FROM local_cinemas)" }
+		};
+		StringBuilder report = new StringBuilder("Shard " + k + ":");
+		java.sql.Connection conn = t.getConnection();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		try{
+			for(String s : setup) stmt.executeUpdate(s);
+			for(String[] d : deletes){
+				report.append(' ').append(d[0]).append(" -").append(stmt.executeUpdate(d[1]));
+			}
+			for(String s : new String[]{ "local_shows", "local_theaters", "local_cinemas" }){
+				stmt.executeUpdate("DROP TABLE " + s);
+			}
+			conn.commit();
+		}catch(SQLException e){
+			conn.rollback();
+			throw e;
+		}finally{
+			stmt.close();
+			conn.setAutoCommit(true);
+		}
+		return report.toString();
+	}
+
+	/**
+	 * Splits freshly loaded shards: java CityShards dbname port user, with
+	 * -Dticketmaster.shards listing shards 1 .. n-1.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3 || SHARDS.isEmpty()){
+			System.err.println("Usage: java -Dticketmaster.shards=<host:port,...> [-classpath <classpath>] " +
+				CityShards.class.getName() + " <dbname> <port> <user>");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		Ticketmaster first = new Ticketmaster(args[0], args[1], args[2], "");
+		CityShards shards = connect(first, args[0], args[2], "");
+		try{
+			for(int k = 0; k < shards.size(); ++k){
+				System.out.println(shards.prune(k));
+			}
+		}finally{
+			shards.close();
+			first.cleanup();
+		}
+	}
+}//end CityShards
@@ -0,0 +1,438 @@
+/*
+ * Cold-data archival for Ticketmaster
+ * ===================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class moves the Bookings, Payments and ShowSeats of past shows out
+ * of Postgres into ColumnarFile archives on local disk, and reads them back
+ * for booking history.
+ *
+ * An archive run takes a cutoff date and works through the shows dated
+ * before it a chunk at a time.  In one REPEATABLE READ transaction per
+ * chunk it locks the keys of the chunk's Bookings, their Payments and the
+ * chunk's ShowSeats into temporary tables, streams exactly those rows into
+ * three files (bookings sorted by email, so the email zone maps narrow
+ * user lookups to a few row groups, the others by bid), deletes exactly
+ * those rows and commits; only then are the chunk's files renamed into
+ * place, so booking history never reads a row from both Postgres and the
+ * archive.  A row changed after the snapshot fails the lock and its
+ * chunk, and one added after it is left for a later chunk or run, so no
+ * row is deleted without being archived.  Locks are held for one chunk at
+ * a time, and a failed run resumes with the shows still left.
+ *
+ * PartitionMaintenance archives the months it retires the same way, with
+ * exportPartitions() while they are still attached, so their bookings stay
+ * in the history too.
+ *
+ */
+
+public class ColdArchive{
+	/** Directory used by the menu; override with -Dticketmaster.archive.dir=... */
+	public static final String DEFAULT_DIR = System.getProperty("ticketmaster.archive.dir", "archive");
+
+	private static final String SUFFIX = ".tmcol";
+	private static final int ROWS_PER_GROUP = 8192;
+
+	private final Ticketmaster esql;
+	private final File dir;
+
+	public ColdArchive(Ticketmaster esql, File dir){
+		this.esql = esql;
+		this.dir = dir;
+	}
+
+	/** Row counts of one archive run. */
+	public static class Result{
+		long bookings, payments, showSeats, millis;
+
+		@Override
+		public String toString(){
+			return "Archived " + bookings + " bookings, " + payments + " payments and " +
+				showSeats + " show seats in " + millis + " ms";
+		}
+	}//end Result
+
+	/**
+	 * Archives and deletes every booking, payment and show seat of shows
+	 * dated before the cutoff, a chunk of shows per transaction.  Each
+	 * chunk's files are kept once its deletion has committed, so a failed
+	 * run keeps the chunks it finished and the next run resumes with the
+	 * shows left.
+	 *
+	 * @param cutoff first show date kept in Postgres; must be in the past
+	 * @param chunkSize shows archived per transaction
+	 * @return the row counts
+	 * @throws java.sql.SQLException when a query fails, rows of the current
+	 *         chunk changed while being locked, or the connection is inside a
+	 *         transaction; that chunk is not archived and the run can be retried
+	 * @throws java.io.IOException when an archive file cannot be written
+	 */
+	public Result archiveBefore(LocalDate cutoff, int chunkSize) throws SQLException, IOException {
+		if(!cutoff.isBefore(LocalDate.now())){
+			throw new IllegalArgumentException("Cutoff " + cutoff + " must be in the past");
+		}
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Unable to create " + dir);
+		}
+		long start = System.currentTimeMillis();
+		String run = cutoff + "-" + start;
+		Result result = new Result();
+		Connection conn = esql.getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		if(!autoCommit){
+			// its files are only kept once the rows are gone, which needs a commit of its own
+			throw new SQLException("Archiving cannot run inside an open transaction, such as a batch group");
+		}
+		int isolation = conn.getTransactionIsolation();
+		long lastSid = Long.MIN_VALUE;
+		try{
+			conn.setAutoCommit(false);
+			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			for(int chunk = 0; ; ++chunk){
+				File[] tmp = runFiles(dir, String.format("%s-%05d", run, chunk));
+				Result part = new Result();
+				try{
+					// the next shows with rows left, and those rows, locked; one changed
+					// since the snapshot fails the chunk
+					update(conn,
+						"CREATE TEMP TABLE archive_shows ON COMMIT DROP AS SELECT sid, sdate FROM Shows WHERE FALSE;\n" +
+						"CREATE TEMP TABLE archive_bookings ON COMMIT DROP AS SELECT bid, sdate FROM Bookings WHERE FALSE;\n" +
+						"CREATE TEMP TABLE archive_payments ON COMMIT DROP AS SELECT pid FROM Payments WHERE FALSE;\n" +
+						"CREATE TEMP TABLE archive_showseats ON COMMIT DROP AS SELECT ssid, sdate FROM ShowSeats WHERE FALSE;\n" +
+						"INSERT INTO archive_shows SELECT S.sid, S.sdate FROM Shows S\n" +
+						"WHERE S.sdate < '" + cutoff + "' AND S.sid > " + lastSid + " AND (\n" +
+						"  EXISTS (SELECT 1 FROM Bookings B WHERE B.sid = S.sid AND B.sdate = S.sdate) OR\n" +
+						"  EXISTS (SELECT 1 FROM ShowSeats A WHERE A.sid = S.sid AND A.sdate = S.sdate))\n" +
+						"ORDER BY S.sid LIMIT " + chunkSize + ";\n" +
+						"INSERT INTO archive_bookings SELECT B.bid, B.sdate FROM Bookings B, archive_shows S\n" +
+						"WHERE B.sid = S.sid AND B.sdate = S.sdate FOR UPDATE OF B;\n" +
+						"INSERT INTO archive_payments SELECT P.pid FROM Payments P, archive_bookings K WHERE P.bid = K.bid FOR UPDATE OF P;\n" +
+						"INSERT INTO archive_showseats SELECT A.ssid, A.sdate FROM ShowSeats A, archive_shows S\n" +
+						"WHERE A.sid = S.sid AND A.sdate = S.sdate FOR UPDATE OF A;\n" +
+						"ANALYZE archive_shows; ANALYZE archive_bookings; ANALYZE archive_payments; ANALYZE archive_showseats");
+					long last = last(conn);
+					if(last == Long.MIN_VALUE){
+						conn.commit();
+						break;
+					}
+					export(conn,
+						"Bookings B, archive_bookings K WHERE B.bid = K.bid AND B.sdate = K.sdate",
+						"Payments P, archive_payments K WHERE P.pid = K.pid",
+						"ShowSeats A, archive_showseats K WHERE A.ssid = K.ssid AND A.sdate = K.sdate",
+						tmp, part);
+					// exactly the rows exported, still locked, so nothing unarchived is deleted
+					update(conn,
+						"DELETE FROM Payments P USING archive_payments K WHERE P.pid = K.pid;\n" +
+						"DELETE FROM ShowSeats A USING archive_showseats K WHERE A.ssid = K.ssid AND A.sdate = K.sdate;\n" +
+						"DELETE FROM Bookings B USING archive_bookings K WHERE B.bid = K.bid AND B.sdate = K.sdate");
+					conn.commit();
+					lastSid = last;
+				}catch(SQLException | IOException e){
+					conn.rollback();
+					for(File f : tmp) f.delete();
+					throw e;
+				}
+				// the chunk's rows are gone, so its files join the history now
+				keep(tmp);
+				result.bookings += part.bookings;
+				result.payments += part.payments;
+				result.showSeats += part.showSeats;
+			}
+		}finally{
+			conn.setTransactionIsolation(isolation);
+			conn.setAutoCommit(autoCommit);
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/* The highest sid of the chunk, or Long.MIN_VALUE when no show is left. */
+	private static long last(Connection conn) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT max(sid) FROM archive_shows");
+			rs.next();
+			long sid = rs.getLong(1);
+			return rs.wasNull() ? Long.MIN_VALUE : sid;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Writes the rows of a retiring month's Bookings and ShowSeats
+	 * partitions, and the Payments listed in a key table, into archive
+	 * files, inside the caller's transaction.  The caller holds those rows
+	 * locked until it commits their deletion.  The files end in .tmp until
+	 * keep() renames them after that commit; bookingHistory() reads them
+	 * from then on.
+	 *
+	 * @param conn the caller's connection, with autocommit off
+	 * @param name what the files are named after, e.g. p202401
+	 * @param bookings the Bookings partition
+	 * @param paymentKeys a table with the pid of every payment to export
+	 * @param showSeats the ShowSeats partition
+	 * @return the files written
+	 * @throws java.sql.SQLException when a query fails; no file is left then
+	 * @throws java.io.IOException when a file cannot be written; no file is left then
+	 */
+	public File[] exportPartitions(Connection conn, String name, String bookings, String paymentKeys, String showSeats)
+			throws SQLException, IOException {
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Unable to create " + dir);
+		}
+		File[] tmp = runFiles(dir, name);
+		try{
+			export(conn, bookings + " B", "Payments P, " + paymentKeys + " K WHERE P.pid = K.pid", showSeats + " A",
+				tmp, new Result());
+		}catch(SQLException | IOException e){
+			for(File f : tmp) f.delete();
+			throw e;
+		}
+		return tmp;
+	}
+
+	/**
+	 * Renames files written by exportPartitions() into place.
+	 *
+	 * @param tmp the files
+	 * @throws java.io.IOException when a file cannot be renamed
+	 */
+	public static void keep(File[] tmp) throws IOException {
+		File[] done = kept(tmp);
+		for(int i = 0; i < tmp.length; ++i){
+			if(!tmp[i].renameTo(done[i])) throw new IOException("Unable to rename " + tmp[i]);
+		}
+	}
+
+	/* The temporary bookings, payments and showseats files of one run. */
+	private static File[] runFiles(File dir, String run){
+		return new File[]{
+			new File(dir, "bookings-" + run + SUFFIX + ".tmp"),
+			new File(dir, "payments-" + run + SUFFIX + ".tmp"),
+			new File(dir, "showseats-" + run + SUFFIX + ".tmp")
+		};
+	}
+
+	private static File[] kept(File[] tmp){
+		File[] done = new File[tmp.length];
+		for(int i = 0; i < tmp.length; ++i){
+			String name = tmp[i].getName();
+			done[i] = new File(tmp[i].getParentFile(), name.substring(0, name.length() - 4));
+		}
+		return done;
+	}
+
+	/*
+	 * Writes one run's files from the rows of Bookings B, Payments P and
+	 * ShowSeats A that the FROM ... WHERE fragments select: bookings sorted
+	 * by email, the others by bid.
+	 */
+	private static void export(Connection conn, String bookings, String payments, String showSeats, File[] tmp, Result result)
+			throws SQLException, IOException {
+		result.bookings = export(conn,
+			"SELECT B.bid, B.status, B.bdatetime, B.seats, B.sid, B.email, B.sdate FROM " + bookings + " ORDER BY B.email, B.bid",
+			tmp[0]);
+		result.payments = export(conn,
+			"SELECT P.pid, P.bid, P.pmethod, P.pdatetime, P.amount, P.trid, P.reversed FROM " + payments + " ORDER BY P.bid",
+			tmp[1]);
+		result.showSeats = export(conn,
+			"SELECT A.ssid, A.sid, A.csid, A.bid, A.price, A.sdate FROM " + showSeats + " ORDER BY A.bid, A.ssid",
+			tmp[2]);
+	}
+
+	private static void update(Connection conn, String sql) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.execute(sql);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/*
+	 * Streams a query through a server-side cursor into a columnar file and
+	 * returns the number of rows written.  Must run with autocommit off.
+	 */
+	private static long export(Connection conn, String query, File file) throws SQLException, IOException {
+		Statement stmt = conn.createStatement();
+		stmt.setFetchSize(ROWS_PER_GROUP);
+		try{
+			ResultSet rs = stmt.executeQuery(query);
+			ResultSetMetaData md = rs.getMetaData();
+			int n = md.getColumnCount();
+			String[] names = new String[n];
+			byte[] types = new byte[n];
+			for(int c = 0; c < n; ++c){
+				names[c] = md.getColumnName(c + 1);
+				types[c] = columnType(md.getColumnType(c + 1));
+			}
+			ColumnarFile.Writer w = new ColumnarFile.Writer(file, names, types, ROWS_PER_GROUP);
+			try{
+				while(rs.next()){
+					for(int c = 0; c < n; ++c){
+						switch(types[c]){
+							case ColumnarFile.LONG:
+								long v = rs.getLong(c + 1);
+								if(rs.wasNull()) w.setNull(c); else w.setLong(c, v);
+								break;
+							case ColumnarFile.FLOAT:
+								float f = rs.getFloat(c + 1);
+								if(rs.wasNull()) w.setNull(c); else w.setFloat(c, f);
+								break;
+							case ColumnarFile.DATE:
+								java.sql.Date d = rs.getDate(c + 1);
+								if(d == null) w.setNull(c); else w.setLong(c, d.toLocalDate().toEpochDay());
+								break;
+							case ColumnarFile.TIMESTAMP:
+								Timestamp t = rs.getTimestamp(c + 1);
+								if(t == null) w.setNull(c); else w.setLong(c, t.getTime());
+								break;
+							default:
+								w.setString(c, rs.getString(c + 1));
+						}
+					}
+					w.endRow();
+				}
+			}finally{
+				w.close();
+			}
+			return w.rows();
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static byte columnType(int sqlType){
+		switch(sqlType){
+			case Types.BIGINT: case Types.INTEGER: case Types.SMALLINT: return ColumnarFile.LONG;
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: return ColumnarFile.FLOAT;
+			case Types.DATE: return ColumnarFile.DATE;
+			case Types.TIMESTAMP: case Types.TIMESTAMP_WITH_TIMEZONE: return ColumnarFile.TIMESTAMP;
+			default: return ColumnarFile.STRING;
+		}
+	}
+
+	private File[] files(final String table){
+		File[] files = dir.listFiles(new FilenameFilter(){
+			public boolean accept(File d, String name){
+				return name.startsWith(table + "-") && name.endsWith(SUFFIX);
+			}
+		});
+		if(files == null) return new File[0];
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Returns a user's archived bookings in the shape of the live listing
+	 * (title, sdate, sttime, tname, sno), one row per booked seat.  Shows,
+	 * Movies, Theaters and CinemaSeats stay in Postgres and are looked up
+	 * for the archived ids only.
+	 *
+	 * @param email the user's email
+	 * @return the archived booking history
+	 * @throws java.sql.SQLException when the lookup queries fail
+	 * @throws java.io.IOException when an archive file cannot be read
+	 */
+	public List<List<String>> bookingHistory(String email) throws SQLException, IOException {
+		// bid -> sid for the user's archived bookings
+		Map<Long, Long> bookings = new LinkedHashMap<Long, Long>();
+		for(File f : files("bookings")){
+			ColumnarFile.Reader r = new ColumnarFile.Reader(f);
+			try{
+				int cEmail = r.column("email"), cBid = r.column("bid"), cSid = r.column("sid");
+				for(int g = 0; g < r.groupCount(); ++g){
+					if(!r.mayContain(g, cEmail, email)) continue;
+					ColumnarFile.Group grp = r.readGroup(g);
+					for(int i = 0; i < grp.rows(); ++i){
+						if(email.equals(grp.getString(cEmail, i))){
+							bookings.put(grp.getLong(cBid, i), grp.getLong(cSid, i));
+						}
+					}
+				}
+			}finally{
+				r.close();
+			}
+		}
+		if(bookings.isEmpty()) return new ArrayList<List<String>>();
+
+		long minBid = Long.MAX_VALUE, maxBid = Long.MIN_VALUE;
+		for(long bid : bookings.keySet()){
+			minBid = Math.min(minBid, bid);
+			maxBid = Math.max(maxBid, bid);
+		}
+		// (sid, csid) of every archived seat held by those bookings
+		List<long[]> seats = new ArrayList<long[]>();
+		for(File f : files("showseats")){
+			ColumnarFile.Reader r = new ColumnarFile.Reader(f);
+			try{
+				int cBid = r.column("bid"), cSid = r.column("sid"), cCsid = r.column("csid");
+				for(int g = 0; g < r.groupCount(); ++g){
+					if(!r.mayOverlap(g, cBid, minBid, maxBid)) continue;
+					ColumnarFile.Group grp = r.readGroup(g);
+					for(int i = 0; i < grp.rows(); ++i){
+						if(!grp.isNull(cBid, i) && bookings.containsKey(grp.getLong(cBid, i))){
+							seats.add(new long[]{ grp.getLong(cSid, i), grp.getLong(cCsid, i) });
+						}
+					}
+				}
+			}finally{
+				r.close();
+			}
+		}
+		if(seats.isEmpty()) return new ArrayList<List<String>>();
+
+		StringBuilder sids = new StringBuilder(), csids = new StringBuilder();
+		for(long[] s : seats){
+			sids.append(sids.length() == 0 ? "" : ",").append(s[0]);
+			csids.append(csids.length() == 0 ? "" : ",").append(s[1]);
+		}
+		Map<String, List<String>> shows = new HashMap<String, List<String>>();
+		for(List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT B.sid, A.title, B.sdate, B.sttime, C.tname\nFROM Movies A, Shows B, Theaters C, Plays P\n" +
+				"WHERE B.sid IN (" + sids + ") AND A.mvid = B.mvid AND P.sid = B.sid AND C.tid = P.tid;")){
+			shows.put(row.get(0), row);
+		}
+		Map<String, String> seatNumbers = new HashMap<String, String>();
+		for(List<String> row : esql.executeQueryAndReturnResult(
+				"SELECT csid, sno FROM CinemaSeats WHERE csid IN (" + csids + ");")){
+			seatNumbers.put(row.get(0), row.get(1));
+		}
+		List<List<String>> history = new ArrayList<List<String>>();
+		for(long[] s : seats){
+			List<String> show = shows.get(Long.toString(s[0]));
+			if(show == null) continue;
+			history.add(Arrays.asList(show.get(1), show.get(2), show.get(3), show.get(4),
+				seatNumbers.get(Long.toString(s[1]))));
+		}
+		return history;
+	}
+}//end ColdArchive
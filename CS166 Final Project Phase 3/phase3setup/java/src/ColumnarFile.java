@@ -0,0 +1,478 @@
+/*
+ * Compressed columnar file format for archived Ticketmaster rows
+ * ==============================================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class defines a small columnar file format for cold rows.  Rows are
+ * cut into row groups; inside a group every column is stored contiguously
+ * (longs as zig-zag varint deltas, strings through a per-group dictionary,
+ * floats as raw bits, each with a null bitmap) and the whole group is
+ * deflated.  A footer records every group's offset plus a min/max zone map
+ * per column, so readers skip groups that cannot hold the value they look
+ * for without inflating them.
+ *
+ * Layout: MAGIC, column count, (type, name) per column, row groups, footer,
+ * footer offset (8 bytes), MAGIC.
+ *
+ */
+
+public class ColumnarFile{
+	private static final byte[] MAGIC = "TMCOL1\n".getBytes(StandardCharsets.US_ASCII);
+
+	/** Column types.  DATE and TIMESTAMP are stored as longs. */
+	public static final byte LONG = 1, FLOAT = 2, STRING = 3, DATE = 4, TIMESTAMP = 5;
+
+	private static boolean isLong(byte type){
+		return type == LONG || type == DATE || type == TIMESTAMP;
+	}
+
+	/** Min/max of one column inside one row group; any is false when every value is null. */
+	private static class Zone{
+		long minLong = Long.MAX_VALUE, maxLong = Long.MIN_VALUE;
+		String minString, maxString;
+		boolean any;
+	}//end Zone
+
+	/**
+	 * Writes rows one value at a time: set every column, then endRow().
+	 */
+	public static class Writer implements AutoCloseable{
+		private final DataOutputStream out;
+		private final byte[] types;
+		private final int rowsPerGroup;
+		private final long[][] longs;
+		private final float[][] floats;
+		private final String[][] strings;
+		private final boolean[][] nulls;
+		private final List<Long> groupOffsets = new ArrayList<Long>();
+		private final List<Integer> groupRows = new ArrayList<Integer>();
+		private final List<Zone[]> zones = new ArrayList<Zone[]>();
+		private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		private final ByteArrayOutputStream group = new ByteArrayOutputStream(1 << 16);
+		private byte[] compressed = new byte[1 << 16];
+		private long position;
+		private int row;
+		private long totalRows;
+
+		/**
+		 * @param file the file to create
+		 * @param names column names
+		 * @param types column types, one of LONG, FLOAT, STRING, DATE, TIMESTAMP
+		 * @param rowsPerGroup rows buffered and compressed together
+		 * @throws java.io.IOException when the file cannot be created
+		 */
+		public Writer(File file, String[] names, byte[] types, int rowsPerGroup) throws IOException {
+			this.types = types.clone();
+			this.rowsPerGroup = rowsPerGroup;
+			int n = types.length;
+			longs = new long[n][];
+			floats = new float[n][];
+			strings = new String[n][];
+			nulls = new boolean[n][rowsPerGroup];
+			for(int c = 0; c < n; ++c){
+				if(isLong(types[c])) longs[c] = new long[rowsPerGroup];
+				else if(types[c] == FLOAT) floats[c] = new float[rowsPerGroup];
+				else strings[c] = new String[rowsPerGroup];
+			}
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.write(MAGIC);
+			out.writeInt(n);
+			for(int c = 0; c < n; ++c){
+				out.writeByte(types[c]);
+				out.writeUTF(names[c]);
+			}
+			position = out.size();
+		}
+
+		public void setLong(int col, long v){ longs[col][row] = v; nulls[col][row] = false; }
+		public void setFloat(int col, float v){ floats[col][row] = v; nulls[col][row] = false; }
+		public void setString(int col, String v){ strings[col][row] = v; nulls[col][row] = v == null; }
+		public void setNull(int col){ nulls[col][row] = true; }
+
+		public void endRow() throws IOException {
+			++totalRows;
+			if(++row == rowsPerGroup) flushGroup();
+		}
+
+		public long rows(){ return totalRows; }
+
+		private void flushGroup() throws IOException {
+			if(row == 0) return;
+			group.reset();
+			DataOutputStream g = new DataOutputStream(group);
+			Zone[] z = new Zone[types.length];
+			for(int c = 0; c < types.length; ++c){
+				z[c] = new Zone();
+				writeNulls(g, nulls[c], row);
+				if(isLong(types[c])) writeLongs(g, longs[c], nulls[c], row, z[c]);
+				else if(types[c] == FLOAT) writeFloats(g, floats[c], nulls[c], row);
+				else writeStrings(g, strings[c], nulls[c], row, z[c]);
+			}
+			g.flush();
+			deflater.reset();
+			deflater.setInput(group.toByteArray());
+			deflater.finish();
+			int len = 0;
+			while(!deflater.finished()){
+				if(len == compressed.length) compressed = Arrays.copyOf(compressed, len * 2);
+				len += deflater.deflate(compressed, len, compressed.length - len);
+			}
+			groupOffsets.add(position);
+			groupRows.add(row);
+			zones.add(z);
+			out.writeInt(group.size());
+			out.writeInt(len);
+			out.write(compressed, 0, len);
+			position += 8 + len;
+			row = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushGroup();
+			long footer = position;
+			out.writeInt(groupOffsets.size());
+			for(int i = 0; i < groupOffsets.size(); ++i){
+				out.writeLong(groupOffsets.get(i));
+				out.writeInt(groupRows.get(i));
+				for(int c = 0; c < types.length; ++c){
+					Zone z = zones.get(i)[c];
+					out.writeBoolean(z.any);
+					if(!z.any || types[c] == FLOAT) continue;
+					if(isLong(types[c])){
+						out.writeLong(z.minLong);
+						out.writeLong(z.maxLong);
+					}else{
+						writeString(out, z.minString);
+						writeString(out, z.maxString);
+					}
+				}
+			}
+			out.writeLong(footer);
+			out.write(MAGIC);
+			out.close();
+			deflater.end();
+		}
+	}//end Writer
+
+	/**
+	 * One inflated row group.
+	 */
+	public static class Group{
+		private final int rows;
+		private final long[][] longs;
+		private final float[][] floats;
+		private final String[][] strings;
+		private final boolean[][] nulls;
+		private final byte[] types;
+
+		private Group(byte[] types, int rows){
+			this.types = types;
+			this.rows = rows;
+			longs = new long[types.length][];
+			floats = new float[types.length][];
+			strings = new String[types.length][];
+			nulls = new boolean[types.length][];
+		}
+
+		public int rows(){ return rows; }
+		public boolean isNull(int col, int row){ return nulls[col][row]; }
+		public long getLong(int col, int row){ return longs[col][row]; }
+		public float getFloat(int col, int row){ return floats[col][row]; }
+
+		/**
+		 * Renders a value the way Postgres prints it (dates as ISO dates,
+		 * timestamps as ISO instants), or null.
+		 */
+		public String getString(int col, int row){
+			if(nulls[col][row]) return null;
+			switch(types[col]){
+				case LONG: return Long.toString(longs[col][row]);
+				case DATE: return LocalDate.ofEpochDay(longs[col][row]).toString();
+				case TIMESTAMP: return Instant.ofEpochMilli(longs[col][row]).toString();
+				case FLOAT: return Float.toString(floats[col][row]);
+				default: return strings[col][row];
+			}
+		}
+	}//end Group
+
+	/**
+	 * Random-access reader: loads the footer once, then inflates only the
+	 * row groups asked for.
+	 */
+	public static class Reader implements AutoCloseable{
+		private final RandomAccessFile file;
+		private final byte[] types;
+		private final String[] names;
+		private final long[] offsets;
+		private final int[] rows;
+		private final Zone[][] zones;
+
+		public Reader(File f) throws IOException {
+			file = new RandomAccessFile(f, "r");
+			try{
+				byte[] magic = new byte[MAGIC.length];
+				file.readFully(magic);
+				if(!Arrays.equals(magic, MAGIC)) throw new IOException(f + " is not a columnar archive");
+				int n = file.readInt();
+				types = new byte[n];
+				names = new String[n];
+				for(int c = 0; c < n; ++c){
+					types[c] = file.readByte();
+					names[c] = file.readUTF();
+				}
+				file.seek(file.length() - MAGIC.length - 8);
+				long footer = file.readLong();
+				byte[] footerBytes = new byte[(int)(file.length() - MAGIC.length - 8 - footer)];
+				file.seek(footer);
+				file.readFully(footerBytes);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(footerBytes));
+				int groups = in.readInt();
+				offsets = new long[groups];
+				rows = new int[groups];
+				zones = new Zone[groups][n];
+				for(int i = 0; i < groups; ++i){
+					offsets[i] = in.readLong();
+					rows[i] = in.readInt();
+					for(int c = 0; c < n; ++c){
+						Zone z = zones[i][c] = new Zone();
+						z.any = in.readBoolean();
+						if(!z.any || types[c] == FLOAT) continue;
+						if(isLong(types[c])){
+							z.minLong = in.readLong();
+							z.maxLong = in.readLong();
+						}else{
+							z.minString = readString(in);
+							z.maxString = readString(in);
+						}
+					}
+				}
+			}catch(IOException | RuntimeException e){
+				file.close();
+				throw e;
+			}
+		}
+
+		public int groupCount(){ return offsets.length; }
+		public int columnCount(){ return types.length; }
+		public String columnName(int col){ return names[col]; }
+
+		public int column(String name){
+			for(int c = 0; c < names.length; ++c){
+				if(names[c].equalsIgnoreCase(name)) return c;
+			}
+			throw new IllegalArgumentException("No column " + name);
+		}
+
+		/** True unless the zone map proves the group has no row with col == v. */
+		public boolean mayContain(int group, int col, long v){
+			Zone z = zones[group][col];
+			return z.any && v >= z.minLong && v <= z.maxLong;
+		}
+
+		/** True unless the zone map proves the group has no row with min <= col <= max. */
+		public boolean mayOverlap(int group, int col, long min, long max){
+			Zone z = zones[group][col];
+			return z.any && max >= z.minLong && min <= z.maxLong;
+		}
+
+		/** True unless the zone map proves the group has no row with col == v. */
+		public boolean mayContain(int group, int col, String v){
+			Zone z = zones[group][col];
+			return z.any && v.compareTo(z.minString) >= 0 && v.compareTo(z.maxString) <= 0;
+		}
+
+		public Group readGroup(int i) throws IOException {
+			file.seek(offsets[i]);
+			int rawLen = file.readInt();
+			byte[] packed = new byte[file.readInt()];
+			file.readFully(packed);
+			byte[] raw = new byte[rawLen];
+			Inflater inflater = new Inflater();
+			try{
+				inflater.setInput(packed);
+				int len = 0;
+				while(len < rawLen && !inflater.finished()){
+					len += inflater.inflate(raw, len, rawLen - len);
+				}
+			}catch(DataFormatException e){
+				throw new IOException("Corrupt row group " + i, e);
+			}finally{
+				inflater.end();
+			}
+			DataInputStream g = new DataInputStream(new ByteArrayInputStream(raw));
+			Group grp = new Group(types, rows[i]);
+			for(int c = 0; c < types.length; ++c){
+				grp.nulls[c] = readNulls(g, rows[i]);
+				if(isLong(types[c])) grp.longs[c] = readLongs(g, grp.nulls[c], rows[i]);
+				else if(types[c] == FLOAT) grp.floats[c] = readFloats(g, grp.nulls[c], rows[i]);
+				else grp.strings[c] = readStrings(g, grp.nulls[c], rows[i]);
+			}
+			return grp;
+		}
+
+		@Override
+		public void close() throws IOException {
+			file.close();
+		}
+	}//end Reader
+
+	/*
+	 * Encoding helpers
+	 */
+
+	private static void writeNulls(DataOutputStream g, boolean[] nulls, int n) throws IOException {
+		byte b = 0;
+		for(int i = 0; i < n; ++i){
+			if(nulls[i]) b |= 1 << (i & 7);
+			if((i & 7) == 7){ g.writeByte(b); b = 0; }
+		}
+		if((n & 7) != 0) g.writeByte(b);
+	}
+
+	private static boolean[] readNulls(DataInputStream g, int n) throws IOException {
+		boolean[] nulls = new boolean[n];
+		int b = 0;
+		for(int i = 0; i < n; ++i){
+			if((i & 7) == 0) b = g.readUnsignedByte();
+			nulls[i] = (b & (1 << (i & 7))) != 0;
+		}
+		return nulls;
+	}
+
+	private static void writeLongs(DataOutputStream g, long[] v, boolean[] nulls, int n, Zone z) throws IOException {
+		long prev = 0;
+		for(int i = 0; i < n; ++i){
+			if(nulls[i]) continue;
+			long d = v[i] - prev;
+			writeVarLong(g, (d << 1) ^ (d >> 63));
+			prev = v[i];
+			z.any = true;
+			if(v[i] < z.minLong) z.minLong = v[i];
+			if(v[i] > z.maxLong) z.maxLong = v[i];
+		}
+	}
+
+	private static long[] readLongs(DataInputStream g, boolean[] nulls, int n) throws IOException {
+		long[] v = new long[n];
+		long prev = 0;
+		for(int i = 0; i < n; ++i){
+			if(nulls[i]) continue;
+			long zz = readVarLong(g);
+			prev += (zz >>> 1) ^ -(zz & 1);
+			v[i] = prev;
+		}
+		return v;
+	}
+
+	private static void writeFloats(DataOutputStream g, float[] v, boolean[] nulls, int n) throws IOException {
+		for(int i = 0; i < n; ++i){
+			if(!nulls[i]) g.writeInt(Float.floatToIntBits(v[i]));
+		}
+	}
+
+	private static float[] readFloats(DataInputStream g, boolean[] nulls, int n) throws IOException {
+		float[] v = new float[n];
+		for(int i = 0; i < n; ++i){
+			if(!nulls[i]) v[i] = Float.intBitsToFloat(g.readInt());
+		}
+		return v;
+	}
+
+	/*
+	 * Strings go through a per-group dictionary: status, pmethod and the
+	 * sorted emails repeat heavily inside a group.
+	 */
+	private static void writeStrings(DataOutputStream g, String[] v, boolean[] nulls, int n, Zone z) throws IOException {
+		Map<String, Integer> dict = new HashMap<String, Integer>();
+		List<String> entries = new ArrayList<String>();
+		int[] codes = new int[n];
+		for(int i = 0; i < n; ++i){
+			if(nulls[i]) continue;
+			Integer code = dict.get(v[i]);
+			if(code == null){
+				code = entries.size();
+				dict.put(v[i], code);
+				entries.add(v[i]);
+			}
+			codes[i] = code;
+			z.any = true;
+			if(z.minString == null || v[i].compareTo(z.minString) < 0) z.minString = v[i];
+			if(z.maxString == null || v[i].compareTo(z.maxString) > 0) z.maxString = v[i];
+		}
+		writeVarLong(g, entries.size());
+		for(String s : entries) writeString(g, s);
+		for(int i = 0; i < n; ++i){
+			if(!nulls[i]) writeVarLong(g, codes[i]);
+		}
+	}
+
+	private static String[] readStrings(DataInputStream g, boolean[] nulls, int n) throws IOException {
+		String[] dict = new String[(int)readVarLong(g)];
+		for(int i = 0; i < dict.length; ++i) dict[i] = readString(g);
+		String[] v = new String[n];
+		for(int i = 0; i < n; ++i){
+			if(!nulls[i]) v[i] = dict[(int)readVarLong(g)];
+		}
+		return v;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		writeVarLong(out, b.length);
+		out.write(b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] b = new byte[(int)readVarLong(in)];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	private static void writeVarLong(DataOutputStream out, long v) throws IOException {
+		while((v & ~0x7FL) != 0){
+			out.writeByte((int)((v & 0x7F) | 0x80));
+			v >>>= 7;
+		}
+		out.writeByte((int)v);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException {
+		long v = 0;
+		for(int shift = 0; shift < 64; shift += 7){
+			int b = in.readUnsignedByte();
+			v |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0) return v;
+		}
+		throw new EOFException("Malformed varint");
+	}
+}//end ColumnarFile
@@ -0,0 +1,345 @@
+/*
+ * Consistency checks for Ticketmaster
+ * ===================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class finds, and optionally repairs, rows of Bookings, ShowSeats
+ * and Payments that disagree with each other.
+ *
+ *   SEAT_COUNT               a booking's seats differs from the ShowSeats
+ *                            holding it (none, once it is Cancelled)
+ *   ORPHAN_SEAT              a show seat held by a booking that does not exist
+ *   PAID_WITHOUT_PAYMENT     a Paid booking with no Payments row
+ *   ORPHAN_PAYMENT           a payment for a booking that does not exist
+ *   SEAT_OUTSIDE_THEATER     a show seat in a theater the show does not play in
+ *
+ * The work is cut into chunks that each touch one show date, and so one
+ * partition of Bookings and ShowSeats, or one PAYMENT_CHUNK range of
+ * payment ids.  Each check is one set-based query over its chunk, run by
+ * the worker connections in parallel in auto-commit mode, so no snapshot
+ * or lock is held longer than a chunk's statement.
+ *
+ * Repairs are statements per chunk that recheck their condition, so a
+ * row a client fixed or changed meanwhile is left alone: seat counts are
+ * set to the seats held, seats of Cancelled or missing bookings are
+ * released, and unsold seats outside the show's theaters are deleted.
+ * Missing and orphaned payments, and sold seats in the wrong theater,
+ * need a person and are only reported.
+ *
+ */
+
+public class ConsistencyChecker{
+	static final long PAYMENT_CHUNK = 1000000;
+
+	/** What is inconsistent. */
+	public enum Check{
+		SEAT_COUNT(true), ORPHAN_SEAT(true), PAID_WITHOUT_PAYMENT(false),
+		ORPHAN_PAYMENT(false), SEAT_OUTSIDE_THEATER(true);
+
+		final boolean repairable;
+
+		Check(boolean repairable){
+			this.repairable = repairable;
+		}
+	}//end Check
+
+	/** What a run found and fixed. */
+	public static final class Result{
+		final Map<Check, long[]> counts = new EnumMap<Check, long[]>(Check.class);   // found, repaired
+		long chunks, millis;
+
+		Result(){
+			for(Check c : Check.values()) counts.put(c, new long[2]);
+		}
+
+		synchronized void add(Check c, long found, long repaired){
+			counts.get(c)[0] += found;
+			counts.get(c)[1] += repaired;
+		}
+
+		/** @return the number of anomalies found by a check */
+		public synchronized long found(Check c){
+			return counts.get(c)[0];
+		}
+
+		@Override
+		public synchronized String toString(){
+			StringBuilder sb = new StringBuilder();
+			sb.append("Checked ").append(chunks).append(" chunks in ").append(millis).append(" ms\n");
+			sb.append("check\tfound\trepaired\n");
+			for(Map.Entry<Check, long[]> e : counts.entrySet()){
+				sb.append(e.getKey().name().toLowerCase()).append('\t').append(e.getValue()[0]).append('\t')
+					.append(e.getKey().repairable ? String.valueOf(e.getValue()[1]) : "-").append('\n');
+			}
+			return sb.toString();
+		}
+	}//end Result
+
+	private static final String CANCELLED = BookingStates.Status.CANCELLED.label;
+	private static final String PAID = BookingStates.Status.PAID.label;
+
+	private final Ticketmaster esql;
+	private final boolean repair;
+	private final Writer anomalies;
+
+	/**
+	 * @param esql the client whose connection settings the workers use
+	 * @param repair whether to repair what can be repaired
+	 * @param anomalies where each anomaly is written, check, key and detail
+	 *        tab-separated; flushed, not closed
+	 */
+	public ConsistencyChecker(Ticketmaster esql, boolean repair, Writer anomalies){
+		this.esql = esql;
+		this.repair = repair;
+		this.anomalies = anomalies;
+	}
+
+	/**
+	 * Runs every check over every show date and payment.
+	 *
+	 * @param workers the number of parallel connections
+	 * @return the counts
+	 * @throws java.sql.SQLException when a chunk fails
+	 * @throws java.io.IOException when the anomalies cannot be written
+	 */
+	public Result run(int workers) throws SQLException, IOException {
+		Result result = new Result();
+		long start = System.currentTimeMillis();
+		List<Callable<Void>> chunks = new ArrayList<Callable<Void>>();
+		final BlockingQueue<Connection> idle = new ArrayBlockingQueue<Connection>(workers);
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try{
+			Statement stmt = esql.getConnection().createStatement();
+			try{
+				// Bookings and ShowSeats rows outside Shows' dates are also checked
+				ResultSet rs = stmt.executeQuery(
+					"SELECT sdate FROM Shows UNION SELECT DISTINCT sdate FROM Bookings_default " +
+					"UNION SELECT DISTINCT sdate FROM ShowSeats_default ORDER BY 1");
+				while(rs.next()){
+					LocalDate day = rs.getDate(1).toLocalDate();
+					chunks.add(() -> {
+						Connection conn = idle.take();
+						try{
+							checkDay(conn, day, result);
+						}finally{
+							idle.add(conn);
+						}
+						return null;
+					});
+				}
+				rs = stmt.executeQuery("SELECT min(pid), max(pid) FROM Payments");
+				rs.next();
+				long first = rs.getLong(1), last = rs.getLong(2);
+				if(!rs.wasNull()){
+					for(long lo = first; lo <= last; lo += PAYMENT_CHUNK){
+						long from = lo, to = Math.min(last, lo + PAYMENT_CHUNK - 1);
+						chunks.add(() -> {
+							Connection conn = idle.take();
+							try{
+								checkPayments(conn, from, to, result);
+							}finally{
+								idle.add(conn);
+							}
+							return null;
+						});
+					}
+				}
+			}finally{
+				stmt.close();
+			}
+			result.chunks = chunks.size();
+			for(int w = 0; w < workers; ++w) idle.add(esql.openConnection());
+			List<Future<Void>> done = new ArrayList<Future<Void>>();
+			for(Callable<Void> chunk : chunks) done.add(pool.submit(chunk));
+			for(Future<Void> f : done){
+				try{
+					f.get();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted");
+				}catch(ExecutionException e){
+					pool.shutdownNow();
+					if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+					if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+					throw new SQLException(e.getCause());
+				}
+			}
+		}finally{
+			pool.shutdown();
+			for(Connection c : idle){
+				try{
+					c.close();
+				}catch(SQLException e){
+					// ignored.
+				}
+			}
+			anomalies.flush();
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/* The checks of the bookings and show seats of one show date. */
+	private void checkDay(Connection conn, LocalDate day, Result result) throws SQLException, IOException {
+		String d = "'" + day + "'";
+		Statement stmt = conn.createStatement();
+		try{
+			List<String> keys = report(stmt, Check.SEAT_COUNT,
+				"SELECT B.bid, 'status ' || B.status || ', seats ' || B.seats || ', held ' || count(S.ssid)\n" +
+				"FROM Bookings B LEFT JOIN ShowSeats S ON S.sdate = B.sdate AND S.bid = B.bid\n" +
+				"WHERE B.sdate = " + d + "\n" +
+				"GROUP BY B.bid, B.status, B.seats\n" +
+				"HAVING count(S.ssid) <> CASE WHEN B.status = '" + CANCELLED + "' THEN 0 ELSE B.seats END");
+			long repaired = 0;
+			if(repair && !keys.isEmpty()){
+				String bids = String.join(", ", keys);
+				// a Cancelled booking's seats are released; any other booking
+				// keeps the seats it holds
+				stmt.executeUpdate(
+					"UPDATE ShowSeats S SET bid = NULL FROM Bookings B\n" +
+					"WHERE S.sdate = " + d + " AND S.bid IN (" + bids + ") AND B.sdate = S.sdate AND B.bid = S.bid AND B.status = '" + CANCELLED + "'");
+				stmt.executeUpdate(
+					"UPDATE Bookings B SET seats = H.held, version = version + 1\n" +
+					"FROM (SELECT bid, count(*) AS held FROM ShowSeats WHERE sdate = " + d + " AND bid IN (" + bids + ") GROUP BY bid) H\n" +
+					"WHERE B.sdate = " + d + " AND B.bid = H.bid AND B.status <> '" + CANCELLED + "' AND B.seats <> H.held");
+				// a booking left holding no seat is not guessed at
+				repaired = keys.size() - count(stmt,
+					"SELECT count(*) FROM (SELECT B.bid FROM Bookings B LEFT JOIN ShowSeats S ON S.sdate = B.sdate AND S.bid = B.bid\n" +
+					"WHERE B.sdate = " + d + " AND B.bid IN (" + bids + ")\n" +
+					"GROUP BY B.bid, B.status, B.seats\n" +
+					"HAVING count(S.ssid) <> CASE WHEN B.status = '" + CANCELLED + "' THEN 0 ELSE B.seats END) X");
+			}
+			result.add(Check.SEAT_COUNT, keys.size(), repaired);
+
+			keys = report(stmt, Check.ORPHAN_SEAT,
+				"SELECT S.ssid, 'show ' || S.sid || ', booking ' || S.bid FROM ShowSeats S\n" +
+				"WHERE S.sdate = " + d + " AND S.bid IS NOT NULL\n" +
+				"AND NOT EXISTS (SELECT 1 FROM Bookings B WHERE B.sdate = S.sdate AND B.bid = S.bid)");
+			repaired = 0;
+			if(repair && !keys.isEmpty()){
+				repaired = stmt.executeUpdate(
+					"UPDATE ShowSeats S SET bid = NULL WHERE S.sdate = " + d + " AND S.ssid IN (" + String.join(", ", keys) + ")\n" +
+					"AND NOT EXISTS (SELECT 1 FROM Bookings B WHERE B.sdate = S.sdate AND B.bid = S.bid)");
+			}
+			result.add(Check.ORPHAN_SEAT, keys.size(), repaired);
+
+			keys = report(stmt, Check.PAID_WITHOUT_PAYMENT,
+				"SELECT B.bid, 'show ' || B.sid || ', ' || B.email FROM Bookings B\n" +
+				"WHERE B.sdate = " + d + " AND B.status = '" + PAID + "'\n" +
+				"AND NOT EXISTS (SELECT 1 FROM Payments P WHERE P.bid = B.bid)");
+			result.add(Check.PAID_WITHOUT_PAYMENT, keys.size(), 0);
+
+			keys = report(stmt, Check.SEAT_OUTSIDE_THEATER,
+				"SELECT S.ssid, 'show ' || S.sid || ', theater ' || C.tid || COALESCE(', booking ' || S.bid, '')\n" +
+				"FROM ShowSeats S, CinemaSeats C\n" +
+				"WHERE S.sdate = " + d + " AND C.csid = S.csid\n" +
+				"AND NOT EXISTS (SELECT 1 FROM Plays P WHERE P.sid = S.sid AND P.tid = C.tid)");
+			repaired = 0;
+			if(repair && !keys.isEmpty()){
+				repaired = stmt.executeUpdate(
+					"DELETE FROM ShowSeats S USING CinemaSeats C\n" +
+					"WHERE S.sdate = " + d + " AND S.ssid IN (" + String.join(", ", keys) + ") AND S.bid IS NULL AND C.csid = S.csid\n" +
+					"AND NOT EXISTS (SELECT 1 FROM Plays P WHERE P.sid = S.sid AND P.tid = C.tid)");
+			}
+			result.add(Check.SEAT_OUTSIDE_THEATER, keys.size(), repaired);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/* The payments with ids from..to whose booking does not exist. */
+	private void checkPayments(Connection conn, long from, long to, Result result) throws SQLException, IOException {
+		Statement stmt = conn.createStatement();
+		try{
+			List<String> keys = report(stmt, Check.ORPHAN_PAYMENT,
+				"SELECT P.pid, 'booking ' || P.bid || ', amount ' || P.amount FROM Payments P\n" +
+				"WHERE P.pid BETWEEN " + from + " AND " + to + "\n" +
+				"AND NOT EXISTS (SELECT 1 FROM Bookings B WHERE B.bid = P.bid)");
+			result.add(Check.ORPHAN_PAYMENT, keys.size(), 0);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/* Runs a check's query of (key, detail) rows, writes them and returns the keys. */
+	private List<String> report(Statement stmt, Check check, String query) throws SQLException, IOException {
+		List<String> keys = new ArrayList<String>();
+		StringBuilder lines = new StringBuilder();
+		ResultSet rs = stmt.executeQuery(query);
+		while(rs.next()){
+			keys.add(rs.getString(1));
+			lines.append(check.name().toLowerCase()).append('\t').append(rs.getString(1)).append('\t')
+				.append(rs.getString(2)).append('\n');
+		}
+		if(lines.length() > 0){
+			synchronized(anomalies){
+				anomalies.write(lines.toString());
+			}
+		}
+		return keys;
+	}
+
+	private static long count(Statement stmt, String query) throws SQLException {
+		ResultSet rs = stmt.executeQuery(query);
+		rs.next();
+		return rs.getLong(1);
+	}
+
+	/**
+	 * Nightly check: java ConsistencyChecker dbname port user [workers] [repair]
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if(args.length < 3 || args.length > 5 || (args.length == 5 && !args[4].equals("repair"))){
+			System.err.println("Usage: java [-classpath <classpath>] " + ConsistencyChecker.class.getName() +
+				" <dbname> <port> <user> [workers] [repair]");
+			return;
+		}
+		Ticketmaster esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			int workers = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), ResultRenderer.BUFFER);
+			Result result = new ConsistencyChecker(esql, args.length == 5, out).run(workers);
+			out.flush();
+			System.err.print(result);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+	}
+}//end ConsistencyChecker
@@ -0,0 +1,422 @@
+/*
+ * Append-only event log for Ticketmaster
+ * ======================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * This class is an append-only log of the domain events of the write
+ * paths, so caches and read models can follow the database incrementally.
+ *
+ * Events are fixed-size records in memory-mapped segment files of
+ * SEGMENT_RECORDS records each (events-00000000.log, ...), so an event's
+ * offset is simply its record number.  Each record starts with a CRC32 of
+ * the rest, written last, which marks where the log ends after a crash.
+ *
+ * A subscriber has a name and an offset, stored in NAME.offset next to the
+ * segments, so it resumes where it left off.  subscribe() delivers events
+ * in order on the subscriber's own daemon thread; poll() and commit() are
+ * for callers that pull.  One process writes the log at a time, enforced
+ * with a file lock.
+ *
+ * Events are published after their writes commit, so a read model built
+ * from a database snapshot cannot tell from an offset alone which events
+ * the snapshot reflects.  Write paths hold publishing() from before their
+ * commit until their events are appended, and cut() takes the snapshot
+ * while none is in between: the events before the offset it returns are
+ * all in the snapshot, and the ones after it are not.
+ *
+ */
+
+public class EventLog{
+	/** Directory of the log; -Dticketmaster.events.dir overrides. */
+	public static final String DEFAULT_DIR = System.getProperty("ticketmaster.events.dir", "events");
+
+	static final int RECORD = 48;
+	static final int SEGMENT_RECORDS = 1 << 20;
+
+	/** Event types, with what the fields of an Event mean for each. */
+	public enum Type{
+		BOOKING_CREATED,   // sid, bid, value = seats
+		SEAT_CLAIMED,      // sid, bid, ssid, value = price
+		SEAT_RELEASED,     // sid, bid, ssid, value = price
+		SHOW_REMOVED,      // sid
+		PAYMENT_REMOVED,   // sid, bid, value = amount
+		PAYMENT_RECORDED,  // sid, bid, value = amount
+		SEATS_REPRICED;    // sid, value = seats repriced
+	}//end Type
+
+	/** One logged event. */
+	public static final class Event{
+		public final long offset, time, sid, bid, ssid;
+		public final Type type;
+		public final double value;
+
+		Event(long offset, Type type, long time, long sid, long bid, long ssid, double value){
+			this.offset = offset;
+			this.type = type;
+			this.time = time;
+			this.sid = sid;
+			this.bid = bid;
+			this.ssid = ssid;
+			this.value = value;
+		}
+
+		@Override
+		public String toString(){
+			return offset + " " + type + " sid=" + sid + " bid=" + bid + " ssid=" + ssid + " value=" + value;
+		}
+	}//end Event
+
+	private final File dir;
+	private final FileChannel lockChannel;
+	private final FileLock lock;
+	private final Map<Long, MappedByteBuffer> segments = new HashMap<Long, MappedByteBuffer>();
+	private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	private final CRC32 crc = new CRC32();
+	private final ReentrantReadWriteLock fence = new ReentrantReadWriteLock();
+	private long end;
+	private boolean closed;
+
+	/**
+	 * Opens the log for writing, finding its end.
+	 *
+	 * @param dir directory of the segment files
+	 * @throws java.io.IOException when the directory cannot be used or
+	 *         another process is writing the log
+	 */
+	public EventLog(File dir) throws IOException {
+		this.dir = dir;
+		if(!dir.isDirectory() && !dir.mkdirs()){
+			throw new IOException("Unable to create " + dir);
+		}
+		lockChannel = new RandomAccessFile(new File(dir, "writer.lock"), "rw").getChannel();
+		FileLock l;
+		try{
+			l = lockChannel.tryLock();
+		}catch(OverlappingFileLockException e){
+			l = null;     // held by this JVM
+		}
+		lock = l;
+		if(lock == null){
+			lockChannel.close();
+			throw new IOException("Another process is writing the event log in " + dir);
+		}
+		long last = -1;
+		File[] files = dir.listFiles();
+		for(File f : files == null ? new File[0] : files){
+			String n = f.getName();
+			if(n.startsWith("events-") && n.endsWith(".log")){
+				last = Math.max(last, Long.parseLong(n.substring(7, n.length() - 4)));
+			}
+		}
+		if(last >= 0){
+			// the end is the first record that is missing or torn
+			end = last * SEGMENT_RECORDS;
+			while(end < (last + 1) * SEGMENT_RECORDS && read(end) != null) ++end;
+		}
+	}
+
+	/**
+	 * Opens a log in a fresh temporary directory, for a process that cannot
+	 * write the shared one but still wants its own subscribers served.
+	 *
+	 * @return the log
+	 * @throws java.io.IOException when the directory cannot be created
+	 */
+	public static EventLog temporary() throws IOException {
+		return new EventLog(Files.createTempDirectory("ticketmaster-events").toFile());
+	}
+
+	/** @return the directory of the segment files */
+	public File dir(){
+		return dir;
+	}
+
+	/** @return the offset the next event will get */
+	public synchronized long end(){
+		return end;
+	}
+
+	/**
+	 * @return the lock a write path holds from before its commit until its
+	 *         events are appended; many write paths hold it at once
+	 */
+	public Lock publishing(){
+		return fence.readLock();
+	}
+
+	/**
+	 * Takes the snapshot of a transaction at a point where no write path
+	 * is between its commit and its events.  The transaction must have
+	 * autocommit off, be REPEATABLE READ or SERIALIZABLE, and not have
+	 * run a statement yet.
+	 *
+	 * @param conn the transaction's connection
+	 * @return the offset of the first event the snapshot does not reflect
+	 * @throws java.sql.SQLException when the snapshot cannot be taken
+	 */
+	public long cut(Connection conn) throws SQLException {
+		fence.writeLock().lock();
+		try{
+			Statement stmt = conn.createStatement();
+			try{
+				// the first statement of the transaction takes its snapshot
+				stmt.executeQuery("SELECT 1").close();
+			}finally{
+				stmt.close();
+			}
+			return end();
+		}finally{
+			fence.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends an event and wakes the subscribers.
+	 *
+	 * @return the event's offset
+	 * @throws java.io.IOException when a new segment cannot be mapped
+	 */
+	public synchronized long append(Type type, long sid, long bid, long ssid, double value) throws IOException {
+		if(closed) throw new IOException("Event log is closed");
+		long offset = end;
+		ByteBuffer b = segment(offset / SEGMENT_RECORDS).duplicate();
+		int pos = (int)(offset % SEGMENT_RECORDS) * RECORD;
+		b.position(pos + 4);
+		b.put((byte)(type.ordinal() + 1)).put((byte)0).put((byte)0).put((byte)0);
+		b.putLong(System.currentTimeMillis()).putLong(sid).putLong(bid).putLong(ssid).putDouble(value);
+		crc.reset();
+		b.position(pos + 4);
+		b.limit(pos + RECORD);
+		crc.update(b);
+		b.limit(b.capacity());
+		b.putInt(pos, (int)crc.getValue());
+		end = offset + 1;
+		notifyAll();
+		return offset;
+	}
+
+	/** Appends an event, reporting rather than throwing a failure. */
+	public void publish(Type type, long sid, long bid, long ssid, double value){
+		try{
+			append(type, sid, bid, ssid, value);
+		}catch(IOException e){
+			System.err.println("Event log: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads events from an offset.
+	 *
+	 * @param from the first offset
+	 * @param max the most events returned
+	 * @return the events, empty when there are none yet
+	 * @throws java.io.IOException when a segment cannot be mapped
+	 */
+	public List<Event> read(long from, int max) throws IOException {
+		long to = Math.min(end(), from + max);
+		List<Event> events = new ArrayList<Event>();
+		for(long o = from; o < to; ++o){
+			Event e = read(o);
+			if(e == null) break;
+			events.add(e);
+		}
+		return events;
+	}
+
+	private synchronized Event read(long offset) throws IOException {
+		File f = segmentFile(offset / SEGMENT_RECORDS);
+		if(!segments.containsKey(offset / SEGMENT_RECORDS) && !f.exists()) return null;
+		ByteBuffer b = segment(offset / SEGMENT_RECORDS).duplicate();
+		int pos = (int)(offset % SEGMENT_RECORDS) * RECORD;
+		int type = b.get(pos + 4);
+		if(type <= 0 || type > Type.values().length) return null;
+		crc.reset();
+		b.position(pos + 4);
+		b.limit(pos + RECORD);
+		crc.update(b);
+		if((int)crc.getValue() != b.getInt(pos)) return null;
+		return new Event(offset, Type.values()[type - 1], b.getLong(pos + 8), b.getLong(pos + 16),
+			b.getLong(pos + 24), b.getLong(pos + 32), b.getDouble(pos + 40));
+	}
+
+	private File segmentFile(long segment){
+		return new File(dir, String.format("events-%08d.log", segment));
+	}
+
+	private MappedByteBuffer segment(long segment) throws IOException {
+		MappedByteBuffer b = segments.get(segment);
+		if(b == null){
+			RandomAccessFile f = new RandomAccessFile(segmentFile(segment), "rw");
+			try{
+				// mapping extends the file; the zero-filled tail reads as "no record"
+				b = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long)SEGMENT_RECORDS * RECORD);
+			}finally{
+				f.close();
+			}
+			segments.put(segment, b);
+		}
+		return b;
+	}
+
+	/** A named reader with a stored offset. */
+	public final class Subscriber{
+		private final String name;
+		private final File offsetFile;
+		private volatile long offset;
+		private Thread thread;
+
+		Subscriber(String name, long from) throws IOException {
+			this.name = name;
+			this.offsetFile = new File(dir, name + ".offset");
+			if(from >= 0){
+				offset = from;
+			}else if(offsetFile.exists()){
+				offset = Long.parseLong(new String(Files.readAllBytes(offsetFile.toPath()), "UTF-8").trim());
+			}
+		}
+
+		/** @return the offset of the next event this subscriber reads */
+		public long offset(){
+			return offset;
+		}
+
+		/**
+		 * @param max the most events returned
+		 * @return the next events, empty when there are none yet
+		 * @throws java.io.IOException when the log cannot be read
+		 */
+		public List<Event> poll(int max) throws IOException {
+			List<Event> events = read(offset, max);
+			if(!events.isEmpty()) offset = events.get(events.size() - 1).offset + 1;
+			return events;
+		}
+
+		/**
+		 * Stores the offset, so a restart resumes after the polled events.
+		 *
+		 * @throws java.io.IOException when the offset file cannot be written
+		 */
+		public void commit() throws IOException {
+			File tmp = new File(dir, name + ".offset.tmp");
+			Files.write(tmp.toPath(), Long.toString(offset).getBytes("UTF-8"));
+			if(!tmp.renameTo(offsetFile)){
+				offsetFile.delete();
+				if(!tmp.renameTo(offsetFile)) throw new IOException("Unable to write " + offsetFile);
+			}
+		}
+
+		private void deliver(Consumer<Event> handler){
+			while(true){
+				try{
+					List<Event> events;
+					synchronized(EventLog.this){
+						while(!closed && offset >= end) EventLog.this.wait();
+						if(closed) return;
+					}
+					events = poll(1024);
+					for(Event e : events){
+						try{
+							handler.accept(e);
+						}catch(RuntimeException ex){
+							System.err.println("Subscriber " + name + " failed on " + e + ": " + ex);
+						}
+					}
+					commit();
+				}catch(InterruptedException e){
+					return;
+				}catch(IOException e){
+					System.err.println("Subscriber " + name + ": " + e.getMessage());
+					return;
+				}
+			}
+		}
+	}//end Subscriber
+
+	/**
+	 * @param name the subscriber's name
+	 * @return a subscriber resuming from its stored offset, or from 0
+	 * @throws java.io.IOException when the stored offset cannot be read
+	 */
+	public Subscriber subscriber(String name) throws IOException {
+		return new Subscriber(name, -1);
+	}
+
+	/**
+	 * Delivers every event from an offset on to a handler, in order, on a
+	 * daemon thread of its own.
+	 *
+	 * @param name the subscriber's name
+	 * @param from the first offset, or -1 to resume from the stored offset
+	 * @param handler called once per event
+	 * @return the subscriber
+	 * @throws java.io.IOException when the stored offset cannot be read
+	 */
+	public Subscriber subscribe(String name, long from, Consumer<Event> handler) throws IOException {
+		final Subscriber s = new Subscriber(name, from);
+		s.thread = new Thread(() -> s.deliver(handler), "events-" + name);
+		s.thread.setDaemon(true);
+		synchronized(this){
+			subscribers.add(s);
+		}
+		s.thread.start();
+		return s;
+	}
+
+	/** Stops the subscribers after their current event and releases the log. */
+	public void close(){
+		List<Subscriber> running;
+		synchronized(this){
+			if(closed) return;
+			closed = true;
+			notifyAll();
+			running = new ArrayList<Subscriber>(subscribers);
+		}
+		for(Subscriber s : running){
+			try{
+				s.thread.join(5000);
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized(this){
+			for(MappedByteBuffer b : segments.values()) b.force();
+			segments.clear();
+		}
+		try{
+			lock.release();
+			lockChannel.close();
+		}catch(IOException e){
+			// ignored.
+		}
+	}
+}//end EventLog
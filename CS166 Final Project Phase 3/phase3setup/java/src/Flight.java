@@ -0,0 +1,244 @@
+/*
+ * Flight recorder events for Ticketmaster
+ * =======================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.time.Duration;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * This class declares the Java Flight Recorder events Ticketmaster emits,
+ * and starts a continuous recording of them.
+ *
+ *   ticketmaster.Operation   one menu operation
+ *   ticketmaster.Sql         one statement run through the execute methods
+ *   ticketmaster.Cache       one seat map, shard location or id block lookup
+ *   ticketmaster.Admission   one wait in the waiting room
+ *
+ * The events are only built when a recording has them enabled: callers
+ * begin() and end() an event, and fill in and commit() its fields only if
+ * shouldCommit(), which the JIT folds to false when no recording wants
+ * it, so a disabled event costs next to nothing.  Anything expensive,
+ * such as a statement's id, is computed inside that test.
+ *
+ * -Dticketmaster.jfr=<dir> starts a recording named "ticketmaster" at
+ * startup, with the JDK's default settings plus these events, kept on
+ * disk for MAX_AGE or up to MAX_SIZE, whichever is less.  It is written
+ * to <dir> when the JVM exits, and can be dumped at any time with
+ *   jcmd <pid> JFR.dump name=ticketmaster filename=<file>
+ * so a latency spike can be looked at after the fact.  Statements,
+ * lookups and waits shorter than -Dticketmaster.jfr.threshold (ms,
+ * default 1) are left out of it; operations are always kept.
+ *
+ */
+
+public final class Flight{
+	/** Directory of the continuous recording, or null for none; -Dticketmaster.jfr. */
+	public static final String DIRECTORY = System.getProperty("ticketmaster.jfr");
+	/** How long the recording keeps events, in minutes; -Dticketmaster.jfr.maxage overrides. */
+	public static final Duration MAX_AGE = Duration.ofMinutes(Long.getLong("ticketmaster.jfr.maxage", 30));
+	/** How much of the recording is kept on disk, in MB; -Dticketmaster.jfr.maxsize overrides. */
+	public static final long MAX_SIZE = Long.getLong("ticketmaster.jfr.maxsize", 256) << 20;
+	/** Events shorter than this are not recorded, in ms; -Dticketmaster.jfr.threshold overrides. */
+	public static final long THRESHOLD_MILLIS = Long.getLong("ticketmaster.jfr.threshold", 1);
+
+	static final int SQL_TEXT = 512;
+
+	private static Recording recording;
+
+	private Flight(){
+	}
+
+	@Name("ticketmaster.Operation")
+	@Label("Menu Operation")
+	@Category("Ticketmaster")
+	@StackTrace(false)
+	static final class Operation extends Event{
+		@Label("Operation")
+		String operation;
+
+		@Label("Kind")
+		String kind;
+
+		@Label("Failed")
+		boolean failed;
+	}//end Operation
+
+	@Name("ticketmaster.Sql")
+	@Label("SQL Statement")
+	@Category("Ticketmaster")
+	static final class Sql extends Event{
+		@Label("Operation")
+		String operation;
+
+		@Label("Statement Id")
+		@Description("Hash of the statement with its literals taken out; equal for the same query shape")
+		String statementId;
+
+		@Label("SQL")
+		String sql;
+
+		@Label("Rows")
+		@Description("Rows returned or changed, or -1")
+		long rows;
+
+		@Label("Connection Wait")
+		@Description("Time to get a statement with its timeout set, before the SQL ran")
+		@Timespan(Timespan.NANOSECONDS)
+		long connectionWait;
+
+		@Label("SQL State")
+		String sqlState;
+	}//end Sql
+
+	@Name("ticketmaster.Cache")
+	@Label("Cache Lookup")
+	@Category("Ticketmaster")
+	@StackTrace(false)
+	static final class Cache extends Event{
+		@Label("Cache")
+		String cache;
+
+		@Label("Key")
+		String key;
+
+		@Label("Hit")
+		boolean hit;
+	}//end Cache
+
+	@Name("ticketmaster.Admission")
+	@Label("Waiting Room Admission")
+	@Category("Ticketmaster")
+	@StackTrace(false)
+	static final class Admission extends Event{
+		@Label("Show")
+		long sid;
+
+		@Label("Position")
+		@Description("Place in line when the wait started")
+		int position;
+
+		@Label("Admitted")
+		boolean admitted;
+	}//end Admission
+
+	/**
+	 * Shape of a statement: its text with string and number literals
+	 * replaced, hashed, so the same query for other values has the same id.
+	 *
+	 * @param sql the statement
+	 * @return its id, 16 hex digits
+	 */
+	static String statementId(String sql){
+		long h = 0xcbf29ce484222325L;
+		int n = sql.length();
+		for(int i = 0; i < n; ++i){
+			char c = sql.charAt(i);
+			if(c == '\''){
+				while(++i < n && (sql.charAt(i) != '\'' || i + 1 < n && sql.charAt(i + 1) == '\'')){
+					if(sql.charAt(i) == '\'') ++i;   // '' is a quote inside the literal
+				}
+				c = '?';
+			}else if(Character.isDigit(c) && (i == 0 || !isWord(sql.charAt(i - 1)))){
+				while(i + 1 < n && (Character.isDigit(sql.charAt(i + 1)) || sql.charAt(i + 1) == '.')) ++i;
+				c = '?';
+			}
+			h = (h ^ c) * 0x100000001b3L;
+		}
+		return String.format("%016x", h);
+	}
+
+	private static boolean isWord(char c){
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+
+	/**
+	 * Commits a cache lookup begun earlier, if it is recorded.
+	 *
+	 * @param event the event
+	 * @param cache which cache
+	 * @param key what was looked up
+	 * @param hit whether it was there
+	 */
+	static void lookup(Cache event, String cache, Object key, boolean hit){
+		event.end();
+		if(!event.shouldCommit()) return;
+		event.cache = cache;
+		event.key = String.valueOf(key);
+		event.hit = hit;
+		event.commit();
+	}
+
+	/** @return the statement, cut to SQL_TEXT characters */
+	static String text(String sql){
+		return sql.length() <= SQL_TEXT ? sql : sql.substring(0, SQL_TEXT) + "...";
+	}
+
+	/**
+	 * Starts the continuous recording when -Dticketmaster.jfr is set.
+	 *
+	 * @return whether a recording is running
+	 * @throws java.io.IOException when the directory cannot be created
+	 */
+	public static synchronized boolean startContinuous() throws IOException {
+		if(recording != null) return true;
+		if(DIRECTORY == null || DIRECTORY.isEmpty()) return false;
+		Path dir = Paths.get(DIRECTORY);
+		Files.createDirectories(dir);
+		Configuration settings;
+		try{
+			settings = Configuration.getConfiguration("default");
+		}catch(ParseException e){
+			throw new IOException("Unable to read the default JFR settings: " + e.getMessage(), e);
+		}
+		Recording r = new Recording(settings);
+		r.setName("ticketmaster");
+		r.enable(Operation.class).withThreshold(Duration.ZERO);
+		Duration threshold = Duration.ofMillis(THRESHOLD_MILLIS);
+		r.enable(Sql.class).withThreshold(threshold).withStackTrace();
+		r.enable(Cache.class).withThreshold(threshold);
+		r.enable(Admission.class).withThreshold(threshold);
+		r.setToDisk(true);
+		r.setMaxAge(MAX_AGE);
+		r.setMaxSize(MAX_SIZE);
+		r.setDumpOnExit(true);
+		r.setDestination(dir.resolve("ticketmaster-" + ProcessHandle.current().pid() + ".jfr"));
+		r.start();
+		recording = r;
+		return true;
+	}
+
+	/**
+	 * Writes what the continuous recording holds now.
+	 *
+	 * @param file the file
+	 * @throws java.io.IOException when it cannot be written
+	 * @throws java.lang.IllegalStateException when no recording is running
+	 */
+	public static synchronized void dump(Path file) throws IOException {
+		if(recording == null) throw new IllegalStateException("No flight recording is running");
+		recording.dump(file);
+	}
+}//end Flight
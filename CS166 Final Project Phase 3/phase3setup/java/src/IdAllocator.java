@@ -0,0 +1,223 @@
+/*
+ * Hi/lo ID allocation for Ticketmaster
+ * ====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class hands out primary keys from the Postgres sequences defined
+ * in create.sql.  Those sequences step by INCREMENT BY, so one nextval
+ * reserves a whole block of ids for this client (hi), which are then
+ * assigned locally (lo) without another round trip.  Ids are unique across
+ * clients but not gap-free: a block that is not used up before the client
+ * exits is simply skipped.
+ *
+ */
+
+public class IdAllocator{
+	public static final String MOVIES = "movies_mvid_seq";
+	public static final String SHOWS = "shows_sid_seq";
+	public static final String BOOKINGS = "bookings_bid_seq";
+	public static final String PAYMENTS = "payments_pid_seq";
+	public static final String SHOW_SEATS = "showseats_ssid_seq";
+
+	/* The unused part of one reserved block. */
+	private static final class Block{
+		long next, end;
+		int size;
+	}//end Block
+
+	private final Ticketmaster esql;
+	private final Map<String, Block> blocks = new ConcurrentHashMap<String, Block>();
+	private final AtomicLong roundTrips = new AtomicLong();
+
+	public IdAllocator(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Returns the next id of a sequence, going to the database only when
+	 * the current block is used up.
+	 *
+	 * @param sequence one of the sequence name constants
+	 * @return a new, unique id
+	 * @throws java.sql.SQLException when a new block cannot be reserved
+	 */
+	public long next(String sequence) throws SQLException {
+		Block b = block(sequence);
+		Flight.Cache event = new Flight.Cache();
+		event.begin();
+		synchronized(b){
+			boolean hit = b.next != b.end;
+			if(!hit){
+				long start = nextval(sequence);
+				b.next = start;
+				b.end = start + b.size;
+			}
+			Flight.lookup(event, "id-block", sequence, hit);
+			return b.next++;
+		}
+	}
+
+	/**
+	 * Reserves enough whole blocks for count ids in one round trip, for
+	 * set-based inserts that number their rows themselves.  Block i covers
+	 * ids starts[i] .. starts[i] + blockSize(sequence) - 1.
+	 *
+	 * @param sequence one of the sequence name constants
+	 * @param count number of ids needed
+	 * @return the first id of every reserved block
+	 * @throws java.sql.SQLException when the blocks cannot be reserved
+	 */
+	public long[] reserve(String sequence, long count) throws SQLException {
+		int size = block(sequence).size;
+		long n = (count + size - 1) / size;
+		long[] starts = new long[(int)n];
+		if(n == 0) return starts;
+		Connection conn = esql.getConnection();
+		synchronized(conn){
+			Statement stmt = conn.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(String.format(
+					"SELECT nextval('%s') FROM generate_series(1, %d)", sequence, n));
+				for(int i = 0; rs.next(); ++i) starts[i] = rs.getLong(1);
+			}finally{
+				stmt.close();
+			}
+		}
+		roundTrips.incrementAndGet();
+		return starts;
+	}
+
+	/**
+	 * @param sequence one of the sequence name constants
+	 * @return the number of ids in one block of the sequence
+	 * @throws java.sql.SQLException when the sequence cannot be read
+	 */
+	public int blockSize(String sequence) throws SQLException {
+		return block(sequence).size;
+	}
+
+	/** @return database round trips made to reserve blocks */
+	public long roundTrips(){
+		return roundTrips.get();
+	}
+
+	private Block block(String sequence) throws SQLException {
+		Block b = blocks.get(sequence);
+		if(b == null){
+			b = new Block();
+			Connection conn = esql.getConnection();
+			synchronized(conn){
+				Statement stmt = conn.createStatement();
+				try{
+					ResultSet rs = stmt.executeQuery(String.format(
+						"SELECT increment_by FROM pg_sequences WHERE sequencename = '%s'", sequence));
+					if(!rs.next()) throw new SQLException("No sequence " + sequence);
+					b.size = (int)rs.getLong(1);
+				}finally{
+					stmt.close();
+				}
+			}
+			Block prev = blocks.putIfAbsent(sequence, b);
+			if(prev != null) b = prev;
+		}
+		return b;
+	}
+
+	private long nextval(String sequence) throws SQLException {
+		Connection conn = esql.getConnection();
+		synchronized(conn){
+			Statement stmt = conn.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(String.format("SELECT nextval('%s')", sequence));
+				rs.next();
+				roundTrips.incrementAndGet();
+				return rs.getLong(1);
+			}finally{
+				stmt.close();
+			}
+		}
+	}
+
+	/**
+	 * Benchmark: java IdAllocator dbname port user [idsPerWriter]
+	 *
+	 * For 1 to 16 writers, each with its own connection, compares one
+	 * nextval round trip per id against hi/lo blocks of 100, on a scratch
+	 * sequence that is dropped afterwards.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + IdAllocator.class.getName() +
+				" <dbname> <port> <user> [idsPerWriter]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		final int ids = args.length > 3 ? Integer.parseInt(args[3]) : 20000;
+		final int maxWriters = 16;
+		List<Ticketmaster> clients = new ArrayList<Ticketmaster>();
+		for(int i = 0; i < maxWriters; ++i){
+			clients.add(new Ticketmaster(args[0], args[1], args[2], ""));
+		}
+		Ticketmaster admin = clients.get(0);
+		try{
+			System.out.println("writers\tmode\tids/s\tround trips");
+			for(int writers = 1; writers <= maxWriters; writers *= 2){
+				for(final int block : new int[]{ 1, 100 }){
+					admin.executeUpdate("DROP SEQUENCE IF EXISTS idalloc_bench_seq");
+					admin.executeUpdate("CREATE SEQUENCE idalloc_bench_seq INCREMENT BY " + block);
+					final List<IdAllocator> allocators = new ArrayList<IdAllocator>();
+					for(int w = 0; w < writers; ++w){
+						allocators.add(new IdAllocator(clients.get(w)));
+						allocators.get(w).block("idalloc_bench_seq");
+					}
+					final CountDownLatch done = new CountDownLatch(writers);
+					final AtomicLong failures = new AtomicLong();
+					long start = System.nanoTime();
+					for(int w = 0; w < writers; ++w){
+						final IdAllocator a = allocators.get(w);
+						new Thread(() -> {
+							try{
+								for(int i = 0; i < ids; ++i) a.next("idalloc_bench_seq");
+							}catch(SQLException e){
+								failures.incrementAndGet();
+							}finally{
+								done.countDown();
+							}
+						}).start();
+					}
+					done.await();
+					double secs = (System.nanoTime() - start) / 1e9;
+					long trips = 0;
+					for(IdAllocator a : allocators) trips += a.roundTrips();
+					System.out.printf("%d\t%s\t%.0f\t%d%s%n", writers, block == 1 ? "nextval" : "hi/lo",
+						writers * (double)ids / secs, trips, failures.get() > 0 ? "\t(" + failures.get() + " failed)" : "");
+				}
+			}
+			admin.executeUpdate("DROP SEQUENCE IF EXISTS idalloc_bench_seq");
+		}finally{
+			for(Ticketmaster t : clients) t.cleanup();
+		}
+	}
+}//end IdAllocator
@@ -0,0 +1,203 @@
+/*
+ * Partition retention job for Ticketmaster
+ * ========================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class maintains the monthly partitions of Bookings and ShowSeats
+ * created by create.sql.  It keeps partitions ahead of the schedule, and
+ * retires whole months older than the retention window: each month is
+ * optionally exported as ColdArchive files while still attached, then
+ * detached from both parents, its Payments are deleted, and the detached
+ * tables are dropped.  Retiring a month costs a catalog change instead of
+ * one DELETE per row.  During the export only writes to that month wait;
+ * the parents are locked just for the detach, delete and drop.  Exports
+ * in the archive directory the menu reads (ColdArchive.DEFAULT_DIR) stay
+ * in the users' booking history.
+ *
+ */
+
+public class PartitionMaintenance{
+	private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMM");
+
+	private final Ticketmaster esql;
+
+	public PartitionMaintenance(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Creates any missing monthly partitions from the current month through
+	 * monthsAhead months from now.
+	 *
+	 * @param monthsAhead how far ahead of today partitions must exist
+	 * @return the number of partitions created
+	 * @throws java.sql.SQLException when the function call fails
+	 */
+	public int ensurePartitions(int monthsAhead) throws SQLException {
+		Statement stmt = esql.getConnection().createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(String.format(
+				"SELECT create_show_partitions(current_date, (current_date + INTERVAL '%d months')::DATE)", monthsAhead));
+			return rs.next() ? rs.getInt(1) : 0;
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Lists the months whose Bookings partition lies entirely before the
+	 * cutoff date, oldest first.
+	 *
+	 * @param cutoff first show date that must be kept
+	 * @return the months that can be retired
+	 * @throws java.sql.SQLException when the catalog query fails
+	 */
+	public List<YearMonth> monthsBefore(LocalDate cutoff) throws SQLException {
+		List<YearMonth> months = new ArrayList<YearMonth>();
+		Statement stmt = esql.getConnection().createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery(
+				"SELECT substr(c.relname, 11)\n" +
+				"FROM pg_inherits i, pg_class c\n" +
+				"WHERE i.inhparent = 'bookings'::regclass AND c.oid = i.inhrelid AND c.relname ~ '^bookings_p[0-9]{6}$'\n" +
+				"ORDER BY 1;");
+			while(rs.next()){
+				YearMonth m = YearMonth.parse(rs.getString(1), SUFFIX);
+				if(!m.plusMonths(1).atDay(1).isAfter(cutoff)){
+					months.add(m);
+				}
+			}
+		}finally{
+			stmt.close();
+		}
+		return months;
+	}
+
+	/**
+	 * Retires one month of Bookings, ShowSeats and their Payments in a
+	 * single transaction.  The month's partitions are locked against writes
+	 * and exported while still attached, so readers of Bookings and
+	 * ShowSeats go on; the parents are only locked from the detach to the
+	 * commit.  A past month is not normally written to, so a write to it
+	 * queued behind the export can deadlock with the detach; the retire then
+	 * fails and is retried on the next run.
+	 *
+	 * @param month the month to retire
+	 * @param archiveDir directory for the ColdArchive files, or null to drop without archiving
+	 * @throws java.sql.SQLException when a statement fails or a payment of the month was
+	 *         added during the export; nothing is changed in that case
+	 * @throws java.io.IOException when an export cannot be written
+	 */
+	public void retireMonth(YearMonth month, File archiveDir) throws SQLException, IOException {
+		String suffix = month.format(SUFFIX);
+		String bookings = "bookings_p" + suffix;
+		String showSeats = "showseats_p" + suffix;
+		Connection conn = esql.getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		File[] exports = null;
+		Statement stmt = conn.createStatement();
+		try{
+			conn.setAutoCommit(false);
+			// only the month's own writes wait on the export, not the parents
+			stmt.executeUpdate("LOCK TABLE " + bookings + ", " + showSeats + " IN SHARE MODE");
+			stmt.executeUpdate("CREATE TEMP TABLE retire_payments ON COMMIT DROP AS SELECT pid FROM Payments WHERE FALSE");
+			stmt.executeUpdate("INSERT INTO retire_payments SELECT pid FROM Payments WHERE bid IN (SELECT bid FROM " + bookings + ") FOR UPDATE");
+			if(archiveDir != null){
+				exports = new ColdArchive(esql, archiveDir).exportPartitions(conn, "p" + suffix, bookings, "retire_payments", showSeats);
+			}
+			// the catalog change and deletes are short; the parents are locked from here
+			stmt.executeUpdate("ALTER TABLE Bookings DETACH PARTITION " + bookings);
+			stmt.executeUpdate("ALTER TABLE ShowSeats DETACH PARTITION " + showSeats);
+			stmt.executeUpdate("DELETE FROM Payments P USING retire_payments K WHERE P.pid = K.pid");
+			ResultSet rs = stmt.executeQuery("SELECT count(*) FROM Payments WHERE bid IN (SELECT bid FROM " + bookings + ")");
+			if(rs.next() && rs.getLong(1) > 0){
+				throw new SQLException("Payments of " + month + " were added while it was exported; run again");
+			}
+			stmt.executeUpdate("DROP TABLE " + bookings);
+			stmt.executeUpdate("DROP TABLE " + showSeats);
+			conn.commit();
+		}catch(SQLException | IOException e){
+			conn.rollback();
+			if(exports != null) for(File f : exports) f.delete();
+			throw e;
+		}finally{
+			stmt.close();
+			conn.setAutoCommit(autoCommit);
+		}
+		// exports only become visible once the rows are really gone
+		if(exports != null) ColdArchive.keep(exports);
+	}
+
+	/**
+	 * Runs the retention job: creates upcoming partitions, then retires
+	 * every month that ended before the retention window.
+	 *
+	 * @param retainMonths number of past months to keep online
+	 * @param monthsAhead how far ahead of today partitions must exist
+	 * @param archiveDir directory for the ColdArchive files, or null to drop without archiving
+	 * @throws java.sql.SQLException when a statement fails
+	 * @throws java.io.IOException when an export cannot be written
+	 */
+	public void run(int retainMonths, int monthsAhead, File archiveDir) throws SQLException, IOException {
+		int created = ensurePartitions(monthsAhead);
+		System.out.println("Created " + created + " partitions");
+		LocalDate cutoff = YearMonth.now().minusMonths(retainMonths).atDay(1);
+		for(YearMonth m : monthsBefore(cutoff)){
+			System.out.print("Retiring " + m + "...");
+			retireMonth(m, archiveDir);
+			System.out.println("Done");
+		}
+	}
+
+	/**
+	 * Entry point for cron: java PartitionMaintenance dbname port user
+	 * retainMonths [archiveDir]
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if(args.length < 4 || args.length > 5){
+			System.err.println(
+				"Usage: java [-classpath <classpath>] " + PartitionMaintenance.class.getName() +
+				" <dbname> <port> <user> <retainMonths> [archiveDir]");
+			return;
+		}
+		Ticketmaster esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			int retainMonths = Integer.parseInt(args[3]);
+			File archiveDir = args.length == 5 ? new File(args[4]) : null;
+			if(archiveDir != null && !archiveDir.isDirectory() && !archiveDir.mkdirs()){
+				System.err.println("Unable to create " + archiveDir);
+				return;
+			}
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			new PartitionMaintenance(esql).run(retainMonths, 3, archiveDir);
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+	}
+}//end PartitionMaintenance
@@ -0,0 +1,512 @@
+/*
+ * Payment settlement for Ticketmaster
+ * ===================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class records payment confirmations and marks their bookings Paid.
+ *
+ * A confirmation names the gateway's transaction id (trid), the booking,
+ * the method, the amount and when it was paid.  Gateways deliver at least
+ * once, so the same confirmation may arrive many times; each is settled
+ * once and every copy gets the same Outcome.  Copies still queued share one
+ * future, copies of recently settled ones are answered from memory, and
+ * older ones are recognised by the database: UNIQUE(bid) lets a booking
+ * have only one payment, and a payment whose trid is the confirmation's
+ * means it was already recorded.
+ *
+ * Confirmations wait in a bounded queue for the settlement thread, which
+ * takes up to BATCH of them, or what arrived within LINGER_MILLIS of the
+ * first, and settles them in one transaction on its own connection: one
+ * COPY into a temp table, one statement that locks the Pending bookings,
+ * inserts their payments and marks them Paid, and one query that explains
+ * the rest.  Each payment recorded is published to the event log after
+ * the commit, so the sales analytics count its revenue.  A full queue makes submit() wait, so latency stays bounded
+ * instead of the queue growing without end.
+ *
+ * Gateway stands in for a payment provider: it writes settlement files
+ * of confirmations for Pending bookings, with replays and conflicting
+ * second payments mixed in, for ingest() to read.
+ *
+ */
+
+public class PaymentSettlement{
+	static final int BATCH = 500;
+	static final long LINGER_MILLIS = 5;
+	static final int QUEUE = 10000;
+	// outcomes of recently settled trids answered without the database
+	static final int RECENT = 100000;
+	private static final int RETRIES = 3;
+
+	/** What became of a confirmation. */
+	public enum Outcome{
+		SETTLED,        // the payment was recorded and the booking is Paid
+		DUPLICATE,      // this trid was recorded before
+		ALREADY_PAID,   // the booking has a payment with another trid
+		NOT_PENDING     // no such booking, or it was cancelled
+	}//end Outcome
+
+	/** One payment confirmation from the gateway. */
+	public static final class Confirmation{
+		public final long trid, bid;
+		public final String pmethod;
+		public final double amount;
+		public final Timestamp paidAt;
+
+		public Confirmation(long trid, long bid, String pmethod, double amount, Timestamp paidAt){
+			this.trid = trid;
+			this.bid = bid;
+			this.pmethod = pmethod;
+			this.amount = amount;
+			this.paidAt = paidAt;
+		}
+
+		/**
+		 * @param line trid,bid,pmethod,amount,paid_at as a settlement file has it
+		 * @return the confirmation
+		 * @throws java.lang.IllegalArgumentException when the line is malformed
+		 */
+		public static Confirmation parse(String line){
+			String[] f = line.split(",", -1);
+			if(f.length != 5) throw new IllegalArgumentException("Expected trid,bid,pmethod,amount,paid_at: " + line);
+			return new Confirmation(Long.parseLong(f[0].trim()), Long.parseLong(f[1].trim()), f[2].trim(),
+				Double.parseDouble(f[3].trim()), Timestamp.valueOf(f[4].trim()));
+		}
+
+		@Override
+		public String toString(){
+			return trid + "," + bid + "," + pmethod + "," + amount + "," + paidAt;
+		}
+	}//end Confirmation
+
+	/* A queued confirmation and who is waiting for it. */
+	private static final class Pending{
+		final Confirmation c;
+		final CompletableFuture<Outcome> outcome = new CompletableFuture<Outcome>();
+
+		Pending(Confirmation c){
+			this.c = c;
+		}
+	}//end Pending
+
+	/** What an ingest did. */
+	public static final class Report{
+		final Map<Outcome, Long> outcomes = new EnumMap<Outcome, Long>(Outcome.class);
+		long failed, millis;
+		long[] latencies = new long[0];
+
+		/** @return how many confirmations ended in an outcome */
+		public long count(Outcome o){
+			Long n = outcomes.get(o);
+			return n == null ? 0 : n;
+		}
+
+		private double percentileMillis(double p){
+			if(latencies.length == 0) return 0;
+			return latencies[(int)Math.ceil(latencies.length * p) - 1] / 1e6;
+		}
+
+		@Override
+		public String toString(){
+			long total = failed;
+			for(long n : outcomes.values()) total += n;
+			StringBuilder sb = new StringBuilder();
+			sb.append("Ingested ").append(total).append(" confirmations in ").append(millis).append(" ms (")
+				.append(total * 1000 / Math.max(1, millis)).append("/s)\n");
+			for(Outcome o : Outcome.values()) sb.append(o.name().toLowerCase()).append('\t').append(count(o)).append('\n');
+			sb.append("failed\t").append(failed).append('\n');
+			sb.append(String.format("latency p50 %.1f ms, p99 %.1f ms%n", percentileMillis(0.5), percentileMillis(0.99)));
+			return sb.toString();
+		}
+	}//end Report
+
+	private final Ticketmaster esql;
+	private final Connection conn;
+	private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<Pending>(QUEUE);
+	private final Map<Long, Pending> queued = new ConcurrentHashMap<Long, Pending>();
+	private final Map<Long, Outcome> recent = Collections.synchronizedMap(new LinkedHashMap<Long, Outcome>(){
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Outcome> eldest){
+			return size() > RECENT;
+		}
+	});
+	private Thread settler;
+	private volatile boolean running;
+
+	/**
+	 * @param esql the client whose ids and booking expiry are used
+	 * @param conn a connection for the settlement thread alone; closed by stop()
+	 */
+	public PaymentSettlement(Ticketmaster esql, Connection conn){
+		this.esql = esql;
+		this.conn = conn;
+	}
+
+	/**
+	 * Starts the settlement thread.
+	 *
+	 * @throws java.sql.SQLException when the temp table cannot be created
+	 */
+	public synchronized void start() throws SQLException {
+		if(settler != null) return;
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS incoming (trid BIGINT, bid BIGINT, pid BIGINT, " +
+				"pmethod VARCHAR(32), pdatetime TIMESTAMPTZ, amount REAL) ON COMMIT DELETE ROWS");
+		}finally{
+			stmt.close();
+		}
+		running = true;
+		settler = new Thread(this::settleLoop, "payment-settlement");
+		settler.setDaemon(true);
+		settler.start();
+	}
+
+	/** Settles what is queued, stops the thread and closes its connection. */
+	public synchronized void stop(){
+		if(settler != null){
+			running = false;
+			try{
+				settler.join();
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+			}
+			settler = null;
+		}
+		try{
+			conn.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Queues a confirmation, waiting while the queue is full.
+	 *
+	 * @param c the confirmation
+	 * @return its outcome, once settled
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public CompletableFuture<Outcome> submit(Confirmation c) throws InterruptedException {
+		Outcome known = recent.get(c.trid);
+		if(known != null) return CompletableFuture.completedFuture(known == Outcome.SETTLED ? Outcome.DUPLICATE : known);
+		Pending p = new Pending(c);
+		Pending first = queued.putIfAbsent(c.trid, p);
+		if(first != null) return first.outcome.thenApply(o -> o == Outcome.SETTLED ? Outcome.DUPLICATE : o);
+		if(!running){
+			queued.remove(c.trid);
+			throw new IllegalStateException("Payment settlement is not running");
+		}
+		queue.put(p);
+		return p.outcome;
+	}
+
+	private void settleLoop(){
+		List<Pending> batch = new ArrayList<Pending>(BATCH);
+		while(running || !queue.isEmpty()){
+			try{
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+				if(first == null) continue;
+				batch.add(first);
+				long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS);
+				while(batch.size() < BATCH){
+					queue.drainTo(batch, BATCH - batch.size());
+					long left = until - System.nanoTime();
+					if(batch.size() >= BATCH || left <= 0) break;
+					Pending next = queue.poll(left, TimeUnit.NANOSECONDS);
+					if(next != null) batch.add(next);
+				}
+			}catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				running = false;
+			}
+			if(!batch.isEmpty()) settle(batch);
+			batch.clear();
+		}
+	}
+
+	/* Settles a batch, retrying when it collides with a concurrent cancel. */
+	private void settle(List<Pending> batch){
+		SQLException last = null;
+		for(int attempt = 0; attempt < RETRIES; ++attempt){
+			try{
+				Map<Long, Outcome> outcomes = settleOnce(batch);
+				for(Pending p : batch){
+					Outcome o = outcomes.get(p.c.trid);
+					if(o == Outcome.SETTLED && esql.getExpiry() != null) esql.getExpiry().forget(p.c.bid);
+					recent.put(p.c.trid, o);
+					queued.remove(p.c.trid);
+					p.outcome.complete(o);
+				}
+				return;
+			}catch(SQLException e){
+				last = e;
+			}
+		}
+		for(Pending p : batch){
+			queued.remove(p.c.trid);
+			p.outcome.completeExceptionally(last);
+		}
+	}
+
+	private Map<Long, Outcome> settleOnce(List<Pending> batch) throws SQLException {
+		StringBuilder rows = new StringBuilder();
+		for(Pending p : batch){
+			Confirmation c = p.c;
+			rows.append(c.trid).append('\t').append(c.bid).append('\t').append(esql.getIds().next(IdAllocator.PAYMENTS))
+				.append('\t').append(escape(c.pmethod)).append('\t').append(c.paidAt).append('\t').append((float)c.amount).append('\n');
+		}
+		Map<Long, Outcome> outcomes = new HashMap<Long, Outcome>();
+		List<Object[]> paid = new ArrayList<Object[]>();
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		try{
+			conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+				"COPY incoming (trid, bid, pid, pmethod, pdatetime, amount) FROM STDIN", new StringReader(rows.toString()));
+			// the bookings are locked first, so a cancel cannot slip between
+			// the payment and the status change; a second trid for the same
+			// booking in this batch loses to UNIQUE(bid)
+			ResultSet rs = stmt.executeQuery(
+				"WITH locked AS (\n" +
+				"  SELECT B.bid, B.sdate FROM Bookings B WHERE B.status = '" + BookingStates.Status.PENDING.label + "'\n" +
+				"    AND B.bid IN (SELECT bid FROM incoming) FOR UPDATE),\n" +
+				"paid AS (\n" +
+				"  INSERT INTO Payments (pid, bid, pmethod, pdatetime, amount, trid)\n" +
+				"  SELECT I.pid, I.bid, I.pmethod, I.pdatetime, I.amount, I.trid FROM incoming I, locked L WHERE I.bid = L.bid\n" +
+				"  ON CONFLICT (bid) DO NOTHING RETURNING bid, trid, amount)\n" +
+				"UPDATE Bookings B SET status = '" + BookingStates.Status.PAID.label + "', version = version + 1\n" +
+				"FROM locked L, paid P WHERE B.bid = L.bid AND B.sdate = L.sdate AND P.bid = L.bid\n" +
+				"RETURNING P.trid, B.sid, B.bid, P.amount");
+			while(rs.next()){
+				outcomes.put(rs.getLong(1), Outcome.SETTLED);
+				paid.add(new Object[]{ rs.getLong(2), rs.getLong(3), rs.getDouble(4) });
+			}
+			rs = stmt.executeQuery(
+				"SELECT I.trid, P.trid, B.status FROM incoming I\n" +
+				"LEFT JOIN Payments P ON P.bid = I.bid LEFT JOIN Bookings B ON B.bid = I.bid");
+			while(rs.next()){
+				long trid = rs.getLong(1);
+				if(outcomes.containsKey(trid)) continue;
+				long paidBy = rs.getLong(2);
+				if(!rs.wasNull()){
+					outcomes.put(trid, paidBy == trid ? Outcome.DUPLICATE : Outcome.ALREADY_PAID);
+				}else{
+					outcomes.put(trid, Outcome.NOT_PENDING);
+				}
+			}
+			// the analytics learn of the payments only once they are kept
+			Lock publishing = esql.publishing();
+			try{
+				conn.commit();
+				for(Object[] e : paid){
+					esql.publish(EventLog.Type.PAYMENT_RECORDED, (Long)e[0], (Long)e[1], 0L, (Double)e[2]);
+				}
+			}finally{
+				publishing.unlock();
+			}
+			return outcomes;
+		}catch(SQLException e){
+			conn.rollback();
+			throw e;
+		}catch(IOException e){
+			conn.rollback();
+			throw new SQLException("Unable to copy the confirmations: " + e.getMessage(), e);
+		}finally{
+			stmt.close();
+			conn.setAutoCommit(true);
+		}
+	}
+
+	private static String escape(String v){
+		return v.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	/**
+	 * Settles every confirmation of a settlement file and waits for them.
+	 *
+	 * @param reader the file, a trid,bid,pmethod,amount,paid_at header then one confirmation per line
+	 * @return the outcomes and latencies
+	 * @throws java.io.IOException when the file cannot be read
+	 * @throws java.lang.InterruptedException when interrupted while waiting
+	 */
+	public Report ingest(Reader reader) throws IOException, InterruptedException {
+		Report report = new Report();
+		long start = System.currentTimeMillis();
+		List<CompletableFuture<Long>> done = new ArrayList<CompletableFuture<Long>>();
+		BufferedReader br = new BufferedReader(reader);
+		String line = br.readLine();   // header
+		while((line = br.readLine()) != null){
+			if(line.trim().isEmpty()) continue;
+			long submitted = System.nanoTime();
+			CompletableFuture<Outcome> outcome = submit(Confirmation.parse(line));
+			done.add(outcome.thenApply(o -> {
+				synchronized(report){
+					report.outcomes.merge(o, 1L, Long::sum);
+				}
+				return System.nanoTime() - submitted;
+			}));
+		}
+		long[] latencies = new long[done.size()];
+		int n = 0;
+		for(CompletableFuture<Long> f : done){
+			try{
+				latencies[n++] = f.get();
+			}catch(ExecutionException e){
+				--n;
+				++report.failed;
+			}
+		}
+		report.latencies = Arrays.copyOf(latencies, n);
+		Arrays.sort(report.latencies);
+		report.millis = System.currentTimeMillis() - start;
+		return report;
+	}
+
+	/**
+	 * This class stands in for the payment provider, writing the settlement
+	 * files it would deliver.
+	 */
+	public static final class Gateway{
+		private final Random random;
+
+		public Gateway(long seed){
+			this.random = new Random(seed);
+		}
+
+		/**
+		 * Writes a settlement file paying up to count Pending bookings, each
+		 * for the price of its seats.  Every confirmation is delivered again
+		 * with probability replay, and a second one with another trid is
+		 * sent with probability conflict.
+		 *
+		 * @param conn a connection to read the bookings from
+		 * @param count the most bookings to pay
+		 * @param replay the chance a confirmation is delivered twice
+		 * @param conflict the chance a booking is paid twice
+		 * @param file the settlement file, replaced
+		 * @return the number of confirmations written
+		 * @throws java.sql.SQLException when the bookings cannot be read
+		 * @throws java.io.IOException when the file cannot be written
+		 */
+		public int settlementFile(Connection conn, int count, double replay, double conflict, Path file)
+			throws SQLException, IOException {
+			List<Confirmation> confirmations = new ArrayList<Confirmation>();
+			String[] methods = {"Credit Card", "Debit Card", "PayPal", "Gift Card"};
+			Timestamp now = new Timestamp(System.currentTimeMillis());
+			Statement stmt = conn.createStatement();
+			try{
+				ResultSet rs = stmt.executeQuery(
+					"SELECT B.bid, COALESCE(sum(S.price), 0) FROM Bookings B LEFT JOIN ShowSeats S ON S.sdate = B.sdate AND S.bid = B.bid\n" +
+					"WHERE B.status = '" + BookingStates.Status.PENDING.label + "' GROUP BY B.bid LIMIT " + count);
+				while(rs.next()){
+					String method = methods[random.nextInt(methods.length)];
+					Confirmation c = new Confirmation(trid(), rs.getLong(1), method, rs.getDouble(2), now);
+					confirmations.add(c);
+					if(random.nextDouble() < replay) confirmations.add(c);
+					if(random.nextDouble() < conflict){
+						confirmations.add(new Confirmation(trid(), c.bid, method, c.amount, now));
+					}
+				}
+			}finally{
+				stmt.close();
+			}
+			Collections.shuffle(confirmations, random);
+			try(Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)){
+				out.write("trid,bid,pmethod,amount,paid_at\n");
+				for(Confirmation c : confirmations){
+					out.write(c.toString());
+					out.write('\n');
+				}
+			}
+			return confirmations.size();
+		}
+
+		// eight digits, as the gateway's transaction ids in Payments.csv
+		private long trid(){
+			return 10000000L + (random.nextLong() & Long.MAX_VALUE) % 90000000L;
+		}
+	}//end Gateway
+
+	/**
+	 * Writes or settles a settlement file:
+	 *   java PaymentSettlement dbname port user gateway file [count [replay [conflict]]]
+	 *   java PaymentSettlement dbname port user ingest file
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if(args.length < 5 || !(args[3].equals("gateway") || args[3].equals("ingest"))){
+			System.err.println("Usage: java [-classpath <classpath>] " + PaymentSettlement.class.getName() +
+				" <dbname> <port> <user> gateway|ingest <file> [count [replay [conflict]]]");
+			return;
+		}
+		Ticketmaster esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			Path file = Paths.get(args[4]);
+			if(args[3].equals("gateway")){
+				int count = args.length > 5 ? Integer.parseInt(args[5]) : 10000;
+				double replay = args.length > 6 ? Double.parseDouble(args[6]) : 0.05;
+				double conflict = args.length > 7 ? Double.parseDouble(args[7]) : 0.01;
+				int n = new Gateway(System.nanoTime()).settlementFile(esql.getConnection(), count, replay, conflict, file);
+				System.out.println("Wrote " + n + " confirmations to " + file);
+				return;
+			}
+			PaymentSettlement settlement = new PaymentSettlement(esql, esql.openConnection());
+			settlement.start();
+			try(Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)){
+				System.out.print(settlement.ingest(r));
+			}finally{
+				settlement.stop();
+			}
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+	}
+}//end PaymentSettlement
@@ -0,0 +1,315 @@
+/*
+ * Statement timeouts and load shedding for Ticketmaster
+ * =====================================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+
+/**
+ * This class bounds how long the statements of each menu operation may
+ * run, and sheds the listings while bookings are slow.
+ *
+ * Every statement run through Ticketmaster's execute methods is timed
+ * under the menu operation running on its thread.  Its timeout is four
+ * times the p99 of that operation's recent statements, between
+ * MIN_TIMEOUT_MILLIS and the ceiling of the operation's kind, or the
+ * ceiling until there are enough samples.  The timeout is set both on the
+ * statement (Statement.setQueryTimeout, whole seconds) and, between
+ * transactions, on the server (statement_timeout), so a query is stopped
+ * even when the client is gone.  The server setting is put back to the
+ * default by release() before a helper takes the connection to use it
+ * directly (Ticketmaster.getConnection), so the bulk paths, such as
+ * ShowScheduler's COPY, never run under a guarded statement's timeout, and
+ * again when the operation ends.
+ *
+ * A circuit breaker watches the booking statements: when their p99 over
+ * the last WINDOW passes BOOKING_P99_MILLIS, or one times out, it opens
+ * for COOL_DOWN_MILLIS, and the listings are refused at once with a Shed
+ * instead of competing with bookings for the database.  Bookings and
+ * other writes are never shed.
+ *
+ */
+
+public class QueryGuard{
+	/** Booking p99 above which listings are shed, in ms; -Dticketmaster.guard.booking overrides. */
+	public static final long BOOKING_P99_MILLIS = Long.getLong("ticketmaster.guard.booking", 500);
+
+	static final int MIN_TIMEOUT_MILLIS = 1000;
+	static final long COOL_DOWN_MILLIS = 10 * 1000;
+	private static final int WINDOW = 128;
+	private static final int MIN_SAMPLES = 20;
+	private static final String QUERY_CANCELED = "57014";
+
+	/** What an operation does, which sets its ceiling and whether it may be shed. */
+	public enum Kind{
+		BOOKING(10 * 1000), WRITE(30 * 1000), LISTING(15 * 1000), OTHER(60 * 1000);
+
+		final int ceilingMillis;
+
+		Kind(int ceilingMillis){
+			this.ceilingMillis = ceilingMillis;
+		}
+	}//end Kind
+
+	/** Thrown instead of running a listing while bookings are slow. */
+	public static final class Shed extends SQLException{
+		private static final long serialVersionUID = 1L;
+
+		Shed(String message){
+			super(message, "53000");
+		}
+	}//end Shed
+
+	/* Recent statement latencies and counts of one operation. */
+	private static final class Budget{
+		final Kind kind;
+		final long[] window = new long[WINDOW];
+		int next, filled;
+		long statements, timeouts, shed;
+		int timeoutMillis;
+
+		Budget(Kind kind){
+			this.kind = kind;
+			this.timeoutMillis = kind.ceilingMillis;
+		}
+
+		void add(long nanos){
+			window[next] = nanos;
+			next = (next + 1) % WINDOW;
+			filled = Math.min(WINDOW, filled + 1);
+			++statements;
+			if(filled >= MIN_SAMPLES){
+				long p99 = percentile(0.99);
+				timeoutMillis = (int)Math.max(MIN_TIMEOUT_MILLIS, Math.min(kind.ceilingMillis, p99 * 4 / 1000000));
+			}
+		}
+
+		long percentile(double p){
+			if(filled == 0) return 0;
+			long[] sorted = Arrays.copyOf(window, filled);
+			Arrays.sort(sorted);
+			return sorted[(int)Math.ceil(filled * p) - 1];
+		}
+	}//end Budget
+
+	private static final class Current{
+		final String operation;
+		final Kind kind;
+		final List<Connection> timed = new ArrayList<Connection>();   // with statement_timeout set
+
+		Current(String operation, Kind kind){
+			this.operation = operation;
+			this.kind = kind;
+		}
+	}//end Current
+
+	private final Map<String, Budget> budgets = new TreeMap<String, Budget>();
+	private final ThreadLocal<Current> current = new ThreadLocal<Current>();
+	private final Map<Connection, Integer> serverTimeouts = new WeakHashMap<Connection, Integer>();
+	private final long bookingLimitNanos;
+	private final long[] bookings = new long[WINDOW];
+	private int bookingNext, bookingFilled, opened;
+	private long openUntil;
+
+	/**
+	 * @param bookingP99Millis booking p99 above which listings are shed
+	 */
+	public QueryGuard(long bookingP99Millis){
+		this.bookingLimitNanos = bookingP99Millis * 1000000;
+	}
+
+	/**
+	 * @param choice a menu number
+	 * @return the kind of that operation
+	 */
+	public static Kind kind(int choice){
+		switch(choice){
+			case 2: case 5: return Kind.BOOKING;
+			case 9: case 10: case 11: case 12: case 13: case 14: case 18: case 22: case 23: return Kind.LISTING;
+			default: return Kind.WRITE;
+		}
+	}
+
+	/**
+	 * Marks the start of an operation on this thread; its statements are
+	 * timed and bounded under its name until end().
+	 *
+	 * @param operation the operation's name
+	 * @param kind what it does
+	 */
+	public void begin(String operation, Kind kind){
+		current.set(new Current(operation, kind));
+	}
+
+	/** Marks the end of this thread's operation and resets its server timeouts. */
+	public void end(){
+		Current c = current.get();
+		current.remove();
+		if(c == null) return;
+		for(Connection conn : c.timed){
+			synchronized(serverTimeouts){
+				serverTimeouts.remove(conn);
+			}
+			try(Statement stmt = conn.createStatement()){
+				stmt.execute("RESET statement_timeout");
+			}catch(SQLException e){
+				// closed or in a failed transaction; its owner rolls it back
+			}
+		}
+	}
+
+	/**
+	 * Puts a connection back under the server's default statement_timeout
+	 * before it is used directly.  Between transactions the setting is
+	 * reset; inside one it is reset for that transaction only, as a RESET
+	 * there would be undone by a rollback.
+	 *
+	 * @param conn the connection
+	 */
+	public void release(Connection conn){
+		synchronized(serverTimeouts){
+			if(!serverTimeouts.containsKey(conn)) return;
+		}
+		try(Statement stmt = conn.createStatement()){
+			if(conn.getAutoCommit()){
+				stmt.execute("RESET statement_timeout");
+				synchronized(serverTimeouts){
+					serverTimeouts.remove(conn);
+				}
+			}else{
+				stmt.execute("SET LOCAL statement_timeout TO DEFAULT");
+			}
+		}catch(SQLException e){
+			// closed or in a failed transaction; its owner rolls it back
+		}
+	}
+
+	/** @return the name of the operation running on this thread */
+	public String operation(){
+		return current().operation;
+	}
+
+	private Current current(){
+		Current c = current.get();
+		return c == null ? new Current("other", Kind.OTHER) : c;
+	}
+
+	private Budget budget(Current c){
+		Budget b = budgets.get(c.operation);
+		if(b == null){
+			b = new Budget(c.kind);
+			budgets.put(c.operation, b);
+		}
+		return b;
+	}
+
+	/**
+	 * Creates a statement for this thread's operation, with its timeout.
+	 *
+	 * @param conn the connection
+	 * @return the statement
+	 * @throws QueryGuard.Shed when the operation is a listing and bookings are slow
+	 * @throws java.sql.SQLException when the statement cannot be created
+	 */
+	public Statement createStatement(Connection conn) throws SQLException {
+		Current running = current.get();
+		Current c = running == null ? new Current("other", Kind.OTHER) : running;
+		int millis;
+		synchronized(this){
+			Budget b = budget(c);
+			if(c.kind == Kind.LISTING && System.currentTimeMillis() < openUntil){
+				++b.shed;
+				throw new Shed("Listings are paused while bookings are slow, please try again in " +
+					(openUntil - System.currentTimeMillis() + 999) / 1000 + " s");
+			}
+			millis = b.timeoutMillis;
+		}
+		Statement stmt = conn.createStatement();
+		stmt.setQueryTimeout((millis + 999) / 1000);
+		// SET inside a transaction would be undone by a rollback, and
+		// outside an operation nothing would reset it
+		if(running != null && conn.getAutoCommit()){
+			Integer set;
+			synchronized(serverTimeouts){
+				set = serverTimeouts.get(conn);
+			}
+			if(set == null || set != millis){
+				stmt.execute("SET statement_timeout = " + millis);
+				synchronized(serverTimeouts){
+					serverTimeouts.put(conn, millis);
+				}
+				if(!running.timed.contains(conn)) running.timed.add(conn);
+			}
+		}
+		return stmt;
+	}
+
+	/**
+	 * Records a statement of this thread's operation.
+	 *
+	 * @param nanos how long it ran
+	 * @param failure what it threw, or null
+	 */
+	public synchronized void record(long nanos, SQLException failure){
+		Current c = current();
+		Budget b = budget(c);
+		boolean timedOut = failure != null && QUERY_CANCELED.equals(failure.getSQLState());
+		if(timedOut) ++b.timeouts;
+		b.add(nanos);
+		if(c.kind != Kind.BOOKING) return;
+		long now = System.currentTimeMillis();
+		if(openUntil != 0 && now >= openUntil){
+			// cooled down: judge the bookings from here on
+			openUntil = 0;
+			bookingFilled = 0;
+		}
+		bookings[bookingNext] = nanos;
+		bookingNext = (bookingNext + 1) % WINDOW;
+		bookingFilled = Math.min(WINDOW, bookingFilled + 1);
+		boolean slow = false;
+		if(bookingFilled >= MIN_SAMPLES){
+			long[] sorted = Arrays.copyOf(bookings, bookingFilled);
+			Arrays.sort(sorted);
+			slow = sorted[(int)Math.ceil(bookingFilled * 0.99) - 1] > bookingLimitNanos;
+		}
+		if((slow || timedOut) && now >= openUntil){
+			openUntil = now + COOL_DOWN_MILLIS;
+			++opened;
+		}
+	}
+
+	/** @return whether the listings are being shed now */
+	public synchronized boolean isOpen(){
+		return System.currentTimeMillis() < openUntil;
+	}
+
+	@Override
+	public synchronized String toString(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("Listings ").append(isOpen() ? "shed" : "admitted").append(", breaker opened ")
+			.append(opened).append(" times\n");
+		sb.append("operation\tstatements\tp50_ms\tp99_ms\ttimeout_ms\ttimeouts\tshed\n");
+		for(Map.Entry<String, Budget> e : budgets.entrySet()){
+			Budget b = e.getValue();
+			sb.append(String.format("%s\t%d\t%.1f\t%.1f\t%d\t%d\t%d%n", e.getKey(), b.statements,
+				b.percentile(0.5) / 1e6, b.percentile(0.99) / 1e6, b.timeoutMillis, b.timeouts, b.shed));
+		}
+		return sb.toString();
+	}
+}//end QueryGuard
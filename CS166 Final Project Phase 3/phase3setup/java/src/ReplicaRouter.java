@@ -0,0 +1,268 @@
+/*
+ * Read-replica routing for Ticketmaster
+ * =====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class picks the connection a read-only operation runs on: one of
+ * the streaming replicas when it is fresh enough, else the primary.
+ *
+ * A replica is used when its replay lag is under MAX_LAG_MILLIS, and, after
+ * this session wrote, once it has replayed the primary's WAL position of
+ * that write (read-your-writes).  Replicas are used round robin; their
+ * state is rechecked at most every CHECK_MILLIS, and one that fails is left
+ * out for RETRY_MILLIS.  Writes always go to the primary.
+ *
+ * Replicas are listed as host:port pairs in -Dticketmaster.replicas and
+ * serve the same database name and user as the primary.  Two local
+ * instances can be set up with, e.g.,
+ *
+ *   pg_basebackup -h localhost -p $PGPORT -D $REPLICA_DATA -R -X stream
+ *   pg_ctl -D $REPLICA_DATA -o "-p $REPLICA_PORT" start
+ *
+ */
+
+public class ReplicaRouter{
+	/** Comma-separated host:port of the replicas. */
+	public static final String REPLICAS = System.getProperty("ticketmaster.replicas", "");
+	/** Replay lag above which a replica is skipped; -Dticketmaster.replica.maxlag overrides. */
+	public static final long MAX_LAG_MILLIS = Long.getLong("ticketmaster.replica.maxlag", 1000);
+
+	private static final long CHECK_MILLIS = 250;
+	private static final long RETRY_MILLIS = 5000;
+
+	/* One replica and what was last learned about it. */
+	private static final class Replica{
+		final String url;
+		Connection conn;
+		long checkedAt, failedAt, replayLsn, lagMillis;
+
+		Replica(String url){
+			this.url = url;
+		}
+	}//end Replica
+
+	private final Connection primary;
+	private final String user, passwd;
+	private final List<Replica> replicas = new ArrayList<Replica>();
+	private long pinnedLsn = -1;
+	private int next;
+	private final AtomicLong primaryReads = new AtomicLong(), replicaReads = new AtomicLong();
+
+	/**
+	 * @param primary the primary's connection
+	 * @param urls JDBC URLs of the replicas
+	 * @param user the database user
+	 * @param passwd the password
+	 */
+	public ReplicaRouter(Connection primary, List<String> urls, String user, String passwd){
+		this.primary = primary;
+		this.user = user;
+		this.passwd = passwd;
+		for(String url : urls) replicas.add(new Replica(url));
+	}
+
+	/**
+	 * @param hostPorts comma-separated host:port pairs
+	 * @param dbname the database
+	 * @return the JDBC URLs
+	 */
+	public static List<String> urls(String hostPorts, String dbname){
+		List<String> urls = new ArrayList<String>();
+		for(String hp : hostPorts.split(",")){
+			if(!hp.trim().isEmpty()) urls.add("jdbc:postgresql://" + hp.trim() + "/" + dbname);
+		}
+		return urls;
+	}
+
+	/** @return the number of replicas configured */
+	public int size(){
+		return replicas.size();
+	}
+
+	/**
+	 * Records that this session just wrote, so its next reads only go to
+	 * replicas that have replayed the write.
+	 *
+	 * @throws java.sql.SQLException when the primary cannot be asked for its WAL position
+	 */
+	public synchronized void wrote() throws SQLException {
+		if(replicas.isEmpty()) return;
+		Statement stmt = primary.createStatement();
+		try{
+			ResultSet rs = stmt.executeQuery("SELECT pg_current_wal_lsn()");
+			rs.next();
+			pinnedLsn = lsn(rs.getString(1));
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Picks the connection for one read-only operation.
+	 *
+	 * @return a fresh enough replica, or the primary
+	 */
+	public synchronized Connection forRead(){
+		long now = System.currentTimeMillis();
+		for(int i = 0; i < replicas.size(); ++i){
+			Replica r = replicas.get((next + i) % replicas.size());
+			if(usable(r, now)){
+				next = (next + i + 1) % replicas.size();
+				replicaReads.incrementAndGet();
+				return r.conn;
+			}
+		}
+		primaryReads.incrementAndGet();
+		return primary;
+	}
+
+	/** @return reads sent to the primary and to replicas */
+	public String stats(){
+		return primaryReads.get() + " reads on the primary, " + replicaReads.get() + " on replicas";
+	}
+
+	private boolean usable(Replica r, long now){
+		if(r.failedAt > 0 && now - r.failedAt < RETRY_MILLIS) return false;
+		boolean behind = pinnedLsn >= 0 && r.replayLsn < pinnedLsn;
+		if(now - r.checkedAt >= CHECK_MILLIS || behind){
+			try{
+				check(r);
+				r.checkedAt = now;
+				r.failedAt = 0;
+			}catch(SQLException e){
+				r.failedAt = now;
+				close(r);
+				return false;
+			}
+		}
+		if(r.lagMillis > MAX_LAG_MILLIS) return false;
+		return pinnedLsn < 0 || r.replayLsn >= pinnedLsn;
+	}
+
+	private void check(Replica r) throws SQLException {
+		if(r.conn == null || r.conn.isClosed()){
+			r.conn = DriverManager.getConnection(r.url, user, passwd);
+			r.conn.setReadOnly(true);
+		}
+		Statement stmt = r.conn.createStatement();
+		try{
+			// an idle primary sends no new WAL, so a replica that replayed
+			// everything it received counts as current
+			ResultSet rs = stmt.executeQuery(
+				"SELECT pg_is_in_recovery(), pg_last_wal_replay_lsn(),\n" +
+				"       CASE WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() THEN 0\n" +
+				"            ELSE COALESCE(EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000, 0) END");
+			rs.next();
+			if(!rs.getBoolean(1)) throw new SQLException(r.url + " is not a replica");
+			r.replayLsn = lsn(rs.getString(2));
+			r.lagMillis = (long)rs.getDouble(3);
+		}finally{
+			stmt.close();
+		}
+	}
+
+	/* Parses a pg_lsn such as 16/B374D848. */
+	static long lsn(String s){
+		if(s == null) return -1;
+		int slash = s.indexOf('/');
+		return (Long.parseLong(s.substring(0, slash), 16) << 32) | Long.parseLong(s.substring(slash + 1), 16);
+	}
+
+	private static void close(Replica r){
+		try{
+			if(r.conn != null) r.conn.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+		r.conn = null;
+	}
+
+	/** Closes the replica connections; the primary is left open. */
+	public synchronized void close(){
+		for(Replica r : replicas) close(r);
+	}
+
+	/**
+	 * Benchmark: java ReplicaRouter dbname port user replicas [clients] [seconds]
+	 *
+	 * Runs a listing query from the given number of clients, each with its
+	 * own connections, first against the primary alone and then with one
+	 * more replica at a time, and prints the read throughput of each.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 4){
+			System.err.println("Usage: java [-classpath <classpath>] " + ReplicaRouter.class.getName() +
+				" <dbname> <port> <user> <host:port,...> [clients] [seconds]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		final List<String> urls = urls(args[3], args[0]);
+		final int clients = args.length > 4 ? Integer.parseInt(args[4]) : 16;
+		final long millis = (args.length > 5 ? Long.parseLong(args[5]) : 10) * 1000;
+		final String query =
+			"SELECT M.title, M.duration, S.sdate, S.sttime FROM Movies M, Shows S, Plays P, Theaters T\n" +
+			"WHERE S.mvid = M.mvid AND P.sid = S.sid AND T.tid = P.tid AND T.cid = 1";
+		System.out.println("replicas\tclients\tqueries/s\trouting");
+		for(int k = 0; k <= urls.size(); ++k){
+			final List<ReplicaRouter> routers = new ArrayList<ReplicaRouter>();
+			for(int c = 0; c < clients; ++c){
+				Connection primary = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+				routers.add(new ReplicaRouter(primary, urls.subList(0, k), args[2], ""));
+			}
+			final AtomicLong queries = new AtomicLong();
+			final CountDownLatch done = new CountDownLatch(clients);
+			final long end = System.currentTimeMillis() + millis;
+			for(final ReplicaRouter router : routers){
+				new Thread(() -> {
+					try{
+						while(System.currentTimeMillis() < end){
+							Statement stmt = router.forRead().createStatement();
+							try{
+								ResultSet rs = stmt.executeQuery(query);
+								while(rs.next()){}
+							}finally{
+								stmt.close();
+							}
+							queries.incrementAndGet();
+						}
+					}catch(SQLException e){
+						System.err.println(e.getMessage());
+					}finally{
+						done.countDown();
+					}
+				}).start();
+			}
+			done.await();
+			long primaryReads = 0, replicaReads = 0;
+			for(ReplicaRouter r : routers){
+				primaryReads += r.primaryReads.get();
+				replicaReads += r.replicaReads.get();
+				r.close();
+				r.primary.close();
+			}
+			System.out.printf("%d\t%d\t%.0f\t%d primary / %d replica%n", k, clients,
+				queries.get() * 1000.0 / millis, primaryReads, replicaReads);
+		}
+	}
+}//end ReplicaRouter
@@ -0,0 +1,412 @@
+/*
+ * Bulk seat repricing for Ticketmaster
+ * ====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class reprices the unsold seats of upcoming shows from rules.
+ *
+ * The shows from a date on are cut into chunks of about CHUNK_SEATS show
+ * seats.  Each chunk runs on one of the worker connections: one query
+ * reads its unsold seats with their seat type, show date and time, movie
+ * and the show's occupancy; the rules compute every seat's new price on
+ * the client; the seats whose price changes are sent with one COPY into a
+ * temp table and applied with one UPDATE ... FROM, and the chunk commits.
+ *
+ * The UPDATE only changes a seat that is still unsold and still has the
+ * price the chunk read, so a seat booked or repriced meanwhile is left
+ * alone and counted as skipped.  Each repriced show is published to the
+ * event log after the commit, so seat maps drop their stale prices, and
+ * AddBooking reads the prices back in the statement that claims the
+ * seats.  ChangeSeatsForBooking checks price
+ * equality in the same statement that moves the booking, so it never
+ * swaps seats at prices a concurrent repricing has made unequal.
+ *
+ * Rules are lines of key=value terms; every rule whose conditions all
+ * hold applies, in order, to the price so far, starting from the current
+ * one.  Conditions: stype=Premium, dow=SAT,SUN, dates=2024-12-20..2025-01-05,
+ * time=18:00-23:59, occupancy=0.8-1, mvid=42.  Actions: set=12.5,
+ * factor=1.2, add=-1.  Prices are rounded to cents.  A rules file that
+ * sets the base price per seat type first reprices the same way every
+ * night, instead of compounding.
+ *
+ */
+
+public class RepricingEngine{
+	static final int CHUNK_SEATS = 50000;
+
+	/** One pricing rule. */
+	public static final class Rule{
+		String stype;
+		Set<DayOfWeek> days;
+		LocalDate fromDate, toDate;
+		LocalTime fromTime, toTime;
+		double minOccupancy = 0, maxOccupancy = 1;
+		Long mvid;
+		Double set, factor, add;
+		final String text;
+
+		Rule(String text){
+			this.text = text;
+		}
+
+		/**
+		 * @param line key=value terms separated by spaces
+		 * @return the rule
+		 * @throws java.lang.IllegalArgumentException when a term is not understood
+		 */
+		public static Rule parse(String line){
+			Rule r = new Rule(line.trim());
+			for(String term : line.trim().split("\\s+")){
+				int eq = term.indexOf('=');
+				if(eq <= 0) throw new IllegalArgumentException("Expected key=value: " + term);
+				String key = term.substring(0, eq).toLowerCase(), value = term.substring(eq + 1);
+				switch(key){
+					case "stype": r.stype = value; break;
+					case "dow":
+						r.days = EnumSet.noneOf(DayOfWeek.class);
+						for(String d : value.split(",")) r.days.add(day(d));
+						break;
+					case "dates": {
+						String[] range = value.split("\\.\\.");
+						r.fromDate = LocalDate.parse(range[0]);
+						r.toDate = range.length > 1 ? LocalDate.parse(range[1]) : r.fromDate;
+						break;
+					}
+					case "time": {
+						String[] range = value.split("-");
+						r.fromTime = LocalTime.parse(range[0]);
+						r.toTime = LocalTime.parse(range[1]);
+						break;
+					}
+					case "occupancy": {
+						String[] range = value.split("-");
+						r.minOccupancy = Double.parseDouble(range[0]);
+						r.maxOccupancy = Double.parseDouble(range[1]);
+						break;
+					}
+					case "mvid": r.mvid = Long.parseLong(value); break;
+					case "set": r.set = Double.parseDouble(value); break;
+					case "factor": r.factor = Double.parseDouble(value); break;
+					case "add": r.add = Double.parseDouble(value); break;
+					default: throw new IllegalArgumentException("Unknown rule term: " + term);
+				}
+			}
+			if(r.set == null && r.factor == null && r.add == null){
+				throw new IllegalArgumentException("Rule has no set, factor or add: " + line);
+			}
+			return r;
+		}
+
+		private static DayOfWeek day(String d){
+			for(DayOfWeek w : DayOfWeek.values()){
+				if(w.name().startsWith(d.trim().toUpperCase())) return w;
+			}
+			throw new IllegalArgumentException("Unknown day: " + d);
+		}
+
+		boolean matches(String seatType, LocalDate sdate, LocalTime sttime, long movie, double occupancy){
+			if(stype != null && !stype.equalsIgnoreCase(seatType)) return false;
+			if(days != null && !days.contains(sdate.getDayOfWeek())) return false;
+			if(fromDate != null && (sdate.isBefore(fromDate) || sdate.isAfter(toDate))) return false;
+			if(fromTime != null && (sttime.isBefore(fromTime) || sttime.isAfter(toTime))) return false;
+			if(occupancy < minOccupancy || occupancy > maxOccupancy) return false;
+			return mvid == null || mvid == movie;
+		}
+
+		double apply(double price){
+			if(set != null) price = set;
+			if(factor != null) price *= factor;
+			if(add != null) price += add;
+			return price;
+		}
+
+		@Override
+		public String toString(){
+			return text;
+		}
+	}//end Rule
+
+	/** What a run changed. */
+	public static final class Result{
+		final AtomicLong seats = new AtomicLong(), repriced = new AtomicLong(), skipped = new AtomicLong();
+		long chunks, millis;
+
+		/** @return the number of seats whose price was changed */
+		public long repriced(){
+			return repriced.get();
+		}
+
+		@Override
+		public String toString(){
+			return "Read " + seats.get() + " unsold seats in " + chunks + " chunks, repriced " + repriced.get() +
+				", skipped " + skipped.get() + " changed meanwhile, in " + millis + " ms (" +
+				seats.get() * 1000 / Math.max(1, millis) + " seats/s)";
+		}
+	}//end Result
+
+	private final Ticketmaster esql;
+	private final List<Rule> rules;
+
+	/**
+	 * @param esql the client, whose connection settings the workers use
+	 * @param rules the rules, applied in order
+	 */
+	public RepricingEngine(Ticketmaster esql, List<Rule> rules){
+		this.esql = esql;
+		this.rules = rules;
+	}
+
+	/**
+	 * Reads rules, one per line; blank lines and # comments are skipped.
+	 *
+	 * @param reader the rules
+	 * @return the rules
+	 * @throws java.io.IOException when the rules cannot be read
+	 * @throws java.lang.IllegalArgumentException when a rule is not understood
+	 */
+	public static List<Rule> parseRules(Reader reader) throws IOException {
+		List<Rule> rules = new ArrayList<Rule>();
+		BufferedReader br = new BufferedReader(reader);
+		String line;
+		while((line = br.readLine()) != null){
+			int hash = line.indexOf('#');
+			if(hash >= 0) line = line.substring(0, hash);
+			if(!line.trim().isEmpty()) rules.add(Rule.parse(line));
+		}
+		return rules;
+	}
+
+	/**
+	 * @return the price of a seat after every matching rule, in cents
+	 */
+	double price(double current, String stype, LocalDate sdate, LocalTime sttime, long mvid, double occupancy){
+		double price = current;
+		for(Rule r : rules){
+			if(r.matches(stype, sdate, sttime, mvid, occupancy)) price = r.apply(price);
+		}
+		return Math.max(0.01, Math.round(price * 100) / 100.0);
+	}
+
+	/* Shows whose seats are repriced together. */
+	private static final class Chunk{
+		final List<Long> sids = new ArrayList<Long>();
+		LocalDate first, last;
+		long seats;
+	}//end Chunk
+
+	/**
+	 * Reprices the unsold seats of the shows on or after a date.
+	 *
+	 * @param from the first show date
+	 * @param workers the number of parallel connections
+	 * @return what was changed
+	 * @throws java.sql.SQLException when a chunk fails; chunks before it stay repriced
+	 */
+	public Result reprice(LocalDate from, int workers) throws SQLException {
+		Result result = new Result();
+		long start = System.currentTimeMillis();
+		List<Chunk> chunks = chunks(from);
+		result.chunks = chunks.size();
+		final BlockingQueue<Connection> idle = new ArrayBlockingQueue<Connection>(workers);
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		try{
+			for(int w = 0; w < workers; ++w) idle.add(esql.openConnection());
+			List<Future<Void>> done = new ArrayList<Future<Void>>();
+			for(final Chunk chunk : chunks){
+				done.add(pool.submit(() -> {
+					Connection conn = idle.take();
+					try{
+						reprice(conn, chunk, result);
+					}finally{
+						idle.add(conn);
+					}
+					return null;
+				}));
+			}
+			for(Future<Void> f : done){
+				try{
+					f.get();
+				}catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new SQLException("Interrupted");
+				}catch(ExecutionException e){
+					pool.shutdownNow();
+					if(e.getCause() instanceof SQLException) throw (SQLException)e.getCause();
+					throw new SQLException(e.getCause());
+				}
+			}
+		}finally{
+			pool.shutdown();
+			for(Connection c : idle){
+				try{
+					c.close();
+				}catch(SQLException e){
+					// ignored.
+				}
+			}
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/* Groups the shows into chunks of about CHUNK_SEATS seats, in sid order. */
+	private List<Chunk> chunks(LocalDate from) throws SQLException {
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		Chunk chunk = null;
+		PreparedStatement ps = esql.getConnection().prepareStatement(
+			"SELECT sid, sdate, count(*) FROM ShowSeats WHERE sdate >= ? AND bid IS NULL GROUP BY sid, sdate ORDER BY sid");
+		try{
+			ps.setObject(1, from);
+			ResultSet rs = ps.executeQuery();
+			while(rs.next()){
+				if(chunk == null || chunk.seats >= CHUNK_SEATS){
+					chunk = new Chunk();
+					chunks.add(chunk);
+				}
+				LocalDate sdate = rs.getDate(2).toLocalDate();
+				chunk.sids.add(rs.getLong(1));
+				chunk.first = chunk.first == null || sdate.isBefore(chunk.first) ? sdate : chunk.first;
+				chunk.last = chunk.last == null || sdate.isAfter(chunk.last) ? sdate : chunk.last;
+				chunk.seats += rs.getLong(3);
+			}
+		}finally{
+			ps.close();
+		}
+		return chunks;
+	}
+
+	private void reprice(Connection conn, Chunk chunk, Result result) throws SQLException, IOException {
+		// sold seats count towards occupancy, so the filter is outside the window
+		String query =
+			"SELECT ssid, sdate, price, stype, sttime, mvid, occupancy FROM (\n" +
+			"  SELECT A.ssid, A.sdate, A.price, A.bid, C.stype, S.sttime, S.mvid,\n" +
+			"         count(A.bid) OVER (PARTITION BY A.sid)::REAL / count(*) OVER (PARTITION BY A.sid) AS occupancy\n" +
+			"  FROM ShowSeats A, CinemaSeats C, Shows S\n" +
+			"  WHERE A.sid = ANY(?) AND A.sdate BETWEEN ? AND ? AND C.csid = A.csid AND S.sid = A.sid) X\n" +
+			"WHERE bid IS NULL";
+		StringBuilder rows = new StringBuilder();
+		long changed = 0;
+		Array sids = conn.createArrayOf("bigint", chunk.sids.toArray());
+		PreparedStatement ps = conn.prepareStatement(query);
+		try{
+			ps.setArray(1, sids);
+			ps.setObject(2, chunk.first);
+			ps.setObject(3, chunk.last);
+			ResultSet rs = ps.executeQuery();
+			long seats = 0;
+			while(rs.next()){
+				++seats;
+				float old = rs.getFloat(3);
+				LocalDate sdate = rs.getDate(2).toLocalDate();
+				double price = price(old, rs.getString(4), sdate, rs.getTime(5).toLocalTime(), rs.getLong(6), rs.getDouble(7));
+				if((float)price == old) continue;
+				rows.append(rs.getLong(1)).append('\t').append(sdate).append('\t')
+					.append(old).append('\t').append((float)price).append('\n');
+				++changed;
+			}
+			result.seats.addAndGet(seats);
+		}finally{
+			ps.close();
+		}
+		if(changed == 0) return;
+
+		boolean autoCommit = conn.getAutoCommit();
+		Statement stmt = conn.createStatement();
+		try{
+			conn.setAutoCommit(false);
+			stmt.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS reprice (ssid BIGINT, sdate DATE, old REAL, price REAL) ON COMMIT DELETE ROWS");
+			conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+				"COPY reprice (ssid, sdate, old, price) FROM STDIN", new StringReader(rows.toString()));
+			ResultSet rs = stmt.executeQuery(
+				"WITH updated AS (\n" +
+				"  UPDATE ShowSeats A SET price = R.price FROM reprice R\n" +
+				"  WHERE A.sdate = R.sdate AND A.ssid = R.ssid AND A.bid IS NULL AND A.price = R.old RETURNING A.sid)\n" +
+				"SELECT sid, count(*) FROM updated GROUP BY sid");
+			List<long[]> shows = new ArrayList<long[]>();
+			long updated = 0;
+			while(rs.next()){
+				shows.add(new long[]{ rs.getLong(1), rs.getLong(2) });
+				updated += rs.getLong(2);
+			}
+			conn.commit();
+			result.repriced.addAndGet(updated);
+			result.skipped.addAndGet(changed - updated);
+			// cached seat maps still hold the old prices
+			for(long[] show : shows) esql.publish(EventLog.Type.SEATS_REPRICED, show[0], 0, 0, show[1]);
+		}catch(SQLException | IOException e){
+			conn.rollback();
+			throw e;
+		}finally{
+			stmt.close();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * Nightly repricing: java RepricingEngine dbname port user rules [workers] [from]
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if(args.length < 4 || args.length > 6){
+			System.err.println("Usage: java [-classpath <classpath>] " + RepricingEngine.class.getName() +
+				" <dbname> <port> <user> <rules file> [workers] [first show date]");
+			return;
+		}
+		Ticketmaster esql = null;
+		try{
+			Class.forName("org.postgresql.Driver");
+			List<Rule> rules;
+			try(Reader r = Files.newBufferedReader(Paths.get(args[3]), StandardCharsets.UTF_8)){
+				rules = parseRules(r);
+			}
+			int workers = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+			LocalDate from = args.length > 5 ? LocalDate.parse(args[5]) : LocalDate.now();
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			System.out.println(new RepricingEngine(esql, rules).reprice(from, workers));
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if(esql != null) esql.cleanup();
+		}
+	}
+}//end RepricingEngine
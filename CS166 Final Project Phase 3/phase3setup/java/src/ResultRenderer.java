@@ -0,0 +1,368 @@
+/*
+ * Query result output for Ticketmaster
+ * ====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.List;
+
+/**
+ * This class writes query results as a table, CSV, TSV or JSON lines.
+ *
+ * Rows stream straight from the ResultSet into a large buffered Writer:
+ * the column names and types are read once, each row's values go into
+ * one reused array, and values are escaped character by character into
+ * the buffer, so nothing is built per cell and the console or file is
+ * written in BUFFER-sized chunks rather than once per column.  Files are
+ * written through a FileChannel.
+ *
+ * TABLE is the tab-separated layout the menu always printed, header
+ * included only when there are rows.  TSV escapes tabs, newlines and
+ * backslashes; CSV quotes as RFC 4180 does; JSONL writes one object per
+ * row, numbers and booleans unquoted.  The console format is chosen with
+ * -Dticketmaster.output=table|tsv|csv|jsonl.
+ *
+ */
+
+public abstract class ResultRenderer{
+	/** Output formats. */
+	public enum Format{ TABLE, TSV, CSV, JSONL }
+
+	/** Format of the menu's listings; -Dticketmaster.output overrides. */
+	public static final Format DEFAULT_FORMAT =
+		Format.valueOf(System.getProperty("ticketmaster.output", "table").toUpperCase());
+
+	static final int BUFFER = 1 << 16;
+	// rows fetched per round trip when exporting
+	static final int FETCH_SIZE = 10000;
+
+	/**
+	 * @param format the format
+	 * @return a renderer for it
+	 */
+	public static ResultRenderer of(Format format){
+		switch(format){
+			case TSV: return new Tsv();
+			case CSV: return new Csv();
+			case JSONL: return new JsonLines();
+			default: return new Table();
+		}
+	}
+
+	/** Writes the column names, before the first row or, for TABLE, with it. */
+	protected abstract void header(Writer out, String[] names) throws IOException;
+
+	/** Writes one row; a null value is SQL NULL. */
+	protected abstract void row(Writer out, String[] names, boolean[] unquoted, String[] values) throws IOException;
+
+	/** @return whether the header is only written when there is a row */
+	protected boolean headerWithFirstRow(){
+		return false;
+	}
+
+	/**
+	 * Streams a result set.  The writer is flushed, not closed.
+	 *
+	 * @param rs the result set
+	 * @param out the output
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when reading the rows fails
+	 * @throws java.io.IOException when writing fails
+	 */
+	public long render(ResultSet rs, Writer out) throws SQLException, IOException {
+		ResultSetMetaData md = rs.getMetaData();
+		int n = md.getColumnCount();
+		String[] names = new String[n];
+		boolean[] unquoted = new boolean[n];
+		for(int c = 0; c < n; ++c){
+			names[c] = md.getColumnName(c + 1);
+			unquoted[c] = isUnquoted(md.getColumnType(c + 1));
+		}
+		String[] values = new String[n];
+		long rows = 0;
+		if(!headerWithFirstRow()) header(out, names);
+		while(rs.next()){
+			if(rows == 0 && headerWithFirstRow()) header(out, names);
+			for(int c = 0; c < n; ++c) values[c] = rs.getString(c + 1);
+			row(out, names, unquoted, values);
+			++rows;
+		}
+		out.flush();
+		return rows;
+	}
+
+	/**
+	 * Writes the merged rows of a query fanned out over the shards; their
+	 * values are all written as strings.
+	 *
+	 * @param rows the rows
+	 * @param out the output
+	 * @return the number of rows written
+	 * @throws java.io.IOException when writing fails
+	 */
+	public long render(CityShards.Rows rows, Writer out) throws IOException {
+		String[] names = rows.names.toArray(new String[0]);
+		boolean[] unquoted = new boolean[names.length];
+		String[] values = new String[names.length];
+		if(!headerWithFirstRow() || !rows.rows.isEmpty()) header(out, names);
+		for(List<String> row : rows.rows){
+			row(out, names, unquoted, row.toArray(values));
+		}
+		out.flush();
+		return rows.rows.size();
+	}
+
+	/**
+	 * Streams a result set into a file, replacing it.
+	 *
+	 * @param rs the result set
+	 * @param file the file
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when reading the rows fails
+	 * @throws java.io.IOException when writing fails
+	 */
+	public long render(ResultSet rs, Path file) throws SQLException, IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try{
+			Writer out = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), BUFFER), BUFFER);
+			long rows = render(rs, out);
+			out.close();
+			return rows;
+		}finally{
+			channel.close();
+		}
+	}
+
+	/**
+	 * Runs a query and streams its rows into a file, fetching FETCH_SIZE
+	 * rows at a time instead of holding the whole result in memory.
+	 *
+	 * @param conn the connection; its auto-commit is restored afterwards
+	 * @param query the query
+	 * @param file the file
+	 * @return the number of rows written
+	 * @throws java.sql.SQLException when the query fails
+	 * @throws java.io.IOException when writing fails
+	 */
+	public long export(Connection conn, String query, Path file) throws SQLException, IOException {
+		boolean autoCommit = conn.getAutoCommit();
+		// Postgres only streams with a cursor, i.e. inside a transaction
+		conn.setAutoCommit(false);
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.setFetchSize(FETCH_SIZE);
+			return render(stmt.executeQuery(query), file);
+		}finally{
+			stmt.close();
+			conn.commit();
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+
+	/**
+	 * @return a writer on standard out that passes it whole buffers; flush
+	 *         it before printing to System.out again
+	 */
+	public static Writer console(){
+		return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), BUFFER);
+	}
+
+	private static boolean isUnquoted(int type){
+		switch(type){
+			case Types.TINYINT: case Types.SMALLINT: case Types.INTEGER: case Types.BIGINT:
+			case Types.REAL: case Types.FLOAT: case Types.DOUBLE: case Types.NUMERIC:
+			case Types.DECIMAL: case Types.BIT: case Types.BOOLEAN:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/* The menu's layout: every value followed by a tab, NULL as "null". */
+	static final class Table extends ResultRenderer{
+		@Override
+		protected boolean headerWithFirstRow(){
+			return true;
+		}
+
+		@Override
+		protected void header(Writer out, String[] names) throws IOException {
+			for(String name : names){
+				out.write(name);
+				out.write('\t');
+			}
+			out.write('\n');
+		}
+
+		@Override
+		protected void row(Writer out, String[] names, boolean[] unquoted, String[] values) throws IOException {
+			for(String value : values){
+				out.write(value == null ? "null" : value);
+				out.write('\t');
+			}
+			out.write('\n');
+		}
+	}//end Table
+
+	/* Tab-separated, NULL as \N, as COPY ... TEXT reads it. */
+	static final class Tsv extends ResultRenderer{
+		@Override
+		protected void header(Writer out, String[] names) throws IOException {
+			row(out, names, null, names);
+		}
+
+		@Override
+		protected void row(Writer out, String[] names, boolean[] unquoted, String[] values) throws IOException {
+			for(int c = 0; c < values.length; ++c){
+				if(c > 0) out.write('\t');
+				String v = values[c];
+				if(v == null){
+					out.write("\\N");
+					continue;
+				}
+				for(int i = 0; i < v.length(); ++i){
+					char ch = v.charAt(i);
+					switch(ch){
+						case '\t': out.write("\\t"); break;
+						case '\n': out.write("\\n"); break;
+						case '\r': out.write("\\r"); break;
+						case '\\': out.write("\\\\"); break;
+						default: out.write(ch);
+					}
+				}
+			}
+			out.write('\n');
+		}
+	}//end Tsv
+
+	/* RFC 4180: quoted when a value holds a comma, quote or line break; NULL empty. */
+	static final class Csv extends ResultRenderer{
+		@Override
+		protected void header(Writer out, String[] names) throws IOException {
+			row(out, names, null, names);
+		}
+
+		@Override
+		protected void row(Writer out, String[] names, boolean[] unquoted, String[] values) throws IOException {
+			for(int c = 0; c < values.length; ++c){
+				if(c > 0) out.write(',');
+				String v = values[c];
+				if(v == null) continue;
+				boolean quote = false;
+				for(int i = 0; i < v.length() && !quote; ++i){
+					char ch = v.charAt(i);
+					quote = ch == ',' || ch == '"' || ch == '\n' || ch == '\r';
+				}
+				if(!quote){
+					out.write(v);
+					continue;
+				}
+				out.write('"');
+				for(int i = 0; i < v.length(); ++i){
+					char ch = v.charAt(i);
+					if(ch == '"') out.write('"');
+					out.write(ch);
+				}
+				out.write('"');
+			}
+			out.write("\r\n");
+		}
+	}//end Csv
+
+	/* One JSON object per line. */
+	static final class JsonLines extends ResultRenderer{
+		@Override
+		protected void header(Writer out, String[] names){
+			// every row names its columns
+		}
+
+		@Override
+		protected void row(Writer out, String[] names, boolean[] unquoted, String[] values) throws IOException {
+			out.write('{');
+			for(int c = 0; c < values.length; ++c){
+				if(c > 0) out.write(',');
+				string(out, names[c]);
+				out.write(':');
+				String v = values[c];
+				if(v == null){
+					out.write("null");
+				}else if(unquoted[c]){
+					// Postgres spells booleans t/f
+					out.write(v.equals("t") ? "true" : v.equals("f") ? "false" : v);
+				}else{
+					string(out, v);
+				}
+			}
+			out.write("}\n");
+		}
+
+		private static void string(Writer out, String v) throws IOException {
+			out.write('"');
+			for(int i = 0; i < v.length(); ++i){
+				char ch = v.charAt(i);
+				switch(ch){
+					case '"': out.write("\\\""); break;
+					case '\\': out.write("\\\\"); break;
+					case '\n': out.write("\\n"); break;
+					case '\r': out.write("\\r"); break;
+					case '\t': out.write("\\t"); break;
+					default:
+						if(ch < 0x20){
+							out.write(String.format("\\u%04x", (int)ch));
+						}else{
+							out.write(ch);
+						}
+				}
+			}
+			out.write('"');
+		}
+	}//end JsonLines
+
+	/**
+	 * Exports a query: java ResultRenderer dbname port user table|tsv|csv|jsonl file query
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 6){
+			System.err.println("Usage: java [-classpath <classpath>] " + ResultRenderer.class.getName() +
+				" <dbname> <port> <user> <table|tsv|csv|jsonl> <file> <query>");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		Connection conn = DriverManager.getConnection("jdbc:postgresql://localhost:" + args[1] + "/" + args[0], args[2], "");
+		try{
+			long start = System.currentTimeMillis();
+			long rows = of(Format.valueOf(args[3].toUpperCase())).export(conn, args[5], Paths.get(args[4]));
+			long millis = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println("Exported " + rows + " rows in " + millis + " ms (" + rows * 1000 / millis + " rows/s)");
+		}finally{
+			conn.close();
+		}
+	}
+}//end ResultRenderer
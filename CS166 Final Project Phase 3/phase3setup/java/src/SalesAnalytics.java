@@ -0,0 +1,404 @@
+/*
+ * Revenue and occupancy analytics for Ticketmaster
+ * ================================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * This class answers revenue and occupancy questions (revenue, seats sold,
+ * occupancy, average seat price) per show, movie, cinema, city and day
+ * without touching the OLTP tables per request.
+ *
+ * refresh() streams one snapshot of ShowSeats and Payments into primitive
+ * columns, aggregates them per show with a parallel fork-join reduction,
+ * and rolls the per-show totals up into one map per dimension.  Between
+ * refreshes the rollups are kept current by the on* booking hooks, which
+ * update LongAdder/DoubleAdder cells without locking.  A refresh replaces
+ * the incremental state, so it is also the point where any drift is
+ * reconciled.  Its snapshot is cut against the event log, and only the
+ * events after the cut are applied to the new state, so no write is
+ * counted twice or missed; events arriving during a refresh wait for it.
+ *
+ * Revenue is the sum of Payments.amount not reversed; average price is over the
+ * ShowSeats.price of sold seats; occupancy is sold seats over all
+ * ShowSeats rows of the show.
+ *
+ */
+
+public class SalesAnalytics{
+	public enum Dimension{ SHOW, MOVIE, CINEMA, CITY, DAY }
+
+	private static final int FETCH_SIZE = 10000;
+
+	/** Immutable totals for one key of one dimension. */
+	public static class Stats{
+		public final long key;
+		public final double revenue;
+		public final long seatsSold;
+		public final long seats;
+		private final double soldPriceSum;
+
+		Stats(long key, double revenue, long seatsSold, long seats, double soldPriceSum){
+			this.key = key;
+			this.revenue = revenue;
+			this.seatsSold = seatsSold;
+			this.seats = seats;
+			this.soldPriceSum = soldPriceSum;
+		}
+
+		public double occupancy(){ return seats == 0 ? 0 : 100.0 * seatsSold / seats; }
+		public double averagePrice(){ return seatsSold == 0 ? 0 : soldPriceSum / seatsSold; }
+
+		@Override
+		public String toString(){
+			return String.format("%d\t%.2f\t%d\t%d\t%.1f%%\t%.2f",
+				key, revenue, seatsSold, seats, occupancy(), averagePrice());
+		}
+	}//end Stats
+
+	/* Mutable, lock-free totals behind a Stats. */
+	private static final class Cell{
+		final DoubleAdder revenue = new DoubleAdder();
+		final LongAdder seatsSold = new LongAdder();
+		final LongAdder seats = new LongAdder();
+		final DoubleAdder soldPriceSum = new DoubleAdder();
+
+		Stats snapshot(long key){
+			return new Stats(key, revenue.sum(), seatsSold.sum(), seats.sum(), soldPriceSum.sum());
+		}
+	}//end Cell
+
+	/* One generation of rollups; swapped as a whole by refresh(). */
+	private static final class State{
+		// sid -> {mvid, cid, city_id, epoch day}
+		final Map<Long, long[]> shows = new ConcurrentHashMap<Long, long[]>();
+		final List<Map<Long, Cell>> rollups = new ArrayList<Map<Long, Cell>>();
+
+		State(){
+			for(int d = 0; d < Dimension.values().length; ++d){
+				rollups.add(new ConcurrentHashMap<Long, Cell>());
+			}
+		}
+
+		/* Applies a delta to the show and every rollup it belongs to. */
+		void add(long sid, double revenue, long sold, long seats, double soldPrice){
+			long[] dims = shows.get(sid);
+			long[] keys = dims == null
+				? new long[]{ sid, -1, -1, -1, -1 }
+				: new long[]{ sid, dims[0], dims[1], dims[2], dims[3] };
+			for(int d = 0; d < keys.length; ++d){
+				Cell c = rollups.get(d).computeIfAbsent(keys[d], k -> new Cell());
+				if(revenue != 0) c.revenue.add(revenue);
+				if(sold != 0) c.seatsSold.add(sold);
+				if(seats != 0) c.seats.add(seats);
+				if(soldPrice != 0) c.soldPriceSum.add(soldPrice);
+			}
+		}
+	}//end State
+
+	/* Per-show partial sums produced by one fork-join task. */
+	private static final class Partial{
+		final long[] sold, seats;
+		final double[] soldPrice, revenue;
+
+		Partial(int shows){
+			sold = new long[shows];
+			seats = new long[shows];
+			soldPrice = new double[shows];
+			revenue = new double[shows];
+		}
+
+		Partial merge(Partial o){
+			for(int i = 0; i < sold.length; ++i){
+				sold[i] += o.sold[i];
+				seats[i] += o.seats[i];
+				soldPrice[i] += o.soldPrice[i];
+				revenue[i] += o.revenue[i];
+			}
+			return this;
+		}
+	}//end Partial
+
+	private final Ticketmaster esql;
+	private volatile State state = new State();
+	private volatile long refreshedAt;
+	private long logOffset;   // first event the current state does not reflect
+
+	public SalesAnalytics(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Rebuilds every rollup from one consistent snapshot of the database,
+	 * read on a connection of its own so a transaction the client has open,
+	 * such as a batch group's, is left alone.
+	 *
+	 * @return milliseconds the refresh took
+	 * @throws java.sql.SQLException when a snapshot query fails
+	 */
+	public synchronized long refresh() throws SQLException {
+		long start = System.currentTimeMillis();
+		State next = new State();
+		Connection conn = esql.openConnection();
+		// dense show index for the primitive columns
+		Map<Long, Integer> index = new HashMap<Long, Integer>();
+		List<Long> sids = new ArrayList<Long>();
+		int[] seatShow, payShow;
+		float[] seatPrice, payAmount;
+		boolean[] seatSold;
+		long from;
+		try{
+			conn.setAutoCommit(false);
+			conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+			EventLog events = esql.getEvents();
+			from = events == null ? 0 : events.cut(conn);
+			Statement stmt = conn.createStatement();
+			stmt.setFetchSize(FETCH_SIZE);
+			try{
+				// a show playing in several theaters is attributed to the first one
+				ResultSet rs = stmt.executeQuery(
+					"SELECT DISTINCT ON (S.sid) S.sid, S.mvid, S.sdate, T.cid, C.city_id\n" +
+					"FROM Shows S, Plays P, Theaters T, Cinemas C\n" +
+					"WHERE P.sid = S.sid AND T.tid = P.tid AND C.cid = T.cid\n" +
+					"ORDER BY S.sid, P.tid");
+				while(rs.next()){
+					long sid = rs.getLong(1);
+					next.shows.put(sid, new long[]{ rs.getLong(2), rs.getLong(4), rs.getLong(5),
+						rs.getDate(3).toLocalDate().toEpochDay() });
+					index.put(sid, sids.size());
+					sids.add(sid);
+				}
+				rs.close();
+
+				IntColumn show = new IntColumn();
+				FloatColumn price = new FloatColumn();
+				BoolColumn sold = new BoolColumn();
+				rs = stmt.executeQuery("SELECT sid, price, bid IS NOT NULL FROM ShowSeats");
+				while(rs.next()){
+					show.add(indexOf(index, sids, rs.getLong(1)));
+					price.add(rs.getFloat(2));
+					sold.add(rs.getBoolean(3));
+				}
+				rs.close();
+				seatShow = show.toArray();
+				seatPrice = price.toArray();
+				seatSold = sold.toArray();
+
+				IntColumn pShow = new IntColumn();
+				FloatColumn amount = new FloatColumn();
+				rs = stmt.executeQuery("SELECT B.sid, P.amount FROM Payments P, Bookings B WHERE B.bid = P.bid AND P.reversed IS NULL");
+				while(rs.next()){
+					pShow.add(indexOf(index, sids, rs.getLong(1)));
+					amount.add(rs.getFloat(2));
+				}
+				rs.close();
+				payShow = pShow.toArray();
+				payAmount = amount.toArray();
+			}finally{
+				stmt.close();
+			}
+			conn.commit();
+		}finally{
+			conn.close();
+		}
+
+		Partial totals = aggregate(sids.size(), seatShow, seatPrice, seatSold, payShow, payAmount);
+		// roll the per-show totals up; shows are independent, so in parallel
+		IntStream.range(0, sids.size()).parallel().forEach(i ->
+			next.add(sids.get(i), totals.revenue[i], totals.sold[i], totals.seats[i], totals.soldPrice[i]));
+		state = next;
+		logOffset = from;
+		refreshedAt = System.currentTimeMillis();
+		return refreshedAt - start;
+	}
+
+	private static int indexOf(Map<Long, Integer> index, List<Long> sids, long sid){
+		Integer i = index.get(sid);
+		if(i == null){
+			// seats or payments of a show that plays nowhere still count
+			i = sids.size();
+			index.put(sid, i);
+			sids.add(sid);
+		}
+		return i;
+	}
+
+	/*
+	 * Fork-join reduction over the primitive columns: the rows are split
+	 * into one contiguous range per core, each task sums its range into its
+	 * own per-show arrays, and the partials are merged pairwise.
+	 */
+	static Partial aggregate(final int shows, final int[] seatShow, final float[] seatPrice, final boolean[] seatSold,
+	                         final int[] payShow, final float[] payAmount){
+		final int tasks = Runtime.getRuntime().availableProcessors();
+		return IntStream.range(0, tasks).parallel().mapToObj(t -> {
+			Partial p = new Partial(shows);
+			int end = (int)((long)seatShow.length * (t + 1) / tasks);
+			for(int i = (int)((long)seatShow.length * t / tasks); i < end; ++i){
+				int s = seatShow[i];
+				p.seats[s]++;
+				if(seatSold[i]){
+					p.sold[s]++;
+					p.soldPrice[s] += seatPrice[i];
+				}
+			}
+			end = (int)((long)payShow.length * (t + 1) / tasks);
+			for(int i = (int)((long)payShow.length * t / tasks); i < end; ++i){
+				p.revenue[payShow[i]] += payAmount[i];
+			}
+			return p;
+		}).reduce(Partial::merge).orElse(new Partial(shows));
+	}
+
+	/*
+	 * Incremental hooks, called after the corresponding write commits.
+	 */
+
+	/** A show was created with the given number of ShowSeats rows. */
+	public void onShowAdded(long sid, long mvid, LocalDate sdate, long cid, long cityId, long seats){
+		State s = state;
+		s.shows.put(sid, new long[]{ mvid, cid, cityId, sdate.toEpochDay() });
+		s.add(sid, 0, 0, seats, 0);
+	}
+
+	/** A show seat was assigned to a booking. */
+	public void onSeatSold(long sid, double price){
+		state.add(sid, 0, 1, 0, price);
+	}
+
+	/** A show seat was released by a booking. */
+	public void onSeatReleased(long sid, double price){
+		state.add(sid, 0, -1, 0, -price);
+	}
+
+	/** A payment for a booking of the show was recorded. */
+	public void onPayment(long sid, double amount){
+		state.add(sid, amount, 0, 0, 0);
+	}
+
+	/** A payment for a booking of the show was removed or reversed. */
+	public void onPaymentReversed(long sid, double amount){
+		state.add(sid, -amount, 0, 0, 0);
+	}
+
+	/**
+	 * Applies one event of the event log, unless the last refresh's
+	 * snapshot already reflects it.
+	 *
+	 * @param e the event
+	 */
+	public synchronized void apply(EventLog.Event e){
+		if(e.offset < logOffset) return;
+		switch(e.type){
+			case SEAT_CLAIMED: onSeatSold(e.sid, e.value); break;
+			case SEAT_RELEASED: onSeatReleased(e.sid, e.value); break;
+			case PAYMENT_RECORDED: onPayment(e.sid, e.value); break;
+			case PAYMENT_REMOVED: onPaymentReversed(e.sid, e.value); break;
+			case SHOW_REMOVED: onShowRemoved(e.sid); break;
+			default: break;
+		}
+	}
+
+	/** @return the offset of the first event of the log the rollups do not reflect */
+	public synchronized long logOffset(){
+		return logOffset;
+	}
+
+	/** The show and all its seats were removed. */
+	public void onShowRemoved(long sid){
+		State s = state;
+		Cell c = s.rollups.get(Dimension.SHOW.ordinal()).get(sid);
+		if(c == null) return;
+		Stats st = c.snapshot(sid);
+		s.add(sid, -st.revenue, -st.seatsSold, -st.seats, -st.soldPriceSum);
+		s.rollups.get(Dimension.SHOW.ordinal()).remove(sid);
+		s.shows.remove(sid);
+	}
+
+	/*
+	 * Dashboard queries: map lookups over the current rollups.
+	 */
+
+	/**
+	 * @param dim the dimension
+	 * @param key sid, mvid, cid, city_id, or epoch day for DAY
+	 * @return the totals, or null when the key has no data
+	 */
+	public Stats get(Dimension dim, long key){
+		Cell c = state.rollups.get(dim.ordinal()).get(key);
+		return c == null ? null : c.snapshot(key);
+	}
+
+	/**
+	 * @param dim the dimension
+	 * @param n number of entries
+	 * @return the n keys with the highest revenue, highest first
+	 */
+	public List<Stats> topByRevenue(Dimension dim, int n){
+		Map<Long, Cell> rollup = state.rollups.get(dim.ordinal());
+		List<Stats> all = new ArrayList<Stats>(rollup.size());
+		for(Map.Entry<Long, Cell> e : rollup.entrySet()){
+			all.add(e.getValue().snapshot(e.getKey()));
+		}
+		Collections.sort(all, new Comparator<Stats>(){
+			public int compare(Stats a, Stats b){
+				return Double.compare(b.revenue, a.revenue);
+			}
+		});
+		return all.size() > n ? all.subList(0, n) : all;
+	}
+
+	/** @return the time of the last refresh, 0 if never refreshed */
+	public long refreshedAt(){
+		return refreshedAt;
+	}
+
+	/*
+	 * Growable primitive columns for the snapshot load.
+	 */
+
+	private static final class IntColumn{
+		int[] v = new int[1024];
+		int n;
+		void add(int x){ if(n == v.length) v = Arrays.copyOf(v, n * 2); v[n++] = x; }
+		int[] toArray(){ return Arrays.copyOf(v, n); }
+	}//end IntColumn
+
+	private static final class FloatColumn{
+		float[] v = new float[1024];
+		int n;
+		void add(float x){ if(n == v.length) v = Arrays.copyOf(v, n * 2); v[n++] = x; }
+		float[] toArray(){ return Arrays.copyOf(v, n); }
+	}//end FloatColumn
+
+	private static final class BoolColumn{
+		boolean[] v = new boolean[1024];
+		int n;
+		void add(boolean x){ if(n == v.length) v = Arrays.copyOf(v, n * 2); v[n++] = x; }
+		boolean[] toArray(){ return Arrays.copyOf(v, n); }
+	}//end BoolColumn
+}//end SalesAnalytics
@@ -0,0 +1,463 @@
+/*
+ * Seat-map layout and best-available selection for Ticketmaster
+ * =============================================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps an in-memory seat map per show and offers the best
+ * block of N adjacent free seats.
+ *
+ * CinemaSeats only records a seat number and type per theater, so the
+ * layout is derived: seats are laid out in seat-number order in rows of
+ * rowWidth(seats) seats, row A at the screen.  Each show keeps BitSets of
+ * free and held positions, and each layout keeps one BitSet per seat type,
+ * so a search is a few word-wise ANDs plus a scan of the runs in each row.
+ *
+ * Offers are holds: offer() marks the chosen seats held under the show's
+ * lock, so concurrent callers are never offered the same block.  A hold is
+ * confirmed once the seats are booked in the database, released when the
+ * user declines, and lapses by itself after its time to live.
+ *
+ * A show is loaded once, however many callers miss it at the same time.
+ * Repricing or a seat taken behind the map's back marks it stale, and the
+ * next offer reloads it: its live holds move over to the new inventory,
+ * so their seats are not offered twice.
+ *
+ */
+
+public class SeatMap{
+	private static final long HOLD_MILLIS = 5 * 60 * 1000;
+
+	/** Seat positions of one theater. */
+	static final class Layout{
+		final long tid;
+		final int rows, width, size;
+		final long[] csid;            // by position
+		final Map<String, BitSet> byType = new HashMap<String, BitSet>();
+		final Map<Long, Integer> position = new HashMap<Long, Integer>();
+
+		Layout(long tid, List<long[]> seats, List<String> types){
+			this.tid = tid;
+			int maxSno = 0;
+			for(long[] s : seats) maxSno = Math.max(maxSno, (int)s[1]);
+			size = maxSno;
+			width = rowWidth(size);
+			rows = (size + width - 1) / width;
+			csid = new long[size];
+			for(int i = 0; i < seats.size(); ++i){
+				int p = (int)seats.get(i)[1] - 1;
+				csid[p] = seats.get(i)[0];
+				position.put(csid[p], p);
+				BitSet t = byType.get(types.get(i));
+				if(t == null) byType.put(types.get(i), t = new BitSet(size));
+				t.set(p);
+			}
+		}
+
+		String label(int p){
+			// rows A..Z, then AA, AB, ...
+			StringBuilder row = new StringBuilder();
+			for(int r = p / width + 1; r > 0; r = (r - 1) / 26){
+				row.insert(0, (char)('A' + (r - 1) % 26));
+			}
+			return row.append(p % width + 1).toString();
+		}
+	}//end Layout
+
+	/** Seat inventory of one show. */
+	static final class Show{
+		final long sid;
+		final Layout layout;
+		final long[] ssid;                 // by position, 0 when the show has no such seat
+		final float[] price;               // by position
+		final BitSet free = new BitSet();
+		final BitSet held = new BitSet();
+		final Map<Float, BitSet> byPrice = new HashMap<Float, BitSet>();
+		final Map<Long, Integer> bySsid = new HashMap<Long, Integer>();
+		final List<Hold> holds = new ArrayList<Hold>();
+		volatile boolean stale;            // reload on the next offer
+		boolean replaced;                  // under the lock: a reload took over the holds
+
+		Show(long sid, Layout layout){
+			this.sid = sid;
+			this.layout = layout;
+			ssid = new long[layout.size];
+			price = new float[layout.size];
+		}
+	}//end Show
+
+	/** A block of seats held for one caller. */
+	public static final class Hold{
+		public final long id;
+		public final long sid;
+		final int[] positions;
+		final long expires;
+		private volatile Show show;        // moves to the new Show when one is reloaded
+
+		Hold(long id, Show show, int[] positions, long expires){
+			this.id = id;
+			this.sid = show.sid;
+			this.show = show;
+			this.positions = positions;
+			this.expires = expires;
+		}
+
+		public long[] ssids(){
+			long[] v = new long[positions.length];
+			for(int i = 0; i < v.length; ++i) v[i] = show.ssid[positions[i]];
+			return v;
+		}
+
+		public float price(){
+			return show.price[positions[0]];
+		}
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			for(int p : positions){
+				sb.append(sb.length() == 0 ? "" : " ").append(show.layout.label(p));
+			}
+			return sb + " (" + positions.length + " x " + price() + ")";
+		}
+	}//end Hold
+
+	private final Ticketmaster esql;
+	private final Map<Long, Layout> layouts = new ConcurrentHashMap<Long, Layout>();
+	private final Map<Long, Show> shows = new ConcurrentHashMap<Long, Show>();
+	private final AtomicLong nextHold = new AtomicLong(1);
+
+	/* Carries a failed load out of computeIfAbsent. */
+	private static final class LoadFailure extends RuntimeException{
+		private static final long serialVersionUID = 1L;
+
+		LoadFailure(SQLException e){
+			super(e);
+		}
+	}//end LoadFailure
+
+	public SeatMap(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/** Seats per row for a theater: roughly twice as wide as deep. */
+	static int rowWidth(int seats){
+		return Math.max(1, Math.min(seats, (int)Math.ceil(Math.sqrt(seats * 2.0))));
+	}
+
+	private Layout layout(long tid) throws SQLException {
+		Layout l = layouts.get(tid);
+		if(l == null){
+			List<long[]> seats = new ArrayList<long[]>();
+			List<String> types = new ArrayList<String>();
+			for(List<String> row : esql.executeQueryAndReturnResult(
+					"SELECT csid, sno, stype FROM CinemaSeats WHERE tid = " + tid + ";")){
+				seats.add(new long[]{ Long.parseLong(row.get(0)), Long.parseLong(row.get(1)) });
+				types.add(row.get(2).trim());
+			}
+			l = new Layout(tid, seats, types);
+			layouts.put(tid, l);
+		}
+		return l;
+	}
+
+	/* Reads a show's seat inventory, or null when it has no seats. */
+	private Show read(long sid) throws SQLException {
+		// the show's date, so only its month's ShowSeats partition is scanned
+		List<List<String>> rows = esql.executeQueryAndReturnResult(
+			"SELECT A.ssid, A.csid, A.price, A.bid, C.tid\nFROM ShowSeats A, CinemaSeats C\n" +
+			"WHERE A.sid = " + sid + " AND A.sdate = (SELECT sdate FROM Shows WHERE sid = " + sid + ") AND C.csid = A.csid;");
+		if(rows.isEmpty()) return null;
+		Show s = new Show(sid, layout(Long.parseLong(rows.get(0).get(4))));
+		for(List<String> row : rows){
+			Integer p = s.layout.position.get(Long.parseLong(row.get(1)));
+			if(p == null) continue;
+			s.ssid[p] = Long.parseLong(row.get(0));
+			s.price[p] = Float.parseFloat(row.get(2));
+			s.bySsid.put(s.ssid[p], p);
+			if(row.get(3) == null) s.free.set(p);
+			BitSet t = s.byPrice.get(s.price[p]);
+			if(t == null) s.byPrice.put(s.price[p], t = new BitSet(s.layout.size));
+			t.set(p);
+		}
+		return s;
+	}
+
+	/**
+	 * Loads (or reloads) a show's seat inventory from ShowSeats.  The live
+	 * holds of an inventory already loaded move over to the new one.
+	 *
+	 * @param sid the show
+	 * @return false when the show has no seats
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public boolean load(long sid) throws SQLException {
+		Show fresh = read(sid);
+		if(fresh == null){
+			// removed: its holds cannot be booked any more
+			Show old = shows.remove(sid);
+			if(old != null) replace(old, null);
+			return false;
+		}
+		shows.compute(sid, (k, old) -> {
+			if(old != null) replace(old, fresh);
+			return fresh;
+		});
+		return true;
+	}
+
+	/* Retires an inventory, moving its live holds to the one replacing it, if any. */
+	private static void replace(Show old, Show fresh){
+		synchronized(old){
+			old.replaced = true;
+			if(fresh == null) return;
+			expireHolds(old);
+			synchronized(fresh){
+				for(Hold h : old.holds){
+					for(int p : h.positions) fresh.held.set(p);
+					fresh.holds.add(h);
+					h.show = fresh;
+				}
+			}
+		}
+	}
+
+	private Show show(long sid) throws SQLException {
+		Flight.Cache event = new Flight.Cache();
+		event.begin();
+		Show s = shows.get(sid);
+		boolean hit = s != null && !s.stale;
+		if(s == null){
+			try{
+				s = shows.computeIfAbsent(sid, k -> {
+					try{
+						return read(k);
+					}catch(SQLException e){
+						throw new LoadFailure(e);
+					}
+				});
+			}catch(LoadFailure e){
+				throw (SQLException)e.getCause();
+			}
+		}else if(s.stale){
+			s = load(sid) ? shows.get(sid) : null;
+		}
+		Flight.lookup(event, "seat-map", sid, hit);
+		return s;
+	}
+
+	/**
+	 * Finds the best block of n adjacent free seats in one row, all of the
+	 * same type and price, and holds it.  The best block is the one closest
+	 * to the ideal seat: centered, two thirds of the way back.
+	 *
+	 * @param sid the show
+	 * @param n number of seats
+	 * @param stype seat type, or null for any
+	 * @param maxPrice highest acceptable price per seat, or 0 for any
+	 * @return the hold, or null when no such block is free
+	 * @throws java.sql.SQLException when the show has to be loaded and the query fails
+	 */
+	public Hold offer(long sid, int n, String stype, float maxPrice) throws SQLException {
+		for(;;){
+			Show s = show(sid);
+			if(s == null || n <= 0) return null;
+			Hold h = offer(s, n, stype, maxPrice);
+			if(h != null || !s.replaced) return h;
+			// reloaded while searching; search the new inventory
+		}
+	}
+
+	private Hold offer(Show s, int n, String stype, float maxPrice){
+		synchronized(s){
+			if(s.replaced) return null;
+			expireHolds(s);
+			int best = -1;
+			double bestScore = Double.MAX_VALUE;
+			List<String> types = new ArrayList<String>();
+			if(stype != null){
+				types.add(stype);
+			}else{
+				types.addAll(s.layout.byType.keySet());
+			}
+			for(String type : types){
+				BitSet typeMask = s.layout.byType.get(type);
+				if(typeMask == null) continue;
+				for(Map.Entry<Float, BitSet> tier : s.byPrice.entrySet()){
+					if(maxPrice > 0 && tier.getKey() > maxPrice) continue;
+					BitSet candidate = (BitSet)s.free.clone();
+					candidate.andNot(s.held);
+					candidate.and(typeMask);
+					candidate.and(tier.getValue());
+					int start = bestBlock(s.layout, candidate, n);
+					// equal positions go to the cheaper tier
+					double score = start < 0 ? Double.MAX_VALUE : score(s.layout, start, n) + tier.getKey() * 1e-3;
+					if(score < bestScore){
+						bestScore = score;
+						best = start;
+					}
+				}
+			}
+			if(best < 0) return null;
+			int[] positions = new int[n];
+			for(int i = 0; i < n; ++i){
+				positions[i] = best + i;
+				s.held.set(positions[i]);
+			}
+			Hold h = new Hold(nextHold.getAndIncrement(), s, positions, System.currentTimeMillis() + HOLD_MILLIS);
+			s.holds.add(h);
+			return h;
+		}
+	}
+
+	/*
+	 * Scans every row for runs of candidate seats at least n long, and
+	 * returns the start of the best-scoring window, or -1.
+	 */
+	private static int bestBlock(Layout l, BitSet candidate, int n){
+		int bestStart = -1;
+		double bestScore = Double.MAX_VALUE;
+		for(int r = 0; r < l.rows; ++r){
+			int rowStart = r * l.width, rowEnd = Math.min(l.size, rowStart + l.width);
+			int p = candidate.nextSetBit(rowStart);
+			while(p >= 0 && p < rowEnd){
+				int runEnd = Math.min(rowEnd, candidate.nextClearBit(p));
+				if(runEnd - p >= n){
+					// the window inside the run closest to the row's center
+					int ideal = rowStart + (l.width - n) / 2;
+					int start = Math.max(p, Math.min(runEnd - n, ideal));
+					double score = score(l, start, n);
+					if(score < bestScore){
+						bestScore = score;
+						bestStart = start;
+					}
+				}
+				p = candidate.nextSetBit(runEnd);
+			}
+		}
+		return bestStart;
+	}
+
+	private static double score(Layout l, int start, int n){
+		int r = start / l.width;
+		double idealRow = (l.rows - 1) * 2.0 / 3.0;
+		double center = (l.width - 1) / 2.0;
+		double mid = start % l.width + (n - 1) / 2.0;
+		return Math.abs(r - idealRow) * 2 + Math.abs(mid - center);
+	}
+
+	private static void expireHolds(Show s){
+		long now = System.currentTimeMillis();
+		for(Iterator<Hold> it = s.holds.iterator(); it.hasNext();){
+			Hold h = it.next();
+			if(h.expires < now){
+				for(int p : h.positions) s.held.clear(p);
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Marks a hold's seats sold after they were booked in the database.
+	 *
+	 * @param h the hold
+	 */
+	public void confirm(Hold h){
+		for(;;){
+			Show s = h.show;
+			synchronized(s){
+				if(h.show != s) continue;
+				s.holds.remove(h);
+				for(int p : h.positions){
+					s.held.clear(p);
+					s.free.clear(p);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Gives a hold's seats back without booking them.
+	 *
+	 * @param h the hold
+	 */
+	public void release(Hold h){
+		for(;;){
+			Show s = h.show;
+			synchronized(s){
+				if(h.show != s) continue;
+				if(s.holds.remove(h)){
+					for(int p : h.positions) s.held.clear(p);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Updates a loaded show after a seat was claimed or released outside an
+	 * offer, e.g. by ChangeSeatsForBooking.
+	 *
+	 * @param sid the show
+	 * @param ssid the show seat
+	 * @param isFree whether the seat is now free
+	 */
+	public void setFree(long sid, long ssid, boolean isFree){
+		for(;;){
+			Show s = shows.get(sid);
+			if(s == null) return;
+			synchronized(s){
+				if(s.replaced) continue;
+				Integer p = s.bySsid.get(ssid);
+				if(p != null) s.free.set(p, isFree);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Applies one event of the event log, so seats claimed or released by
+	 * any write path show up in the loaded seat maps.
+	 *
+	 * @param e the event
+	 */
+	public void apply(EventLog.Event e){
+		switch(e.type){
+			case SEAT_CLAIMED: setFree(e.sid, e.ssid, false); break;
+			case SEAT_RELEASED: setFree(e.sid, e.ssid, true); break;
+			case SHOW_REMOVED:
+			case SEATS_REPRICED: evict(e.sid); break;
+			default: break;
+		}
+	}
+
+	/**
+	 * Marks a show's cached inventory stale, e.g. after it was removed or
+	 * repriced; the next offer reloads it and keeps its holds.
+	 *
+	 * @param sid the show
+	 */
+	public void evict(long sid){
+		Show s = shows.get(sid);
+		if(s != null) s.stale = true;
+	}
+}//end SeatMap
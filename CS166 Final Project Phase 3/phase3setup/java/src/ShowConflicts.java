@@ -0,0 +1,168 @@
+/*
+ * Show time-conflict detection for Ticketmaster
+ * =============================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class reports shows that would overlap in a theater.
+ *
+ * The rule itself lives in create.sql: every Plays row carries the time
+ * range its show occupies (show_slot(), set by trigger), and an exclusion
+ * constraint on (tid, slot) rejects any insert whose range overlaps another
+ * show in the same theater.  The constraint is backed by a GiST index, so
+ * both the check and conflicts() below are index searches rather than
+ * scans of the theater's shows, and it holds for the bulk scheduler, single
+ * inserts and concurrent clients alike.
+ *
+ */
+
+public class ShowConflicts{
+	/** SQLSTATE of an exclusion constraint violation. */
+	public static final String EXCLUSION_VIOLATION = "23P01";
+
+	private final Ticketmaster esql;
+
+	public ShowConflicts(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/**
+	 * Finds the shows a new show would overlap, so a caller can say so
+	 * before writing anything.
+	 *
+	 * @param tid the theater
+	 * @param sdate the show date
+	 * @param sttime the start time
+	 * @param edtime the end time; at or before sttime means past midnight
+	 * @return the overlapping show ids, empty when the slot is free
+	 * @throws java.sql.SQLException when the query fails
+	 */
+	public List<Long> conflicts(long tid, LocalDate sdate, LocalTime sttime, LocalTime edtime) throws SQLException {
+		List<Long> sids = new ArrayList<Long>();
+		for(List<String> row : esql.executeQueryAndReturnResult(String.format(
+				"SELECT sid FROM Plays WHERE tid = %d AND slot && show_slot('%s', '%s', '%s');",
+				tid, sdate, sttime, edtime))){
+			sids.add(Long.parseLong(row.get(0)));
+		}
+		return sids;
+	}
+
+	/**
+	 * @param e a failed insert
+	 * @return whether it failed because two shows overlap in a theater
+	 */
+	public static boolean isConflict(SQLException e){
+		return EXCLUSION_VIOLATION.equals(e.getSQLState());
+	}
+
+	/**
+	 * Rewrites an overlap failure into a message for the user; other
+	 * failures are returned unchanged.
+	 *
+	 * @param e a failed insert
+	 * @return the exception to report
+	 */
+	public static SQLException describe(SQLException e){
+		if(!isConflict(e)) return e;
+		return new SQLException("The show overlaps another show in the same theater: " + e.getMessage(),
+			e.getSQLState(), e);
+	}
+
+	/**
+	 * Benchmark: java ShowConflicts dbname port user [showsPerTheater]
+	 *
+	 * Fills one theater of a scratch table with up to showsPerTheater
+	 * back-to-back shows and reports the cost per insert as the theater
+	 * grows, once checked by the exclusion constraint and once by a naive
+	 * overlap query before each insert.  The scratch tables are dropped
+	 * afterwards.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		if(args.length < 3){
+			System.err.println("Usage: java [-classpath <classpath>] " + ShowConflicts.class.getName() +
+				" <dbname> <port> <user> [showsPerTheater]");
+			return;
+		}
+		Class.forName("org.postgresql.Driver");
+		int shows = args.length > 3 ? Integer.parseInt(args[3]) : 8000;
+		int step = Math.max(1, shows / 8);
+		Ticketmaster esql = new Ticketmaster(args[0], args[1], args[2], "");
+		Connection conn = esql.getConnection();
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.executeUpdate("DROP TABLE IF EXISTS conflict_bench_gist, conflict_bench_naive");
+			stmt.executeUpdate("CREATE TABLE conflict_bench_gist (tid BIGINT, slot TSRANGE, EXCLUDE USING gist (tid WITH =, slot WITH &&))");
+			stmt.executeUpdate("CREATE TABLE conflict_bench_naive (tid BIGINT, slot TSRANGE)");
+			PreparedStatement gist = conn.prepareStatement(
+				"INSERT INTO conflict_bench_gist VALUES (1, show_slot(?::DATE, ?::TIME, ?::TIME))");
+			PreparedStatement check = conn.prepareStatement(
+				"SELECT count(*) FROM conflict_bench_naive WHERE tid = 1 AND slot && show_slot(?::DATE, ?::TIME, ?::TIME)");
+			PreparedStatement naive = conn.prepareStatement(
+				"INSERT INTO conflict_bench_naive VALUES (1, show_slot(?::DATE, ?::TIME, ?::TIME))");
+			System.out.println("shows\texclusion us/insert\tnaive us/insert");
+			long gistNanos = 0, naiveNanos = 0;
+			int rejected = 0;
+			for(int i = 0; i < shows; ++i){
+				// eight two-hour shows a day, and every fourth one a retry of the previous slot
+				LocalDate d = LocalDate.of(2020, 1, 1).plusDays(i / 8);
+				LocalTime st = LocalTime.of(8, 0).plusHours(2 * (i % 8));
+				LocalTime ed = st.plusHours(2);
+				long t0 = System.nanoTime();
+				for(PreparedStatement ps : new PreparedStatement[]{ gist, check, naive }){
+					ps.setString(1, d.toString());
+					ps.setString(2, st.toString());
+					ps.setString(3, ed.toString());
+				}
+				gist.executeUpdate();
+				long t1 = System.nanoTime();
+				ResultSet rs = check.executeQuery();
+				rs.next();
+				if(rs.getLong(1) == 0) naive.executeUpdate();
+				rs.close();
+				long t2 = System.nanoTime();
+				if(i % 4 == 3){
+					try{
+						gist.executeUpdate();
+					}catch(SQLException e){
+						if(!isConflict(e)) throw e;
+						++rejected;
+					}
+				}
+				gistNanos += t1 - t0;
+				naiveNanos += t2 - t1;
+				if((i + 1) % step == 0){
+					System.out.printf("%d\t%.0f\t%.0f%n", i + 1, gistNanos / 1e3 / step, naiveNanos / 1e3 / step);
+					gistNanos = naiveNanos = 0;
+				}
+			}
+			System.out.println(rejected + " overlapping retries rejected");
+			gist.close();
+			check.close();
+			naive.close();
+			stmt.executeUpdate("DROP TABLE IF EXISTS conflict_bench_gist, conflict_bench_naive");
+		}finally{
+			stmt.close();
+			esql.cleanup();
+		}
+	}
+}//end ShowConflicts
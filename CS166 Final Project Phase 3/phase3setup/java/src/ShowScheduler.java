@@ -0,0 +1,214 @@
+/*
+ * Bulk show scheduling for Ticketmaster
+ * =====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Savepoint;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.io.IOException;
+import java.io.StringReader;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.postgresql.PGConnection;
+
+/**
+ * This class schedules a movie across many theaters in one transaction.
+ * Every (theater, date, start time) combination becomes a Shows row and a
+ * Plays row, and every CinemaSeats row of the theater becomes a ShowSeats
+ * row priced by its seat type, so the shows are bookable right away.
+ *
+ * The work is set-based: the shows are numbered on the client from
+ * reserved id blocks and sent in one COPY into a temp table; Shows, Plays
+ * and the whole seat inventory are then created by three INSERT ... SELECT
+ * statements, the seats numbered from reserved blocks with row_number().
+ * A show that overlaps another in its theater fails the Plays insert (see
+ * ShowConflicts), which rolls the whole schedule back.  Inside a
+ * transaction the caller has open, such as a batch group's, the schedule
+ * runs under a savepoint of it and the caller commits.
+ *
+ */
+
+public class ShowScheduler{
+	private final Ticketmaster esql;
+
+	public ShowScheduler(Ticketmaster esql){
+		this.esql = esql;
+	}
+
+	/** What one schedule() call created. */
+	public static class Result{
+		long shows, seats, millis;
+		long[] sids;
+
+		/** @return the new show ids, in theater, date, start time order */
+		public long[] sids(){
+			return sids;
+		}
+
+		@Override
+		public String toString(){
+			return "Scheduled " + shows + " shows with " + seats + " show seats in " + millis + " ms";
+		}
+	}//end Result
+
+	/**
+	 * Creates the shows, plays and show seats for a movie.
+	 *
+	 * @param mvid an existing movie
+	 * @param tids the theaters
+	 * @param dates the show dates
+	 * @param startTimes the start times, used on every date
+	 * @param length running time, or null for the movie's duration
+	 * @param prices price per seat type; seat types not listed cost defaultPrice
+	 * @param defaultPrice price of unlisted seat types
+	 * @return the number of shows and seats created
+	 * @throws java.sql.SQLException when a statement fails; nothing is created in that case,
+	 *         and a transaction the caller has open is left as it was
+	 */
+	public Result schedule(long mvid, List<Long> tids, List<LocalDate> dates, List<LocalTime> startTimes,
+	                       Duration length, Map<String, Float> prices, float defaultPrice) throws SQLException {
+		long start = System.currentTimeMillis();
+		Result result = new Result();
+		if(length == null){
+			List<List<String>> movie = esql.executeQueryAndReturnResult(
+				"SELECT COALESCE(duration, 0) FROM Movies WHERE mvid = " + mvid + ";");
+			if(movie.isEmpty()) throw new SQLException("Movie " + mvid + " does not exist");
+			length = Duration.ofSeconds(Long.parseLong(movie.get(0).get(0)));
+		}
+		long count = (long)tids.size() * dates.size() * startTimes.size();
+		if(count == 0) return result;
+
+		IdAllocator ids = esql.getIds();
+		long[] showBlocks = ids.reserve(IdAllocator.SHOWS, count);
+		int showBlock = ids.blockSize(IdAllocator.SHOWS);
+		StringBuilder copy = new StringBuilder((int)Math.min(Integer.MAX_VALUE, count * 48));
+		result.sids = new long[(int)count];
+		long n = 0;
+		for(long tid : tids){
+			for(LocalDate d : dates){
+				for(LocalTime t : startTimes){
+					long sid = showBlocks[(int)(n / showBlock)] + n % showBlock;
+					result.sids[(int)n] = sid;
+					copy.append(sid).append('\t').append(tid).append('\t').append(d).append('\t')
+					    .append(t).append('\t').append(t.plus(length)).append('\n');
+					++n;
+				}
+			}
+		}
+
+		Connection conn = esql.getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		Savepoint sp = autoCommit ? null : conn.setSavepoint();
+		Statement stmt = conn.createStatement();
+		try{
+			conn.setAutoCommit(false);
+			stmt.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS sched_shows (sid BIGINT, tid BIGINT, sdate DATE, sttime TIME, edtime TIME) ON COMMIT DELETE ROWS");
+			stmt.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS sched_prices (stype VARCHAR(16), price REAL) ON COMMIT DELETE ROWS");
+			// under a savepoint an earlier schedule's rows are not committed away
+			stmt.executeUpdate("TRUNCATE sched_shows, sched_prices");
+			try{
+				conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+					"COPY sched_shows (sid, tid, sdate, sttime, edtime) FROM STDIN", new StringReader(copy.toString()));
+				StringBuilder p = new StringBuilder();
+				for(Map.Entry<String, Float> e : prices.entrySet()){
+					p.append(e.getKey()).append('\t').append(e.getValue()).append('\n');
+				}
+				conn.unwrap(PGConnection.class).getCopyAPI().copyIn(
+					"COPY sched_prices (stype, price) FROM STDIN", new StringReader(p.toString()));
+			}catch(IOException e){
+				throw new SQLException("COPY of the schedule failed", e);
+			}
+			stmt.executeQuery("SELECT create_show_partitions(min(sdate), max(sdate)) FROM sched_shows").close();
+			result.shows = stmt.executeUpdate(
+				"INSERT INTO Shows (sid, mvid, sdate, sttime, edtime)\n" +
+				"SELECT sid, " + mvid + ", sdate, sttime, edtime FROM sched_shows");
+			stmt.executeUpdate("INSERT INTO Plays (sid, tid) SELECT sid, tid FROM sched_shows");
+
+			ResultSet rs = stmt.executeQuery(
+				"SELECT count(*) FROM sched_shows S, CinemaSeats C WHERE C.tid = S.tid");
+			rs.next();
+			long seats = rs.getLong(1);
+			rs.close();
+			long[] seatBlocks = ids.reserve(IdAllocator.SHOW_SEATS, seats);
+			int seatBlock = ids.blockSize(IdAllocator.SHOW_SEATS);
+			Long[] boxed = new Long[seatBlocks.length];
+			for(int i = 0; i < boxed.length; ++i) boxed[i] = seatBlocks[i];
+			Array blocks = conn.createArrayOf("bigint", boxed);
+			PreparedStatement ps = conn.prepareStatement(
+				"INSERT INTO ShowSeats (ssid, sid, csid, bid, price, sdate)\n" +
+				"SELECT (?::BIGINT[])[rn / " + seatBlock + " + 1] + rn % " + seatBlock + ", sid, csid, NULL, price, sdate\n" +
+				"FROM (SELECT row_number() OVER (ORDER BY S.sid, C.csid) - 1 AS rn, S.sid, C.csid, S.sdate,\n" +
+				"             COALESCE(P.price, ?) AS price\n" +
+				"      FROM sched_shows S JOIN CinemaSeats C ON C.tid = S.tid\n" +
+				"      LEFT JOIN sched_prices P ON P.stype = C.stype) X");
+			try{
+				ps.setArray(1, blocks);
+				ps.setFloat(2, defaultPrice);
+				result.seats = ps.executeUpdate();
+			}finally{
+				ps.close();
+			}
+			List<long[]> added = new ArrayList<long[]>();
+			if(esql.getAnalytics() != null){
+				rs = stmt.executeQuery(
+					"SELECT S.sid, S.sdate, T.cid, C.city_id, (SELECT count(*) FROM CinemaSeats CS WHERE CS.tid = S.tid)\n" +
+					"FROM sched_shows S JOIN Theaters T ON T.tid = S.tid JOIN Cinemas C ON C.cid = T.cid");
+				while(rs.next()){
+					added.add(new long[]{ rs.getLong(1), rs.getDate(2).toLocalDate().toEpochDay(),
+					                      rs.getLong(3), rs.getLong(4), rs.getLong(5) });
+				}
+				rs.close();
+			}
+			if(sp == null) conn.commit(); else conn.releaseSavepoint(sp);
+			for(long[] a : added){
+				esql.getAnalytics().onShowAdded(a[0], mvid, LocalDate.ofEpochDay(a[1]), a[2], a[3], a[4]);
+			}
+		}catch(SQLException e){
+			if(sp == null) conn.rollback(); else conn.rollback(sp);
+			throw ShowConflicts.describe(e);
+		}finally{
+			stmt.close();
+			conn.setAutoCommit(autoCommit);
+		}
+		result.millis = System.currentTimeMillis() - start;
+		return result;
+	}
+
+	/**
+	 * Parses "Regular=10,Premium=15" into seat type prices.
+	 *
+	 * @param spec the price list
+	 * @return the prices by seat type, in the order given
+	 * @throws NumberFormatException when a price is not a number
+	 * @throws IllegalArgumentException when an entry has no '='
+	 */
+	public static Map<String, Float> parsePrices(String spec){
+		Map<String, Float> prices = new LinkedHashMap<String, Float>();
+		for(String entry : spec.split(",")){
+			if(entry.trim().isEmpty()) continue;
+			int eq = entry.indexOf('=');
+			if(eq < 0) throw new IllegalArgumentException("Expected type=price, got " + entry);
+			prices.put(entry.substring(0, eq).trim(), Float.parseFloat(entry.substring(eq + 1).trim()));
+		}
+		return prices;
+	}
+}//end ShowScheduler
@@ -16,18 +16,32 @@ import java.sql.Connection;
 import java.sql.Statement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.Savepoint;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.io.File;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalTime;
 
 /**
  * This class defines a simple embedded SQL utility class that is designed to
@@ -38,7 +52,45 @@ import java.security.NoSuchAlgorithmException;
 public class Ticketmaster{
 	//reference to physical database connection
 	private Connection _connection = null;
-	static BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+	//revenue and occupancy rollups, loaded on first use
+	private SalesAnalytics _analytics = null;
+	//in-memory seat maps for best-available selection
+	private SeatMap _seatMap = null;
+	//k-d tree of cinema locations, built on first use
+	private CinemaLocator _cinemas = null;
+	//top shows per city over the last hour, built on first use
+	private TrendingShows _trending = null;
+	//prefix completions of movie titles and cinema names, loaded on first use
+	private Autocomplete _titles = null;
+	private Autocomplete _cinemaNames = null;
+	//hi/lo id blocks reserved from the sequences
+	private IdAllocator _ids = null;
+	//background cancelling of unpaid Pending bookings
+	private BookingExpiry _expiry = null;
+	//domain events of the write paths, followed by the caches
+	private volatile EventLog _events = null;
+	//events of the group transaction running now, published when it commits
+	private List<Object[]> _held = null;
+	//routes read-only operations to replicas, null without replicas
+	private ReplicaRouter _router = null;
+	//connection of the read-only operation running now, null otherwise
+	private Connection _reads = null;
+	//the shards when the data is split by city, null otherwise
+	private CityShards _shards = null;
+	//set while a read-only operation fans its queries out to every shard
+	private boolean _fanOut = false;
+	//how executeQueryAndPrintResult writes rows
+	private ResultRenderer _renderer = ResultRenderer.of(ResultRenderer.DEFAULT_FORMAT);
+	//admission control in front of bookings, created on first use
+	private WaitingRoom _room = null;
+	//statement timeouts and load shedding, created on first use
+	private QueryGuard _guard = null;
+	//the client a batch worker shares caches, ids and expiry with, null otherwise
+	private Ticketmaster _parent = null;
+	//kept to open further connections for background jobs
+	private String _dbname, _url, _user, _passwd;
+	//the keyboard, or a script line's answers on a batch worker thread
+	static BufferedReader in = new BatchRunner.Input(new InputStreamReader(System.in));
 	
 	public Ticketmaster(String dbname, String dbport, String user, String passwd) throws SQLException {
 		System.out.print("Connecting to database...");
@@ -49,6 +101,10 @@ public class Ticketmaster{
 			
 			// obtain a physical connection
 	        this._connection = DriverManager.getConnection(url, user, passwd);
+	        this._dbname = dbname;
+	        this._url = url;
+	        this._user = user;
+	        this._passwd = passwd;
 	        System.out.println("Done");
 		}catch(Exception e){
 			System.err.println("Error - Unable to Connect to Database: " + e.getMessage());
@@ -56,66 +112,73 @@ public class Ticketmaster{
 	        System.exit(-1);
 		}
 	}
+
+	/**
+	 * Connects to a database by its JDBC URL, e.g. one shard of a sharded
+	 * deployment.
+	 *
+	 * @param url the JDBC URL, ending in the database name
+	 * @param user the database user
+	 * @param passwd the password
+	 * @throws java.sql.SQLException when the connection fails
+	 */
+	public Ticketmaster(String url, String user, String passwd) throws SQLException {
+		this._connection = DriverManager.getConnection(url, user, passwd);
+		this._dbname = url.substring(url.lastIndexOf('/') + 1);
+		this._url = url;
+		this._user = user;
+		this._passwd = passwd;
+	}
 	
 	/**
 	 * Method to execute an update SQL statement.  Update SQL instructions
 	 * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
 	 * 
 	 * @param sql the input SQL string
+	 * @return the number of rows changed
 	 * @throws java.sql.SQLException when update failed
 	 * */
-	public void executeUpdate (String sql) throws SQLException { 
-		// creates a statement object
-		Statement stmt = this._connection.createStatement ();
-
-		// issues the update instruction
-		stmt.executeUpdate (sql);
-
-		// close the instruction
-	    stmt.close ();
+	public int executeUpdate (String sql) throws SQLException { 
+		// issues the update instruction on a statement with the
+		// operation's timeout; the statement is closed afterwards
+		return guarded(this._connection, sql, stmt -> stmt.executeUpdate (sql));
 	}//end executeUpdate
 
 	/**
 	 * Method to execute an input query SQL instruction (i.e. SELECT).  This
 	 * method issues the query to the DBMS and outputs the results to
-	 * standard out.
+	 * standard out, in the renderer's format.
 	 * 
 	 * @param query the input query string
 	 * @return the number of rows returned
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQueryAndPrintResult (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		//rows are written in large chunks, not once per column
+		Writer out = ResultRenderer.console();
+		try{
+			if(this._fanOut) return (int)this._renderer.render(this._shards.query(query), out);
+		}catch(IOException e){
+			throw new SQLException("Unable to print the result: " + e.getMessage(), e);
+		}
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+		return guarded(queryConnection(), query, stmt -> {
+			try{
+				//issues the query instruction and streams the rows out
+				return (int)this._renderer.render(stmt.executeQuery (query), out);
+			}catch(IOException e){
+				throw new SQLException("Unable to print the result: " + e.getMessage(), e);
+			}
+		});
+	}
 
-		/*
-		 *  obtains the metadata object for the returned result set.  The metadata
-		 *  contains row and column info.
-		 */
-		ResultSetMetaData rsmd = rs.getMetaData ();
-		int numCol = rsmd.getColumnCount ();
-		int rowCount = 0;
-		
-		//iterates through the result set and output them to standard out.
-		boolean outputHeader = true;
-		while (rs.next()){
-			if(outputHeader){
-				for(int i = 1; i <= numCol; i++){
-					System.out.print(rsmd.getColumnName(i) + "\t");
-			    }
-			    System.out.println();
-			    outputHeader = false;
-			}
-			for (int i=1; i<=numCol; ++i)
-				System.out.print (rs.getString (i) + "\t");
-			System.out.println ();
-			++rowCount;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/**
+	 * Method to set how executeQueryAndPrintResult writes rows.
+	 *
+	 * @param renderer the renderer
+	 */
+	public void setRenderer(ResultRenderer renderer){
+		this._renderer = renderer;
 	}
 	
 	/**
@@ -128,31 +191,29 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException { 
-		//creates a statement object 
-		Statement stmt = this._connection.createStatement (); 
-		
-		//issues the query instruction 
-		ResultSet rs = stmt.executeQuery (query); 
-	 
-		/*
-		 * obtains the metadata object for the returned result set.  The metadata 
-		 * contains row and column info. 
-		*/ 
-		ResultSetMetaData rsmd = rs.getMetaData (); 
-		int numCol = rsmd.getColumnCount (); 
-		int rowCount = 0; 
-	 
-		//iterates through the result set and saves the data returned by the query. 
-		boolean outputHeader = false;
-		List<List<String>> result  = new ArrayList<List<String>>(); 
-		while (rs.next()){
-			List<String> record = new ArrayList<String>(); 
-			for (int i=1; i<=numCol; ++i) 
-				record.add(rs.getString (i)); 
-			result.add(record); 
-		}//end while 
-		stmt.close (); 
-		return result; 
+		if(this._fanOut) return this._shards.query(query).rows;
+
+		return guarded(queryConnection(), query, stmt -> {
+			//issues the query instruction 
+			ResultSet rs = stmt.executeQuery (query); 
+		 
+			/*
+			 * obtains the metadata object for the returned result set.  The metadata 
+			 * contains row and column info. 
+			*/ 
+			ResultSetMetaData rsmd = rs.getMetaData (); 
+			int numCol = rsmd.getColumnCount (); 
+		 
+			//iterates through the result set and saves the data returned by the query. 
+			List<List<String>> result  = new ArrayList<List<String>>(); 
+			while (rs.next()){
+				List<String> record = new ArrayList<String>(); 
+				for (int i=1; i<=numCol; ++i) 
+					record.add(rs.getString (i)); 
+				result.add(record); 
+			}//end while 
+			return result; 
+		});
 	}//end executeQueryAndReturnResult
 	
 	/**
@@ -164,20 +225,158 @@ public class Ticketmaster{
 	 * @throws java.sql.SQLException when failed to execute the query
 	 */
 	public int executeQuery (String query) throws SQLException {
-		//creates a statement object
-		Statement stmt = this._connection.createStatement ();
+		return guarded(this._connection, query, stmt -> {
+			//issues the query instruction
+			ResultSet rs = stmt.executeQuery (query);
 
-		//issues the query instruction
-		ResultSet rs = stmt.executeQuery (query);
+			int rowCount = 0;
 
-		int rowCount = 0;
+			//iterates through the result set and count nuber of results.
+			if(rs.next()){
+				rowCount++;
+			}//end while
+			return rowCount;
+		});
+	}
 
-		//iterates through the result set and count nuber of results.
-		if(rs.next()){
-			rowCount++;
-		}//end while
-		stmt.close ();
-		return rowCount;
+	/*
+	 * Work done with one statement.
+	 */
+	private interface StatementWork<T>{
+		T run(Statement stmt) throws SQLException;
+	}
+
+	/*
+	 * Runs work on a statement that carries the running operation's
+	 * timeout, records how long it took, and closes the statement.  A
+	 * flight recording gets the statement, its rows and how long getting
+	 * the statement took.
+	 */
+	private <T> T guarded(Connection conn, String sql, StatementWork<T> work) throws SQLException {
+		QueryGuard guard = getGuard();
+		Flight.Sql event = new Flight.Sql();
+		event.begin();
+		long start = System.nanoTime();
+		Statement stmt;
+		try{
+			stmt = guard.createStatement(conn);
+		}catch(SQLException e){
+			commit(event, sql, System.nanoTime() - start, -1, e);
+			throw e;
+		}
+		long created = System.nanoTime();
+		SQLException failure = null;
+		T result = null;
+		try{
+			return result = work.run(stmt);
+		}catch(SQLException e){
+			failure = e;
+			throw e;
+		}finally{
+			guard.record(System.nanoTime() - created, failure);
+			stmt.close();
+			commit(event, sql, created - start, result, failure);
+		}
+	}
+
+	/*
+	 * Work that must be kept or undone as a whole; returns false to undo it.
+	 */
+	private interface TransactionWork{
+		boolean run() throws SQLException;
+	}
+
+	/*
+	 * Runs work as one unit on the client's connection.  When the
+	 * connection is already inside a transaction, such as a batch group's,
+	 * the work runs under a savepoint and the owner of the transaction
+	 * commits it; otherwise it runs in a transaction of its own.
+	 */
+	private boolean atomically(TransactionWork work) throws SQLException {
+		Connection conn = getConnection();
+		if(!conn.getAutoCommit()){
+			Savepoint sp = conn.setSavepoint();
+			try{
+				if(work.run()){
+					conn.releaseSavepoint(sp);
+					return true;
+				}
+				conn.rollback(sp);
+				return false;
+			}catch(SQLException | RuntimeException e){
+				conn.rollback(sp);
+				throw e;
+			}
+		}
+		conn.setAutoCommit(false);
+		try{
+			if(work.run()){
+				conn.commit();
+				return true;
+			}
+			conn.rollback();
+			return false;
+		}catch(SQLException | RuntimeException e){
+			conn.rollback();
+			throw e;
+		}finally{
+			conn.setAutoCommit(true);
+		}
+	}
+
+	/**
+	 * Method to start a transaction spanning several operations, such as a
+	 * batch group.  Their events are held back until it commits, as the
+	 * caches must only follow committed writes.
+	 *
+	 * @throws java.sql.SQLException when autocommit cannot be turned off
+	 */
+	public void beginGroup() throws SQLException {
+		this._connection.setAutoCommit(false);
+		this._held = new ArrayList<Object[]>();
+	}
+
+	/**
+	 * Method to commit the group transaction and publish its events.
+	 *
+	 * @throws java.sql.SQLException when the commit fails; the events are dropped
+	 */
+	public void commitGroup() throws SQLException {
+		List<Object[]> held = this._held;
+		this._held = null;
+		Lock publishing = publishing();
+		try{
+			this._connection.commit();
+			if(held == null) return;
+			for(Object[] e : held){
+				publish((EventLog.Type)e[0], (Long)e[1], (Long)e[2], (Long)e[3], (Double)e[4]);
+			}
+		}finally{
+			publishing.unlock();
+		}
+	}
+
+	/**
+	 * Method to roll the group transaction back, dropping its events.
+	 *
+	 * @throws java.sql.SQLException when the rollback fails
+	 */
+	public void rollbackGroup() throws SQLException {
+		this._held = null;
+		this._connection.rollback();
+	}
+
+	private void commit(Flight.Sql event, String sql, long wait, Object result, SQLException failure){
+		event.end();
+		if(!event.shouldCommit()) return;
+		event.operation = getGuard().operation();
+		event.statementId = Flight.statementId(sql);
+		event.sql = Flight.text(sql);
+		event.rows = result instanceof Number ? ((Number)result).longValue() :
+			result instanceof Collection ? ((Collection<?>)result).size() : -1;
+		event.connectionWait = wait;
+		event.sqlState = failure == null ? null : failure.getSQLState();
+		event.commit();
 	}
 	
 	/**
@@ -198,10 +397,472 @@ public class Ticketmaster{
 		return -1;
 	}
 
+	/**
+	 * Method to expose the physical connection to the helper classes that
+	 * need statement-level control (batching, COPY, transactions).  The
+	 * server timeout of earlier guarded statements is lifted first, so the
+	 * helper's statements run under the server's default.
+	 *
+	 * @return the open connection
+	 */
+	public Connection getConnection(){
+		getGuard().release(this._connection);
+		return this._connection;
+	}
+
+	/**
+	 * Method to get the analytics rollups if they have been loaded, so write
+	 * paths can keep them current.
+	 *
+	 * @return the loaded analytics, or null
+	 */
+	public SalesAnalytics getAnalytics(){
+		if(this._parent != null) return this._parent.getAnalytics();
+		return this._analytics;
+	}
+
+	/**
+	 * Method to get the analytics rollups, loading them from the database
+	 * the first time.
+	 *
+	 * @return the loaded analytics
+	 * @throws java.sql.SQLException when the snapshot cannot be read
+	 */
+	public SalesAnalytics loadAnalytics() throws SQLException {
+		if(this._parent != null) return this._parent.loadAnalytics();
+		synchronized(this){
+			if(this._analytics != null) return this._analytics;
+		}
+		// the snapshot waits for write paths to publish, and those may need
+		// this client's lock, so it is taken without holding it
+		SalesAnalytics analytics = new SalesAnalytics(this);
+		analytics.refresh();
+		synchronized(this){
+			if(this._analytics != null) return this._analytics;
+			EventLog events = getEvents();
+			if(events != null){
+				try{
+					events.subscribe("analytics", analytics.logOffset(), analytics::apply);
+				}catch(IOException e){
+					System.err.println("Analytics will not follow the event log: " + e.getMessage());
+				}
+			}
+			this._analytics = analytics;
+			return analytics;
+		}
+	}
+
+	/**
+	 * Method to get the seat maps used to offer and hold seats.
+	 *
+	 * @return the seat map
+	 */
+	public synchronized SeatMap getSeatMap(){
+		if(this._parent != null) return this._parent.getSeatMap();
+		if(this._seatMap == null){
+			this._seatMap = new SeatMap(this);
+			EventLog events = getEvents();
+			if(events != null){
+				try{
+					events.subscribe("seatmap", events.end(), this._seatMap::apply);
+				}catch(IOException e){
+					System.err.println("Seat maps will not follow the event log: " + e.getMessage());
+				}
+			}
+		}
+		return this._seatMap;
+	}
+
+	/**
+	 * Method to get the cinema locations, loading them from the database
+	 * the first time.
+	 *
+	 * @return the locator
+	 * @throws java.sql.SQLException when the cinemas cannot be read
+	 * @throws java.io.IOException when the ZIP table cannot be read
+	 */
+	public synchronized CinemaLocator getCinemas() throws SQLException, IOException {
+		if(this._parent != null) return this._parent.getCinemas();
+		if(this._cinemas == null) this._cinemas = CinemaLocator.load(this);
+		return this._cinemas;
+	}
+
+	/**
+	 * Method to get the movie title completions if they have been loaded,
+	 * so new movies can be added to them.
+	 *
+	 * @return the loaded completions, or null
+	 */
+	public Autocomplete getTitles(){
+		if(this._parent != null) return this._parent.getTitles();
+		return this._titles;
+	}
+
+	/**
+	 * Method to get the movie title completions, loading them the first
+	 * time.
+	 *
+	 * @return the completions
+	 * @throws java.sql.SQLException when the movies cannot be read
+	 */
+	public synchronized Autocomplete loadTitles() throws SQLException {
+		if(this._parent != null) return this._parent.loadTitles();
+		if(this._titles == null) this._titles = Autocomplete.titles(this);
+		return this._titles;
+	}
+
+	/**
+	 * Method to get the cinema name completions, loading them the first
+	 * time.
+	 *
+	 * @return the completions
+	 * @throws java.sql.SQLException when the cinemas cannot be read
+	 */
+	public synchronized Autocomplete loadCinemaNames() throws SQLException {
+		if(this._parent != null) return this._parent.loadCinemaNames();
+		if(this._cinemaNames == null) this._cinemaNames = Autocomplete.cinemas(this);
+		return this._cinemaNames;
+	}
+
+	/**
+	 * Method to get the trending shows, counting the window from Bookings
+	 * the first time and following the event log after that.
+	 *
+	 * @return the tracker
+	 * @throws java.sql.SQLException when Bookings cannot be read
+	 */
+	public TrendingShows getTrending() throws SQLException {
+		if(this._parent != null) return this._parent.getTrending();
+		synchronized(this){
+			if(this._trending != null) return this._trending;
+		}
+		// counted without this client's lock, as in loadAnalytics
+		EventLog events = getEvents();
+		TrendingShows trending = new TrendingShows(openConnection(), events);
+		try{
+			trending.rebuild();
+		}catch(SQLException e){
+			trending.stop();
+			throw e;
+		}
+		synchronized(this){
+			if(this._trending != null){
+				trending.stop();
+				return this._trending;
+			}
+			if(events != null){
+				try{
+					events.subscribe("trending", trending.logOffset(), trending::apply);
+				}catch(IOException e){
+					System.err.println("Trending shows will not follow the event log: " + e.getMessage());
+				}
+			}
+			trending.start();
+			this._trending = trending;
+			return trending;
+		}
+	}
+
+	/**
+	 * Method to get the event log, opening EventLog.DEFAULT_DIR the first
+	 * time.  When another process is writing that log, this process gets a
+	 * private one so its own subscribers are still served.
+	 *
+	 * @return the event log, or null when none can be opened
+	 */
+	public EventLog getEvents(){
+		if(this._parent != null) return this._parent.getEvents();
+		if(this._shards != null && this._shards.get(0) != this) return this._shards.get(0).getEvents();
+		// once open, the log is read without the lock, so a write path
+		// publishing its events never waits on a snapshot being cut
+		EventLog events = this._events;
+		if(events != null) return events;
+		synchronized(this){
+			if(this._events == null){
+				try{
+					this._events = new EventLog(new File(EventLog.DEFAULT_DIR));
+				}catch(IOException e){
+					System.err.println(e.getMessage() + "; using a private event log");
+					try{
+						this._events = EventLog.temporary();
+					}catch(IOException e2){
+						System.err.println("No event log: " + e2.getMessage());
+					}
+				}
+			}
+			return this._events;
+		}
+	}
+
+	/**
+	 * Method to keep snapshots from being cut against the event log between
+	 * a write's commit and its events.  Take it before the commit and
+	 * unlock it once the events are published.
+	 *
+	 * @return the held lock
+	 */
+	public Lock publishing(){
+		EventLog events = getEvents();
+		Lock lock = events == null ? new ReentrantLock() : events.publishing();
+		lock.lock();
+		return lock;
+	}
+
+	/**
+	 * Method to record a domain event after the write it describes has
+	 * committed.
+	 *
+	 * @param type the event type
+	 * @param sid the show
+	 * @param bid the booking, or 0
+	 * @param ssid the show seat, or 0
+	 * @param value seats, price or amount, see EventLog.Type
+	 */
+	public void publish(EventLog.Type type, long sid, long bid, long ssid, double value){
+		if(this._held != null){
+			this._held.add(new Object[]{ type, sid, bid, ssid, value });
+			return;
+		}
+		EventLog events = getEvents();
+		if(events != null) events.publish(type, sid, bid, ssid, value);
+	}
+
+	/**
+	 * Method to get the id allocator that assigns new primary keys.  All
+	 * shards take their ids from shard 0's sequences.
+	 *
+	 * @return the id allocator
+	 */
+	public synchronized IdAllocator getIds(){
+		if(this._parent != null) return this._parent.getIds();
+		if(this._shards != null && this._shards.get(0) != this) return this._shards.get(0).getIds();
+		if(this._ids == null){
+			this._ids = new IdAllocator(this);
+		}
+		return this._ids;
+	}
+
+	/**
+	 * Method to open another connection to the same database, for work that
+	 * must not share the interactive connection's transactions.
+	 *
+	 * @return a new connection
+	 * @throws java.sql.SQLException when the connection fails
+	 */
+	public Connection openConnection() throws SQLException {
+		return DriverManager.getConnection(this._url, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to get the waiting room bookings are admitted through.
+	 *
+	 * @return the waiting room
+	 */
+	public synchronized WaitingRoom getWaitingRoom(){
+		if(this._parent != null) return this._parent.getWaitingRoom();
+		if(this._room == null){
+			this._room = WaitingRoom.configured();
+			this._room.start();
+		}
+		return this._room;
+	}
+
+	/**
+	 * Method to get the guard that bounds statements and sheds listings.
+	 *
+	 * @return the guard
+	 */
+	public synchronized QueryGuard getGuard(){
+		if(this._parent != null) return this._parent.getGuard();
+		if(this._guard == null){
+			this._guard = new QueryGuard(QueryGuard.BOOKING_P99_MILLIS);
+		}
+		return this._guard;
+	}
+
+	/**
+	 * Method to open another client on the same database that shares this
+	 * one's caches, ids, event log and expiry, so operations can run on
+	 * both at once.
+	 *
+	 * @return the new client; its cleanup() only closes its own connection
+	 * @throws java.sql.SQLException when the connection fails
+	 */
+	public Ticketmaster fork() throws SQLException {
+		Ticketmaster client = new Ticketmaster(this._url, this._user, this._passwd);
+		client._parent = this;
+		return client;
+	}
+
+	/**
+	 * Method to start routing read-only operations to the replicas listed
+	 * in ReplicaRouter.REPLICAS, if any.
+	 */
+	public void startRouter(){
+		List<String> urls = ReplicaRouter.urls(ReplicaRouter.REPLICAS, this._dbname);
+		if(!urls.isEmpty()){
+			this._router = new ReplicaRouter(this._connection, urls, this._user, this._passwd);
+		}
+	}
+
+	/**
+	 * Method to get the replica router if replicas are configured.
+	 *
+	 * @return the router, or null
+	 */
+	public ReplicaRouter getRouter(){
+		return this._router;
+	}
+
+	/**
+	 * Method to connect to the shards listed in CityShards.SHARDS, if any.
+	 *
+	 * @throws java.sql.SQLException when a shard cannot be reached
+	 */
+	public void startShards() throws SQLException {
+		CityShards.connect(this, this._dbname, this._user, this._passwd);
+	}
+
+	/**
+	 * Method to get the shards if the data is split by city.
+	 *
+	 * @return the shards, or null
+	 */
+	public CityShards getShards(){
+		return this._shards;
+	}
+
+	void setShards(CityShards shards){
+		this._shards = shards;
+	}
+
+	/**
+	 * Method to get the clients a write to Cities, Movies or Users must go
+	 * through, since every shard holds those tables.
+	 *
+	 * @return every shard, or just this client when there are none
+	 */
+	public List<Ticketmaster> everyShard(){
+		return this._shards == null ? Collections.singletonList(this) : this._shards.all();
+	}
+
+	/**
+	 * Method to execute an update on a table every shard holds.
+	 *
+	 * @param sql the input SQL string
+	 * @throws java.sql.SQLException when update failed
+	 */
+	public void executeUpdateOnEveryShard(String sql) throws SQLException {
+		for(Ticketmaster shard : everyShard()) shard.executeUpdate(sql);
+	}
+
+	/**
+	 * Method to run an operation that only reads; its queries go to a
+	 * replica when one is fresh enough, or to every shard when the data is
+	 * split by city.  Inside a transaction, such as a batch group's, the
+	 * reads stay on this client's connection so they see its own writes.
+	 *
+	 * @param operation the operation, called with this client
+	 */
+	public void runReadOnly(Consumer<Ticketmaster> operation){
+		try{
+			if(!getConnection().getAutoCommit()){
+				operation.accept(this);
+				return;
+			}
+		}catch(SQLException e){
+			System.err.println(e.getMessage());
+			return;
+		}
+		if(this._shards != null){
+			this._fanOut = true;
+		}else{
+			this._reads = this._router == null ? null : this._router.forRead();
+		}
+		try{
+			operation.accept(this);
+		}finally{
+			this._reads = null;
+			this._fanOut = false;
+		}
+	}
+
+	/**
+	 * Method to pin this session's next reads to servers that have seen
+	 * the operation that just wrote.
+	 */
+	public void wrote(){
+		if(this._router == null) return;
+		try{
+			this._router.wrote();
+		}catch(SQLException e){
+			System.err.println(e.getMessage());
+		}
+	}
+
+	/**
+	 * Method to tell whether a menu choice writes, and so whether the
+	 * session's next reads must see it.
+	 *
+	 * @param choice the menu choice
+	 * @return false for the listings (9-14, 22, 23), the report (18) and
+	 *         the status page (20)
+	 */
+	public static boolean writes(int choice){
+		return choice < 9 || choice == 16 || choice == 17 || choice == 19 || choice == 21;
+	}
+
+	private Connection queryConnection(){
+		return this._reads != null ? this._reads : this._connection;
+	}
+
+	/**
+	 * Method to get the Pending-booking expiry if it is running.
+	 *
+	 * @return the expiry, or null
+	 */
+	public BookingExpiry getExpiry(){
+		if(this._parent != null) return this._parent.getExpiry();
+		return this._expiry;
+	}
+
+	/**
+	 * Method to start cancelling Pending bookings that are not paid within
+	 * BookingExpiry.DEFAULT_TTL, in the background.  main() only starts it
+	 * when BookingExpiry.ENABLED.
+	 *
+	 * @throws java.sql.SQLException when the Pending bookings cannot be loaded
+	 */
+	public synchronized void startExpiry() throws SQLException {
+		if(this._expiry != null) return;
+		BookingExpiry expiry = new BookingExpiry(this, openConnection(), BookingExpiry.DEFAULT_TTL, 100);
+		expiry.rebuild();
+		expiry.start();
+		this._expiry = expiry;
+	}
+
 	/**
 	 * Method to close the physical connection if it is open.
 	 */
 	public void cleanup(){
+		if(this._expiry != null){
+			this._expiry.stop();
+		}
+		if(this._events != null){
+			this._events.close();
+		}
+		if(this._trending != null){
+			this._trending.stop();
+		}
+		if(this._router != null){
+			this._router.close();
+		}
+		if(this._room != null){
+			this._room.stop();
+		}
+		if(this._shards != null && this._shards.get(0) == this){
+			this._shards.close();
+		}
 		try{
 			if (this._connection != null){
 				this._connection.close ();
@@ -217,10 +878,10 @@ public class Ticketmaster{
 	 * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
 	 */
 	public static void main (String[] args) {
-		if (args.length != 3) {
+		if (args.length < 3 || args.length > 6) {
 			System.err.println (
 				"Usage: " + "java [-classpath <classpath>] " + Ticketmaster.class.getName () +
-		            " <dbname> <port> <user>");
+		            " <dbname> <port> <user> [<script> [<workers> [<operations per transaction>]]]");
 			return;
 		}//end if
 		
@@ -243,7 +904,37 @@ public class Ticketmaster{
 			String dbport = args[1];
 			String user = args[2];
 			
+			try {
+				Flight.startContinuous();
+			}catch(IOException e) {
+				System.err.println("No flight recording: " + e.getMessage());
+			}
 			esql = new Ticketmaster (dbname, dbport, user, "");
+			esql.startShards();
+			esql.startRouter();
+			// opt-in, as it cancels every overdue Pending booking already stored
+			if(BookingExpiry.ENABLED) {
+				for(Ticketmaster shard : esql.everyShard()) {
+					try {
+						shard.startExpiry();
+					}catch(SQLException e) {
+						System.err.println("Pending bookings will not expire: " + e.getMessage());
+					}
+				}
+			}
+
+			// a script runs instead of the menu
+			if(args.length > 3) {
+				int workers = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+				int group = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+				Reader script = new InputStreamReader(new FileInputStream(args[3]), StandardCharsets.UTF_8);
+				try {
+					System.out.print(new BatchRunner(esql, workers, group).run(script));
+				}finally {
+					script.close();
+				}
+				return;
+			}
 			
 			boolean keepon = true;
 			while(keepon){
@@ -264,27 +955,27 @@ public class Ticketmaster{
 				System.out.println("13. List the Title, Duration, Date, and Time of Shows Playing a Given Movie at a Given Cinema During a Date Range");
 				System.out.println("14. List the Movie Title, Show Date & Start Time, Theater Name, and Cinema Seat Number for all Bookings of a Given User");
 				System.out.println("15. EXIT");
+				System.out.println("16. Bulk Import Users from a CSV File");
+				System.out.println("17. Archive Bookings, Payments and Show Seats of Past Shows");
+				System.out.println("18. Revenue and Occupancy Report");
+				System.out.println("19. Schedule a Movie Across Theaters and Dates");
+				System.out.println("20. Query Timeouts and Load Shedding Status");
+				System.out.println("21. Settle Payments from a Gateway Settlement File");
+				System.out.println("22. Find Cinemas Near a ZIP Code Showing a Movie");
+				System.out.println("23. List Trending Shows in a City");
 				
 				/*
 				 * FOLLOW THE SPECIFICATION IN THE PROJECT DESCRIPTION
 				 */
-				switch (readChoice()){
-					case 1: AddUser(esql); break;
-					case 2: AddBooking(esql); break;
-					case 3: AddMovieShowingToTheater(esql); break;
-					case 4: CancelPendingBookings(esql); break;
-					case 5: ChangeSeatsForBooking(esql); break;
-					case 6: RemovePayment(esql); break;
-					case 7: ClearCancelledBookings(esql); break;
-					case 8: RemoveShowsOnDate(esql); break;
-					case 9: ListTheatersPlayingShow(esql); break;
-					case 10: ListShowsStartingOnTimeAndDate(esql); break;
-					case 11: ListMovieTitlesContainingLoveReleasedAfter2010(esql); break;
-					case 12: ListUsersWithPendingBooking(esql); break;
-					case 13: ListMovieAndShowInfoAtCinemaInDateRange(esql); break;
-					case 14: ListBookingInfoForUser(esql); break;
-					case 15: keepon = false; break;
+				int choice = readChoice();
+				if(choice == 15) {
+					keepon = false;
+				}else if(esql.getShards() == null) {
+					dispatch(esql, choice);
+				}else {
+					dispatchSharded(esql, choice);
 				}
+				if(writes(choice)) esql.wrote();
 			}
 		}catch(Exception e){
 			System.err.println (e.getMessage ());
@@ -301,6 +992,118 @@ public class Ticketmaster{
 		}
 	}
 
+	/** Menu number to operation name; 15 is EXIT. */
+	static final String[] OPERATIONS = {
+		null, "AddUser", "AddBooking", "AddMovieShowingToTheater", "CancelPendingBookings",
+		"ChangeSeatsForBooking", "RemovePayment", "ClearCancelledBookings", "RemoveShowsOnDate",
+		"ListTheatersPlayingShow", "ListShowsStartingOnTimeAndDate", "ListMovieTitlesContainingLoveReleasedAfter2010",
+		"ListUsersWithPendingBooking", "ListMovieAndShowInfoAtCinemaInDateRange", "ListBookingInfoForUser",
+		null, "BulkImportUsers", "ArchiveOldBookings", "RevenueAndOccupancyReport", "ScheduleMovieSeason",
+		"QueryLoadStatus", "SettlePayments", "FindCinemasNearZip",
+		"ListTrendingShows"
+	};
+
+	/**
+	 * Runs one menu operation on a client.
+	 *
+	 * @param esql the client
+	 * @param choice the menu number
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public static void dispatch(Ticketmaster esql, int choice) throws Exception {
+		if(choice <= 0 || choice >= OPERATIONS.length || OPERATIONS[choice] == null) return;
+		QueryGuard guard = esql.getGuard();
+		QueryGuard.Kind kind = QueryGuard.kind(choice);
+		guard.begin(OPERATIONS[choice], kind);
+		Flight.Operation event = new Flight.Operation();
+		event.begin();
+		boolean failed = true;
+		try {
+			run(esql, choice);
+			failed = false;
+		}finally {
+			guard.end();
+			event.end();
+			if(event.shouldCommit()) {
+				event.operation = OPERATIONS[choice];
+				event.kind = kind.name();
+				event.failed = failed;
+				event.commit();
+			}
+		}
+	}
+
+	private static void run(Ticketmaster esql, int choice) throws Exception {
+		switch (choice){
+			case 1: AddUser(esql); break;
+			case 2: AddBooking(esql); break;
+			case 3: AddMovieShowingToTheater(esql); break;
+			case 4: CancelPendingBookings(esql); break;
+			case 5: ChangeSeatsForBooking(esql); break;
+			case 6: RemovePayment(esql); break;
+			case 7: ClearCancelledBookings(esql); break;
+			case 8: RemoveShowsOnDate(esql); break;
+			case 9: esql.runReadOnly(Ticketmaster::ListTheatersPlayingShow); break;
+			case 10: esql.runReadOnly(Ticketmaster::ListShowsStartingOnTimeAndDate); break;
+			case 11: esql.runReadOnly(Ticketmaster::ListMovieTitlesContainingLoveReleasedAfter2010); break;
+			case 12: esql.runReadOnly(Ticketmaster::ListUsersWithPendingBooking); break;
+			case 13: esql.runReadOnly(Ticketmaster::ListMovieAndShowInfoAtCinemaInDateRange); break;
+			case 14: esql.runReadOnly(Ticketmaster::ListBookingInfoForUser); break;
+			case 16: BulkImportUsers(esql); break;
+			case 17: ArchiveOldBookings(esql); break;
+			case 18: RevenueAndOccupancyReport(esql); break;
+			case 19: ScheduleMovieSeason(esql); break;
+			case 20: QueryLoadStatus(esql); break;
+			case 21: SettlePayments(esql); break;
+			case 22: esql.runReadOnly(Ticketmaster::FindCinemasNearZip); break;
+			case 23: ListTrendingShows(esql); break;
+		}
+	}
+
+	/**
+	 * Runs one menu operation when the data is split by city.  The listings
+	 * fan out from shard 0, users are added on shard 0 which copies them to
+	 * the others, the sweeps of cancelled and Pending bookings run on every
+	 * shard, and any other operation runs on the shard the user picks by a
+	 * city, cinema, theater, show or booking.
+	 *
+	 * @param esql shard 0's client
+	 * @param choice the menu number
+	 * @throws java.lang.Exception when the operation fails
+	 */
+	public static void dispatchSharded(Ticketmaster esql, int choice) throws Exception {
+		CityShards shards = esql.getShards();
+		if(choice == 4 || choice == 7) {
+			for(Ticketmaster shard : shards.all()) dispatch(shard, choice);
+		}else if(choice == 1 || choice == 16 || choice == 20 || (choice >= 9 && choice <= 14) || choice == 22 || choice == 23) {
+			dispatch(esql, choice);
+		}else if(choice > 0 && choice <= 23) {
+			dispatch(shards.get(readShard(shards)), choice);
+		}
+	}
+
+	/*
+	 * Asks which shard an operation works on.
+	 */
+	private static int readShard(CityShards shards) {
+		do {
+			System.out.print("\t	Enter the city id, or c<cinema>/t<theater>/s<show>/b<booking> id, of the data to work on: ");
+			try {
+				String key = in.readLine().trim().toLowerCase();
+				if(!key.isEmpty() && Character.isDigit(key.charAt(0))) {
+					return shards.shardOfCity(Long.parseLong(key));
+				}
+				int shard = shards.locate(key.charAt(0), Long.parseLong(key.substring(1)));
+				if(shard >= 0) return shard;
+				System.out.println("No shard has " + key);
+			}catch (SQLException e) {
+				System.err.println(e.getMessage());
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+	}
+
 	public static int readChoice() {
 		int input;
 		// returns only if a correct value is given.
@@ -348,8 +1151,7 @@ public class Ticketmaster{
 	public static void AddUser(Ticketmaster esql){//1
 		System.out.println("Plase enter the necessary information\n");
 
-		String firstName, lastName, email, pw, pw2;
-		int phoneNum;
+		String firstName, lastName, email, pw, phoneNum;
 		// first name, last name, email, phone
 		
 		// ***get first name from user
@@ -389,7 +1191,12 @@ public class Ticketmaster{
 		do {
 			System.out.print("\t	Enter phone number: ");
 			try {
-				phoneNum = Integer.parseInt(in.readLine());
+				// Users.phone is NUMERIC(10, 0), which overflows an int
+				phoneNum = in.readLine().trim();
+				if(!UserImport.isPhone(phoneNum)) {
+					System.out.println("Invalid input");
+					continue;
+				}
 				break;
 			}catch (Exception e) {
 				System.out.println("Invalid input");
@@ -401,7 +1208,6 @@ public class Ticketmaster{
 			System.out.print("\t	Enter password: ");
 			try {
 				pw = in.readLine();
-				pw2 = toHexString(getSHA(pw));
 				break;
 			}catch (Exception e) {
 				System.out.println("Invalid input");
@@ -409,19 +1215,99 @@ public class Ticketmaster{
 			}
 		}while(true);
 		
-		String SQL = "INSERT INTO Users VALUES(\'" + email + "\', \'" + lastName + "\', \'" + firstName + "\', \'" + String.valueOf(phoneNum) + "\', \'" + pw2 + "\');";
+		// a batch of one through the bulk path: validated, hashed, and
+		// inserted with ON CONFLICT DO NOTHING so duplicates are reported
+		UserImport.UserRecord user = new UserImport.UserRecord(email, lastName, firstName, phoneNum, pw);
 		try {
-			esql.executeUpdate(SQL);
+			for(Ticketmaster shard : esql.everyShard()) {
+				UserImport.Report report = new UserImport(shard, 1, 1, false, false).importUsers(Collections.singletonList(user).iterator());
+				if(report.getRejected() > 0) {
+					System.out.println(report);
+					break;
+				}else if(report.getDuplicates() > 0 && shard == esql) {
+					System.out.println("A user with email " + email + " already exists");
+				}
+			}
 		}catch(SQLException e) {
 			System.err.println(e.getMessage());
 		}
 
 	}
+
+	public static void BulkImportUsers(Ticketmaster esql){//16
+		String path;
+		int workers;
+		boolean hashed, copy;
+		do {
+			System.out.print("\t	Enter CSV file (email,lname,fname,phone,password): ");
+			try {
+				path = in.readLine();
+				if(!new File(path).isFile()) {
+					System.out.println("No such file");
+					continue;
+				}
+				break;
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+				continue;
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Enter number of worker threads: ");
+			try {
+				workers = Integer.parseInt(in.readLine());
+				if(workers > 0) break;
+				System.out.println("Invalid input");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Are the passwords already SHA-256 hashed? (y/n): ");
+			try {
+				String answer = in.readLine().trim();
+				if(answer.equalsIgnoreCase("y") || answer.equalsIgnoreCase("n")) {
+					hashed = answer.equalsIgnoreCase("y");
+					break;
+				}
+				System.out.println("Invalid input");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Load through COPY instead of batched INSERTs? (y/n): ");
+			try {
+				String answer = in.readLine().trim();
+				if(answer.equalsIgnoreCase("y") || answer.equalsIgnoreCase("n")) {
+					copy = answer.equalsIgnoreCase("y");
+					break;
+				}
+				System.out.println("Invalid input");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		try {
+			// every shard holds all users, so each reads the file itself
+			for(Ticketmaster shard : esql.everyShard()) {
+				BufferedReader csv = new BufferedReader(new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8), 1 << 16);
+				try {
+					System.out.println(new UserImport(shard, workers, 1000, hashed, copy).importCsv(csv));
+				}finally {
+					csv.close();
+				}
+			}
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
 	// DONE
 	public static void AddBooking(Ticketmaster esql){//2
 		System.out.println("Please input the necessary information: ");
-		int bid, seat, sid=0, sid_query ;
-		String seats, email="", status;  
+		int seat, sid=0, sid_query ;
+		String seats, email="";  
 		// prompt user for status, dateTime, seats, show id
 		// existing and valid user, show, movie,seating, theater, and cinema
 
@@ -501,126 +1387,106 @@ public class Ticketmaster{
 				continue;
 			}
 		}
-		// ***Check valid Seating (Cinema + Show)
-		counter = 0;
-		while(counter <= 0) {
-			String cinemaSeat = "SELECT * FROM CinemaSeats WHERE csid = ";
-			int csid; 
-			do {
-				try{
-					System.out.print("\tEnter an existing Cinema seat to add a booking: ");
-					csid = Integer.parseInt(in.readLine());
-					cinemaSeat += String.valueOf(csid);
-					break;
-				} catch(Exception e) {
-					System.out.println("Invalid input");
-					continue;
-				}
-			}while(true);
-			try{
-				counter = esql.executeQuery(cinemaSeat);
-			} catch(SQLException e) {
-				System.err.println(e.getMessage());
-			}
-			if(counter <= 0) {
-				System.out.println("Invalid input: ");
-				continue; 
-			}
+		// ***Wait for a turn: bookings for a show are admitted at the rate
+		// the database keeps up with
+		WaitingRoom.Ticket ticket;
+		try {
+			ticket = esql.getWaitingRoom().enter(email.trim(), sid);
+		}catch(WaitingRoom.Rejected e) {
+			System.out.println(e.getMessage());
+			return;
 		}
-		counter = 0;
-		while(counter <= 0) {
-			String showSeat = "SELECT * FROM ShowSeats WHERE ssid = ";
-			int ssid; 
-			do {
-				try{
-					System.out.print("\tEnter an existing Show seat to add a booking: ");
-					ssid = Integer.parseInt(in.readLine());
-					showSeat += String.valueOf(ssid);
-					break;
-				} catch(Exception e) {
-					System.out.println("Invalid input");
-					continue; 
-				}
-			}while(true);
-			try{
-				counter = esql.executeQuery(showSeat);
-			} catch(SQLException e) {
-				System.err.println(e.getMessage());
+		try {
+			int ahead = ticket.position();
+			if(ahead > 0) {
+				System.out.println("You are number " + (ahead + 1) + " in line for show " + sid + ", about " + (ticket.estimatedWaitMillis() + 999) / 1000 + " s");
 			}
-			if(counter <= 0) {
-				System.out.println("Invalid input: ");
-				continue; 
+			if(!ticket.await(WaitingRoom.MAX_WAIT_MILLIS)) {
+				System.out.println("Show " + sid + " is too busy right now, please try again later");
+				return;
 			}
+			bookSeats(esql, email, sid);
+		}catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}finally {
+			ticket.leave();
 		}
-		// ***Check valid Theater
-		counter = 0;
-		while(counter <= 0) {
-			String theater = "SELECT * FROM Theaters WHERE tid = ";
-			int tid;
+	}
+
+	/*
+	 * Picks, holds and books seats for an admitted booking.
+	 */
+	private static void bookSeats(Ticketmaster esql, String email, int sid) {
+		long bid;
+		String status;
+		// ***Pick seats: the seat map offers the best adjacent block and holds
+		// it, so no other session is offered the same seats meanwhile
+		SeatMap.Hold hold = null;
+		int getSeat;
+		String sdate;
+		try {
+			List<List<String>> show = esql.executeQueryAndReturnResult("SELECT sdate FROM Shows WHERE sid = " + sid + ";");
+			sdate = show.get(0).get(0);
+		}catch(SQLException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		do {
+			String stype;
 			do {
-				try{
-					System.out.print("\tEnter an existing Theater to add a booking: ");
-					tid = Integer.parseInt(in.readLine());
-					theater += String.valueOf(tid);
-					break;
-				} catch(Exception e) {
+				System.out.print("\t	Enter how many seats: ");
+				try {
+					getSeat = Integer.parseInt(in.readLine());
+					if(getSeat > 0) break;
+					System.out.println("Invalid input");
+				}catch (Exception e) {
 					System.out.println("Invalid input");
-					continue;
 				}
 			}while(true);
-			try{
-				counter = esql.executeQuery(theater);
-			} catch(SQLException e) {
-				System.err.println(e.getMessage());
-			}
-			if(counter <= 0) {
-				System.out.println("Invalid input");
-				continue;
-			}
-		}
-		// ***Check valid Cinema
-		counter = 0;
-		while(counter <= 0) {
-			String cinema = "SELECT * FROM Cinemas WHERE cid = ";
-			int cid; 
 			do {
-				try{
-					System.out.print("\tEnter an existing Cinema to add a booking: ");
-					cid = Integer.parseInt(in.readLine());
-					cinema += String.valueOf(cid);
+				System.out.print("\t	Enter seat type (press Enter for any): ");
+				try {
+					stype = in.readLine().trim();
 					break;
-				} catch(Exception e) {
+				}catch (Exception e) {
 					System.out.println("Invalid input");
-					continue;
 				}
 			}while(true);
-			try{
-				counter = esql.executeQuery(cinema);
-			} catch(SQLException e) {
+			try {
+				hold = esql.getSeatMap().offer(sid, getSeat, stype.isEmpty() ? null : stype, 0);
+			}catch(SQLException e) {
 				System.err.println(e.getMessage());
+				return;
 			}
-			if(counter <= 0) {
-				System.out.println("Invalid input");
-				continue;
+			if(hold == null) {
+				System.out.print("\t	No " + getSeat + " adjacent seats of that type are available for this show. Try again? (y/n): ");
+				try {
+					if(in.readLine().trim().equalsIgnoreCase("y")) continue;
+				}catch (Exception e) {
+					// treated as a no
+				}
+				return;
 			}
-		}
-		
-		do {
-			System.out.print("\t	Enter booking id: ");
+			System.out.print("\t	Best available: " + hold + ". Book these seats? (y/n): ");
 			try {
-				bid = Integer.parseInt(in.readLine());
-				break;
+				if(in.readLine().trim().equalsIgnoreCase("y")) break;
 			}catch (Exception e) {
-				System.out.println("Invalid input");
-				continue;
+				// treated as a no
 			}
+			esql.getSeatMap().release(hold);
+			hold = null;
 		}while(true);
-		// ***Get status
+
+		// ***Get status: only states BookingStates can move on from
 		do {
-			System.out.print("\t	Enter status: ");
+			System.out.print("\t	Enter status (Pending or Paid): ");
 			try {
-				status = in.readLine();
-				break;
+				BookingStates.Status s = BookingStates.Status.of(in.readLine());
+				if(s == BookingStates.Status.PENDING || s == BookingStates.Status.PAID) {
+					status = s.label;
+					break;
+				}
+				System.out.println("Invalid input");
 			}catch (Exception e) {
 				System.out.println("Invalid input");
 				continue;
@@ -638,42 +1504,69 @@ public class Ticketmaster{
 				continue;
 			}
 		}while(true);
-		// ***Get seats
-		int getSeat;
-		do {
-			System.out.print("\t	Enter how many seats: ");
-			try {
-				getSeat = Integer.parseInt(in.readLine());
-				break;
-			}catch (Exception e) {
-				System.out.println("Invalid input");
-				continue;
-			}
-		}while(true);
-		String query = "INSERT INTO Bookings VALUES(" + bid + ", \'" + status + "\', \'" + dateTime + "\', " + getSeat + ", " + sid + ", \'" + email + "\');";
+		try {
+			bid = esql.getIds().next(IdAllocator.BOOKINGS);
+		}catch(SQLException e) {
+			esql.getSeatMap().release(hold);
+			System.err.println(e.getMessage());
+			return;
+		}
+		// sdate is the partition key, copied from the show
+		String query = "INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email, sdate)\nSELECT " + bid + ", \'" + status + "\', \'" + dateTime + "\', " + getSeat + ", S.sid, \'" + email + "\', S.sdate\nFROM Shows S\nWHERE S.sid = " + sid + ";";
         
+		// the booking and its seats commit together; the bid IS NULL guard
+		// fails the claim if a seat was taken behind the seat map's back, and
+		// the prices are read back as a repricing may have changed them
+		StringBuilder ssids = new StringBuilder();
+		for(long ssid : hold.ssids()) {
+			ssids.append(ssids.length() == 0 ? "" : ", ").append(ssid);
+		}
+		String claim = "UPDATE ShowSeats SET bid = " + bid + " WHERE sdate = '" + sdate + "' AND ssid IN (" + ssids + ") AND bid IS NULL RETURNING ssid, price;";
+		final int seats = getSeat;
+		final List<List<String>> claimed = new ArrayList<List<String>>();
+		long start = System.nanoTime();
+		Lock publishing = esql.publishing();
 		try {
-			esql.executeUpdate(query);
+			boolean kept = esql.atomically(() -> {
+				esql.executeUpdate(query);
+				claimed.addAll(esql.executeQueryAndReturnResult(claim));
+				return claimed.size() == seats;
+			});
+			if(!kept) {
+				esql.getSeatMap().release(hold);
+				esql.getSeatMap().evict(sid);
+				System.out.println("Some of these seats were just taken, please try again");
+				return;
+			}
+			esql.publish(EventLog.Type.BOOKING_CREATED, sid, bid, 0, getSeat);
+			for(List<String> seat : claimed) {
+				esql.publish(EventLog.Type.SEAT_CLAIMED, sid, bid, Long.parseLong(seat.get(0).trim()), Double.parseDouble(seat.get(1).trim()));
+			}
 		}catch(SQLException e) {
+			esql.getSeatMap().release(hold);
 			System.err.println(e.getMessage());
+			return;
+		}finally {
+			publishing.unlock();
+			esql.getWaitingRoom().observe(System.nanoTime() - start);
+		}
+		esql.getSeatMap().confirm(hold);
+		System.out.println("Booking id: " + bid);
+		if(status.trim().equalsIgnoreCase(BookingStates.Status.PENDING.label) && esql.getExpiry() != null) {
+			long booked;
+			try {
+				booked = Timestamp.valueOf(dateTime.trim()).getTime();
+			}catch(IllegalArgumentException e) {
+				booked = System.currentTimeMillis();
+			}
+			esql.getExpiry().register(bid, booked);
 		}
-		
 	}
 	// DONE
 	public static void AddMovieShowingToTheater(Ticketmaster esql){//3
-		int mvid, duration, sid;
-		String title, country, description, lang, genre, rdate, sdate, sttime, edtime;
-		// ***Get mvid
-		do {
-			System.out.print("\t	Enter movie id: ");
-			try {
-				mvid = Integer.parseInt(in.readLine());
-				break;
-			}catch(Exception e){
-				System.out.println("Invalid input");
-				continue;
-			}
-		}while(true);
+		long mvid;
+		int duration;
+		String title, country, description, lang, genre, rdate;
 		// ***Get tile
 		do {
 			System.out.print("\t	Enter title: ");
@@ -752,22 +1645,12 @@ public class Ticketmaster{
 			}
 		}while(true);
 
-		// ***Get sid
-		do {
-			System.out.print("\t	Enter show id: ");
-			try {
-				sid = Integer.parseInt(in.readLine());
-				break;
-			} catch(Exception e) {
-				System.out.println("Invalid input");
-				continue;
-			}
-		}while(true);
 		// ***Get sdate
+		LocalDate sdate;
 		do {
-			System.out.print("\t	Enter show date: ");
+			System.out.print("\t	Enter show date (Format year-month-day xxxx-xx-xx): ");
 			try {
-				sdate = in.readLine();
+				sdate = LocalDate.parse(in.readLine().trim());
 				break;
 			} catch(Exception e) {
 				System.out.println("Invalid input");
@@ -775,10 +1658,11 @@ public class Ticketmaster{
 			}
 		}while(true);
 		// ***Get sttime
+		LocalTime sttime;
 		do {
-			System.out.print("\t	Enter start time: ");
+			System.out.print("\t	Enter start time (Format hh:mm): ");
 			try {
-				sttime = in.readLine();
+				sttime = LocalTime.parse(in.readLine().trim());
 				break;
 			} catch(Exception e) {
 				System.out.println("Invalid input");
@@ -786,10 +1670,11 @@ public class Ticketmaster{
 			}
 		}while(true);
 		// ***Get edtime
+		LocalTime edtime;
 		do {
-			System.out.print("\t	Enter end time: ");
+			System.out.print("\t	Enter end time (Format hh:mm): ");
 			try {
-				edtime = in.readLine();
+				edtime = LocalTime.parse(in.readLine().trim());
 				break;
 			} catch(Exception e) {
 				System.out.println("Invalid input");
@@ -808,34 +1693,136 @@ public class Ticketmaster{
 			continue;
 			}
 		}while(true);
+		Map<String, Float> prices = readSeatPrices();
+		float otherPrice = prices.remove("*");
+
+		// ***Check the theater is free then, before creating the movie
+		try {
+			List<Long> overlapping = new ShowConflicts(esql).conflicts(tid, sdate, sttime, edtime);
+			if(!overlapping.isEmpty()) {
+				System.out.println("Theater " + tid + " is already showing " + overlapping + " at that time");
+				return;
+			}
+		} catch(SQLException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+
+		// ***Assign the movie id from the sequence
+		try {
+			mvid = esql.getIds().next(IdAllocator.MOVIES);
+		} catch(SQLException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
 
 		// ***Verify
 		String movieQuery = "INSERT INTO MOVIES VALUES(" + mvid + ", \'" + title + "\' ,\'" + rdate + "\', \'" + country + "\', \'" + description + "\', " + duration + ", \'" + lang + "\', \'" + genre + "\')";
 		try {
-			esql.executeUpdate(movieQuery);
+			esql.executeUpdateOnEveryShard(movieQuery);
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
+			return;
 		}
-		String showQuery = "INSERT INTO Shows VALUES(" + sid + ", " + mvid + ", \'" + sdate + "\', \'" + sttime + "\', \'" + edtime + "\')";
+		Autocomplete titles = esql.getTitles();
+		if(titles != null) titles.put(mvid, title, 0);
+		// ***The show, its play and its seats
+		Duration length = Duration.between(sttime, edtime);
+		if(length.isNegative()) length = length.plusDays(1);
 		try {
-			esql.executeUpdate(showQuery);
+			ShowScheduler.Result result = new ShowScheduler(esql).schedule(mvid, Collections.singletonList((long)tid),
+				Collections.singletonList(sdate), Collections.singletonList(sttime), length, prices, otherPrice);
+			System.out.println("Movie id: " + mvid + ", show id: " + result.sids()[0]);
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
-		String playQuery = "INSERT INTO Plays VALUES(" + sid + ", " + tid + ")";
+	}
+
+	/*
+	 * Reads "type=price" pairs for show seats; the price of every other
+	 * seat type is returned under "*".
+	 */
+	private static Map<String, Float> readSeatPrices(){
+		do {
+			System.out.print("\t	Enter seat prices (Format Regular=10,Premium=15,*=8 where * is every other type): ");
+			try {
+				Map<String, Float> prices = ShowScheduler.parsePrices(in.readLine());
+				if(prices.containsKey("*")) return prices;
+				System.out.println("A price for * is required");
+			} catch(Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+	}
+
+	public static void ScheduleMovieSeason(Ticketmaster esql){//19
+		long mvid;
+		do {
+			System.out.print("\t	Enter movie id: ");
+			try {
+				mvid = Long.parseLong(in.readLine().trim());
+				break;
+			} catch(Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		List<Long> tids = new ArrayList<Long>();
+		do {
+			System.out.print("\t	Enter theater ids (Format 1,2,3): ");
+			try {
+				tids.clear();
+				for(String t : in.readLine().split(",")) {
+					tids.add(Long.parseLong(t.trim()));
+				}
+				break;
+			} catch(Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		LocalDate first, last;
+		do {
+			System.out.print("\t	Enter first and last show date (Format xxxx-xx-xx,xxxx-xx-xx): ");
+			try {
+				String[] range = in.readLine().split(",");
+				first = LocalDate.parse(range[0].trim());
+				last = LocalDate.parse(range[1].trim());
+				if(!last.isBefore(first)) break;
+				System.out.println("The last date is before the first");
+			} catch(Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		List<LocalTime> times = new ArrayList<LocalTime>();
+		do {
+			System.out.print("\t	Enter daily start times (Format hh:mm,hh:mm): ");
+			try {
+				times.clear();
+				for(String t : in.readLine().split(",")) {
+					times.add(LocalTime.parse(t.trim()));
+				}
+				break;
+			} catch(Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		Map<String, Float> prices = readSeatPrices();
+		float otherPrice = prices.remove("*");
+
+		List<LocalDate> dates = new ArrayList<LocalDate>();
+		for(LocalDate d = first; !d.isAfter(last); d = d.plusDays(1)) {
+			dates.add(d);
+		}
 		try {
-			esql.executeUpdate(playQuery);
+			System.out.println(new ShowScheduler(esql).schedule(mvid, tids, dates, times, null, prices, otherPrice));
 		} catch(Exception e) {
 			System.err.println(e.getMessage());
 		}
-		
-
 	}
 	// DONE
 	public static void CancelPendingBookings(Ticketmaster esql){//4
-		String cancelPendingBookingsQuery = "UPDATE Bookings SET status = 'Cancelled' WHERE status = 'Pending'";
+		// chunked, so concurrent bookings only ever wait for one chunk
 		try{
-			esql.executeUpdate(cancelPendingBookingsQuery);
+			System.out.println(new BookingStates(esql).sweep(BookingStates.Status.PENDING, null, 1000));
 		} catch(SQLException e) {
 			System.err.println(e.getMessage());
 		}
@@ -856,7 +1843,24 @@ public class Ticketmaster{
 			}
 		}while(true);
 		
-		String query1 = "SELECT A.ssid, A.price \nFROM ShowSeats A, Bookings B\nWHERE A.bid = B.bid;";
+		// the booking's show date pins every ShowSeats statement below to a
+		// single partition
+		String sdate = "";
+		long sid = 0;
+		try{
+			List<List<String>> booking = esql.executeQueryAndReturnResult("SELECT sdate, sid FROM Bookings WHERE bid = " + bid + ";");
+			if(booking.size() == 0) {
+				System.out.println("Your booking id does not exist");
+				return;
+			}
+			sdate = booking.get(0).get(0);
+			sid = Long.parseLong(booking.get(0).get(1));
+		}catch(SQLException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+
+		String query1 = "SELECT A.ssid, A.price \nFROM ShowSeats A\nWHERE A.sdate = '" + sdate + "' AND A.bid = " + bid + ";";
 		List<List<String>> str = new ArrayList<List<String>>();
 		try{
 			str = esql.executeQueryAndReturnResult(query1);
@@ -865,7 +1869,7 @@ public class Ticketmaster{
 		}
 		System.out.println("List of show seat ids and prices that you currently booked: \n" + str);
 		
-		String query2 = "SELECT A.ssid, A.price \nFROM Bookings B, Shows S, ShowSeats A\nWHERE B.bid = " + bid + " AND B.sid = S.sid AND A.sid = S.sid AND A.bid IS NULL;";
+		String query2 = "SELECT A.ssid, A.price \nFROM Bookings B, ShowSeats A\nWHERE B.bid = " + bid + " AND B.sdate = '" + sdate + "' AND A.sdate = B.sdate AND A.sid = B.sid AND A.bid IS NULL;";
 		List<List<String>> str2 = new ArrayList<>();
 		try{
 			str2 = esql.executeQueryAndReturnResult(query2);
@@ -912,24 +1916,34 @@ public class Ticketmaster{
 		}
 		
 		
-		String query3, query4;
-		if(curr_seat_price.equals(new_seat_price)) {
-			query3 = "UPDATE ShowSeats SET bid = NULL WHERE ssid = " + curr_ssid + ";";
-			try {
-				esql.executeUpdate(query3);
-			} catch(SQLException e) {
-				System.err.println(e.getMessage());
-			}
-			
-			query4 = "UPDATE ShowSeats SET bid = " + bid + " WHERE ssid = " + new_ssid + ";";
-			try {
-				esql.executeUpdate(query4);
-			} catch(SQLException e) {
-				System.err.println(e.getMessage());
-			}
-			
-		} else {
+		if(!curr_seat_price.equals(new_seat_price)) {
 			System.out.println("ERROR: Prices don't match");
+			return;
+		}
+
+		// the prices are compared again in the statement that moves the
+		// booking, as a repricing may have changed either seat since they
+		// were listed; both seats change in one transaction
+		String claim = "UPDATE ShowSeats N SET bid = " + bid + " FROM ShowSeats O\nWHERE N.sdate = '" + sdate + "' AND N.ssid = " + new_ssid + " AND N.bid IS NULL AND O.sdate = '" + sdate + "' AND O.ssid = " + curr_ssid + " AND O.bid = " + bid + " AND O.price = N.price;";
+		String release = "UPDATE ShowSeats SET bid = NULL WHERE sdate = '" + sdate + "' AND ssid = " + curr_ssid + " AND bid = " + bid + ";";
+		Lock publishing = esql.publishing();
+		try {
+			boolean moved = esql.atomically(() -> {
+				if(esql.executeUpdate(claim) != 1) return false;
+				esql.executeUpdate(release);
+				return true;
+			});
+			if(!moved) {
+				System.out.println("ERROR: Prices don't match");
+				return;
+			}
+			esql.publish(EventLog.Type.SEAT_RELEASED, sid, bid, curr_ssid, Double.parseDouble(curr_seat_price));
+			esql.publish(EventLog.Type.SEAT_CLAIMED, sid, bid, new_ssid, Double.parseDouble(new_seat_price));
+		}catch(SQLException e) {
+			System.err.println(e.getMessage());
+			return;
+		}finally {
+			publishing.unlock();
 		}
 		
 		
@@ -948,53 +1962,37 @@ public class Ticketmaster{
 				continue;
 			}
 		}while(true);
-		String removePaymentQuery = "UPDATE Bookings SET status = 'Cancelled' WHERE bid = " + bid + ";";
 		try{
-			esql.executeUpdate(removePaymentQuery);
+			BookingStates.Booking before = new BookingStates(esql).cancel(bid,
+				BookingStates.Status.PENDING, BookingStates.Status.PAID);
+			if(before == null) {
+				System.out.println("Booking " + bid + " does not exist or is already cancelled");
+			} else {
+				System.out.println("Booking " + bid + " cancelled" +
+					(before.status == BookingStates.Status.PAID ? " and its payment reversed" : ""));
+			}
 		} catch(SQLException e) {
 			System.err.println(e.getMessage());
 		}
 	}
 	// DONE
 	public static void ClearCancelledBookings(Ticketmaster esql){//7
-		String query = "SELECT bid FROM Bookings WHERE status = 'Cancelled';";
-		List<List<String>> arr = new ArrayList<>();
-		try {
-			arr = esql.executeQueryAndReturnResult(query);
-		} catch(SQLException e) {
-			System.err.println(e.getMessage());
-		}
-		for(List<String> i : arr) {
-			String str = "DELETE FROM Payments WHERE bid = " + i.get(0) + ";";
-			try{
-				esql.executeUpdate(str);
-			} catch(SQLException e) {
-				System.err.println(e.getMessage());
-			}
-		}
-		
-		String query2 = "SELECT bid FROM Bookings WHERE status = 'Cancelled';";
-		List<List<String>> arr1 = new ArrayList<>();
-		try {
-			arr1 = esql.executeQueryAndReturnResult(query2);
-		} catch(SQLException e) {
-			System.err.println(e.getMessage());
-		}
-		for(List<String> j : arr1) {
-			String qry = "DELETE FROM ShowSeats WHERE bid = " + j.get(0) + ";";
+		// set-based: each DELETE joins on the partition key, so Postgres
+		// pairs up matching Bookings and ShowSeats partitions instead of
+		// issuing one DELETE per cancelled booking
+		String[] queries = {
+			"DELETE FROM Payments P\nUSING Bookings B\nWHERE B.status = 'Cancelled' AND P.bid = B.bid;",
+			"DELETE FROM ShowSeats A\nUSING Bookings B\nWHERE B.status = 'Cancelled' AND A.sdate = B.sdate AND A.bid = B.bid;",
+			"DELETE FROM Bookings WHERE status = 'Cancelled';"
+		};
+		for(String query : queries) {
 			try {
-				esql.executeUpdate(qry);
+				esql.executeUpdate(query);
 			} catch(SQLException e) {
 				System.err.println(e.getMessage());
+				return;
 			}
 		}
-		
-		String deleteUserQuery = "DELETE FROM Bookings WHERE status = 'Cancelled';";
-		try{
-			esql.executeUpdate(deleteUserQuery);
-		} catch(SQLException e) {
-			System.err.println(e.getMessage());
-		}
 	}
 	public static void RemoveShowsOnDate(Ticketmaster esql){//8
 	    // Remove all Shows on a given date at a speciﬁc Cinema.
@@ -1128,7 +2126,7 @@ public class Ticketmaster{
 			    System.out.println("DEBUG: Sid of soon to be deleted Show: " + show.get(0));
 			    
 			    //Grab ALL Bookings pointing to this particular Show
-			    queryStatement = "SELECT B.bid\nFROM Bookings B, Shows S\nWHERE B.sid = S.sid AND S.sid = " +  show.get(0) + ";";
+			    queryStatement = "SELECT B.bid\nFROM Bookings B\nWHERE B.sdate = '" + showDate + "' AND B.sid = " +  show.get(0) + ";";
 			    
 			    try{
 	    	
@@ -1141,7 +2139,7 @@ public class Ticketmaster{
 				//now have list of all bookings that point to to-be-deleted show
 				if(listofBookingsBid.size() > 0){
 					
-					queryStatement = "UPDATE Bookings SET status = 'Cancelled' WHERE sid = " + show.get(0) + ";";
+					queryStatement = "UPDATE Bookings SET status = 'Cancelled', version = version + 1 WHERE sdate = '" + showDate + "' AND sid = " + show.get(0) + ";";
 					try{
 						esql.executeUpdate(queryStatement);
 						
@@ -1178,7 +2176,7 @@ public class Ticketmaster{
 					}
 					*/
 					//now delete the bookings that have status cancelled.
-					bookingQuery = "DELETE FROM Bookings WHERE status = 'Cancelled' AND sid = " + show.get(0) + ";";
+					bookingQuery = "DELETE FROM Bookings WHERE sdate = '" + showDate + "' AND status = 'Cancelled' AND sid = " + show.get(0) + ";";
 					try{
 						esql.executeUpdate(bookingQuery);
 					} catch(SQLException e) {
@@ -1189,7 +2187,7 @@ public class Ticketmaster{
 				}
 				//done deleting Bookings, now delete Show Seatings
 				
-			    queryStatement = "DELETE FROM ShowSeats\nWHERE sid = (SELECT sid\nFROM Shows\nWHERE sid = " + show.get(0) + ");";
+			    queryStatement = "DELETE FROM ShowSeats\nWHERE sdate = '" + showDate + "' AND sid = " + show.get(0) + ";";
 			    try{
 						esql.executeUpdate(queryStatement);
 					} catch(SQLException e) {
@@ -1208,11 +2206,15 @@ public class Ticketmaster{
 				
 				//now can delete Show
 				queryStatement = "DELETE FROM Shows\n WHERE sid = " + show.get(0) + ";";
+				Lock publishing = esql.publishing();
 				try{
 						esql.executeUpdate(queryStatement);
+						esql.publish(EventLog.Type.SHOW_REMOVED, Long.parseLong(show.get(0)), 0, 0, 0);
 					} catch(SQLException e) {
 						System.err.println(e.getMessage());
 						System.out.println("SQL DELETE Shows Error:");
+				}finally{
+					publishing.unlock();
 				}
 			    
 			}
@@ -1265,7 +2267,7 @@ public class Ticketmaster{
 	
 	public static void ListShowsStartingOnTimeAndDate(Ticketmaster esql){//10
 		//
-	    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+	    BufferedReader br = in;
 	    String timeStr = "";
 	    String dateStr = "";
 	    String queryStatement = "";
@@ -1363,7 +2365,7 @@ public class Ticketmaster{
 		//User input will be checked against list to see if cid eneterd is a valid
 		//cid. Afterward, ask user for start + end dates. Make sure Start Date <= End
 		//Date.
-	    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+	    BufferedReader br = in;
 	     
 	    String queryStatement = "";
 	    String userSelection = "";
@@ -1407,9 +2409,17 @@ public class Ticketmaster{
 
 	    boolean invalidCidSelection = true;
 	    do{
-	        System.out.print("Enter cinema ID: ");
-		try { // read the integer, parse it and break.
-			cinemaIdInt = Integer.parseInt(in.readLine());
+	        System.out.print("Enter cinema ID or the start of its name: ");
+		try { // read the integer, or pick a cinema by the start of its name
+			String typed = in.readLine().trim();
+			if(typed.matches("\\d+")) {
+				cinemaIdInt = Integer.parseInt(typed);
+			}else {
+				Autocomplete names = esql.loadCinemaNames();
+				int picked = pickCompletion(names, typed, "cinema");
+				if(picked < 0) continue;
+				cinemaIdInt = (int)names.id(picked);
+			}
                         //after this statement, we are confident that the
                         //input is in integer format, so we can covert
                         //back to string for comparison.
@@ -1504,9 +2514,13 @@ public class Ticketmaster{
 	    do{
 
 	        try{
-		    //In this iteration of function, going to make assumption that user will enter movie title in exact format.
+		    //the start of any word of the title is enough, the user picks from the completions
 		    System.out.print("Enter movie title: ");
-		    userSelection = br.readLine();  
+		    String typed = in.readLine();
+		    Autocomplete titles = esql.loadTitles();
+		    int picked = pickCompletion(titles, typed, "movie");
+		    if(picked < 0) continue;
+		    userSelection = Long.toString(titles.id(picked));
 		    break;
 
 	        }catch(Exception e){
@@ -1517,7 +2531,7 @@ public class Ticketmaster{
 
 	    //make query
 	    try{
-			queryStatement = "SELECT A.title, A.duration, B.sdate, B.sttime, B.edtime\nFROM Movies A, Shows B, Theaters T, Plays P\nWHERE '" + cinemaIdStr + "' = T.cid AND T.tid = P.tid AND P.sid = B.sid AND B.sdate >= '" + startDate + "' AND B.sdate <= '" + endDate + "' AND B.mvid = A.mvid AND A.title = '" + userSelection + "';";
+			queryStatement = "SELECT A.title, A.duration, B.sdate, B.sttime, B.edtime\nFROM Movies A, Shows B, Theaters T, Plays P\nWHERE '" + cinemaIdStr + "' = T.cid AND T.tid = P.tid AND P.sid = B.sid AND B.sdate >= '" + startDate + "' AND B.sdate <= '" + endDate + "' AND B.mvid = A.mvid AND A.mvid = " + userSelection + ";";
 
 			esql.executeQueryAndPrintResult(queryStatement);
 	    }
@@ -1528,9 +2542,38 @@ public class Ticketmaster{
 		
 	}
 
+	/*
+	 * Completes what was typed to one entry of the completions: an exact
+	 * match or a single completion is taken as is, otherwise the user picks
+	 * one.  Returns -1 when nothing matches.
+	 */
+	private static int pickCompletion(Autocomplete names, String typed, String what) throws IOException {
+		int[] entry = new int[Autocomplete.K];
+		int n = names.complete(typed, entry);
+		if(n == 0) {
+			System.out.println("No " + what + " starts with \"" + typed + "\"");
+			return -1;
+		}
+		for(int i = 0; i < n; ++i) {
+			if(names.text(entry[i]).equalsIgnoreCase(typed.trim())) return entry[i];
+		}
+		if(n == 1) return entry[0];
+		for(int i = 0; i < n; ++i) System.out.println((i + 1) + ". " + names.text(entry[i]) + " (" + names.id(entry[i]) + ")");
+		do {
+			System.out.print("\t	Pick a " + what + " (1-" + n + "): ");
+			try {
+				int i = Integer.parseInt(in.readLine().trim());
+				if(i >= 1 && i <= n) return entry[i - 1];
+			}catch (NumberFormatException e) {
+				// asked again
+			}
+			System.out.println("Invalid input");
+		}while(true);
+	}
+
 	public static void ListBookingInfoForUser(Ticketmaster esql){//14
 		//
-	    BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+	    BufferedReader br = in;
 	    String userEmail = "";
 	    String query = "";
 	
@@ -1553,16 +2596,312 @@ public class Ticketmaster{
 	    }while(true);
                 
 	   //now have email
-	    query = "SELECT A.title, B.sdate, B.sttime, C.tname, S.sno\nFROM Movies A, Shows B, Theaters C, Plays P, CinemaSeats S, Bookings T, Users U\nWHERE U.email = '" + userEmail + "' AND U.email = T.email AND T.sid = B.sid AND A.mvid = B.mvid AND B.sid = P.sid AND P.tid = C.tid AND C.tid = S.tid;";
+	    // the booked seats, not every seat of the theater
+	    query = "SELECT A.title, B.sdate, B.sttime, C.tname, S.sno\nFROM Movies A, Shows B, Theaters C, ShowSeats SS, CinemaSeats S, Bookings T\nWHERE T.email = '" + userEmail + "' AND T.sid = B.sid AND T.sdate = B.sdate AND A.mvid = B.mvid AND SS.bid = T.bid AND SS.sdate = T.sdate AND S.csid = SS.csid AND C.tid = S.tid;";
             
+	    boolean includeArchive = false;
+	    do{
+	        try{
+				System.out.print("Include archived history? (y/n): ");
+				String answer = br.readLine().trim();
+				if(answer.equalsIgnoreCase("y") || answer.equalsIgnoreCase("n")){
+					includeArchive = answer.equalsIgnoreCase("y");
+					break;
+				}
+				System.out.println("Enter y or n");
+	        }catch(Exception e){
+				System.out.println("Wrong Input: ");
+				continue;
+	        }
+	    }while(true);
+
 	    try{
 	        esql.executeQueryAndPrintResult(query);
 	    }
 	    catch(SQLException e){
-	        System.out.println("SQL error.");
+	        System.err.println(e.getMessage());
+	    }
+
+	    if(includeArchive){
+			try{
+				List<List<String>> archived = new ColdArchive(esql, new File(ColdArchive.DEFAULT_DIR)).bookingHistory(userEmail);
+				System.out.println("Archived bookings: " + archived.size());
+				for(List<String> row : archived){
+					StringBuilder line = new StringBuilder();
+					for(String val : row){
+						line.append(val).append('\t');
+					}
+					System.out.println(line);
+				}
+			}catch(Exception e){
+				System.out.println("Archive error: " + e.getMessage());
+			}
 	    }
-        		
 	}
-	
-}
 
+	public static void ArchiveOldBookings(Ticketmaster esql){//17
+		LocalDate cutoff;
+		do {
+			System.out.print("\t	Archive bookings of shows before (Format year-month-day xxxx-xx-xx): ");
+			try {
+				cutoff = LocalDate.parse(in.readLine().trim());
+				if(cutoff.isBefore(LocalDate.now())) break;
+				System.out.println("The cutoff must be in the past");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		try {
+			System.out.println(new ColdArchive(esql, new File(ColdArchive.DEFAULT_DIR)).archiveBefore(cutoff, 100));
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void RevenueAndOccupancyReport(Ticketmaster esql){//18
+		SalesAnalytics analytics;
+		try {
+			boolean loaded = esql.getAnalytics() != null;
+			analytics = esql.loadAnalytics();
+			if(loaded) {
+				do {
+					System.out.print("\t	Refresh from the database first? (y/n): ");
+					try {
+						String answer = in.readLine().trim();
+						if(answer.equalsIgnoreCase("y")) {
+							System.out.println("Refreshed in " + analytics.refresh() + " ms");
+							break;
+						}
+						if(answer.equalsIgnoreCase("n")) break;
+						System.out.println("Invalid input");
+					}catch (IOException e) {
+						System.out.println("Invalid input");
+					}
+				}while(true);
+			}
+		}catch(SQLException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+
+		SalesAnalytics.Dimension[] dims = SalesAnalytics.Dimension.values();
+		SalesAnalytics.Dimension dim;
+		do {
+			System.out.print("\t	Report by 1. show 2. movie 3. cinema 4. city 5. day: ");
+			try {
+				int choice = Integer.parseInt(in.readLine().trim());
+				if(choice >= 1 && choice <= dims.length) {
+					dim = dims[choice - 1];
+					break;
+				}
+				System.out.println("Invalid input");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		String key;
+		do {
+			System.out.print("\t	Enter " + (dim == SalesAnalytics.Dimension.DAY ? "a date (xxxx-xx-xx)" : "an id") + ", or press Enter for the top 10 by revenue: ");
+			try {
+				key = in.readLine().trim();
+				if(key.isEmpty()) break;
+				if(dim == SalesAnalytics.Dimension.DAY) LocalDate.parse(key);
+				else Long.parseLong(key);
+				break;
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		long start = System.nanoTime();
+		List<SalesAnalytics.Stats> rows;
+		if(key.isEmpty()) {
+			rows = analytics.topByRevenue(dim, 10);
+		}else {
+			long k = dim == SalesAnalytics.Dimension.DAY ? LocalDate.parse(key).toEpochDay() : Long.parseLong(key);
+			SalesAnalytics.Stats stats = analytics.get(dim, k);
+			rows = stats == null ? new ArrayList<SalesAnalytics.Stats>() : Collections.singletonList(stats);
+		}
+		long micros = (System.nanoTime() - start) / 1000;
+
+		System.out.println(dim.name().toLowerCase() + "\trevenue\tsold\tseats\toccupancy\tavg_price");
+		for(SalesAnalytics.Stats stats : rows) {
+			String line = stats.toString();
+			if(dim == SalesAnalytics.Dimension.DAY) {
+				line = LocalDate.ofEpochDay(stats.key) + line.substring(line.indexOf('\t'));
+			}
+			System.out.println(line);
+		}
+		System.out.println("(" + rows.size() + " rows in " + micros + " us)");
+	}
+
+	public static void QueryLoadStatus(Ticketmaster esql){//20
+		System.out.print(esql.getGuard());
+	}
+
+	public static void SettlePayments(Ticketmaster esql){//21
+		String file;
+		do {
+			System.out.print("\t	Enter the settlement file (trid,bid,pmethod,amount,paid_at): ");
+			try {
+				file = in.readLine().trim();
+				if(Files.isReadable(Paths.get(file))) break;
+				System.out.println("Cannot read " + file);
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		// settled on a connection of its own, in batches of one transaction each
+		PaymentSettlement settlement = null;
+		try(Reader r = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+			settlement = new PaymentSettlement(esql, esql.openConnection());
+			settlement.start();
+			System.out.print(settlement.ingest(r));
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}finally {
+			if(settlement != null) settlement.stop();
+		}
+	}
+	/** Most cinemas FindCinemasNearZip lists, and looks up shows for in one query. */
+	static final int NEARBY_LIMIT = 500;
+
+	public static void FindCinemasNearZip(Ticketmaster esql){//22
+		int zip;
+		double miles;
+		String mvid;
+		LocalDate date;
+		do {
+			System.out.print("\t	Enter your ZIP code: ");
+			try {
+				zip = Integer.parseInt(in.readLine().trim());
+				if(zip >= 0 && zip <= 99999) break;
+				System.out.println("A ZIP code has five digits");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Enter the distance in miles (Enter for 10): ");
+			try {
+				String line = in.readLine().trim();
+				miles = line.isEmpty() ? 10 : Double.parseDouble(line);
+				if(miles > 0) break;
+				System.out.println("The distance must be positive");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Enter the movie id (Enter for any movie): ");
+			try {
+				mvid = in.readLine().trim();
+				if(!mvid.isEmpty()) Long.parseLong(mvid);
+				break;
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Enter the date YYYY-MM-DD (Enter for tonight): ");
+			try {
+				String line = in.readLine().trim();
+				date = line.isEmpty() ? LocalDate.now() : LocalDate.parse(line);
+				break;
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		try {
+			long start = System.nanoTime();
+			List<CinemaLocator.Match> near = esql.getCinemas().near(zip, miles);
+			long micros = (System.nanoTime() - start) / 1000;
+			if(near.isEmpty()) {
+				System.out.println("No cinema within " + miles + " miles of " + zip + " (" + micros + " us)");
+				return;
+			}
+			// shows already started today are left out
+			LocalTime from = date.equals(LocalDate.now()) ? LocalTime.now().withNano(0) : LocalTime.MIN;
+			System.out.println("miles\tcid\tcname\tcity\tsid\ttitle\tsttime\ttname");
+			// cinemas are looked up NEARBY_LIMIT at a time, nearest first, so
+			// a far cinema showing the movie is still found when the near ones
+			// are not; only the listing stops at NEARBY_LIMIT cinemas
+			int listed = 0;
+			for(int first = 0; first < near.size() && listed < NEARBY_LIMIT; first += NEARBY_LIMIT) {
+				List<CinemaLocator.Match> page = near.subList(first, Math.min(first + NEARBY_LIMIT, near.size()));
+				StringBuilder cids = new StringBuilder();
+				for(CinemaLocator.Match m : page) cids.append(cids.length() == 0 ? "" : ", ").append(m.cinema.cid);
+				List<List<String>> shows = esql.executeQueryAndReturnResult(
+					"SELECT T.cid, S.sid, M.title, S.sttime, T.tname FROM Shows S, Plays P, Theaters T, Movies M " +
+					"WHERE S.sdate = '" + date + "' AND S.sttime >= '" + from + "'" +
+					(mvid.isEmpty() ? "" : " AND S.mvid = " + mvid) +
+					" AND P.sid = S.sid AND T.tid = P.tid AND M.mvid = S.mvid AND T.cid IN (" + cids + ") " +
+					"ORDER BY S.sttime, S.sid");
+				Map<Long, List<List<String>>> byCinema = new HashMap<Long, List<List<String>>>();
+				for(List<String> row : shows) {
+					byCinema.computeIfAbsent(Long.parseLong(row.get(0).trim()), k -> new ArrayList<List<String>>()).add(row);
+				}
+				for(CinemaLocator.Match m : page) {
+					List<List<String>> at = byCinema.get(m.cinema.cid);
+					if(at == null) continue;
+					if(listed == NEARBY_LIMIT) break;
+					++listed;
+					for(List<String> row : at) {
+						System.out.println(String.format("%.1f", m.miles) + "\t" + m.cinema.cid + "\t" + m.cinema.name + "\t" + m.cinema.city +
+							"\t" + row.get(1).trim() + "\t" + row.get(2).trim() + "\t" + row.get(3).trim() + "\t" + row.get(4).trim());
+					}
+				}
+			}
+			System.out.println("(" + listed + " of " + near.size() + " cinemas within " + miles + " miles, found in " + micros + " us)");
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+
+	public static void ListTrendingShows(Ticketmaster esql){//23
+		String city;
+		int k;
+		do {
+			System.out.print("\t	Enter the city id (r to recount from Bookings now): ");
+			try {
+				city = in.readLine().trim();
+				if(!city.equalsIgnoreCase("r")) Long.parseLong(city);
+				break;
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+		do {
+			System.out.print("\t	Enter how many shows (Enter for 10): ");
+			try {
+				String line = in.readLine().trim();
+				k = line.isEmpty() ? 10 : Integer.parseInt(line);
+				if(k > 0 && k <= TrendingShows.CAPACITY) break;
+				System.out.println("Between 1 and " + TrendingShows.CAPACITY + " shows");
+			}catch (Exception e) {
+				System.out.println("Invalid input");
+			}
+		}while(true);
+
+		try {
+			TrendingShows trending = esql.getTrending();
+			if(city.equalsIgnoreCase("r")) {
+				System.out.print(trending.recount(k));
+				return;
+			}
+			// served from memory; Bookings is only read by the recounts
+			long start = System.nanoTime();
+			List<TrendingShows.Trend> top = trending.top(Long.parseLong(city), k);
+			long micros = (System.nanoTime() - start) / 1000;
+			System.out.println("sid\ttitle\tshow time\tseats in the last " + TrendingShows.WINDOW_MILLIS / 60000 + " min");
+			for(TrendingShows.Trend t : top) System.out.println(t);
+			System.out.println("(" + top.size() + " shows in " + micros + " us)");
+		}catch(Exception e) {
+			System.err.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Hierarchical timing wheel for Ticketmaster
+ * ==========================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class tracks deadlines for ids in a hierarchical timing wheel.
+ *
+ * There are LEVELS wheels of SLOTS slots each.  A slot of level 0 holds the
+ * deadlines of one tick, a slot of level 1 those of SLOTS ticks, and so on,
+ * so four levels of 64 one-second slots reach about 194 days; anything later
+ * waits in an overflow list.  Scheduling and cancelling are O(1).  Each tick
+ * empties one level-0 slot, and whenever a lower wheel completes a turn the
+ * next slot of the wheel above is cascaded down, so every deadline is moved
+ * at most LEVELS times before it expires.
+ *
+ * The wheel is not thread-safe; callers synchronize on it.
+ *
+ */
+
+public class TimingWheel{
+	private static final int BITS = 6;
+	private static final int SLOTS = 1 << BITS;
+	private static final int LEVELS = 4;
+
+	private static final class Entry{
+		final long id, tick;
+		boolean cancelled;
+
+		Entry(long id, long tick){
+			this.id = id;
+			this.tick = tick;
+		}
+	}//end Entry
+
+	private final long tickMillis;
+	private final List<List<ArrayDeque<Entry>>> wheels = new ArrayList<List<ArrayDeque<Entry>>>();
+	private final List<Entry> overflow = new ArrayList<Entry>();
+	private final List<Entry> due = new ArrayList<Entry>();
+	private final Map<Long, Entry> entries = new HashMap<Long, Entry>();
+	private long now;
+
+	/**
+	 * @param tickMillis resolution of the deadlines
+	 * @param startMillis the current time
+	 */
+	public TimingWheel(long tickMillis, long startMillis){
+		this.tickMillis = tickMillis;
+		this.now = startMillis / tickMillis;
+		for(int l = 0; l < LEVELS; ++l){
+			List<ArrayDeque<Entry>> wheel = new ArrayList<ArrayDeque<Entry>>(SLOTS);
+			for(int s = 0; s < SLOTS; ++s) wheel.add(new ArrayDeque<Entry>());
+			wheels.add(wheel);
+		}
+	}
+
+	/**
+	 * Sets the deadline of an id, replacing any earlier one.  A deadline
+	 * that has already passed expires on the next advance().
+	 *
+	 * @param id the id
+	 * @param deadlineMillis when the id expires
+	 */
+	public void schedule(long id, long deadlineMillis){
+		Entry e = new Entry(id, deadlineMillis / tickMillis);
+		Entry old = entries.put(id, e);
+		if(old != null) old.cancelled = true;
+		place(e);
+	}
+
+	/**
+	 * @param id the id
+	 * @return false when the id had no deadline
+	 */
+	public boolean cancel(long id){
+		Entry e = entries.remove(id);
+		if(e == null) return false;
+		e.cancelled = true;
+		return true;
+	}
+
+	/** @return the number of ids with a deadline */
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Moves the wheel forward to a time and removes every id whose
+	 * deadline is at or before it.
+	 *
+	 * @param nowMillis the current time
+	 * @return the expired ids
+	 */
+	public List<Long> advance(long nowMillis){
+		List<Long> expired = new ArrayList<Long>();
+		long target = nowMillis / tickMillis;
+		collect(due, expired);
+		while(now < target){
+			++now;
+			// cascade from the top, so entries moved down can cascade again
+			for(int l = LEVELS; l >= 1; --l){
+				if((now & ((1L << (BITS * l)) - 1)) != 0) continue;
+				if(l == LEVELS){
+					List<Entry> moved = new ArrayList<Entry>(overflow);
+					overflow.clear();
+					for(Entry e : moved) place(e);
+				}else{
+					ArrayDeque<Entry> slot = wheels.get(l).get((int)((now >>> (BITS * l)) & (SLOTS - 1)));
+					List<Entry> moved = new ArrayList<Entry>(slot);
+					slot.clear();
+					for(Entry e : moved) place(e);
+				}
+			}
+			collect(due, expired);
+			ArrayDeque<Entry> slot = wheels.get(0).get((int)(now & (SLOTS - 1)));
+			collect(slot, expired);
+		}
+		return expired;
+	}
+
+	/*
+	 * Puts an entry on the lowest level whose current turn contains its
+	 * tick, i.e. where its tick and now only differ in that level's bits.
+	 */
+	private void place(Entry e){
+		if(e.cancelled) return;
+		if(e.tick <= now){
+			due.add(e);
+			return;
+		}
+		for(int l = 0; l < LEVELS; ++l){
+			if((e.tick >>> (BITS * (l + 1))) == (now >>> (BITS * (l + 1)))){
+				wheels.get(l).get((int)((e.tick >>> (BITS * l)) & (SLOTS - 1))).add(e);
+				return;
+			}
+		}
+		overflow.add(e);
+	}
+
+	private void collect(Collection<Entry> from, List<Long> expired){
+		for(Entry e : from){
+			if(e.cancelled) continue;
+			entries.remove(e.id);
+			expired.add(e.id);
+		}
+		from.clear();
+	}
+}//end TimingWheel
@@ -0,0 +1,544 @@
+/*
+ * Trending shows for Ticketmaster
+ * ===============================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class keeps the shows with the most seats booked in the last
+ * WINDOW per city, from the booking events, so the list is served from
+ * memory and never from Bookings.
+ *
+ * Seats booked per show are counted in a Count-Min sketch of BUCKETS time
+ * buckets plus their running sum, the window.  As time moves past a
+ * bucket, its counts are taken out of the window and it is reused, so the
+ * window slides one bucket at a time and the sketch has a fixed size
+ * whatever the number of shows.  A count is never under the truth and is
+ * over it by at most about e/WIDTH of the window's seats.
+ *
+ * Each city keeps at most CAPACITY candidate shows with their window
+ * counts, Space-Saving style: a show that is not a candidate replaces the
+ * lowest one when its count is higher.  When a bucket expires the
+ * candidates are counted again and those left at zero are dropped.  The
+ * sorted candidates are cached until the next change, so top() copies K
+ * entries.
+ *
+ * Every night at RECOUNT_HOUR the window is recounted exactly from
+ * Bookings, compared with what was tracked, and the sketch is rebuilt
+ * from the exact counts, so any drift lasts a day at most.  The count's
+ * snapshot is cut against the event log and events wait while it runs,
+ * so the ones after the cut are added to the rebuilt sketch and the ones
+ * before it are not added twice.  Which city a
+ * show plays in is loaded for upcoming shows at start and looked up for
+ * shows scheduled later.
+ *
+ */
+
+public class TrendingShows{
+	/** Length of the window, in minutes; -Dticketmaster.trending.window overrides. */
+	public static final long WINDOW_MILLIS = Long.getLong("ticketmaster.trending.window", 60) * 60 * 1000;
+	/** Buckets the window slides by; -Dticketmaster.trending.buckets overrides. */
+	public static final int BUCKETS = Integer.getInteger("ticketmaster.trending.buckets", 12);
+	/** Counters per row of the sketch; -Dticketmaster.trending.width overrides. */
+	public static final int WIDTH = Integer.getInteger("ticketmaster.trending.width", 1 << 14);
+	/** Candidate shows kept per city; -Dticketmaster.trending.capacity overrides. */
+	public static final int CAPACITY = Integer.getInteger("ticketmaster.trending.capacity", 64);
+	/** Hour of the nightly recount; -Dticketmaster.trending.recount overrides. */
+	public static final int RECOUNT_HOUR = Integer.getInteger("ticketmaster.trending.recount", 4);
+
+	static final int DEPTH = 4;
+
+	/** Where and when a show plays. */
+	static final class Show{
+		final long sid;
+		final long[] cities;
+		final String title, when;
+
+		Show(long sid, long[] cities, String title, String when){
+			this.sid = sid;
+			this.cities = cities;
+			this.title = title;
+			this.when = when;
+		}
+	}//end Show
+
+	/** One show of a trending list. */
+	public static final class Trend{
+		public final long sid, seats;
+		public final String title, when;
+
+		Trend(long sid, long seats, String title, String when){
+			this.sid = sid;
+			this.seats = seats;
+			this.title = title;
+			this.when = when;
+		}
+
+		@Override
+		public String toString(){
+			return sid + "\t" + title + "\t" + when + "\t" + seats;
+		}
+	}//end Trend
+
+	/* The candidates of one city. */
+	private static final class City{
+		final Map<Long, Long> counts = new HashMap<Long, Long>();
+		Trend[] sorted;   // null when counts changed since
+	}//end City
+
+	/** How the tracked lists compared with an exact recount. */
+	public static final class Recount{
+		public final int cities, k;
+		public long listed, matched, maxOver;
+		public double seconds;
+
+		Recount(int cities, int k){
+			this.cities = cities;
+			this.k = k;
+		}
+
+		/** @return the share of exact top-K shows the tracked lists had */
+		public double recall(){
+			return listed == 0 ? 1 : (double)matched / listed;
+		}
+
+		@Override
+		public String toString(){
+			return String.format("Recount of %d cities: %.1f%% of the exact top %d tracked, counts over by at most %d seats (%.2f s)%n",
+				cities, 100 * recall(), k, maxOver, seconds);
+		}
+	}//end Recount
+
+	private final Connection conn;
+	private final EventLog events;
+	private final Object counting = new Object();   // held while the sketch is rebuilt
+	private long logOffset;                         // first event the exact count did not see
+	private final int[][] buckets = new int[BUCKETS][DEPTH * WIDTH];
+	private final int[] window = new int[DEPTH * WIDTH];
+	private final long[] seeds = new long[DEPTH];
+	private final Map<Long, City> cities = new HashMap<Long, City>();
+	private final Map<Long, Show> shows = new ConcurrentHashMap<Long, Show>();
+	private long newest = Long.MIN_VALUE;   // index of the newest bucket
+	private ScheduledExecutorService timer;
+	private volatile Recount lastRecount;
+
+	/**
+	 * @param conn a connection of the tracker's own, for show lookups and recounts
+	 * @param events the log the tracker follows, or null
+	 */
+	public TrendingShows(Connection conn, EventLog events){
+		this.conn = conn;
+		this.events = events;
+		for(int d = 0; d < DEPTH; ++d) seeds[d] = 0x9e3779b97f4a7c15L * (2 * d + 1);
+	}
+
+	/*
+	 * Sketch
+	 */
+
+	private int cell(int d, long sid){
+		long h = (sid + seeds[d]) * 0xbf58476d1ce4e5b9L;
+		h ^= h >>> 31;
+		return d * WIDTH + (int)((h >>> 1) % WIDTH);
+	}
+
+	/** @return seats booked for a show in the window, as estimated */
+	public synchronized long estimate(long sid){
+		return count(sid);
+	}
+
+	private long count(long sid){
+		long min = Long.MAX_VALUE;
+		for(int d = 0; d < DEPTH; ++d) min = Math.min(min, window[cell(d, sid)]);
+		return min;
+	}
+
+	/*
+	 * Moves the window so its newest bucket is the given one, expiring the
+	 * buckets it passes.
+	 */
+	private void advance(long bucket){
+		if(bucket <= newest) return;
+		long from = Math.max(newest + 1, bucket - BUCKETS + 1);
+		for(long b = from; b <= bucket; ++b){
+			int[] expired = buckets[(int)Math.floorMod(b, (long)BUCKETS)];
+			for(int i = 0; i < expired.length; ++i){
+				if(expired[i] != 0){
+					window[i] -= expired[i];
+					expired[i] = 0;
+				}
+			}
+		}
+		newest = bucket;
+		for(Iterator<City> it = cities.values().iterator(); it.hasNext(); ){
+			City c = it.next();
+			for(Iterator<Map.Entry<Long, Long>> e = c.counts.entrySet().iterator(); e.hasNext(); ){
+				Map.Entry<Long, Long> candidate = e.next();
+				long n = count(candidate.getKey());
+				if(n == 0) e.remove();
+				else candidate.setValue(n);
+			}
+			c.sorted = null;
+			if(c.counts.isEmpty()) it.remove();
+		}
+	}
+
+	/**
+	 * Counts seats booked for a show.
+	 *
+	 * @param sid the show
+	 * @param seats the seats
+	 * @param time when they were booked, epoch ms
+	 */
+	public void add(long sid, long seats, long time){
+		Show show = show(sid);
+		if(show == null || seats <= 0) return;
+		synchronized(this){
+			long bucket = Math.floorDiv(time, WINDOW_MILLIS / BUCKETS);
+			advance(bucket);
+			if(bucket <= newest - BUCKETS) return;   // already out of the window
+			int[] counts = buckets[(int)Math.floorMod(bucket, (long)BUCKETS)];
+			long n = Long.MAX_VALUE;
+			for(int d = 0; d < DEPTH; ++d){
+				int i = cell(d, sid);
+				counts[i] += (int)seats;
+				n = Math.min(n, window[i] += (int)seats);
+			}
+			for(long city : show.cities) offer(city, sid, n);
+		}
+	}
+
+	private void offer(long city, long sid, long n){
+		City c = cities.computeIfAbsent(city, k -> new City());
+		c.sorted = null;
+		if(c.counts.containsKey(sid) || c.counts.size() < CAPACITY){
+			c.counts.put(sid, n);
+			return;
+		}
+		Map.Entry<Long, Long> lowest = null;
+		for(Map.Entry<Long, Long> e : c.counts.entrySet()){
+			if(lowest == null || e.getValue() < lowest.getValue()) lowest = e;
+		}
+		if(n > lowest.getValue()){
+			c.counts.remove(lowest.getKey());
+			c.counts.put(sid, n);
+		}
+	}
+
+	/**
+	 * The shows with the most seats booked in a city in the last WINDOW.
+	 *
+	 * @param city the city id
+	 * @param k how many, at most CAPACITY
+	 * @return the shows, most booked first
+	 */
+	public synchronized List<Trend> top(long city, int k){
+		advance(Math.floorDiv(System.currentTimeMillis(), WINDOW_MILLIS / BUCKETS));
+		City c = cities.get(city);
+		if(c == null) return Collections.emptyList();
+		if(c.sorted == null){
+			Trend[] sorted = new Trend[c.counts.size()];
+			int i = 0;
+			for(Map.Entry<Long, Long> e : c.counts.entrySet()){
+				Show s = shows.get(e.getKey());
+				sorted[i++] = new Trend(e.getKey(), e.getValue(), s == null ? "" : s.title, s == null ? "" : s.when);
+			}
+			Arrays.sort(sorted, (a, b) -> a.seats != b.seats ? Long.compare(b.seats, a.seats) : Long.compare(a.sid, b.sid));
+			c.sorted = sorted;
+		}
+		return Arrays.asList(Arrays.copyOf(c.sorted, Math.min(k, c.sorted.length)));
+	}
+
+	/**
+	 * Applies one event of the event log, unless the last exact count
+	 * already saw it.
+	 *
+	 * @param e the event
+	 */
+	public void apply(EventLog.Event e){
+		synchronized(counting){
+			if(e.offset < logOffset) return;
+			switch(e.type){
+				case BOOKING_CREATED: add(e.sid, (long)e.value, e.time); break;
+				case SHOW_REMOVED: onShowRemoved(e.sid); break;
+				default: break;
+			}
+		}
+	}
+
+	/** @return the offset of the first event of the log the counts do not include */
+	public long logOffset(){
+		synchronized(counting){
+			return logOffset;
+		}
+	}
+
+	/** The show was removed, so it stops trending. */
+	public void onShowRemoved(long sid){
+		Show show = shows.remove(sid);
+		if(show == null) return;
+		synchronized(this){
+			for(long city : show.cities){
+				City c = cities.get(city);
+				if(c != null && c.counts.remove(sid) != null) c.sorted = null;
+			}
+		}
+	}
+
+	/*
+	 * Shows
+	 */
+
+	private static final String SHOWS =
+		"SELECT DISTINCT S.sid, C.city_id, M.title, S.sdate || ' ' || S.sttime " +
+		"FROM Shows S, Movies M, Plays P, Theaters T, Cinemas C " +
+		"WHERE M.mvid = S.mvid AND P.sid = S.sid AND T.tid = P.tid AND C.cid = T.cid AND ";
+
+	private Show show(long sid){
+		Show s = shows.get(sid);
+		if(s != null) return s;
+		try{
+			loadShows("S.sid = " + sid);
+		}catch(SQLException e){
+			System.err.println("Trending shows cannot locate show " + sid + ": " + e.getMessage());
+		}
+		return shows.get(sid);
+	}
+
+	private void loadShows(String where) throws SQLException {
+		Map<Long, List<Long>> placed = new HashMap<Long, List<Long>>();
+		Map<Long, String[]> info = new HashMap<Long, String[]>();
+		synchronized(conn){
+			try(Statement stmt = conn.createStatement()){
+				stmt.setFetchSize(10000);
+				ResultSet rs = stmt.executeQuery(SHOWS + where);
+				while(rs.next()){
+					long sid = rs.getLong(1);
+					placed.computeIfAbsent(sid, k -> new ArrayList<Long>()).add(rs.getLong(2));
+					info.put(sid, new String[]{ rs.getString(3).trim(), rs.getString(4) });
+				}
+			}
+		}
+		for(Map.Entry<Long, List<Long>> e : placed.entrySet()){
+			long[] in = new long[e.getValue().size()];
+			for(int i = 0; i < in.length; ++i) in[i] = e.getValue().get(i);
+			String[] s = info.get(e.getKey());
+			shows.put(e.getKey(), new Show(e.getKey(), in, s[0], s[1]));
+		}
+	}
+
+	/*
+	 * Exact counts
+	 */
+
+	/*
+	 * Seats booked per show and bucket since the start of the window, from
+	 * Bookings: sid, bucket, seats.  Returns the offset of the first event
+	 * of the log the rows do not include.
+	 */
+	private long exact(long newest, List<long[]> rows) throws SQLException {
+		long width = WINDOW_MILLIS / BUCKETS;
+		long start = (newest - BUCKETS + 1) * width;
+		synchronized(conn){
+			boolean autoCommit = conn.getAutoCommit();
+			int isolation = conn.getTransactionIsolation();
+			try(Statement stmt = conn.createStatement()){
+				conn.setAutoCommit(false);
+				conn.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+				long cut = events == null ? 0 : events.cut(conn);
+				ResultSet rs = stmt.executeQuery(
+					"SELECT B.sid, floor(extract(epoch FROM B.bdatetime) * 1000 / " + width + ")::bigint, sum(B.seats) " +
+					"FROM Bookings B WHERE B.bdatetime >= to_timestamp(" + start / 1000.0 + ") " +
+					"AND B.sdate >= to_timestamp(" + start / 1000.0 + ")::date GROUP BY 1, 2");
+				while(rs.next()) rows.add(new long[]{ rs.getLong(1), rs.getLong(2), rs.getLong(3) });
+				conn.commit();
+				return cut;
+			}catch(SQLException e){
+				conn.rollback();
+				throw e;
+			}finally{
+				conn.setTransactionIsolation(isolation);
+				conn.setAutoCommit(autoCommit);
+			}
+		}
+	}
+
+	/*
+	 * Replaces what was tracked with exact counts, which include the
+	 * events before offset cut.  The caller holds counting.
+	 */
+	private void reset(long now, List<long[]> rows, long cut){
+		synchronized(this){
+			for(int[] b : buckets) Arrays.fill(b, 0);
+			Arrays.fill(window, 0);
+			cities.clear();
+			newest = now;
+		}
+		logOffset = cut;
+		// oldest bucket first, as the events would have come
+		rows.sort((a, b) -> Long.compare(a[1], b[1]));
+		long width = WINDOW_MILLIS / BUCKETS;
+		for(long[] r : rows) add(r[0], r[2], r[1] * width);
+	}
+
+	/**
+	 * Loads where the upcoming shows play and counts the window's bookings
+	 * exactly, replacing what was tracked.
+	 *
+	 * @throws java.sql.SQLException when Bookings cannot be read
+	 */
+	public void rebuild() throws SQLException {
+		if(shows.isEmpty()) loadShows("S.sdate >= CURRENT_DATE");
+		synchronized(counting){
+			long now = Math.floorDiv(System.currentTimeMillis(), WINDOW_MILLIS / BUCKETS);
+			List<long[]> rows = new ArrayList<long[]>();
+			long cut = exact(now, rows);
+			reset(now, rows, cut);
+		}
+	}
+
+	/**
+	 * Counts the window exactly from Bookings and compares each city's
+	 * top K with the tracked one, then rebuilds from the exact counts.
+	 *
+	 * @param k the length of the lists compared
+	 * @return how they compared
+	 * @throws java.sql.SQLException when Bookings cannot be read
+	 */
+	public Recount recount(int k) throws SQLException {
+		synchronized(counting){
+			return recountExactly(k);
+		}
+	}
+
+	/* recount(), with counting held so no event lands between the count and the rebuild. */
+	private Recount recountExactly(int k) throws SQLException {
+		long started = System.nanoTime();
+		long newest;
+		synchronized(this){
+			advance(Math.floorDiv(System.currentTimeMillis(), WINDOW_MILLIS / BUCKETS));
+			newest = this.newest;
+		}
+		List<long[]> rows = new ArrayList<long[]>();
+		long cut = exact(newest, rows);
+		Map<Long, Map<Long, Long>> byCity = new HashMap<Long, Map<Long, Long>>();
+		for(long[] r : rows){
+			Show s = show(r[0]);
+			if(s == null) continue;
+			for(long city : s.cities) byCity.computeIfAbsent(city, c -> new HashMap<Long, Long>()).merge(r[0], r[2], Long::sum);
+		}
+		Recount result = new Recount(byCity.size(), k);
+		for(Map.Entry<Long, Map<Long, Long>> city : byCity.entrySet()){
+			List<Map.Entry<Long, Long>> exact = new ArrayList<Map.Entry<Long, Long>>(city.getValue().entrySet());
+			exact.sort((a, b) -> !a.getValue().equals(b.getValue()) ? Long.compare(b.getValue(), a.getValue()) : Long.compare(a.getKey(), b.getKey()));
+			Set<Long> tracked = new HashSet<Long>();
+			for(Trend t : top(city.getKey(), k)){
+				tracked.add(t.sid);
+				result.maxOver = Math.max(result.maxOver, t.seats - city.getValue().getOrDefault(t.sid, 0L));
+			}
+			// ties at the K-th count may be listed either way
+			long kth = exact.get(Math.min(k, exact.size()) - 1).getValue();
+			for(int i = 0; i < Math.min(k, exact.size()); ++i){
+				++result.listed;
+				if(tracked.contains(exact.get(i).getKey()) || exact.get(i).getValue() == kth && tracked.size() >= k) ++result.matched;
+			}
+		}
+		reset(newest, rows, cut);
+		result.seconds = (System.nanoTime() - started) / 1e9;
+		lastRecount = result;
+		return result;
+	}
+
+	/** @return the result of the last recount, or null */
+	public Recount lastRecount(){
+		return lastRecount;
+	}
+
+	/**
+	 * Starts the nightly recount at RECOUNT_HOUR.
+	 */
+	public synchronized void start(){
+		if(timer != null) return;
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "trending-recount");
+			t.setDaemon(true);
+			return t;
+		});
+		LocalDateTime now = LocalDateTime.now();
+		LocalDateTime next = now.toLocalDate().atTime(RECOUNT_HOUR, 0);
+		if(!next.isAfter(now)) next = next.plusDays(1);
+		timer.scheduleAtFixedRate(() -> {
+			try{
+				System.err.print("Trending shows: " + recount(10));
+			}catch(Exception e){
+				System.err.println("Trending shows recount failed: " + e.getMessage());
+			}
+		}, Duration.between(now, next).toMillis(), TimeUnit.DAYS.toMillis(1), TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the recount and closes the tracker's connection. */
+	public synchronized void stop(){
+		if(timer != null) timer.shutdownNow();
+		timer = null;
+		try{
+			conn.close();
+		}catch(SQLException e){
+			// ignored.
+		}
+	}
+
+	/**
+	 * Recounts the window exactly and reports how well a tracker fed from
+	 * Bookings would have matched it.
+	 *
+	 * Usage: java TrendingShows dbname port user [k]
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args){
+		if(args.length < 3){
+			System.err.println("Usage: java TrendingShows <dbname> <port> <user> [k]");
+			return;
+		}
+		Ticketmaster esql = null;
+		TrendingShows trending = null;
+		try{
+			esql = new Ticketmaster(args[0], args[1], args[2], "");
+			trending = new TrendingShows(esql.openConnection(), null);
+			trending.rebuild();
+			System.out.print(trending.recount(args.length > 3 ? Integer.parseInt(args[3]) : 10));
+		}catch(Exception e){
+			System.err.println(e.getMessage());
+		}finally{
+			if(trending != null) trending.stop();
+			if(esql != null) esql.cleanup();
+		}
+	}
+}//end TrendingShows
@@ -0,0 +1,411 @@
+/*
+ * Bulk user registration for Ticketmaster
+ * =======================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Savepoint;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+/**
+ * This class registers users in bulk.  Input records (from a CSV file laid
+ * out like Users.csv, or handed in directly by the service layer) are cut
+ * into batches, validated and password-hashed on a worker pool, and written
+ * in order on the single database connection, either as batched
+ * INSERT ... ON CONFLICT DO NOTHING statements or through COPY FROM STDIN
+ * into a staging table.
+ *
+ */
+
+public class UserImport{
+	private static final Pattern EMAIL = Pattern.compile("[^@\\s,]+@[^@\\s,]+\\.[^@\\s,]+");
+	private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+	private static final int MAX_REJECT_SAMPLES = 20;
+
+	private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>(){
+		@Override
+		protected MessageDigest initialValue(){
+			try{
+				return MessageDigest.getInstance("SHA-256");
+			}catch(NoSuchAlgorithmException e){
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final Ticketmaster esql;
+	private final int workers;
+	private final int batchSize;
+	private final boolean passwordsHashed;
+	private final boolean useCopy;
+
+	/**
+	 * One user to register.  The password is plain text unless the import
+	 * was created with passwordsHashed, in which case it must already be the
+	 * 64 character SHA-256 hex digest stored in Users.pwd.
+	 */
+	public static class UserRecord{
+		final String email, lname, fname, phone, password;
+
+		public UserRecord(String email, String lname, String fname, String phone, String password){
+			this.email = email;
+			this.lname = lname;
+			this.fname = fname;
+			this.phone = phone;
+			this.password = password;
+		}
+	}//end UserRecord
+
+	/**
+	 * Outcome of an import.  Duplicates are emails already present in Users
+	 * (or repeated inside the input); rejects failed validation.
+	 */
+	public static class Report{
+		long read, inserted, duplicates, rejected;
+		long millis;
+		final List<String> rejectSamples = new ArrayList<String>();
+
+		void reject(long line, String reason){
+			rejected++;
+			if(rejectSamples.size() < MAX_REJECT_SAMPLES){
+				rejectSamples.add("line " + line + ": " + reason);
+			}
+		}
+
+		public long getInserted(){ return inserted; }
+		public long getDuplicates(){ return duplicates; }
+		public long getRejected(){ return rejected; }
+
+		@Override
+		public String toString(){
+			StringBuilder sb = new StringBuilder();
+			sb.append("Read ").append(read)
+			  .append(", inserted ").append(inserted)
+			  .append(", duplicates ").append(duplicates)
+			  .append(", rejected ").append(rejected)
+			  .append(" in ").append(millis).append(" ms");
+			if(millis > 0){
+				sb.append(" (").append(read * 1000 / millis).append(" rows/s)");
+			}
+			for(String s : rejectSamples){
+				sb.append("\n\t").append(s);
+			}
+			return sb.toString();
+		}
+	}//end Report
+
+	/** A validated, hashed row ready for the database. */
+	private static class Row{
+		final String email, lname, fname, pwd;
+		final Long phone;
+
+		Row(String email, String lname, String fname, Long phone, String pwd){
+			this.email = email;
+			this.lname = lname;
+			this.fname = fname;
+			this.phone = phone;
+			this.pwd = pwd;
+		}
+	}//end Row
+
+	/** The result of validating one batch on a worker. */
+	private static class Prepared{
+		final List<Row> rows = new ArrayList<Row>();
+		final List<Long> rejectLines = new ArrayList<Long>();
+		final List<String> rejectReasons = new ArrayList<String>();
+	}//end Prepared
+
+	/**
+	 * @param esql the open Ticketmaster connection
+	 * @param workers number of validation/hashing threads
+	 * @param batchSize rows per database round trip
+	 * @param passwordsHashed true when the input already holds SHA-256 hex digests
+	 * @param useCopy stage through COPY FROM STDIN instead of batched INSERTs
+	 */
+	public UserImport(Ticketmaster esql, int workers, int batchSize, boolean passwordsHashed, boolean useCopy){
+		this.esql = esql;
+		this.workers = Math.max(1, workers);
+		this.batchSize = Math.max(1, batchSize);
+		this.passwordsHashed = passwordsHashed;
+		this.useCopy = useCopy;
+	}
+
+	/**
+	 * Imports users from CSV in the Users.csv layout:
+	 * email,lname,fname,phone,password
+	 *
+	 * @param reader the CSV source, one user per line
+	 * @return the import report
+	 * @throws java.sql.SQLException when the database write fails
+	 * @throws java.io.IOException when the input cannot be read
+	 */
+	public Report importCsv(Reader reader) throws SQLException, IOException {
+		final BufferedReader br = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader, 1 << 16);
+		Iterator<UserRecord> it = new Iterator<UserRecord>(){
+			String next = advance();
+
+			String advance(){
+				try{
+					return br.readLine();
+				}catch(IOException e){
+					throw new IllegalStateException(e);
+				}
+			}
+			public boolean hasNext(){ return next != null; }
+			public UserRecord next(){
+				String[] f = next.split(",", -1);
+				next = advance();
+				if(f.length != 5){
+					// keep the line count aligned; validation rejects it
+					return new UserRecord(null, null, null, null, null);
+				}
+				return new UserRecord(f[0].trim(), f[1].trim(), f[2].trim(), f[3].trim(), f[4].trim());
+			}
+		};
+		try{
+			return importUsers(it);
+		}catch(IllegalStateException e){
+			if(e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Imports a stream of users.  Batches are validated and hashed in
+	 * parallel, but written to the database in input order on the calling
+	 * thread, each batch in its own transaction.  Inside a transaction the
+	 * caller has open, such as a batch group's, the whole import runs under
+	 * one savepoint instead and the caller commits it.
+	 *
+	 * @param users the users to register
+	 * @return the import report
+	 * @throws java.sql.SQLException when the database write fails
+	 */
+	public Report importUsers(Iterator<UserRecord> users) throws SQLException {
+		Report report = new Report();
+		long start = System.currentTimeMillis();
+		Connection conn = esql.getConnection();
+		boolean autoCommit = conn.getAutoCommit();
+		Savepoint sp = autoCommit ? null : conn.setSavepoint();
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+		// bounded look-ahead so a huge input never sits in memory at once
+		ArrayDeque<Future<Prepared>> inFlight = new ArrayDeque<Future<Prepared>>();
+		long line = 0;
+		try{
+			conn.setAutoCommit(false);
+			while(users.hasNext() || !inFlight.isEmpty()){
+				while(users.hasNext() && inFlight.size() < workers * 2){
+					final List<UserRecord> batch = new ArrayList<UserRecord>(batchSize);
+					final long firstLine = line + 1;
+					while(users.hasNext() && batch.size() < batchSize){
+						batch.add(users.next());
+						line++;
+					}
+					report.read += batch.size();
+					inFlight.add(pool.submit(() -> prepare(batch, firstLine)));
+				}
+				Prepared p = await(inFlight.poll());
+				for(int i = 0; i < p.rejectLines.size(); ++i){
+					report.reject(p.rejectLines.get(i), p.rejectReasons.get(i));
+				}
+				if(!p.rows.isEmpty()){
+					int inserted = useCopy ? writeCopy(conn, p.rows) : writeBatch(conn, p.rows);
+					if(sp == null) conn.commit();
+					report.inserted += inserted;
+					report.duplicates += p.rows.size() - inserted;
+				}
+			}//end while
+			if(sp != null) conn.releaseSavepoint(sp);
+		}catch(SQLException e){
+			try{
+				if(sp == null) conn.rollback(); else conn.rollback(sp);
+			}catch(SQLException ignored){ }
+			throw e;
+		}finally{
+			for(Future<Prepared> f : inFlight) f.cancel(true);
+			pool.shutdownNow();
+			conn.setAutoCommit(autoCommit);
+		}
+		report.millis = System.currentTimeMillis() - start;
+		return report;
+	}
+
+	private static Prepared await(Future<Prepared> f) throws SQLException {
+		try{
+			return f.get();
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new SQLException("User import interrupted", e);
+		}catch(ExecutionException e){
+			throw new SQLException("User import worker failed: " + e.getCause(), e.getCause());
+		}
+	}
+
+	/*
+	 * Runs on a worker: validates every record of the batch and hashes the
+	 * plain text passwords.
+	 */
+	private Prepared prepare(List<UserRecord> batch, long firstLine){
+		Prepared p = new Prepared();
+		MessageDigest md = SHA256.get();
+		for(int i = 0; i < batch.size(); ++i){
+			UserRecord u = batch.get(i);
+			String reason = validate(u);
+			if(reason != null){
+				p.rejectLines.add(firstLine + i);
+				p.rejectReasons.add(reason);
+				continue;
+			}
+			String pwd = passwordsHashed ? u.password.toLowerCase() : hash(md, u.password);
+			Long phone = u.phone.isEmpty() ? null : Long.valueOf(u.phone);
+			p.rows.add(new Row(u.email, u.lname, u.fname, phone, pwd));
+		}
+		return p;
+	}
+
+	/**
+	 * Checks a record against the Users schema.
+	 *
+	 * @param u the record
+	 * @return null when valid, otherwise the reason it is rejected
+	 */
+	String validate(UserRecord u){
+		if(u.email == null) return "expected 5 fields: email,lname,fname,phone,password";
+		if(u.email.length() > 64 || !EMAIL.matcher(u.email).matches()) return "invalid email '" + u.email + "'";
+		if(u.lname.isEmpty() || u.lname.length() > 32) return "invalid last name";
+		if(u.fname.isEmpty() || u.fname.length() > 32) return "invalid first name";
+		if(!u.phone.isEmpty() && !isPhone(u.phone)) return "invalid phone '" + u.phone + "'";
+		if(u.password.isEmpty()) return "empty password";
+		if(passwordsHashed && !HASH.matcher(u.password.toLowerCase()).matches()) return "password is not a SHA-256 hex digest";
+		return null;
+	}
+
+	/** Users.phone is NUMERIC(10, 0): up to ten digits. */
+	static boolean isPhone(String s){
+		if(s.length() > 10) return false;
+		for(int i = 0; i < s.length(); ++i){
+			if(!Character.isDigit(s.charAt(i))) return false;
+		}
+		return true;
+	}
+
+	private static String hash(MessageDigest md, String password){
+		byte[] d = md.digest(password.getBytes(StandardCharsets.UTF_8));
+		char[] hex = new char[d.length * 2];
+		for(int i = 0; i < d.length; ++i){
+			hex[2 * i] = Character.forDigit((d[i] >> 4) & 0xF, 16);
+			hex[2 * i + 1] = Character.forDigit(d[i] & 0xF, 16);
+		}
+		return new String(hex);
+	}
+
+	/*
+	 * Batched INSERTs.  Every statement of the batch reports 0 updated rows
+	 * when ON CONFLICT skipped it, which is how duplicates are counted.
+	 */
+	private static int writeBatch(Connection conn, List<Row> rows) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(
+			"INSERT INTO Users (email, lname, fname, phone, pwd) VALUES (?, ?, ?, ?, ?) ON CONFLICT (email) DO NOTHING");
+		try{
+			for(Row r : rows){
+				ps.setString(1, r.email);
+				ps.setString(2, r.lname);
+				ps.setString(3, r.fname);
+				if(r.phone == null) ps.setNull(4, Types.NUMERIC);
+				else ps.setLong(4, r.phone);
+				ps.setString(5, r.pwd);
+				ps.addBatch();
+			}
+			int inserted = 0;
+			for(int n : ps.executeBatch()){
+				if(n > 0) inserted += n;
+			}
+			return inserted;
+		}finally{
+			ps.close();
+		}
+	}
+
+	/*
+	 * COPY FROM STDIN into a session temp table, then one set-based
+	 * INSERT ... SELECT ... ON CONFLICT DO NOTHING into Users.
+	 */
+	private static int writeCopy(Connection conn, List<Row> rows) throws SQLException {
+		Statement stmt = conn.createStatement();
+		try{
+			stmt.executeUpdate("CREATE TEMP TABLE IF NOT EXISTS users_import (LIKE Users INCLUDING DEFAULTS) ON COMMIT DELETE ROWS");
+			// under a savepoint the earlier batches are not committed away
+			stmt.executeUpdate("TRUNCATE users_import");
+			StringBuilder sb = new StringBuilder(rows.size() * 128);
+			for(Row r : rows){
+				// validation already excludes tabs, newlines and backslashes from
+				// email and phone; names and hashes are escaped below
+				sb.append(copyText(r.email)).append('\t')
+				  .append(copyText(r.lname)).append('\t')
+				  .append(copyText(r.fname)).append('\t')
+				  .append(r.phone == null ? "\\N" : r.phone.toString()).append('\t')
+				  .append(r.pwd).append('\n');
+			}
+			CopyManager copy = conn.unwrap(PGConnection.class).getCopyAPI();
+			try{
+				copy.copyIn("COPY users_import (email, lname, fname, phone, pwd) FROM STDIN", new StringReader(sb.toString()));
+			}catch(IOException e){
+				throw new SQLException("COPY into users_import failed", e);
+			}
+			// DISTINCT ON keeps repeated emails inside the same batch from
+			// aborting the INSERT
+			return stmt.executeUpdate(
+				"INSERT INTO Users (email, lname, fname, phone, pwd) " +
+				"SELECT DISTINCT ON (email) email, lname, fname, phone, pwd FROM users_import " +
+				"ON CONFLICT (email) DO NOTHING");
+		}finally{
+			stmt.close();
+		}
+	}
+
+	private static String copyText(String s){
+		StringBuilder sb = null;
+		for(int i = 0; i < s.length(); ++i){
+			char c = s.charAt(i);
+			String esc = c == '\\' ? "\\\\" : c == '\t' ? "\\t" : c == '\n' ? "\\n" : c == '\r' ? "\\r" : null;
+			if(esc != null && sb == null){
+				sb = new StringBuilder(s.length() + 8).append(s, 0, i);
+			}
+			if(sb != null){
+				if(esc != null) sb.append(esc);
+				else sb.append(c);
+			}
+		}
+		return sb == null ? s : sb.toString();
+	}
+}//end UserImport
@@ -0,0 +1,523 @@
+/*
+ * Virtual waiting room for Ticketmaster
+ * =====================================
+ *
+ * Database Management Systems
+ * Department of Computer Science &amp; Engineering
+ * University of California - Riverside
+ *
+ * Target DBMS: 'Postgres'
+ *
+ */
+
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class admits bookings to the database at the rate it keeps up with.
+ *
+ * A booking first takes a Ticket in its show's FIFO line.  Tickets are let
+ * in from a token bucket: tokens accrue at the current rate, one admits the
+ * head of one line, and the lines take turns so a hot show cannot starve
+ * the others.  At most rate * target / 2 admitted bookings run at once
+ * (by Little's law more would have to queue in the database), and never
+ * more than maxActive.
+ *
+ * The rate follows the database: bookings report how long their
+ * transaction took, and every ADJUST_MILLIS the p99 of those latencies is
+ * compared with the target.  Above it the rate is cut by a fifth; well
+ * below it, while the rate is what holds people back, it grows by a
+ * tenth (AIMD), so the rate settles just under what keeps p99 on target.
+ *
+ * A request is refused at once, rather than queued, when its user has
+ * used up the per-user rate, already waits in that line, the line is full,
+ * or the estimated wait is longer than maxWait.  Positions and estimated
+ * waits are the number of tickets ahead over the current rate.
+ *
+ * The settings come from -Dticketmaster.admission.p99 (ms), .rate
+ * (bookings/s to start at), .active, and .user (bookings per user and
+ * minute).  "java WaitingRoom" runs a load simulation.
+ *
+ */
+
+public class WaitingRoom{
+	/** Target p99 booking latency in ms; -Dticketmaster.admission.p99 overrides. */
+	public static final long TARGET_P99_MILLIS = Long.getLong("ticketmaster.admission.p99", 200);
+	/** Admissions per second to start at; -Dticketmaster.admission.rate overrides. */
+	public static final long INITIAL_RATE = Long.getLong("ticketmaster.admission.rate", 50);
+	/** Most bookings admitted at once; -Dticketmaster.admission.active overrides. */
+	public static final int MAX_ACTIVE = Integer.getInteger("ticketmaster.admission.active", 32);
+	/** Bookings per user and minute; -Dticketmaster.admission.user overrides. */
+	public static final int USER_PER_MINUTE = Integer.getInteger("ticketmaster.admission.user", 10);
+	/** Longest estimated wait accepted, in ms. */
+	public static final long MAX_WAIT_MILLIS = 5 * 60 * 1000;
+
+	static final long TICK_MILLIS = 5;
+	static final long ADJUST_MILLIS = 250;
+	private static final int MIN_SAMPLES = 20;
+	private static final int MAX_QUEUE = 10000;
+	private static final int MAX_USERS = 100000;
+
+	/** Thrown when a request is refused instead of queued. */
+	public static final class Rejected extends Exception{
+		private static final long serialVersionUID = 1L;
+
+		Rejected(String message){
+			super(message);
+		}
+	}//end Rejected
+
+	/** One place in a show's line. */
+	public final class Ticket{
+		final String user;
+		final long sid;
+		boolean admitted, left;
+
+		Ticket(String user, long sid){
+			this.user = user;
+			this.sid = sid;
+		}
+
+		/** @return the number of tickets ahead in line, 0 once admitted */
+		public int position(){
+			synchronized(WaitingRoom.this){
+				if(admitted || left) return 0;
+				Line l = lines.get(sid);
+				int ahead = 0;
+				for(Ticket t : l.queue){
+					if(t == this) break;
+					++ahead;
+				}
+				return ahead;
+			}
+		}
+
+		/** @return the estimated wait in ms, 0 once admitted */
+		public long estimatedWaitMillis(){
+			synchronized(WaitingRoom.this){
+				return admitted || left ? 0 : waitMillis(position() + 1);
+			}
+		}
+
+		/**
+		 * Waits to be admitted.
+		 *
+		 * @param timeoutMillis the longest wait
+		 * @return false when the wait timed out; the ticket has left then
+		 * @throws java.lang.InterruptedException when interrupted; the ticket has left then
+		 */
+		public boolean await(long timeoutMillis) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + timeoutMillis;
+			Flight.Admission event = new Flight.Admission();
+			event.begin();
+			int position = event.isEnabled() ? position() : 0;
+			synchronized(WaitingRoom.this){
+				try{
+					while(!admitted){
+						long left = deadline - System.currentTimeMillis();
+						if(left <= 0){
+							leave();
+							return false;
+						}
+						WaitingRoom.this.wait(left);
+					}
+					return true;
+				}catch(InterruptedException e){
+					leave();
+					throw e;
+				}finally{
+					event.end();
+					if(event.shouldCommit()){
+						event.sid = sid;
+						event.position = position;
+						event.admitted = admitted;
+						event.commit();
+					}
+				}
+			}
+		}
+
+		/** Gives up the place in line, or the admission once done. */
+		public void leave(){
+			synchronized(WaitingRoom.this){
+				if(left) return;
+				left = true;
+				if(admitted){
+					--active;
+					release(System.currentTimeMillis());
+				}else{
+					lines.get(sid).queue.remove(this);
+				}
+				waiting.remove(user + "/" + sid, this);
+				WaitingRoom.this.notifyAll();
+			}
+		}
+	}//end Ticket
+
+	private static final class Line{
+		final ArrayDeque<Ticket> queue = new ArrayDeque<Ticket>();
+	}//end Line
+
+	// refills continuously; capacity is the burst
+	private static final class Bucket{
+		double tokens;
+		long at;
+
+		Bucket(double tokens, long at){
+			this.tokens = tokens;
+			this.at = at;
+		}
+
+		boolean take(double perMilli, double capacity, long now){
+			tokens = Math.min(capacity, tokens + (now - at) * perMilli);
+			at = now;
+			if(tokens < 1) return false;
+			tokens -= 1;
+			return true;
+		}
+	}//end Bucket
+
+	private final long targetNanos;
+	private final int maxActive;
+	private final int userPerMinute;
+	private final long maxWaitMillis;
+	private final double minRate, maxRate;
+	private double rate;
+	private double tokens;
+	private long refilledAt = System.currentTimeMillis();
+	private int active;
+	private final Map<Long, Line> lines = new LinkedHashMap<Long, Line>();
+	private final Map<String, Ticket> waiting = new HashMap<String, Ticket>();
+	private final Map<String, Bucket> users = new HashMap<String, Bucket>();
+	private long[] samples = new long[1024];
+	private int sampleCount;
+	private long adjustedAt = System.currentTimeMillis(), lastP99;
+	// whether the rate, not the active limit, held tickets back since the last adjustment
+	private boolean throttled;
+	private final AtomicLong admittedCount = new AtomicLong(), rejectedCount = new AtomicLong();
+	private ScheduledExecutorService timer;
+
+	/**
+	 * @param targetP99Millis the booking latency p99 to stay under
+	 * @param initialRate admissions per second to start at
+	 * @param maxActive most admitted bookings at once
+	 * @param userPerMinute requests per user and minute, 0 for no limit
+	 * @param maxWaitMillis longest estimated wait accepted
+	 */
+	public WaitingRoom(long targetP99Millis, double initialRate, int maxActive, int userPerMinute, long maxWaitMillis){
+		this.targetNanos = targetP99Millis * 1000000;
+		this.rate = initialRate;
+		this.minRate = Math.max(1, initialRate / 50);
+		this.maxRate = initialRate * 50;
+		this.maxActive = maxActive;
+		this.userPerMinute = userPerMinute;
+		this.maxWaitMillis = maxWaitMillis;
+	}
+
+	/** @return a waiting room with the configured settings */
+	public static WaitingRoom configured(){
+		return new WaitingRoom(TARGET_P99_MILLIS, INITIAL_RATE, MAX_ACTIVE, USER_PER_MINUTE, MAX_WAIT_MILLIS);
+	}
+
+	/**
+	 * Takes a place in a show's line.
+	 *
+	 * @param user the user, for the per-user limit
+	 * @param sid the show
+	 * @return the ticket; call leave() on it when done
+	 * @throws WaitingRoom.Rejected when the request is refused
+	 */
+	public synchronized Ticket enter(String user, long sid) throws Rejected {
+		long now = System.currentTimeMillis();
+		String key = user + "/" + sid;
+		if(waiting.containsKey(key)) throw reject("You are already in line for show " + sid);
+		if(userPerMinute > 0){
+			Bucket b = users.get(user);
+			if(b == null){
+				if(users.size() >= MAX_USERS) users.clear();
+				b = new Bucket(userPerMinute, now);
+				users.put(user, b);
+			}
+			if(!b.take(userPerMinute / 60000.0, userPerMinute, now)){
+				throw reject("Too many requests, please wait a minute");
+			}
+		}
+		Line l = lines.get(sid);
+		if(l == null){
+			l = new Line();
+			lines.put(sid, l);
+		}
+		if(l.queue.size() >= MAX_QUEUE || waitMillis(l.queue.size() + 1) > maxWaitMillis){
+			throw reject("Show " + sid + " is too busy right now, please try again later");
+		}
+		Ticket t = new Ticket(user, sid);
+		l.queue.add(t);
+		waiting.put(key, t);
+		release(now);
+		return t;
+	}
+
+	private Rejected reject(String message){
+		rejectedCount.incrementAndGet();
+		return new Rejected(message);
+	}
+
+	/**
+	 * Reports how long an admitted booking's database work took.
+	 *
+	 * @param nanos the latency
+	 */
+	public synchronized void observe(long nanos){
+		if(sampleCount == samples.length) samples = Arrays.copyOf(samples, samples.length * 2);
+		samples[sampleCount++] = nanos;
+	}
+
+	/** @return admissions per second now */
+	public synchronized double rate(){
+		return rate;
+	}
+
+	/**
+	 * @param sid a show
+	 * @return the number of tickets waiting in its line
+	 */
+	public synchronized int waiting(long sid){
+		Line l = lines.get(sid);
+		return l == null ? 0 : l.queue.size();
+	}
+
+	/**
+	 * @param user a user
+	 * @param sid a show
+	 * @return the user's ticket in the show's line, or null
+	 */
+	public synchronized Ticket ticket(String user, long sid){
+		return waiting.get(user + "/" + sid);
+	}
+
+	private long waitMillis(int ahead){
+		return (long)Math.ceil(ahead * 1000.0 / rate);
+	}
+
+	/** Starts releasing tickets in the background. */
+	public synchronized void start(){
+		if(timer != null) return;
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "waiting-room");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops the background thread. */
+	public synchronized void stop(){
+		if(timer != null){
+			timer.shutdownNow();
+			timer = null;
+		}
+	}
+
+	synchronized void tick(){
+		long now = System.currentTimeMillis();
+		if(now - adjustedAt >= ADJUST_MILLIS) adjust(now);
+		release(now);
+	}
+
+	/* AIMD on the p99 of the latencies reported since the last adjustment. */
+	private void adjust(long now){
+		adjustedAt = now;
+		if(sampleCount < MIN_SAMPLES) return;
+		long[] window = Arrays.copyOf(samples, sampleCount);
+		sampleCount = 0;
+		Arrays.sort(window);
+		lastP99 = window[(int)Math.ceil(window.length * 0.99) - 1];
+		if(lastP99 > targetNanos){
+			rate = Math.max(minRate, rate * 0.8);
+		}else if(lastP99 < targetNanos * 7 / 10 && throttled){
+			rate = Math.min(maxRate, rate * 1.1);
+		}
+		throttled = false;
+	}
+
+	/* Lets in as many heads of line as tokens and free slots allow, lines taking turns. */
+	private void release(long now){
+		tokens = Math.min(Math.max(1, rate * TICK_MILLIS * 2 / 1000), tokens + (now - refilledAt) * rate / 1000);
+		refilledAt = now;
+		boolean any = false;
+		// Little's law: more in flight than rate * latency means they queue
+		int limit = (int)Math.min(maxActive, Math.max(1, Math.ceil(rate * targetNanos / 2e9)));
+		while(tokens >= 1 && active < limit){
+			boolean progressed = false;
+			for(Iterator<Line> it = lines.values().iterator(); it.hasNext() && tokens >= 1 && active < limit;){
+				Line l = it.next();
+				Ticket t = l.queue.poll();
+				if(t == null){
+					it.remove();
+					continue;
+				}
+				t.admitted = true;
+				waiting.remove(t.user + "/" + t.sid);
+				++active;
+				tokens -= 1;
+				admittedCount.incrementAndGet();
+				progressed = any = true;
+			}
+			if(!progressed) break;
+		}
+		// rotate, so the next release starts with another show
+		if(any && lines.size() > 1){
+			Iterator<Map.Entry<Long, Line>> it = lines.entrySet().iterator();
+			Map.Entry<Long, Line> first = it.next();
+			it.remove();
+			lines.put(first.getKey(), first.getValue());
+		}
+		if(tokens < 1 && active < limit){
+			for(Line l : lines.values()) throttled |= !l.queue.isEmpty();
+		}
+		if(any) notifyAll();
+	}
+
+	@Override
+	public synchronized String toString(){
+		int queued = 0;
+		for(Line l : lines.values()) queued += l.queue.size();
+		return String.format("rate %.1f/s, %d active, %d waiting in %d lines, %d admitted, %d rejected, last p99 %.1f ms",
+			rate, active, queued, lines.size(), admittedCount.get(), rejectedCount.get(), lastP99 / 1e6);
+	}
+
+	/*
+	 * Load simulation: a database that serves `capacity` bookings at a time
+	 * in about `serviceMillis` each, and a burst of arrivals well above that.
+	 */
+	private static final class Simulation{
+		final Semaphore db;
+		final long serviceMillis;
+		final List<Long> latencies = new ArrayList<Long>();
+		final AtomicLong completed = new AtomicLong(), rejected = new AtomicLong(), timedOut = new AtomicLong();
+		final Random random = new Random(42);
+
+		Simulation(int capacity, long serviceMillis){
+			this.db = new Semaphore(capacity, true);
+			this.serviceMillis = serviceMillis;
+		}
+
+		long book() throws InterruptedException {
+			long start = System.nanoTime();
+			db.acquire();
+			try{
+				long jitter;
+				synchronized(random){
+					jitter = (long)(random.nextGaussian() * serviceMillis / 5);
+				}
+				Thread.sleep(Math.max(1, serviceMillis + jitter));
+			}finally{
+				db.release();
+			}
+			long nanos = System.nanoTime() - start;
+			synchronized(latencies){
+				latencies.add(nanos);
+			}
+			completed.incrementAndGet();
+			return nanos;
+		}
+
+		String result(String name, long millis){
+			long[] l;
+			synchronized(latencies){
+				l = new long[latencies.size()];
+				for(int i = 0; i < l.length; ++i) l[i] = latencies.get(i);
+			}
+			Arrays.sort(l);
+			double p50 = l.length == 0 ? 0 : l[l.length / 2] / 1e6;
+			double p99 = l.length == 0 ? 0 : l[(int)Math.ceil(l.length * 0.99) - 1] / 1e6;
+			return String.format("%s\t%d\t%.0f\t%.1f\t%.1f\t%d\t%d", name, completed.get(),
+				completed.get() * 1000.0 / millis, p50, p99, rejected.get(), timedOut.get());
+		}
+	}//end Simulation
+
+	/**
+	 * Load simulation: java WaitingRoom [arrivals/s] [seconds] [target p99 ms]
+	 *
+	 * Sends the same burst of booking requests for a few hot shows to a
+	 * simulated database that serves 8 bookings at a time in about 20 ms,
+	 * once directly and once through a waiting room, and prints the
+	 * completed bookings and their latency for each.
+	 *
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) throws Exception {
+		final int arrivals = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		final long millis = (args.length > 1 ? Long.parseLong(args[1]) : 10) * 1000;
+		final long target = args.length > 2 ? Long.parseLong(args[2]) : 100;
+		final int capacity = 8;
+		final long service = 20;
+		System.out.println("Database: " + capacity + " at a time, ~" + service + " ms each (" +
+			capacity * 1000 / service + " bookings/s); " + arrivals + " requests/s for " + millis / 1000 + " s");
+		System.out.println("mode\t\tcompleted\tper_s\tp50_ms\tp99_ms\trejected\ttimed_out");
+		for(final boolean admission : new boolean[]{ false, true }){
+			final Simulation sim = new Simulation(capacity, service);
+			final WaitingRoom room = new WaitingRoom(target, capacity * 1000 / service / 2, capacity * 8, 0, 30 * 1000);
+			room.start();
+			final int requests = (int)(arrivals * millis / 1000);
+			final CountDownLatch done = new CountDownLatch(requests);
+			// arrivals are timed by one thread and each waits on its own
+			ScheduledExecutorService arrive = Executors.newSingleThreadScheduledExecutor();
+			final ExecutorService clients = Executors.newCachedThreadPool();
+			long start = System.currentTimeMillis();
+			for(long i = 0; i < requests; ++i){
+				final long id = i;
+				arrive.schedule(() -> clients.submit(() -> {
+					try{
+						if(!admission){
+							sim.book();
+							return;
+						}
+						Ticket t;
+						try{
+							t = room.enter("user" + id, id % 3);
+						}catch(Rejected e){
+							sim.rejected.incrementAndGet();
+							return;
+						}
+						try{
+							if(!t.await(30 * 1000)){
+								sim.timedOut.incrementAndGet();
+								return;
+							}
+							room.observe(sim.book());
+						}finally{
+							t.leave();
+						}
+					}catch(InterruptedException e){
+						Thread.currentThread().interrupt();
+					}finally{
+						done.countDown();
+					}
+				}), i * 1000000 / arrivals, TimeUnit.MICROSECONDS);
+			}
+			done.await();
+			long elapsed = System.currentTimeMillis() - start;
+			arrive.shutdown();
+			clients.shutdown();
+			room.stop();
+			System.out.println(sim.result(admission ? "waiting room" : "direct\t", elapsed) +
+				(admission ? "\t(" + room + ")" : ""));
+		}
+	}
+}//end WaitingRoom
@@ -9,6 +9,14 @@ DROP TABLE IF EXISTS CinemaSeats;
 DROP TABLE IF EXISTS Theaters;
 DROP TABLE IF EXISTS Cinemas;
 DROP TABLE IF EXISTS Cities;
+DROP FUNCTION IF EXISTS create_show_partitions(DATE, DATE);
+DROP FUNCTION IF EXISTS set_play_slot();
+DROP FUNCTION IF EXISTS show_slot(DATE, TIME, TIME);
+DROP SEQUENCE IF EXISTS movies_mvid_seq;
+DROP SEQUENCE IF EXISTS shows_sid_seq;
+DROP SEQUENCE IF EXISTS bookings_bid_seq;
+DROP SEQUENCE IF EXISTS payments_pid_seq;
+DROP SEQUENCE IF EXISTS showseats_ssid_seq;
 
 -- Entities
 
@@ -78,6 +86,14 @@ CREATE TABLE Shows (
     FOREIGN KEY(mvid) REFERENCES Movies(mvid)
 );
 
+-- Bookings and ShowSeats grow with every show, so both are range
+-- partitioned by month of the show date.  sdate is copied from Shows.sdate
+-- so that queries filtering or joining on it only touch the partitions for
+-- those dates, and old months can be detached and dropped as a whole.
+-- Postgres requires the partition key in every PRIMARY KEY and UNIQUE
+-- constraint of a partitioned table, which is why bid alone can no longer
+-- be referenced by a FOREIGN KEY.
+
 CREATE TABLE Bookings (
     bid BIGINT NOT NULL,  -- Booking ID
     status VARCHAR(16) NOT NULL,
@@ -85,21 +101,23 @@ CREATE TABLE Bookings (
     seats INTEGER NOT NULL,  -- Number of seats booked
     sid BIGINT NOT NULL,  -- Show ID
     email VARCHAR(64) NOT NULL,  -- User account
-    PRIMARY KEY(bid),
+    sdate DATE NOT NULL,  -- Show date, the partition key
+    version INTEGER NOT NULL DEFAULT 0,  -- Incremented by every status change
+    PRIMARY KEY(bid, sdate),
     FOREIGN KEY(sid) REFERENCES Shows(sid),
     FOREIGN KEY(email) REFERENCES Users(email)    
     -- A booking has at most one payment is enforced in Payments via UNIQUE
-);
+) PARTITION BY RANGE (sdate);
 
 CREATE TABLE Payments (
     pid BIGINT NOT NULL,  -- Payment ID
-    bid BIGINT NOT NULL,  -- Booking ID
+    bid BIGINT NOT NULL,  -- Booking ID (Bookings is partitioned, so no FOREIGN KEY)
     pmethod VARCHAR(32) NOT NULL,
     pdatetime TIMESTAMPTZ NOT NULL,  -- Payment date and time
     amount REAL NOT NULL,
     trid BIGINT,  -- Transaction ID
+    reversed TIMESTAMPTZ,  -- When the booking was cancelled and the payment reversed
     PRIMARY KEY(pid),
-    FOREIGN KEY(bid) REFERENCES Bookings(bid),
     UNIQUE(bid)  -- No two payments can have the same booking
 );
 
@@ -107,26 +125,94 @@ CREATE TABLE ShowSeats (
     ssid BIGINT NOT NULL,  -- Show seat ID
     sid BIGINT NOT NULL,  -- Show ID
     csid BIGINT NOT NULL, -- Cinema seat ID
-    bid BIGINT, -- Booking ID
+    bid BIGINT, -- Booking ID (Bookings is partitioned, so no FOREIGN KEY)
     price REAL NOT NULL,
-    PRIMARY KEY(ssid),
+    sdate DATE NOT NULL,  -- Show date, the partition key
+    PRIMARY KEY(ssid, sdate),
     FOREIGN KEY(sid) REFERENCES Shows(sid),
     FOREIGN KEY(csid) REFERENCES CinemaSeats(csid),
-    FOREIGN KEY(bid) REFERENCES Bookings(bid),
-    UNIQUE(sid, csid)  -- The same seat can only be booked once for the same show
-);
+    UNIQUE(sid, csid, sdate)  -- The same seat can only be booked once for the same show
+) PARTITION BY RANGE (sdate);
+
+CREATE INDEX ON Bookings(sid);
+CREATE INDEX ON Bookings(email);
+CREATE INDEX ON ShowSeats(bid);
+-- Pending bookings, read by the expiry job at startup
+CREATE INDEX ON Bookings(bdatetime) WHERE status = 'Pending';
+
+-- Anything outside the monthly partitions lands here instead of failing
+CREATE TABLE Bookings_default PARTITION OF Bookings DEFAULT;
+CREATE TABLE ShowSeats_default PARTITION OF ShowSeats DEFAULT;
+
+-- Creates the monthly partitions bookings_pYYYYMM and showseats_pYYYYMM
+-- covering every month from from_date to to_date.  Existing partitions are
+-- left alone, so the retention job can call it to stay ahead of the
+-- schedule.
+CREATE FUNCTION create_show_partitions(from_date DATE, to_date DATE) RETURNS INTEGER AS $$
+DECLARE
+    m DATE := date_trunc('month', from_date)::DATE;
+    created INTEGER := 0;
+    suffix TEXT;
+BEGIN
+    WHILE m <= to_date LOOP
+        suffix := to_char(m, 'YYYYMM');
+        IF to_regclass('bookings_p' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE bookings_p%s PARTITION OF Bookings FOR VALUES FROM (%L) TO (%L)',
+                           suffix, m, (m + INTERVAL '1 month')::DATE);
+            created := created + 1;
+        END IF;
+        IF to_regclass('showseats_p' || suffix) IS NULL THEN
+            EXECUTE format('CREATE TABLE showseats_p%s PARTITION OF ShowSeats FOR VALUES FROM (%L) TO (%L)',
+                           suffix, m, (m + INTERVAL '1 month')::DATE);
+            created := created + 1;
+        END IF;
+        m := (m + INTERVAL '1 month')::DATE;
+    END LOOP;
+    RETURN created;
+END;
+$$ LANGUAGE plpgsql;
 
 
 -- Relations
 
+-- btree_gist lets the exclusion constraint below compare tid with =
+CREATE EXTENSION IF NOT EXISTS btree_gist;
+
+-- The time a show occupies its theater; an end time at or before the
+-- start time means the show runs past midnight.
+CREATE FUNCTION show_slot(sdate DATE, sttime TIME, edtime TIME) RETURNS TSRANGE AS $$
+    SELECT tsrange(sdate + sttime,
+                   sdate + edtime + CASE WHEN edtime <= sttime THEN INTERVAL '1 day' ELSE INTERVAL '0' END);
+$$ LANGUAGE sql IMMUTABLE;
+
 CREATE TABLE Plays (
     sid BIGINT NOT NULL,  -- Show ID
     tid BIGINT NOT NULL,  -- Theater ID
+    slot TSRANGE,  -- show_slot() of the show, set by trigger
     PRIMARY KEY(sid, tid),
     FOREIGN KEY(sid) REFERENCES Shows(sid),
-    FOREIGN KEY(tid) REFERENCES Theaters(tid)
+    FOREIGN KEY(tid) REFERENCES Theaters(tid),
+    EXCLUDE USING gist (tid WITH =, slot WITH &&)  -- No two shows in a theater at once
 );
 
+CREATE FUNCTION set_play_slot() RETURNS TRIGGER AS $$
+BEGIN
+    SELECT show_slot(S.sdate, S.sttime, S.edtime) INTO NEW.slot FROM Shows S WHERE S.sid = NEW.sid;
+    RETURN NEW;
+END;
+$$ LANGUAGE plpgsql;
+
+
+-- ID sequences.  Each nextval hands a client a block of INCREMENT BY ids
+-- (hi/lo), which it then assigns locally without further round trips.
+-- They are advanced past the loaded data at the end of this script.
+
+CREATE SEQUENCE movies_mvid_seq INCREMENT BY 100;
+CREATE SEQUENCE shows_sid_seq INCREMENT BY 100;
+CREATE SEQUENCE bookings_bid_seq INCREMENT BY 100;
+CREATE SEQUENCE payments_pid_seq INCREMENT BY 100;
+CREATE SEQUENCE showseats_ssid_seq INCREMENT BY 1000;
+
 
 ----------------------------
 -- INSERT DATA STATEMENTS --
@@ -201,7 +287,21 @@ COPY Shows (
 FROM 'Shows.csv'
 WITH DELIMITER ',';
 
-COPY Bookings (
+-- Bookings and ShowSeats are staged first so each row can pick up its
+-- show date, which decides the partition it is routed to.
+
+SELECT create_show_partitions(min(sdate), max(sdate)) FROM Shows;
+
+CREATE TEMP TABLE BookingsStage (
+    bid BIGINT,
+    status VARCHAR(16),
+    bdatetime TIMESTAMPTZ,
+    seats INTEGER,
+    sid BIGINT,
+    email VARCHAR(64)
+);
+
+COPY BookingsStage (
     bid,
     status,
     bdatetime,
@@ -212,6 +312,11 @@ COPY Bookings (
 FROM 'Bookings.csv'
 WITH DELIMITER ',';
 
+INSERT INTO Bookings (bid, status, bdatetime, seats, sid, email, sdate)
+SELECT B.bid, B.status, B.bdatetime, B.seats, B.sid, B.email, S.sdate
+FROM BookingsStage B, Shows S
+WHERE B.sid = S.sid;
+
 COPY Payments (
     pid,
     bid,
@@ -223,7 +328,15 @@ COPY Payments (
 FROM 'Payments.csv'
 WITH DELIMITER ',';
 
-COPY ShowSeats (
+CREATE TEMP TABLE ShowSeatsStage (
+    ssid BIGINT,
+    sid BIGINT,
+    csid BIGINT,
+    bid BIGINT,
+    price REAL
+);
+
+COPY ShowSeatsStage (
     ssid,
     sid,
     csid,
@@ -233,9 +346,34 @@ COPY ShowSeats (
 FROM 'ShowSeats.csv'
 WITH DELIMITER ',' NULL AS '';
 
+INSERT INTO ShowSeats (ssid, sid, csid, bid, price, sdate)
+SELECT A.ssid, A.sid, A.csid, A.bid, A.price, S.sdate
+FROM ShowSeatsStage A, Shows S
+WHERE A.sid = S.sid;
+
 COPY Plays (
     sid,
     tid
 )
 FROM 'Plays.csv'
 WITH DELIMITER ',';
+
+-- Loaded plays that overlap an earlier show in the same theater keep a
+-- NULL slot, which the exclusion constraint ignores; every other play and
+-- every play inserted from here on is checked.
+UPDATE Plays P
+SET slot = show_slot(S.sdate, S.sttime, S.edtime)
+FROM Shows S
+WHERE S.sid = P.sid
+AND NOT EXISTS (SELECT 1 FROM Plays P2, Shows S2
+                WHERE P2.tid = P.tid AND P2.sid < P.sid AND S2.sid = P2.sid
+                AND show_slot(S2.sdate, S2.sttime, S2.edtime) && show_slot(S.sdate, S.sttime, S.edtime));
+
+CREATE TRIGGER plays_slot BEFORE INSERT OR UPDATE OF sid ON Plays
+FOR EACH ROW EXECUTE PROCEDURE set_play_slot();
+
+SELECT setval('movies_mvid_seq', (SELECT COALESCE(max(mvid), 0) + 1 FROM Movies), false);
+SELECT setval('shows_sid_seq', (SELECT COALESCE(max(sid), 0) + 1 FROM Shows), false);
+SELECT setval('bookings_bid_seq', (SELECT COALESCE(max(bid), 0) + 1 FROM Bookings), false);
+SELECT setval('payments_pid_seq', (SELECT COALESCE(max(pid), 0) + 1 FROM Payments), false);
+SELECT setval('showseats_ssid_seq', (SELECT COALESCE(max(ssid), 0) + 1 FROM ShowSeats), false);